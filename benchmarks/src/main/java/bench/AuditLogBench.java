@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import server.AuditLog;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What auditing a command costs the handler thread. The writer keeps up with one producer;
+ * when it cannot, entries are dropped rather than waited for, so both cases are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuditLogBench {
+    private static final String REMOTE = "/127.0.0.1:50000";
+
+    private Path dir;
+    private AuditLog log;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Dirs.temp("bench-audit");
+        log = AuditLog.open(dir, 65536, 64L << 20, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        System.out.println("dropped=" + log.dropped());
+        Dirs.delete(dir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void record() {
+        log.record(REMOTE, 42, "SEND_TEXT", 7, System.nanoTime(), true, 1500, 30);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void recordContended() {
+        log.record(REMOTE, 42, "SEND_TEXT", 7, System.nanoTime(), true, 1500, 30);
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH options, but unless told otherwise
+ * runs with the GC profiler (allocation rate and bytes allocated per operation next to the
+ * time) and writes the results as JSON to bench-results/jmh-<time>.json, so a run can be
+ * compared against an earlier one:
+ *
+ * <pre>
+ *   mvn -B package -DskipTests
+ *   java -jar benchmarks/target/benchmarks.jar                    # everything
+ *   java -jar benchmarks/target/benchmarks.jar ChatServiceBench   # one class (a regex)
+ *   java -jar benchmarks/target/benchmarks.jar -prof jfr Fanout   # a JFR recording as well
+ *   java -jar benchmarks/target/benchmarks.jar -lprof             # other profilers
+ * </pre>
+ *
+ * Runs that take too long for JMH (millions of messages) are in {@link ScaleRun}.
+ */
+public class BenchMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListProfilers() || cli.shouldListResultFormats()
+                || cli.shouldListWithParams()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        if (cli.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+        if (!cli.getResult().hasValue()) {
+            Path dir = Files.createDirectories(Path.of("bench-results"));
+            options.resultFormat(ResultFormatType.JSON)
+                    .result(dir.resolve("jmh-" + Instant.now().toString().replace(':', '-') + ".json").toString());
+        }
+        new Runner(options.build()).run();
+    }
+}
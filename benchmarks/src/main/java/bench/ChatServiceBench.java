@@ -0,0 +1,63 @@
+package bench;
+
+import domain.message.Message;
+import org.openjdk.jmh.annotations.*;
+import repository.inmemory.InMemoryChatRepository;
+import repository.inmemory.InMemoryUserRepository;
+import service.ChatService;
+import service.UserService;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatService hot paths over the in-memory repositories, in a chat of two users that
+ * already has historySize messages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChatServiceBench {
+    @Param({"100", "10000"})
+    int historySize;
+
+    private ChatService service;
+    private long chatId;
+    private long alice;
+    private long bob;
+
+    // sendText keeps growing the chat, so every iteration starts again from historySize
+    @Setup(Level.Iteration)
+    public void setUp() {
+        UserService users = new UserService(new InMemoryUserRepository());
+        alice = users.createUser("alice").getId();
+        bob = users.createUser("bob").getId();
+        service = new ChatService(new InMemoryChatRepository(), users);
+        chatId = service.createChat("bench", List.of(alice, bob)).getId();
+        for (int i = 0; i < historySize; i++) {
+            service.sendText(chatId, (i % 2 == 0) ? alice : bob, "message " + i);
+        }
+        service.markChatRead(chatId, alice);
+        service.markChatRead(chatId, bob);
+    }
+
+    @Benchmark
+    public Message sendText() {
+        return service.sendText(chatId, alice, "hello, how are you?");
+    }
+
+    /** What a reader does after each new message: the whole chat is scanned for unread ones. */
+    @Benchmark
+    public void sendThenMarkChatRead() {
+        service.sendText(chatId, alice, "hello, how are you?");
+        service.markChatRead(chatId, bob);
+    }
+
+    @Benchmark
+    public List<Message> getHistory() {
+        return service.getHistory(chatId);
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import domain.message.Message;
+import domain.message.MessageCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** MessageCodec per message kind, on the golden file's messages. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBench {
+    // index into GoldenFile.messages()
+    @Param({"0", "2", "3", "5"})
+    int message;
+
+    private Message m;
+    private ByteBuffer out;
+    private ByteBuffer in;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<Message> messages = GoldenFile.messages();
+        m = messages.get(message);
+        out = ByteBuffer.allocate(1024);
+        in = ByteBuffer.wrap(GoldenFile.encode(List.of(m)));
+    }
+
+    @Benchmark
+    public int encodedLength() {
+        return MessageCodec.encodedLength(m);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        out.clear();
+        MessageCodec.encode(out, m);
+        return out;
+    }
+
+    @Benchmark
+    public Message decode() {
+        in.rewind();
+        return MessageCodec.decode(in);
+    }
+}
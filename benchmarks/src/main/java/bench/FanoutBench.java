@@ -0,0 +1,89 @@
+package bench;
+
+import domain.Chat;
+import domain.message.Message;
+import domain.message.TextMessage;
+import org.openjdk.jmh.annotations.*;
+import repository.inmemory.InMemoryChatRepository;
+import repository.inmemory.InMemoryUserRepository;
+import repository.log.FsyncPolicy;
+import server.ChatServer;
+import server.ClientHandler;
+import server.OfflineInbox;
+import service.ChatService;
+import service.UserService;
+import util.IdGenerator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatServer.onNewMessage with every recipient online: one event line is built, numbered
+ * per recipient and written to each recipient's handler. Handlers sit on a
+ * {@link NullSocket}, so this measures the server's side only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanoutBench {
+    @Param({"1", "10", "100", "1000"})
+    int recipients;
+
+    private Path inboxDir;
+    private OfflineInbox inbox;
+    private ChatServer server;
+    private final List<NullSocket> sockets = new ArrayList<>();
+    private Chat chat;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InMemoryUserRepository userRepository = new InMemoryUserRepository();
+        InMemoryChatRepository chatRepository = new InMemoryChatRepository();
+        inboxDir = Dirs.temp("bench-inbox");
+        inbox = ChatServer.openInbox(inboxDir, FsyncPolicy.NONE, Duration.ofMillis(10));
+        server = new ChatServer(0, userRepository, chatRepository, inbox);
+        UserService users = new UserService(userRepository);
+        ChatService chats = new ChatService(chatRepository, users);
+
+        // the sender stays offline, so it gets no event of its own
+        long sender = users.createUser("sender").getId();
+        chat = new Chat(IdGenerator.nextId(), "fanout");
+        chat.addParticipant(sender);
+        for (int i = 0; i < recipients; i++) {
+            long id = users.createUser("user" + i).getId();
+            chat.addParticipant(id);
+            NullSocket socket = new NullSocket();
+            sockets.add(socket);
+            ClientHandler handler = new ClientHandler(socket, server, users, chats);
+            Thread t = new Thread(handler, "bench-client-" + i);
+            t.setDaemon(true);
+            t.start();
+            server.registerOnline(id, handler);
+        }
+        chatRepository.add(chat);
+        message = new TextMessage(IdGenerator.nextId(), chat.getId(), sender, Instant.now(), "hello everyone");
+        // handlers open their writers when their threads start
+        Thread.sleep(200);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (NullSocket s : sockets) s.close();
+        inbox.close();
+        Dirs.delete(inboxDir);
+    }
+
+    @Benchmark
+    public void onNewMessage() {
+        server.onNewMessage(chat, message);
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import domain.message.Message;
+import org.openjdk.jmh.annotations.*;
+import repository.log.FsyncPolicy;
+import repository.log.LogChatRepository;
+import repository.log.LogUserRepository;
+import service.ChatService;
+import service.UserService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable sends through the append-only logs, per fsync policy. Sampled, so the output is
+ * a latency histogram; with several threads, sends waiting on the same fsync share it.
+ * Runs in the temp directory, so point java.io.tmpdir at the disk to be measured.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FsyncBench {
+    @Param({"EVERY_COMMIT", "PERIODIC", "NONE"})
+    FsyncPolicy fsync;
+
+    private Path dir;
+    private LogUserRepository userRepository;
+    private LogChatRepository chatRepository;
+    private ChatService service;
+    private long alice;
+    private long bob;
+    private volatile long chatId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Dirs.temp("bench-log");
+        userRepository = new LogUserRepository(dir, fsync, Duration.ofMillis(10));
+        chatRepository = new LogChatRepository(dir, fsync, Duration.ofMillis(10));
+        UserService users = new UserService(userRepository);
+        alice = users.createUser("alice").getId();
+        bob = users.createUser("bob").getId();
+        service = new ChatService(chatRepository, users);
+    }
+
+    // a fresh chat per iteration keeps the heap from filling up with NONE
+    @Setup(Level.Iteration)
+    public void newChat() {
+        if (chatId != 0) service.deleteChat(chatId);
+        chatId = service.createChat("bench", List.of(alice, bob)).getId();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        chatRepository.close();
+        userRepository.close();
+        Dirs.delete(dir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Message sendText() {
+        return service.sendText(chatId, alice, "hello, how are you?");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Message sendText8Threads() {
+        return service.sendText(chatId, alice, "hello, how are you?");
+    }
+}
@@ -0,0 +1,38 @@
+package bench;
+
+import domain.message.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages of every kind in golden/messages-v1.bin (core's test resources, where
+ * MessageCodecGoldenTest checks the codec against it), as benchmark fixtures.
+ */
+public final class GoldenFile {
+    static final String RESOURCE = "/golden/messages-v1.bin";
+
+    private GoldenFile() {}
+
+    static List<Message> messages() throws IOException {
+        ByteBuffer in;
+        try (InputStream s = GoldenFile.class.getResourceAsStream(RESOURCE)) {
+            if (s == null) throw new IllegalStateException("Missing " + RESOURCE);
+            in = ByteBuffer.wrap(s.readAllBytes());
+        }
+        List<Message> messages = new ArrayList<>();
+        while (in.hasRemaining()) messages.add(MessageCodec.decode(in));
+        return messages;
+    }
+
+    static byte[] encode(List<? extends MessageView> messages) {
+        int size = 0;
+        for (MessageView m : messages) size += MessageCodec.encodedLength(m);
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (MessageView m : messages) MessageCodec.encode(buf, m);
+        return buf.array();
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import domain.Chat;
+import domain.message.Message;
+import domain.message.MessageView;
+import domain.message.TextMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import repository.HistorySink;
+import repository.history.SegmentedHistoryStore;
+import repository.inmemory.InMemoryChatRepository;
+import util.IdGenerator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A HISTORY page from a random point of an old chat: from the heap chat (what
+ * Chat.getMessages() holds) or from the memory-mapped segment files. The GC profiler's
+ * gc.alloc.rate.norm shows what a page costs in heap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryReadBench {
+    private static final int PAGE = 50;
+
+    @Param({"heap", "mapped"})
+    String source;
+
+    @Param({"100000"})
+    int messages;
+
+    private Path dir;
+    private InMemoryChatRepository heap;
+    private SegmentedHistoryStore mapped;
+    private long chatId;
+    private long firstId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Chat chat = new Chat(IdGenerator.nextId(), "history");
+        chatId = chat.getId();
+        if (source.equals("heap")) {
+            heap = new InMemoryChatRepository();
+            heap.add(chat);
+        } else {
+            dir = Dirs.temp("bench-history");
+            mapped = new SegmentedHistoryStore(dir);
+        }
+        Instant t = Instant.parse("2024-06-01T12:00:00Z");
+        for (int i = 0; i < messages; i++) {
+            Message m = new TextMessage(IdGenerator.nextId(), chatId, 1 + i % 2, t.plusSeconds(i),
+                    "message number " + i + " of a long chat");
+            if (i == 0) firstId = m.getId();
+            if (heap != null) chat.append(m);
+            else mapped.append(m);
+        }
+        if (mapped != null) mapped.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (mapped != null) mapped.close();
+        Dirs.delete(dir);
+    }
+
+    @Benchmark
+    public void readPage(Blackhole bh) {
+        long afterId = firstId + ThreadLocalRandom.current().nextInt(messages - PAGE);
+        HistorySink sink = new HistorySink() {
+            @Override
+            public void begin(int count) {
+                bh.consume(count);
+            }
+
+            @Override
+            public void message(MessageView m) {
+                bh.consume(m.getId());
+                bh.consume(m.getBody());
+            }
+        };
+        if (heap != null) heap.readHistory(chatId, afterId, PAGE, sink);
+        else mapped.read(chatId, afterId, PAGE, sink);
+    }
+}
@@ -0,0 +1,26 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import util.IdGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/** One shared counter for every id: contended once several threads create messages. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdGeneratorBench {
+    @Benchmark
+    @Threads(1)
+    public long nextId() {
+        return IdGenerator.nextId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long nextIdContended() {
+        return IdGenerator.nextId();
+    }
+}
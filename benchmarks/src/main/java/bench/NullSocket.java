@@ -0,0 +1,43 @@
+package bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Stands in for a client's socket so a ClientHandler can be online without a network:
+ * output is thrown away (after being encoded), input never arrives until it is closed.
+ */
+final class NullSocket extends Socket {
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return -1;
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public synchronized void close() {
+        closed.countDown();
+    }
+}
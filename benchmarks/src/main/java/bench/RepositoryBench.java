@@ -0,0 +1,38 @@
+package bench;
+
+import domain.Chat;
+import org.openjdk.jmh.annotations.*;
+import repository.inmemory.InMemoryChatRepository;
+import util.IdGenerator;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RepositoryBench {
+    @Param({"100", "10000"})
+    int chats;
+
+    private InMemoryChatRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        repository = new InMemoryChatRepository();
+        for (int i = 0; i < chats; i++) {
+            Chat chat = new Chat(IdGenerator.nextId(), "chat" + i);
+            chat.addParticipant(i);
+            chat.addParticipant(i + 1);
+            repository.add(chat);
+        }
+    }
+
+    @Benchmark
+    public List<Chat> findAll() {
+        return repository.findAll();
+    }
+}
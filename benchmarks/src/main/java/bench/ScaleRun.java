@@ -0,0 +1,250 @@
+package bench;
+
+import domain.Chat;
+import domain.User;
+import domain.message.Message;
+import domain.message.TextMessage;
+import repository.ChatRepository;
+import repository.dump.ChatExporter;
+import repository.dump.ChatImporter;
+import repository.dump.DumpStats;
+import repository.history.SegmentedHistoryStore;
+import repository.inmemory.InMemoryUserRepository;
+import repository.log.ChatFileStore;
+import repository.log.FsyncPolicy;
+import repository.log.LogChatRepository;
+import repository.log.LogUserRepository;
+import repository.tiered.TieredChatRepository;
+import service.ChatService;
+import service.UserService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Runs at a scale JMH is not made for; each prints its own numbers. Data goes to the temp
+ * directory and is deleted afterwards.
+ *
+ * <pre>
+ *   java -Xmx8g -cp benchmarks/target/benchmarks.jar bench.ScaleRun recovery 10000000
+ *   java -Xmx1g -cp benchmarks/target/benchmarks.jar bench.ScaleRun tiered 20000 500 128
+ *   java -Xmx2g -cp benchmarks/target/benchmarks.jar bench.ScaleRun dump 100000000
+ * </pre>
+ *
+ * recovery: time-to-ready of a data dir holding that many messages, from the latest
+ * snapshot (taken at 90%) plus the log tail.
+ * tiered: heap in use while a tiered store with a budget of that many MB grows to that many
+ * chats of that many messages each.
+ * dump: export of that many messages, then a parallel import into durable storage.
+ */
+public class ScaleRun {
+    private static final Duration FSYNC_INTERVAL = Duration.ofMillis(10);
+    private static final String USAGE = "Usage: ScaleRun recovery <messages> [chats] | "
+            + "tiered <chats> <messagesPerChat> <budgetMB> | dump <messages> [chats]";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println(USAGE);
+            return;
+        }
+        switch (args[0]) {
+            case "recovery" -> recovery(Long.parseLong(args[1]), (args.length > 2) ? Integer.parseInt(args[2]) : 1000);
+            case "tiered" -> {
+                if (args.length < 4) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                tiered(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]));
+            }
+            case "dump" -> dump(Long.parseLong(args[1]), (args.length > 2) ? Integer.parseInt(args[2]) : 10_000);
+            default -> System.out.println(USAGE);
+        }
+    }
+
+    static void recovery(long messages, int chatCount) throws Exception {
+        Path dir = Dirs.temp("scale-recovery");
+        try {
+            long start = System.nanoTime();
+            try (LogUserRepository users = new LogUserRepository(dir, FsyncPolicy.NONE, FSYNC_INTERVAL);
+                 LogChatRepository chats = new LogChatRepository(dir, FsyncPolicy.NONE, FSYNC_INTERVAL,
+                         new SegmentedHistoryStore(dir.resolve("history")))) {
+                UserService userService = new UserService(users);
+                long alice = userService.createUser("alice").getId();
+                long bob = userService.createUser("bob").getId();
+                ChatService service = new ChatService(chats, userService);
+                long[] chatIds = new long[chatCount];
+                for (int c = 0; c < chatCount; c++) chatIds[c] = service.createChat("chat" + c, List.of(alice, bob)).getId();
+
+                long snapshotAt = messages * 9 / 10;
+                for (long i = 0; i < messages; i++) {
+                    service.sendText(chatIds[(int) (i % chatCount)], (i % 2 == 0) ? alice : bob, "message number " + i);
+                    if (i + 1 == snapshotAt) {
+                        users.snapshot();
+                        chats.snapshot();
+                    }
+                }
+            }
+            System.out.printf("Wrote %d messages in %d chats in %d s (%d MB on disk)%n", messages, chatCount,
+                    (System.nanoTime() - start) / 1_000_000_000, size(dir) >> 20);
+            System.gc();
+
+            start = System.nanoTime();
+            try (LogUserRepository users = new LogUserRepository(dir, FsyncPolicy.NONE, FSYNC_INTERVAL);
+                 LogChatRepository chats = new LogChatRepository(dir, FsyncPolicy.NONE, FSYNC_INTERVAL,
+                         new SegmentedHistoryStore(dir.resolve("history")))) {
+                long ms = (System.nanoTime() - start) / 1_000_000;
+                long loaded = 0;
+                for (Chat c : chats.findAll()) loaded += c.messageCount();
+                System.out.printf("Ready in %d ms: %d users, %d chats, %d messages%n",
+                        ms, users.findAll().size(), chats.findAll().size(), loaded);
+            }
+        } finally {
+            Dirs.delete(dir);
+        }
+    }
+
+    static void tiered(int chatCount, int perChat, long budgetMb) throws Exception {
+        Path dir = Dirs.temp("scale-tiered");
+        TieredChatRepository repository = new TieredChatRepository(new ChatFileStore(dir), budgetMb << 20);
+        try {
+            UserService users = new UserService(new InMemoryUserRepository());
+            long alice = users.createUser("alice").getId();
+            long bob = users.createUser("bob").getId();
+            ChatService service = new ChatService(repository, users);
+            int step = Math.max(1, chatCount / 10);
+            System.out.printf("Budget %d MB, %d chats of %d messages%n", budgetMb, chatCount, perChat);
+            for (int c = 0; c < chatCount; c++) {
+                long chatId = service.createChat("chat" + c, List.of(alice, bob)).getId();
+                for (int i = 0; i < perChat; i++) service.sendText(chatId, (i % 2 == 0) ? alice : bob, "message number " + i);
+                if ((c + 1) % step == 0 || c + 1 == chatCount) {
+                    System.gc();
+                    Runtime rt = Runtime.getRuntime();
+                    System.out.printf("%8d chats %12d messages: heap used %5d MB, cold %6d MB, %s%n",
+                            c + 1, (long) (c + 1) * perChat, (rt.totalMemory() - rt.freeMemory()) >> 20,
+                            size(dir) >> 20, repository.stats());
+                }
+            }
+        } finally {
+            repository.close();
+            Dirs.delete(dir);
+        }
+    }
+
+    static void dump(long messages, int chatCount) throws Exception {
+        Path dir = Dirs.temp("scale-dump");
+        try {
+            Path file = dir.resolve("messenger.dump");
+            InMemoryUserRepository sourceUsers = new InMemoryUserRepository();
+            sourceUsers.add(new User(1, "alice"));
+            sourceUsers.add(new User(2, "bob"));
+            GeneratedChats source = new GeneratedChats(chatCount, messages);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                DumpStats stats = ChatExporter.export(sourceUsers, source, out);
+                System.out.println("Export: " + stats);
+            }
+
+            Path data = Files.createDirectories(dir.resolve("data"));
+            // the imported chats are written to disk; only a bounded part of them stays in heap
+            TieredChatRepository memory = new TieredChatRepository(new ChatFileStore(data.resolve("cold")), 256L << 20);
+            try (LogUserRepository users = new LogUserRepository(data, FsyncPolicy.PERIODIC, FSYNC_INTERVAL);
+                 LogChatRepository chats = new LogChatRepository(data, FsyncPolicy.PERIODIC, FSYNC_INTERVAL,
+                         new SegmentedHistoryStore(data.resolve("history")), memory);
+                 InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                DumpStats stats = new ChatImporter(users, chats, Runtime.getRuntime().availableProcessors()).importFrom(in);
+                System.out.println("Import: " + stats);
+            } finally {
+                memory.close();
+            }
+        } finally {
+            Dirs.delete(dir);
+        }
+    }
+
+    private static long size(Path dir) throws IOException {
+        long[] total = {0};
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                total[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+
+            // the evictor renames its temporary files while we walk
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return total[0];
+    }
+
+    /** Chats whose messages are made up while they are read, so a dump of any size fits in heap. */
+    private static final class GeneratedChats implements ChatRepository {
+        private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+        private final List<Chat> chats = new ArrayList<>();
+        private final long messages;
+
+        GeneratedChats(int chatCount, long messages) {
+            this.messages = messages;
+            for (int c = 0; c < chatCount; c++) {
+                Chat chat = new Chat(3 + c, "chat" + c);
+                chat.addParticipant(1);
+                chat.addParticipant(2);
+                chats.add(chat);
+            }
+        }
+
+        @Override
+        public void forEachMessage(Chat chat, int pageSize, Consumer<? super Message> action) {
+            int c = (int) (chat.getId() - 3);
+            long perChat = messages / chats.size() + ((c < messages % chats.size()) ? 1 : 0);
+            // ids above every chat id, ascending within each chat
+            long firstId = 3 + chats.size() + (long) c * (messages / chats.size() + 1);
+            for (long i = 0; i < perChat; i++) {
+                action.accept(new TextMessage(firstId + i, chat.getId(), 1 + (i % 2), START.plusMillis(firstId + i),
+                        "message number " + i));
+            }
+        }
+
+        @Override
+        public List<Chat> findAll() {
+            return chats;
+        }
+
+        @Override
+        public Optional<Chat> findById(long id) {
+            int c = (int) (id - 3);
+            return (c >= 0 && c < chats.size()) ? Optional.of(chats.get(c)) : Optional.empty();
+        }
+
+        @Override
+        public void add(Chat chat) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void update(Chat chat) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteById(long id) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
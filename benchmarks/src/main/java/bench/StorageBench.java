@@ -0,0 +1,95 @@
+package bench;
+
+import domain.message.Message;
+import domain.message.MessageView;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import repository.ChatRepository;
+import repository.HistorySink;
+import repository.UserRepository;
+import repository.inmemory.InMemoryChatRepository;
+import repository.inmemory.InMemoryUserRepository;
+import repository.jdbc.Database;
+import repository.jdbc.JdbcChatRepository;
+import repository.jdbc.JdbcUserRepository;
+import service.ChatService;
+import service.UserService;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** The same sends and history pages on the in-memory repositories and on an H2 file database. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageBench {
+    private static final int HISTORY = 1000;
+    private static final int PAGE = 50;
+
+    @Param({"memory", "h2"})
+    String store;
+
+    private Path dir;
+    private Database db;
+    private ChatService service;
+    private long chatId;
+    private long alice;
+    private long bob;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        UserRepository userRepository;
+        ChatRepository chatRepository;
+        if (store.equals("h2")) {
+            dir = Dirs.temp("bench-h2");
+            db = new Database("jdbc:h2:file:" + dir.resolve("messenger").toAbsolutePath());
+            userRepository = new JdbcUserRepository(db);
+            chatRepository = new JdbcChatRepository(db);
+        } else {
+            userRepository = new InMemoryUserRepository();
+            chatRepository = new InMemoryChatRepository();
+        }
+        UserService users = new UserService(userRepository);
+        alice = users.createUser("alice").getId();
+        bob = users.createUser("bob").getId();
+        service = new ChatService(chatRepository, users);
+    }
+
+    // a fresh chat per iteration keeps the in-memory one from growing without bound
+    @Setup(Level.Iteration)
+    public void newChat() {
+        if (chatId != 0) service.deleteChat(chatId);
+        chatId = service.createChat("bench", List.of(alice, bob)).getId();
+        for (int i = 0; i < HISTORY; i++) service.sendText(chatId, (i % 2 == 0) ? alice : bob, "message " + i);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (db != null) db.close();
+        Dirs.delete(dir);
+    }
+
+    @Benchmark
+    public Message sendText() {
+        return service.sendText(chatId, alice, "hello, how are you?");
+    }
+
+    @Benchmark
+    public void latestPage(Blackhole bh) {
+        service.readHistory(chatId, 0, PAGE, new HistorySink() {
+            @Override
+            public void begin(int count) {
+                bh.consume(count);
+            }
+
+            @Override
+            public void message(MessageView m) {
+                bh.consume(m.getBody());
+            }
+        });
+    }
+}
@@ -0,0 +1,28 @@
+package client;
+
+/** A server EVENT line, decoded once by {@link EventDecoder}. */
+public sealed interface ChatEvent {
+    /** The server's per-user sequence number, 0 if the event had none. */
+    default long seq() {
+        return 0;
+    }
+
+    record NewText(long seq, long chatId, String chatTitle, long senderId, String sender, String text) implements ChatEvent {}
+
+    record NewVoice(long seq, long chatId, String chatTitle, long senderId, String sender, String title, String url)
+            implements ChatEvent {}
+
+    record NewMedia(long seq, long chatId, String chatTitle, long senderId, String sender, String title, String url)
+            implements ChatEvent {}
+
+    record NewFile(long seq, long chatId, String chatTitle, long senderId, String sender, String name, String url)
+            implements ChatEvent {}
+
+    record NewImage(long seq, long chatId, String chatTitle, long senderId, String sender, String file) implements ChatEvent {}
+
+    /** Messages that came while the user was offline, too many to send one by one. */
+    record Inbox(long seq, long chatId, String chatTitle, long count, long lastMessageId) implements ChatEvent {}
+
+    /** An event this client does not understand, kept as the raw line. */
+    record Other(String line) implements ChatEvent {}
+}
@@ -0,0 +1,20 @@
+package client;
+
+import java.util.List;
+
+/** A row of the CHATS reply. */
+public record ChatSummary(long id, String title, List<String> participants) {
+
+    // "chatId=<id>|title=<title>|participants=<a,b,...>"; the title may itself hold a '|'
+    static ChatSummary parse(String row) {
+        int title = row.indexOf("|title=");
+        int participants = row.lastIndexOf("|participants=");
+        if (!row.startsWith("chatId=") || title < 0 || participants < title) {
+            throw new IllegalStateException("Bad chat row: " + row);
+        }
+        String names = row.substring(participants + "|participants=".length());
+        return new ChatSummary(Long.parseLong(row, "chatId=".length(), title, 10),
+                row.substring(title + "|title=".length(), participants),
+                names.isEmpty() ? List.of() : List.of(names.split(",")));
+    }
+}
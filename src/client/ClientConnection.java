@@ -4,21 +4,76 @@ import net.Protocol;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * One connection to the server, safe to share between threads.
+ *
+ * The server answers commands one at a time and in order, so requests are pipelined: each
+ * typed call writes its command and queues a {@link Pending} reply, and the reader thread
+ * hands reply lines to the oldest one. Replies complete their futures on the reader
+ * thread (use the *Async stages for slow work); events go to listeners on the callback
+ * executor.
+ *
+ * The blocking {@link #send}/{@link #takeLine} pair is for a single interactive caller:
+ * lines that arrive while no typed request is waiting are queued for it, so it must not be
+ * used while typed requests are in flight.
+ */
 public class ClientConnection implements Closeable {
     private final Socket socket;
     private final BufferedReader in;
     private final PrintWriter out;
+    private final String greeting;
 
     private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private final Queue<Pending<?>> pending = new ConcurrentLinkedQueue<>();
+    // guards writes, so a command and its place in pending stay in the same order
+    private final Object writeLock = new Object();
+    private boolean closed;
+
+    // highest event seq seen; written by the reader thread only
+    private volatile long lastSeq;
+
+    private final HistoryCache historyCache;
+    private final List<Consumer<ChatEvent>> listeners = new CopyOnWriteArrayList<>();
+    private final Executor callbacks;
+    private final ExecutorService ownCallbacks;
     private final Thread readerThread;
 
     public ClientConnection(String host, int port) throws IOException {
+        this(host, port, null);
+    }
+
+    /** @param callbacks runs event listeners; null for a single daemon thread owned by the connection */
+    public ClientConnection(String host, int port, Executor callbacks) throws IOException {
         this.socket = new Socket(host, port);
         this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        // read before anything is sent, so it is never taken for a reply
+        this.greeting = in.readLine();
+        Path cacheDir = Path.of(System.getProperty("messenger.cacheDir",
+                System.getProperty("user.home") + "/.messenger/cache"), host + "_" + port);
+        this.historyCache = new HistoryCache(cacheDir,
+                Integer.getInteger("messenger.cacheChats", 50), Integer.getInteger("messenger.cacheMessages", 5000));
+
+        if (callbacks == null) {
+            // one thread keeps events in the order the server sent them
+            this.ownCallbacks = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "client-events");
+                t.setDaemon(true);
+                return t;
+            });
+            this.callbacks = ownCallbacks;
+        } else {
+            this.ownCallbacks = null;
+            this.callbacks = callbacks;
+        }
 
         this.readerThread = new Thread(this::readerLoop, "server-reader");
         this.readerThread.setDaemon(true);
@@ -30,157 +85,161 @@ public class ClientConnection implements Closeable {
             String line;
             while ((line = in.readLine()) != null) {
                 if (line.startsWith(Protocol.EVENT)) {
-                    System.out.println();
-                    renderEvent(line);
-                    System.out.print(">> ");
-                } else {
+                    ChatEvent event = EventDecoder.decode(line);
+                    // replayed events can be older than live ones already seen
+                    if (event.seq() > lastSeq) lastSeq = event.seq();
+                    for (Consumer<ChatEvent> l : listeners) callbacks.execute(() -> l.accept(event));
+                    continue;
+                }
+                Pending<?> p = pending.peek();
+                if (p == null) {
                     responses.offer(line);
+                } else if (p.offer(line)) {
+                    if (p.resume && line.startsWith(Protocol.OK)) lastSeq = Math.max(lastSeq, longField(line, "seq"));
+                    pending.poll();
+                    p.complete();
                 }
             }
         } catch (IOException ignored) {
+        } finally {
+            synchronized (writeLock) {
+                closed = true;
+            }
+            for (Pending<?> p; (p = pending.poll()) != null; ) {
+                p.future.completeExceptionally(new IllegalStateException("Connection closed"));
+            }
         }
     }
 
-    private void renderEvent(String line) {
-        if (line.startsWith("EVENT NEW_TEXT")) {
-            String chatId = getField(line, "chatId");
-            String sender = firstNonEmpty(getField(line, "sender"), getField(line, "senderId"));
-            String text = getAfter(line, "text=");
-            String chatTitle = getValue(line, "chatTitle");
-            String chatLabel = (chatTitle != null && !chatTitle.isBlank())
-                    ? unescape(chatTitle)
-                    : ("chat " + chatId);
-
-            System.out.println("💬 NEW TEXT (" + chatLabel + ", from " + sender + ")");
-            System.out.println("    " + highlightHttps(unescape(text)));
-            return;
-        }
+    /** The line the server sent on connect. */
+    public String greeting() {
+        return greeting;
+    }
 
-        if (line.startsWith("EVENT NEW_VOICE")) {
-            String chatId = getField(line, "chatId");
-            String sender = firstNonEmpty(getField(line, "sender"), getField(line, "senderId"));
-            String title = getAfter(line, "title=");
-            String url = getAfter(line, "url=");
-
-            int cut = title.indexOf(" url=");
-            if (cut >= 0) title = title.substring(0, cut);
-
-            String chatTitle = getValue(line, "chatTitle");
-            String chatLabel = (chatTitle != null && !chatTitle.isBlank())
-                    ? unescape(chatTitle)
-                    : ("chat " + chatId);
-            System.out.println("🎙 NEW VOICE (chat " + chatLabel + ", from " + sender + ")");
-            System.out.println("    Title: " + unescape(title));
-            System.out.println("    Link : " + unescape(url));
-            return;
-        }
+    public void addEventListener(Consumer<ChatEvent> listener) {
+        listeners.add(listener);
+    }
 
-        if (line.startsWith("EVENT NEW_MEDIA")) {
-            String chatId = getField(line, "chatId");
-            String sender = firstNonEmpty(getField(line, "sender"), getField(line, "senderId"));
-            String title = getAfter(line, "title=");
-            String url = getAfter(line, "url=");
-
-            int cut = title.indexOf(" url=");
-            if (cut >= 0) title = title.substring(0, cut);
-
-            String chatTitle = getValue(line, "chatTitle");
-            String chatLabel = (chatTitle != null && !chatTitle.isBlank())
-                    ? unescape(chatTitle)
-                    : ("chat " + chatId);
-            System.out.println("🎞 NEW MEDIA (chat " + chatLabel + ", from " + sender + ")");
-            System.out.println("    Title: " + unescape(title));
-            System.out.println("    Link : " + unescape(url));
-            return;
-        }
+    public void removeEventListener(Consumer<ChatEvent> listener) {
+        listeners.remove(listener);
+    }
 
-        if (line.startsWith("EVENT NEW_FILE")) {
-            String chatId = getField(line, "chatId");
-            String sender = firstNonEmpty(getField(line, "sender"), getField(line, "senderId"));
-            String name = getAfter(line, "name=");
-            String url = getAfter(line, "url=");
-
-            int cut = name.indexOf(" url=");
-            if (cut >= 0) name = name.substring(0, cut);
-
-            String chatTitle = getValue(line, "chatTitle");
-            String chatLabel = (chatTitle != null && !chatTitle.isBlank())
-                    ? unescape(chatTitle)
-                    : ("chat " + chatId);
-            System.out.println("📎 NEW FILE (chat " + chatLabel + ", from " + sender + ")");
-            System.out.println("    Name : " + unescape(name));
-            System.out.println("    Link : " + unescape(url));
-            return;
-        }
+    /** @return the new user's id */
+    public CompletableFuture<Long> register(String username) {
+        return request(Protocol.REGISTER + " " + oneLine(username), false,
+                lines -> longField(lines.get(0), "userId"));
+    }
 
-        if (line.startsWith("EVENT NEW_IMAGE")) {
-            String chatId = getField(line, "chatId");
-            String sender = firstNonEmpty(getField(line, "sender"), getField(line, "senderId"));
-            String file = getAfter(line, "file=");
-
-            String chatTitle = getValue(line, "chatTitle");
-            String chatLabel = (chatTitle != null && !chatTitle.isBlank())
-                    ? unescape(chatTitle)
-                    : ("chat " + chatId);
-            System.out.println("🖼 NEW IMAGE (chat " + chatLabel + ", from " + sender + ")");
-            System.out.println("    File : " + unescape(file));
-            return;
-        }
+    public CompletableFuture<Void> login(long userId) {
+        return request(Protocol.LOGIN + " " + userId, false, lines -> null);
+    }
 
-        System.out.println(line);
+    /** The highest event seq received; pass it to {@link #resume} on the next connection. */
+    public long lastSeq() {
+        return lastSeq;
     }
 
-    private String firstNonEmpty(String a, String b) {
-        return (a != null && !a.isEmpty()) ? a : b;
+    /**
+     * Asks for the events missed since lastSeq, from a previous connection, after logging
+     * in. They reach the listeners before the future completes, possibly after newer live
+     * ones.
+     *
+     * @return false if the server no longer has them all and the chats must be reloaded
+     */
+    public CompletableFuture<Boolean> resume(long lastSeq) {
+        Pending<Boolean> p = new Pending<>(false, lines -> lines.get(0).startsWith(Protocol.OK + " " + Protocol.RESUMED));
+        p.resume = true;
+        return request(Protocol.RESUME + " " + lastSeq, p);
     }
 
-    private String getField(String line, String key) {
-        int idx = line.indexOf(key + "=");
-        if (idx < 0) return "";
-        idx += (key.length() + 1);
-        int end = line.indexOf(' ', idx);
-        if (end < 0) end = line.length();
-        return line.substring(idx, end);
+    public CompletableFuture<MessageId> sendText(long chatId, String text) {
+        return request(Protocol.SEND_TEXT + " " + chatId + " " + oneLine(text), false,
+                lines -> new MessageId(chatId, longField(lines.get(0), "messageId")));
     }
 
-    private String getAfter(String line, String marker) {
-        int idx = line.indexOf(marker);
-        if (idx < 0) return "";
-        return line.substring(idx + marker.length()).trim();
+    /** @return the new chat's id; the caller is always a participant */
+    public CompletableFuture<Long> createChat(String title, List<Long> participantIds) {
+        StringBuilder ids = new StringBuilder();
+        for (long id : participantIds) {
+            if (!ids.isEmpty()) ids.append(',');
+            ids.append(id);
+        }
+        return request(Protocol.CREATE_CHAT + " " + oneLine(title) + " | " + ids, false,
+                lines -> longField(lines.get(0), "chatId"));
     }
 
-    private String getValue(String line, String key) {
-        int start = line.indexOf(key + "=");
-        if (start < 0) return "";
-        start += key.length() + 1;
+    public CompletableFuture<List<ChatSummary>> chats() {
+        return request(Protocol.CHATS, true, lines -> {
+            List<ChatSummary> chats = new ArrayList<>(lines.size() - 1);
+            for (String row : lines.subList(1, lines.size())) chats.add(ChatSummary.parse(row.trim()));
+            return chats;
+        });
+    }
 
-        int end = line.length();
-        for (int i = start; i < line.length() - 1; i++) {
-            if (line.charAt(i) == ' ') {
-                int eq = line.indexOf('=', i + 1);
-                if (eq > 0) {
-                    boolean ok = true;
-                    for (int j = i + 1; j < eq; j++) {
-                        if (line.charAt(j) == ' ') { ok = false; break; }
-                    }
-                    if (ok) { end = i; break; }
-                }
+    /**
+     * The history of a chat, oldest first: the cached lines plus whatever the server has
+     * after the last of them, fetched in one request. Fails with a
+     * {@link RequestFailedException} if the server refuses.
+     */
+    public CompletableFuture<List<String>> history(long chatId) {
+        List<HistoryCache.Entry> cached = historyCache.read(chatId);
+        long lastId = cached.isEmpty() ? 0 : cached.get(cached.size() - 1).id();
+        String cmd = Protocol.HISTORY + " " + chatId + " " + Protocol.HISTORY_IDS;
+        if (lastId > 0) cmd += " " + Protocol.HISTORY_AFTER + lastId;
+
+        return request(cmd, true, lines -> {
+            List<HistoryCache.Entry> fetched = new ArrayList<>(lines.size() - 1);
+            for (String line : lines.subList(1, lines.size())) {
+                int space = line.indexOf(' ');
+                fetched.add(new HistoryCache.Entry(Long.parseLong(line, 0, space, 10), line.substring(space + 1)));
             }
-        }
-        return line.substring(start, end).trim();
+            return fetched;
+        }).thenApplyAsync(fetched -> {
+            // off the reader thread, the cache writes to disk
+            historyCache.append(chatId, cached, fetched);
+            List<String> lines = new ArrayList<>(cached.size() + fetched.size());
+            for (HistoryCache.Entry e : cached) lines.add(e.line());
+            for (HistoryCache.Entry e : fetched) lines.add(e.line());
+            return lines;
+        });
     }
 
+    /** One page of history straight from the server, bypassing the cache; afterId 0 means the latest. */
+    public CompletableFuture<List<String>> historyPage(long chatId, long afterId, int limit) {
+        String cmd = Protocol.HISTORY + " " + chatId + " " + Protocol.HISTORY_LIMIT + limit;
+        if (afterId > 0) cmd += " " + Protocol.HISTORY_AFTER + afterId;
+        return request(cmd, true, lines -> new ArrayList<>(lines.subList(1, lines.size())));
+    }
+
+    /** The server's STATS report, one item per line. */
+    public CompletableFuture<List<String>> stats() {
+        return request(Protocol.STATS, true, lines -> {
+            List<String> items = new ArrayList<>(lines.size() - 1);
+            for (String line : lines.subList(1, lines.size())) items.add(line.trim());
+            return items;
+        });
+    }
 
-    private String unescape(String s) {
-        return s.replace("\\n", "\n").replace("\\r", "\r");
+    private <T> CompletableFuture<T> request(String cmd, boolean listing, Function<List<String>, T> parse) {
+        return request(cmd, new Pending<>(listing, parse));
     }
 
-    private String highlightHttps(String s) {
-        return s.replace("https://", "🔗 https://");
+    private <T> CompletableFuture<T> request(String cmd, Pending<T> p) {
+        synchronized (writeLock) {
+            if (closed) {
+                p.future.completeExceptionally(new IllegalStateException("Connection closed"));
+                return p.future;
+            }
+            pending.add(p);
+            out.println(cmd);
+        }
+        return p.future;
     }
 
     public void send(String line) {
-        out.println(line);
+        synchronized (writeLock) {
+            out.println(line);
+        }
     }
 
     public String takeLine() throws InterruptedException {
@@ -195,8 +254,64 @@ public class ClientConnection implements Closeable {
     @Override
     public void close() throws IOException {
         try {
-            out.println(Protocol.EXIT);
+            send(Protocol.EXIT);
         } catch (Exception ignored) {}
         try { socket.close(); } catch (Exception ignored) {}
+        if (ownCallbacks != null) ownCallbacks.shutdown();
+    }
+
+    private static String oneLine(String s) {
+        if (s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Line breaks are not allowed: " + s);
+        }
+        return s;
+    }
+
+    static long longField(String line, String key) {
+        int start = line.indexOf(key + "=");
+        if (start < 0) throw new IllegalStateException("No " + key + " in reply: " + line);
+        start += key.length() + 1;
+        int end = line.indexOf(' ', start);
+        return Long.parseLong(line, start, (end < 0) ? line.length() : end, 10);
+    }
+
+    /** A reply being collected; only the reader thread touches it after it is queued. */
+    private static final class Pending<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        // a listing reply is "OK ... count=<n>" followed by n lines
+        final boolean listing;
+        final Function<List<String>, T> parse;
+        // a RESUME reply, which carries the user's current event seq
+        boolean resume;
+        final List<String> lines = new ArrayList<>();
+        int expected = 1;
+
+        Pending(boolean listing, Function<List<String>, T> parse) {
+            this.listing = listing;
+            this.parse = parse;
+        }
+
+        /** @return true once the whole reply is in */
+        boolean offer(String line) {
+            lines.add(line);
+            if (lines.size() == 1 && listing && line.startsWith(Protocol.OK)) {
+                int at = line.lastIndexOf("count=");
+                if (at >= 0) expected += Integer.parseInt(line.substring(at + "count=".length()).trim());
+            }
+            return lines.size() >= expected;
+        }
+
+        void complete() {
+            String first = lines.get(0);
+            if (!first.startsWith(Protocol.OK)) {
+                future.completeExceptionally(new RequestFailedException(first));
+                return;
+            }
+            try {
+                future.complete(parse.apply(lines));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
     }
-}
\ No newline at end of file
+}
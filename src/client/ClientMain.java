@@ -6,6 +6,7 @@ public class ClientMain {
         int port = 5050;
 
         try (ClientConnection conn = new ClientConnection(host, port)) {
+            conn.addEventListener(new ConsoleEventRenderer());
             MenuClientUI ui = new MenuClientUI(conn);
             ui.run();
         }
@@ -0,0 +1,58 @@
+package client;
+
+import java.util.function.Consumer;
+
+/** Prints incoming events to the console, between the menu's ">> " prompts. */
+public class ConsoleEventRenderer implements Consumer<ChatEvent> {
+
+    @Override
+    public void accept(ChatEvent event) {
+        System.out.println();
+        render(event);
+        System.out.print(">> ");
+    }
+
+    private void render(ChatEvent event) {
+        if (event instanceof ChatEvent.NewText e) {
+            System.out.println("💬 NEW TEXT (" + chatLabel(e.chatTitle(), e.chatId()) + ", from "
+                    + sender(e.sender(), e.senderId()) + ")");
+            System.out.println("    " + highlightHttps(e.text()));
+        } else if (event instanceof ChatEvent.NewVoice e) {
+            System.out.println("🎙 NEW VOICE (chat " + chatLabel(e.chatTitle(), e.chatId()) + ", from "
+                    + sender(e.sender(), e.senderId()) + ")");
+            System.out.println("    Title: " + e.title());
+            System.out.println("    Link : " + e.url());
+        } else if (event instanceof ChatEvent.NewMedia e) {
+            System.out.println("🎞 NEW MEDIA (chat " + chatLabel(e.chatTitle(), e.chatId()) + ", from "
+                    + sender(e.sender(), e.senderId()) + ")");
+            System.out.println("    Title: " + e.title());
+            System.out.println("    Link : " + e.url());
+        } else if (event instanceof ChatEvent.NewFile e) {
+            System.out.println("📎 NEW FILE (chat " + chatLabel(e.chatTitle(), e.chatId()) + ", from "
+                    + sender(e.sender(), e.senderId()) + ")");
+            System.out.println("    Name : " + e.name());
+            System.out.println("    Link : " + e.url());
+        } else if (event instanceof ChatEvent.NewImage e) {
+            System.out.println("🖼 NEW IMAGE (chat " + chatLabel(e.chatTitle(), e.chatId()) + ", from "
+                    + sender(e.sender(), e.senderId()) + ")");
+            System.out.println("    File : " + e.file());
+        } else if (event instanceof ChatEvent.Inbox e) {
+            System.out.println("📬 INBOX (chat " + chatLabel(e.chatTitle(), e.chatId()) + ", "
+                    + e.count() + " new while offline)");
+        } else if (event instanceof ChatEvent.Other e) {
+            System.out.println(e.line());
+        }
+    }
+
+    private String chatLabel(String chatTitle, long chatId) {
+        return (chatTitle != null && !chatTitle.isBlank()) ? chatTitle : ("chat " + chatId);
+    }
+
+    private String sender(String sender, long senderId) {
+        return (sender != null && !sender.isEmpty()) ? sender : String.valueOf(senderId);
+    }
+
+    private String highlightHttps(String s) {
+        return s.replace("https://", "🔗 https://");
+    }
+}
@@ -0,0 +1,107 @@
+package client;
+
+import net.Protocol;
+
+/**
+ * Parses EVENT lines in one left-to-right pass. The server writes the fields of each
+ * event type in a fixed order and only escapes line breaks, so a value runs up to the
+ * next expected " key=" and the last one to the end of the line. An optional "seq=<n>"
+ * comes right after the type.
+ */
+public final class EventDecoder {
+    private static final String PREFIX = Protocol.EVENT + " ";
+    private static final String SEQ = "seq=";
+
+    private static final String[] TEXT = {"chatId=", " chatTitle=", " senderId=", " sender=", " text="};
+    private static final String[] LINK = {"chatId=", " chatTitle=", " senderId=", " sender=", " title=", " url="};
+    private static final String[] FILE = {"chatId=", " chatTitle=", " senderId=", " sender=", " name=", " url="};
+    private static final String[] INBOX = {"chatId=", " chatTitle=", " count=", " lastMessageId="};
+    private static final String[] IMAGE = {"chatId=", " chatTitle=", " senderId=", " sender=", " file="};
+
+    private EventDecoder() {}
+
+    public static ChatEvent decode(String line) {
+        if (!line.startsWith(PREFIX)) return new ChatEvent.Other(line);
+        int typeEnd = line.indexOf(' ', PREFIX.length());
+        if (typeEnd < 0) return new ChatEvent.Other(line);
+
+        String[] keys;
+        if (isType(line, typeEnd, "NEW_TEXT") || isType(line, typeEnd, Protocol.NEW_MESSAGE)) keys = TEXT;
+        else if (isType(line, typeEnd, "NEW_VOICE") || isType(line, typeEnd, "NEW_MEDIA")) keys = LINK;
+        else if (isType(line, typeEnd, "NEW_FILE")) keys = FILE;
+        else if (isType(line, typeEnd, "NEW_IMAGE")) keys = IMAGE;
+        else if (isType(line, typeEnd, Protocol.INBOX)) keys = INBOX;
+        else return new ChatEvent.Other(line);
+
+        int pos = typeEnd + 1;
+        try {
+            long seq = 0;
+            if (line.startsWith(SEQ, pos)) {
+                int end = line.indexOf(' ', pos);
+                if (end < 0) return new ChatEvent.Other(line);
+                seq = Long.parseLong(line, pos + SEQ.length(), end, 10);
+                pos = end + 1;
+            }
+            int[] bounds = bounds(line, pos, keys);
+            if (bounds == null) return new ChatEvent.Other(line);
+            long chatId = Long.parseLong(line, bounds[0], bounds[1], 10);
+            String chatTitle = value(line, bounds, 1);
+            if (keys == INBOX) {
+                return new ChatEvent.Inbox(seq, chatId, chatTitle, Long.parseLong(line, bounds[4], bounds[5], 10),
+                        Long.parseLong(line, bounds[6], bounds[7], 10));
+            }
+            long senderId = Long.parseLong(line, bounds[4], bounds[5], 10);
+            String sender = value(line, bounds, 3);
+
+            if (keys == TEXT) return new ChatEvent.NewText(seq, chatId, chatTitle, senderId, sender, value(line, bounds, 4));
+            if (keys == IMAGE) return new ChatEvent.NewImage(seq, chatId, chatTitle, senderId, sender, value(line, bounds, 4));
+            if (keys == FILE) {
+                return new ChatEvent.NewFile(seq, chatId, chatTitle, senderId, sender, value(line, bounds, 4), value(line, bounds, 5));
+            }
+            if (isType(line, typeEnd, "NEW_VOICE")) {
+                return new ChatEvent.NewVoice(seq, chatId, chatTitle, senderId, sender, value(line, bounds, 4), value(line, bounds, 5));
+            }
+            return new ChatEvent.NewMedia(seq, chatId, chatTitle, senderId, sender, value(line, bounds, 4), value(line, bounds, 5));
+        } catch (NumberFormatException e) {
+            return new ChatEvent.Other(line);
+        }
+    }
+
+    private static boolean isType(String line, int typeEnd, String type) {
+        return typeEnd - PREFIX.length() == type.length() && line.startsWith(type, PREFIX.length());
+    }
+
+    // start/end of each value, in key order; null if a key is missing
+    private static int[] bounds(String line, int pos, String[] keys) {
+        int[] bounds = new int[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (!line.startsWith(keys[i], pos)) return null;
+            int start = pos + keys[i].length();
+            int end = (i + 1 < keys.length) ? line.indexOf(keys[i + 1], start) : line.length();
+            if (end < 0) return null;
+            bounds[2 * i] = start;
+            bounds[2 * i + 1] = end;
+            pos = end;
+        }
+        return bounds;
+    }
+
+    /** The i-th value with the server's \n and \r escapes undone. */
+    private static String value(String line, int[] bounds, int i) {
+        int start = bounds[2 * i];
+        int end = bounds[2 * i + 1];
+        int slash = line.indexOf('\\', start);
+        if (slash < 0 || slash >= end) return line.substring(start, end);
+
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int j = start; j < end; j++) {
+            char c = line.charAt(j);
+            if (c == '\\' && j + 1 < end && (line.charAt(j + 1) == 'n' || line.charAt(j + 1) == 'r')) {
+                sb.append(line.charAt(++j) == 'n' ? '\n' : '\r');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
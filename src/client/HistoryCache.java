@@ -0,0 +1,121 @@
+package client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * History lines already fetched from the server, one file per chat, so a chat opened
+ * again only asks for what came after its last cached message. Each file line is
+ * "<messageId> <history line>". History lines carry the sender's name, so names are
+ * cached with them.
+ *
+ * At most maxMessages lines are kept per chat (the newest) and at most maxChats files;
+ * the chat opened least recently is evicted first. The cache is only an optimisation:
+ * if the disk fails, the chat is fetched in full as before.
+ */
+public class HistoryCache {
+    private static final String SUFFIX = ".hist";
+
+    record Entry(long id, String line) {}
+
+    private final Path dir;
+    private final int maxChats;
+    private final int maxMessages;
+
+    public HistoryCache(Path dir, int maxChats, int maxMessages) {
+        this.dir = dir;
+        this.maxChats = maxChats;
+        this.maxMessages = maxMessages;
+    }
+
+    /** Cached lines of a chat, oldest first; empty when nothing is cached. */
+    synchronized List<Entry> read(long chatId) {
+        Path file = file(chatId);
+        List<Entry> entries = new ArrayList<>();
+        if (!Files.exists(file)) return entries;
+        try {
+            for (String s : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int space = s.indexOf(' ');
+                if (space <= 0) continue;
+                entries.add(new Entry(Long.parseLong(s, 0, space, 10), s.substring(space + 1)));
+            }
+            // marks the chat as recently opened for eviction
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException | NumberFormatException e) {
+            drop(chatId);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /** Adds lines fetched after the cached ones; cached is what {@link #read} returned. */
+    synchronized void append(long chatId, List<Entry> cached, List<Entry> fetched) {
+        if (fetched.isEmpty()) return;
+        Path file = file(chatId);
+        try {
+            Files.createDirectories(dir);
+            if (cached.size() + fetched.size() <= maxMessages) {
+                boolean created = !Files.exists(file);
+                Files.write(file, lines(fetched), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                if (created) evict(file);
+                return;
+            }
+            // over the limit: keep the newest maxMessages and replace the file in one move
+            List<Entry> all = new ArrayList<>(cached);
+            all.addAll(fetched);
+            List<Entry> kept = all.subList(Math.max(0, all.size() - maxMessages), all.size());
+            Path tmp = dir.resolve(chatId + SUFFIX + ".tmp");
+            Files.write(tmp, lines(kept), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict(file);
+        } catch (IOException e) {
+            drop(chatId);
+        }
+    }
+
+    synchronized void drop(long chatId) {
+        try {
+            Files.deleteIfExists(file(chatId));
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void evict(Path keep) throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(f -> f.getFileName().toString().endsWith(SUFFIX) && !f.equals(keep)).toList();
+        }
+        int excess = files.size() + 1 - maxChats;
+        if (excess <= 0) return;
+        List<Path> oldest = files.stream()
+                .sorted(Comparator.comparingLong(HistoryCache::lastModified))
+                .limit(excess)
+                .toList();
+        for (Path f : oldest) Files.deleteIfExists(f);
+    }
+
+    private static long lastModified(Path f) {
+        try {
+            return Files.getLastModifiedTime(f).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static List<String> lines(List<Entry> entries) {
+        List<String> lines = new ArrayList<>(entries.size());
+        for (Entry e : entries) lines.add(e.id() + " " + e.line());
+        return lines;
+    }
+
+    private Path file(long chatId) {
+        return dir.resolve(chatId + SUFFIX);
+    }
+}
@@ -3,10 +3,13 @@ package client;
 import net.Protocol;
 
 import java.util.*;
+import java.util.concurrent.CompletionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MenuClientUI {
+    private static final int FIND_LIMIT = 20;
+
     private final ClientConnection conn;
     private final Scanner sc = new Scanner(System.in);
 
@@ -18,7 +21,7 @@ public class MenuClientUI {
     }
 
     public void run() throws Exception {
-        System.out.println(conn.takeLine());
+        System.out.println(conn.greeting());
 
         while (true) {
             if (myUserId == null) {
@@ -112,12 +115,22 @@ public class MenuClientUI {
     }
 
     private List<UserRow> fetchUsers() throws Exception {
-        conn.send(Protocol.USERS);
+        return fetchUsers(Protocol.USERS);
+    }
+
+    private List<UserRow> findUsers(String prefix) throws Exception {
+        return fetchUsers(Protocol.FIND_USERS + " " + prefix + " " + FIND_LIMIT);
+    }
+
+    private List<UserRow> fetchUsers(String cmd) throws Exception {
+        conn.send(cmd);
         String first = conn.takeLine();
         if (!first.startsWith(Protocol.OK)) {
             System.out.println(first);
             return List.of();
         }
+        // USERS answers an empty list without a count
+        if (first.endsWith("(empty)")) return List.of();
 
         int count = (int) parseLongField(first, "count");
         List<UserRow> rows = new ArrayList<>();
@@ -195,7 +208,9 @@ public class MenuClientUI {
             return;
         }
 
-        List<UserRow> users = fetchUsers();
+        System.out.print("Поиск участников по началу ника (пусто = все): ");
+        String prefix = sc.nextLine().trim().split("\\s+")[0];
+        List<UserRow> users = prefix.isEmpty() ? fetchUsers() : findUsers(prefix);
         List<UserRow> others = new ArrayList<>();
         for (UserRow u : users) {
             if (myUserId != null && u.id != myUserId) others.add(u);
@@ -281,21 +296,18 @@ public class MenuClientUI {
     }
 
     private void showHistory(long chatId) throws Exception {
-        conn.send(Protocol.HISTORY + " " + chatId);
-        String first = conn.takeLine();
-        if (!first.startsWith(Protocol.OK)) {
-            System.out.println(first);
+        List<String> lines;
+        try {
+            lines = conn.history(chatId).join();
+        } catch (CompletionException e) {
+            System.out.println(e.getCause().getMessage());
             return;
         }
-        int count = (int) parseLongField(first, "count");
-        if (count == 0) {
+        if (lines.isEmpty()) {
             System.out.println("(пусто)");
             return;
         }
-        for (int i = 0; i < count; i++) {
-            String line = conn.takeLine();
-            renderHistoryLine(line);
-        }
+        for (String line : lines) renderHistoryLine(line);
     }
 
     private void renderHistoryLine(String line) {
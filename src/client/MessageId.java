@@ -0,0 +1,4 @@
+package client;
+
+/** A message the server accepted. */
+public record MessageId(long chatId, long id) {}
@@ -0,0 +1,8 @@
+package client;
+
+/** The server answered a request with ERROR; the message is its reply line. */
+public class RequestFailedException extends RuntimeException {
+    public RequestFailedException(String reply) {
+        super(reply);
+    }
+}
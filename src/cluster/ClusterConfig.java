@@ -0,0 +1,63 @@
+package cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The nodes of a cluster and which one this process is, from
+ * -Dmessenger.cluster=<id>@<host>:<nodePort>,... and -Dmessenger.nodeId=<id>. Node ports
+ * carry the node link; clients use each node's own messenger.port. Every node must be
+ * given the same list.
+ */
+public record ClusterConfig(int nodeId, List<Node> nodes) {
+    public record Node(int id, String host, int port) {
+        @Override
+        public String toString() {
+            return id + "@" + host + ":" + port;
+        }
+    }
+
+    /** @return null when no cluster is configured */
+    public static ClusterConfig fromProperties() {
+        String spec = System.getProperty("messenger.cluster");
+        if (spec == null || spec.isBlank()) return null;
+        Integer nodeId = Integer.getInteger("messenger.nodeId");
+        if (nodeId == null) throw new IllegalArgumentException("messenger.cluster needs messenger.nodeId");
+        return parse(nodeId, spec);
+    }
+
+    public static ClusterConfig parse(int nodeId, String spec) {
+        List<Node> nodes = new ArrayList<>();
+        for (String s : spec.split(",")) {
+            s = s.trim();
+            int at = s.indexOf('@');
+            int colon = s.lastIndexOf(':');
+            if (at <= 0 || colon < at) throw new IllegalArgumentException("Expected <id>@<host>:<port>, got: " + s);
+            nodes.add(new Node(Integer.parseInt(s.substring(0, at)), s.substring(at + 1, colon),
+                    Integer.parseInt(s.substring(colon + 1))));
+        }
+        ClusterConfig config = new ClusterConfig(nodeId, List.copyOf(nodes));
+        config.self();
+        return config;
+    }
+
+    public Node self() {
+        return node(nodeId);
+    }
+
+    public Node node(int id) {
+        for (Node n : nodes) {
+            if (n.id() == id) return n;
+        }
+        throw new IllegalArgumentException("Node " + id + " is not in the cluster " + nodes);
+    }
+
+    /** This node's position in the list, which picks its stripe of ids. */
+    public int index() {
+        return nodes.indexOf(self());
+    }
+
+    public List<Node> peers() {
+        return nodes.stream().filter(n -> n.id() != nodeId).toList();
+    }
+}
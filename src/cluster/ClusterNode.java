@@ -0,0 +1,394 @@
+package cluster;
+
+import domain.User;
+import net.Protocol;
+import util.PeerAuth;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This server's part in a cluster. Chats are spread over the nodes by a {@link HashRing} of
+ * chat ids: a node creates chats only under ids it owns, and a command on a chat that
+ * another node owns is forwarded to it and its reply relayed back. Users are small and
+ * needed everywhere (names in events, participants of new chats), so every node keeps all
+ * of them: a registration is sent to all peers, and a node resends its own users whenever
+ * it reconnects to a peer.
+ *
+ * Who is online where is kept in the {@link PresenceDirectory}. A node sends its logins and
+ * logouts to the others every presenceBatchMs, or an empty batch as a heartbeat, and a node
+ * not heard from for presenceLeaseMs is taken as down: its users count as offline until it
+ * is heard from again and resends them. The owner of a chat sends a new message's event to
+ * each other node once, naming all its recipients there.
+ *
+ * Membership is fixed by the configuration; while a node is down, its chats are
+ * unavailable. Nodes listen only on their configured address and take a connection only
+ * once it has proven it knows the cluster secret (see {@link NodeProtocol#HELLO}), since a
+ * peer may run commands as any user.
+ */
+public class ClusterNode implements Closeable {
+    private static final int RING_POINTS = 128;
+    // -Dmessenger.forwardTimeoutMs=<n>: how long a forwarded command may take on the owner
+    private static final long FORWARD_TIMEOUT_MS = Long.getLong("messenger.forwardTimeoutMs", 5000);
+    // -Dmessenger.presenceBatchMs=<n> and -Dmessenger.presenceLeaseMs=<n>, see above
+    private static final long PRESENCE_BATCH_MS = Long.getLong("messenger.presenceBatchMs", 50);
+    private static final long PRESENCE_LEASE_MS = Long.getLong("messenger.presenceLeaseMs", 3000);
+    private static final int PRESENCE_CHUNK = 1000;
+    private static final int HELLO_TIMEOUT_MS = 5000;
+
+    /** What the cluster needs from the local server. */
+    public interface Host {
+        /** Runs a forwarded client command as userId (0: not logged in) and returns the reply lines. */
+        List<String> execute(int fromNode, long userId, String command);
+
+        /** @return false if the user is not connected to this node */
+        boolean pushLocal(long userId, long chatId, long messageId, int recipients, String head, String fields);
+
+        /** A message event sent to another node found nobody there; keep it for the user. */
+        void undelivered(long userId, long chatId, long messageId);
+
+        void deliverInbox(long userId);
+
+        void addUser(long id, String username);
+
+        List<User> users();
+    }
+
+    /** What this node knows of a peer from the lines it sent. */
+    private static final class Peer {
+        volatile long epoch;
+        volatile long heardAt = System.nanoTime();
+        // whether its users are in the directory; false once its lease ran out
+        volatile boolean live;
+    }
+
+    private final ClusterConfig config;
+    private final PeerAuth auth;
+    private final Host host;
+    private final PresenceDirectory presence;
+    private final HashRing ring;
+    private final long epoch = System.currentTimeMillis();
+    private final Map<Integer, NodeLink> links = new LinkedHashMap<>();
+    private final Map<Integer, Peer> peers = new HashMap<>();
+    private final ExecutorService workers;
+    private volatile boolean closed;
+    private ServerSocket serverSocket;
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder deliverMessages = new LongAdder();
+    private final LongAdder deliverRecipients = new LongAdder();
+    private final LongAdder presenceBatches = new LongAdder();
+
+    public ClusterNode(ClusterConfig config, PeerAuth auth, Host host, PresenceDirectory presence) {
+        this.config = config;
+        this.auth = auth;
+        this.host = host;
+        this.presence = presence;
+        this.ring = new HashRing(config.nodes().stream().map(ClusterConfig.Node::id).toList(), RING_POINTS);
+        String claim = config.nodeId() + " " + epoch;
+        for (ClusterConfig.Node peer : config.peers()) {
+            links.put(peer.id(), new NodeLink(
+                    challenge -> NodeProtocol.HELLO + " " + claim + " " + auth.answer(challenge, claim), peer, this::resync));
+            peers.put(peer.id(), new Peer());
+        }
+        presence.setLocalNode(config.nodeId());
+        AtomicLong n = new AtomicLong();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "node-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public ClusterConfig config() {
+        return config;
+    }
+
+    public boolean owns(long chatId) {
+        return ring.ownerOf(chatId) == config.nodeId();
+    }
+
+    /** Listens for peers, then sends presence batches and heartbeats, which also connects to them. */
+    public void start() throws IOException {
+        // only on the address the other nodes were given, not on every interface
+        serverSocket = new ServerSocket(config.self().port(), 50, InetAddress.getByName(config.self().host()));
+        Thread accept = new Thread(this::acceptLoop, "node-accept");
+        accept.setDaemon(true);
+        accept.start();
+
+        Thread gossip = new Thread(this::gossipLoop, "node-gossip");
+        gossip.setDaemon(true);
+        gossip.start();
+        System.out.println("[CLUSTER] node " + config.self() + " of " + config.nodes());
+    }
+
+    /** Runs command on the node that owns chatId and returns its reply lines. */
+    public List<String> forward(long chatId, long userId, String command) {
+        int owner = ring.ownerOf(chatId);
+        forwarded.increment();
+        try {
+            return links.get(owner).request(userId, command).get(FORWARD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            return List.of(Protocol.ERROR + " Node " + owner + " owning chatId=" + chatId + " is unavailable");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return List.of(Protocol.ERROR + " Interrupted");
+        }
+    }
+
+    /**
+     * Runs a listing command (such as CHATS) as userId on every other node and returns their
+     * rows, without the "OK ... count=" lines. Nodes that do not answer are left out.
+     */
+    public List<String> gather(long userId, String command) {
+        List<CompletableFuture<List<String>>> replies = new ArrayList<>();
+        for (NodeLink link : links.values()) replies.add(link.request(userId, command));
+        List<String> rows = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FORWARD_TIMEOUT_MS);
+        for (CompletableFuture<List<String>> f : replies) {
+            try {
+                List<String> lines = f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (!lines.isEmpty() && lines.get(0).startsWith(Protocol.OK)) rows.addAll(lines.subList(1, lines.size()));
+            } catch (ExecutionException | TimeoutException e) {
+                // that node's rows are missing until it is back
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return rows;
+    }
+
+    public void userRegistered(long id, String username) {
+        for (NodeLink link : links.values()) link.send(NodeProtocol.USER + " " + id + " " + username);
+    }
+
+    /**
+     * Sends one event to all of userIds, which the directory has on node, in one message.
+     *
+     * @return false if the node cannot be reached
+     */
+    public boolean deliver(int node, List<Long> userIds, long chatId, long messageId, int recipients,
+                           String head, String fields) {
+        StringBuilder line = new StringBuilder(64 + head.length() + fields.length() + 12 * userIds.size());
+        line.append(NodeProtocol.DELIVER).append(' ').append(chatId).append(' ').append(messageId)
+                .append(' ').append(recipients).append(' ');
+        for (int i = 0; i < userIds.size(); i++) {
+            if (i > 0) line.append(',');
+            line.append(userIds.get(i));
+        }
+        line.append(' ').append(head.length()).append(' ').append(head).append(fields);
+        if (!links.get(node).send(line.toString())) return false;
+        deliverMessages.increment();
+        deliverRecipients.add(userIds.size());
+        return true;
+    }
+
+    /** One line for STATS. */
+    public String statsLine() {
+        long connected = links.values().stream().filter(NodeLink::hasConnection).count();
+        long messages = deliverMessages.sum();
+        long recipients = deliverRecipients.sum();
+        return "cluster node=" + config.nodeId() + " peersConnected=" + connected + "/" + links.size()
+                + " online=" + presence.size() + " forwarded=" + forwarded.sum()
+                + " deliverMessages=" + messages + " deliverRecipients=" + recipients
+                + " presenceBatches=" + presenceBatches.sum();
+    }
+
+    private void gossipLoop() {
+        long sentAt = 0;
+        while (!closed) {
+            try {
+                Thread.sleep(PRESENCE_BATCH_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<String> changes = presence.drainChanges();
+            long now = System.nanoTime();
+            if (!changes.isEmpty() || now - sentAt > TimeUnit.MILLISECONDS.toNanos(PRESENCE_LEASE_MS / 3)) {
+                // a peer that is not connected gets everything from resync when it is
+                for (NodeLink link : links.values()) sendPresence(link, changes);
+                presenceBatches.increment();
+                sentAt = now;
+            }
+            for (Map.Entry<Integer, Peer> e : peers.entrySet()) {
+                Peer p = e.getValue();
+                if (p.live && now - p.heardAt > TimeUnit.MILLISECONDS.toNanos(PRESENCE_LEASE_MS)) {
+                    p.live = false;
+                    int gone = presence.dropNode(e.getKey());
+                    System.out.println("[CLUSTER] lease of node " + e.getKey() + " expired, " + gone + " users offline");
+                }
+            }
+        }
+    }
+
+    private static void sendPresence(NodeLink link, List<String> changes) {
+        if (changes.isEmpty()) {
+            link.send(NodeProtocol.PRESENCE);
+            return;
+        }
+        for (int i = 0; i < changes.size(); i += PRESENCE_CHUNK) {
+            List<String> chunk = changes.subList(i, Math.min(changes.size(), i + PRESENCE_CHUNK));
+            if (!link.send(NodeProtocol.PRESENCE + " " + String.join(",", chunk))) return;
+        }
+    }
+
+    // a peer that was unreachable or dropped this node's users missed registrations and logins here
+    private void resync(NodeLink link) {
+        int stripes = config.nodes().size();
+        for (User u : host.users()) {
+            if (Math.floorMod(u.getId(), stripes) == config.index()) {
+                link.send(NodeProtocol.USER + " " + u.getId() + " " + u.getUsername());
+            }
+        }
+        link.send(NodeProtocol.PRESENCE_RESET);
+        List<String> snapshot = presence.localSnapshot();
+        if (!snapshot.isEmpty()) sendPresence(link, snapshot);
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket s = serverSocket.accept();
+                s.setTcpNoDelay(true);
+                Thread t = new Thread(() -> serve(s), "node-in-" + s.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!closed) System.out.println("[CLUSTER] accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // lines from one peer, in the order it sent them
+    private void serve(Socket socket) {
+        int peer = -1;
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(
+                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), false)) {
+            String challenge = PeerAuth.nonce();
+            out.println(NodeProtocol.CHALLENGE + " " + challenge);
+            out.flush();
+            socket.setSoTimeout(HELLO_TIMEOUT_MS);
+            String[] hello = String.valueOf(in.readLine()).split(" ");
+            if (hello.length != 4 || !hello[0].equals(NodeProtocol.HELLO)
+                    || !auth.verify(challenge, hello[1] + " " + hello[2], hello[3])) {
+                System.out.println("[CLUSTER] rejected " + socket.getRemoteSocketAddress() + ": no valid HELLO");
+                return;
+            }
+            socket.setSoTimeout(0);
+            peer = Integer.parseInt(hello[1]);
+            int from = peer;
+            NodeLink back = links.get(peer);
+            Peer state = peers.get(peer);
+            if (back == null) throw new IllegalStateException("Unknown node " + peer);
+            long peerEpoch = Long.parseLong(hello[2]);
+            if (state.epoch != peerEpoch) {
+                // restarted: whoever was on it is gone; it sends its users again right after HELLO
+                presence.dropNode(peer);
+                state.epoch = peerEpoch;
+            }
+            state.heardAt = System.nanoTime();
+            state.live = true;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                state.heardAt = System.nanoTime();
+                if (!state.live) {
+                    // its lease ran out while the connection stayed up, e.g. it was paused
+                    state.live = true;
+                    back.send(NodeProtocol.RESYNC);
+                }
+                int space = line.indexOf(' ');
+                String type = (space < 0) ? line : line.substring(0, space);
+                switch (type) {
+                    case NodeProtocol.REQ -> {
+                        String[] p = line.split(" ", 4);
+                        long corr = Long.parseLong(p[1]);
+                        long userId = Long.parseLong(p[2]);
+                        workers.execute(() -> reply(out, corr, host.execute(from, userId, p[3])));
+                    }
+                    case NodeProtocol.DELIVER -> deliverHere(line, back);
+                    case NodeProtocol.UNDELIVERED -> {
+                        String[] p = line.split(" ");
+                        long chatId = Long.parseLong(p[1]);
+                        long messageId = Long.parseLong(p[2]);
+                        List<Long> users = new ArrayList<>();
+                        for (String id : p[3].split(",")) {
+                            long userId = Long.parseLong(id);
+                            // it is not there; without this the inbox would send it right back
+                            presence.forget(userId, from);
+                            users.add(userId);
+                        }
+                        workers.execute(() -> users.forEach(u -> host.undelivered(u, chatId, messageId)));
+                    }
+                    case NodeProtocol.USER -> {
+                        String[] p = line.split(" ", 3);
+                        host.addUser(Long.parseLong(p[1]), p[2]);
+                    }
+                    case NodeProtocol.PRESENCE -> {
+                        if (space < 0) break;
+                        List<Long> logins = new ArrayList<>();
+                        presence.apply(from, line.substring(space + 1).split(","), logins::add);
+                        // messages kept here while they were offline
+                        if (!logins.isEmpty()) workers.execute(() -> logins.forEach(host::deliverInbox));
+                    }
+                    case NodeProtocol.PRESENCE_RESET -> presence.dropNode(from);
+                    case NodeProtocol.RESYNC -> resync(back);
+                    default -> System.out.println("[CLUSTER] unknown line from node " + from + ": " + line);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) System.out.println("[CLUSTER] link from node " + peer + " failed: " + e);
+        } finally {
+            if (peer >= 0) {
+                // its users went with it
+                peers.get(peer).live = false;
+                presence.dropNode(peer);
+            }
+        }
+    }
+
+    private void deliverHere(String line, NodeLink back) {
+        String[] p = line.split(" ", 7);
+        long chatId = Long.parseLong(p[1]);
+        long messageId = Long.parseLong(p[2]);
+        int recipients = Integer.parseInt(p[3]);
+        int headLength = Integer.parseInt(p[5]);
+        String head = p[6].substring(0, headLength);
+        String fields = p[6].substring(headLength);
+        StringBuilder missing = null;
+        for (String id : p[4].split(",")) {
+            long userId = Long.parseLong(id);
+            if (host.pushLocal(userId, chatId, messageId, recipients, head, fields)) continue;
+            if (missing == null) missing = new StringBuilder();
+            else missing.append(',');
+            missing.append(userId);
+        }
+        if (missing != null) back.send(NodeProtocol.UNDELIVERED + " " + chatId + " " + messageId + " " + missing);
+    }
+
+    private static void reply(PrintWriter out, long corr, List<String> lines) {
+        synchronized (out) {
+            out.println(NodeProtocol.REP + " " + corr + " " + lines.size());
+            for (String line : lines) out.println(line);
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (NodeLink link : links.values()) link.close();
+        if (serverSocket != null) serverSocket.close();
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,32 @@
+package cluster;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of chat ids onto nodes. Each node is placed at many points of a
+ * 64-bit ring and a chat belongs to the first point at or after its hash, so chats spread
+ * evenly and adding a node would only take over about 1/n of them.
+ */
+public final class HashRing {
+    private final TreeMap<Long, Integer> points = new TreeMap<>();
+
+    public HashRing(Collection<Integer> nodeIds, int pointsPerNode) {
+        for (int node : nodeIds) {
+            for (int i = 0; i < pointsPerNode; i++) points.put(mix(((long) node << 32) | i), node);
+        }
+    }
+
+    public int ownerOf(long key) {
+        Map.Entry<Long, Integer> e = points.ceilingEntry(mix(key));
+        return (e != null ? e : points.firstEntry()).getValue();
+    }
+
+    // SplitMix64 finalizer: neighbouring ids land far apart
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,55 @@
+package cluster;
+
+import util.PeerAuth;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts a cluster of ServerMain processes on localhost, for trying it out and for tests:
+ *
+ *   java -cp <classes> cluster.LocalCluster [nodes=3] [port=5050] [nodePort=7050] [-D... for every node]
+ *
+ * Node i (from 1) takes clients on port+i-1 and peers on nodePort+i-1. The nodes stop
+ * when this process does; kill one by its pid to see the others carry on without it.
+ * Unless -Dmessenger.clusterSecret is given, the nodes share a random one.
+ */
+public class LocalCluster {
+    public static void main(String[] args) throws Exception {
+        int nodes = 3;
+        int port = 5050;
+        int nodePort = 7050;
+        List<String> jvmArgs = new ArrayList<>();
+        for (String a : args) {
+            if (a.startsWith("nodes=")) nodes = Integer.parseInt(a.substring(6));
+            else if (a.startsWith("port=")) port = Integer.parseInt(a.substring(5));
+            else if (a.startsWith("nodePort=")) nodePort = Integer.parseInt(a.substring(9));
+            else if (a.startsWith("-D")) jvmArgs.add(a);
+            else throw new IllegalArgumentException("Unknown argument: " + a);
+        }
+        if (jvmArgs.stream().noneMatch(a -> a.startsWith("-Dmessenger.clusterSecret="))) {
+            jvmArgs.add("-Dmessenger.clusterSecret=" + PeerAuth.nonce());
+        }
+
+        StringBuilder spec = new StringBuilder();
+        for (int i = 1; i <= nodes; i++) {
+            if (i > 1) spec.append(',');
+            spec.append(i).append("@localhost:").append(nodePort + i - 1);
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy), "cluster-stop"));
+        for (int i = 1; i <= nodes; i++) {
+            List<String> cmd = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                    "-Dmessenger.nodeId=" + i, "-Dmessenger.cluster=" + spec, "-Dmessenger.port=" + (port + i - 1)));
+            cmd.addAll(jvmArgs);
+            cmd.add("server.ServerMain");
+            Process p = new ProcessBuilder(cmd).inheritIO().start();
+            processes.add(p);
+            System.out.println("Node " + i + ": clients on localhost:" + (port + i - 1) + ", pid " + p.pid());
+        }
+        for (Process p : processes) p.waitFor();
+    }
+}
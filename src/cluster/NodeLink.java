@@ -0,0 +1,173 @@
+package cluster;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * The connection this node opens to one peer, for its requests and one-way messages.
+ * It is opened on first use and again after it breaks, at most once a second, so a node
+ * that is down costs one failed connect per second rather than one per message. Each new
+ * connection answers the peer's challenge with a HELLO, then runs onConnect, which tells
+ * the peer what it may have missed.
+ */
+final class NodeLink implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long RETRY_NANOS = 1_000_000_000L;
+
+    /** One socket and the requests waiting for a reply on it. */
+    private final class Connection {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+        final Map<Long, CompletableFuture<List<String>>> pending = new ConcurrentHashMap<>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), false);
+        }
+
+        void readReplies() {
+            try (in) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith(NodeProtocol.REP + " ")) continue;
+                    String[] p = line.split(" ");
+                    int n = Integer.parseInt(p[2]);
+                    List<String> lines = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) lines.add(in.readLine());
+                    CompletableFuture<List<String>> f = pending.remove(Long.parseLong(p[1]));
+                    if (f != null) f.complete(lines);
+                }
+            } catch (IOException | RuntimeException ignored) {
+            } finally {
+                dropped(this);
+            }
+        }
+    }
+
+    // the HELLO line answering a challenge
+    private final UnaryOperator<String> hello;
+    private final ClusterConfig.Node peer;
+    private final Consumer<NodeLink> onConnect;
+    private final AtomicLong nextCorr = new AtomicLong();
+
+    // guarded by this
+    private Connection conn;
+    private long retryAt;
+    private boolean closed;
+
+    NodeLink(UnaryOperator<String> hello, ClusterConfig.Node peer, Consumer<NodeLink> onConnect) {
+        this.hello = hello;
+        this.peer = peer;
+        this.onConnect = onConnect;
+    }
+
+    ClusterConfig.Node peer() {
+        return peer;
+    }
+
+    /** @return false if the peer cannot be reached; the line may then be lost */
+    synchronized boolean send(String line) {
+        Connection c = connection();
+        if (c == null) return false;
+        c.out.println(line);
+        if (c.out.checkError()) {
+            drop(c);
+            return false;
+        }
+        return true;
+    }
+
+    /** Runs a client command on the peer for userId; the future fails if the peer is unreachable. */
+    CompletableFuture<List<String>> request(long userId, String command) {
+        CompletableFuture<List<String>> reply = new CompletableFuture<>();
+        long corr = nextCorr.incrementAndGet();
+        synchronized (this) {
+            Connection c = connection();
+            if (c != null) {
+                c.pending.put(corr, reply);
+                if (send(NodeProtocol.REQ + " " + corr + " " + userId + " " + command)) return reply;
+            }
+        }
+        reply.completeExceptionally(new IllegalStateException("Node " + peer.id() + " is unavailable"));
+        return reply;
+    }
+
+    /** Whether the link is up right now, without trying to connect. */
+    synchronized boolean hasConnection() {
+        return conn != null;
+    }
+
+    private Connection connection() {
+        if (conn != null || closed || System.nanoTime() - retryAt < 0) return conn;
+        Socket socket = new Socket();
+        String challenge;
+        try {
+            socket.connect(new InetSocketAddress(peer.host(), peer.port()), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            Connection c = new Connection(socket);
+            String[] line = String.valueOf(c.in.readLine()).split(" ");
+            if (line.length != 2 || !line[0].equals(NodeProtocol.CHALLENGE)) {
+                throw new IOException("Expected " + NodeProtocol.CHALLENGE + " from node " + peer);
+            }
+            challenge = line[1];
+            socket.setSoTimeout(0);
+            conn = c;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            retryAt = System.nanoTime() + RETRY_NANOS;
+            return null;
+        }
+        Connection c = conn;
+        Thread reader = new Thread(c::readReplies, "node-link-" + peer.id());
+        reader.setDaemon(true);
+        reader.start();
+        System.out.println("[CLUSTER] connected to node " + peer);
+        c.out.println(hello.apply(challenge));
+        onConnect.accept(this);
+        return conn;
+    }
+
+    private synchronized void dropped(Connection c) {
+        if (conn == c) {
+            System.out.println("[CLUSTER] lost node " + peer);
+            drop(c);
+        }
+    }
+
+    private void drop(Connection c) {
+        if (conn == c) {
+            conn = null;
+            retryAt = System.nanoTime() + RETRY_NANOS;
+        }
+        try {
+            c.socket.close();
+        } catch (IOException ignored) {
+        }
+        for (CompletableFuture<List<String>> f : c.pending.values()) {
+            f.completeExceptionally(new IllegalStateException("Node " + peer.id() + " is unavailable"));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (conn != null) drop(conn);
+    }
+}
@@ -0,0 +1,31 @@
+package cluster;
+
+/** Lines of the node link; each node opens one connection to every other node and writes to it. */
+final class NodeProtocol {
+    private NodeProtocol() {}
+
+    // "CHALLENGE <nonce>": the first line, sent by the accepting node
+    static final String CHALLENGE = "CHALLENGE";
+    // "HELLO <nodeId> <epoch> <answer>": the connecting node's first line; the epoch changes
+    // when the node restarts, and answer is PeerAuth.answer(nonce, "<nodeId> <epoch>") with
+    // the cluster secret. The connection is closed without a valid one.
+    static final String HELLO = "HELLO";
+    // "REQ <corr> <userId> <client command>": run a command for userId (0 if not logged in);
+    // answered on the same connection by "REP <corr> <n>" and the n reply lines
+    static final String REQ = "REQ";
+    static final String REP = "REP";
+    // "DELIVER <chatId> <messageId> <recipients> <userId,...> <headLength> <head><fields>":
+    // push one event to each of the users, all logged in on the receiving node
+    static final String DELIVER = "DELIVER";
+    // "UNDELIVERED <chatId> <messageId> <userId,...>": users of a DELIVER that were not there after all
+    static final String UNDELIVERED = "UNDELIVERED";
+    // "USER <id> <username>": a user registered on the sending node
+    static final String USER = "USER";
+    // "PRESENCE [+<userId>.<session>|-<userId>.<session>],...": logins and logouts on the
+    // sending node since its last batch; sent empty as a heartbeat that renews its lease
+    static final String PRESENCE = "PRESENCE";
+    // "PRESENCE_RESET": forget the sending node's users; a snapshot follows as PRESENCE lines
+    static final String PRESENCE_RESET = "PRESENCE_RESET";
+    // "RESYNC": the sender dropped this node's users and registrations may be missing; send them again
+    static final String RESYNC = "RESYNC";
+}
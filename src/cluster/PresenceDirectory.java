@@ -0,0 +1,122 @@
+package cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Which node each online user is connected to, for the whole cluster (or just this server
+ * when it runs alone). Every login is a new session; session numbers start from the clock,
+ * so a later login has a higher one on any node and after a restart. A user logged in
+ * twice is where the later session is, and a logout only removes its own session, so a
+ * stale logout cannot hide a newer login.
+ *
+ * Local logins and logouts are also queued as changes, which {@link ClusterNode} sends to
+ * the other nodes in batches. Entries from another node go away with it: when its link
+ * breaks or it stops renewing its lease.
+ */
+public final class PresenceDirectory {
+    public record Presence(int node, long session) {
+        boolean newerThan(Presence other) {
+            return session > other.session || (session == other.session && node > other.node);
+        }
+    }
+
+    private final Map<Long, Presence> users = new ConcurrentHashMap<>();
+    // local changes not sent yet: "+<userId>.<session>" or "-<userId>.<session>"
+    private final Queue<String> changes = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sessions = new AtomicLong(System.currentTimeMillis() * 1000);
+    private volatile int localNode;
+
+    public void setLocalNode(int node) {
+        this.localNode = node;
+    }
+
+    public int localNode() {
+        return localNode;
+    }
+
+    /** @return the session of this login */
+    public long login(long userId) {
+        long session = sessions.incrementAndGet();
+        put(userId, new Presence(localNode, session));
+        changes.add("+" + userId + "." + session);
+        return session;
+    }
+
+    public void logout(long userId, long session) {
+        remove(userId, localNode, session);
+        changes.add("-" + userId + "." + session);
+    }
+
+    /** @return null if the user is not online anywhere */
+    public Presence get(long userId) {
+        return users.get(userId);
+    }
+
+    public boolean isOnline(long userId) {
+        return users.containsKey(userId);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    /** Takes the local changes made since the last call. */
+    List<String> drainChanges() {
+        List<String> out = new ArrayList<>();
+        for (String c; (c = changes.poll()) != null; ) out.add(c);
+        return out;
+    }
+
+    /** Everything this node holds, as changes that recreate it. */
+    List<String> localSnapshot() {
+        List<String> out = new ArrayList<>();
+        users.forEach((userId, p) -> {
+            if (p.node() == localNode) out.add("+" + userId + "." + p.session());
+        });
+        return out;
+    }
+
+    /** Applies changes another node sent; onLogin gets each user that came online there. */
+    void apply(int node, String[] items, LongConsumer onLogin) {
+        for (String item : items) {
+            if (item.isEmpty()) continue;
+            int dot = item.indexOf('.');
+            long userId = Long.parseLong(item, 1, dot, 10);
+            long session = Long.parseLong(item, dot + 1, item.length(), 10);
+            if (item.charAt(0) == '+') {
+                if (put(userId, new Presence(node, session))) onLogin.accept(userId);
+            } else {
+                remove(userId, node, session);
+            }
+        }
+    }
+
+    /** Forgets a user's entry if it is on node, e.g. because that node could not find it. */
+    void forget(long userId, int node) {
+        users.computeIfPresent(userId, (id, p) -> (p.node() == node) ? null : p);
+    }
+
+    /** @return how many users were on node */
+    int dropNode(int node) {
+        int[] n = {0};
+        users.values().removeIf(p -> p.node() == node && ++n[0] > 0);
+        return n[0];
+    }
+
+    // true if p is now the user's presence
+    private boolean put(long userId, Presence p) {
+        Presence now = users.merge(userId, p, (old, neu) -> neu.newerThan(old) ? neu : old);
+        return now == p;
+    }
+
+    private void remove(long userId, int node, long session) {
+        users.computeIfPresent(userId, (id, p) -> (p.node() == node && p.session() == session) ? null : p);
+    }
+}
@@ -3,17 +3,24 @@ package domain;
 import domain.message.Message;
 import observer.ChatEventListener;
 
+import java.time.Instant;
 import java.util.Collections;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Chat {
     private final long id;
-    private String title;
-    private final List<Long> participantIds = new ArrayList<>();
+    private volatile String title;
+    private final List<Long> participantIds = new CopyOnWriteArrayList<>();
+
+    // guarded by this; senders on different connections append concurrently
     private final List<Message> messages = new ArrayList<>();
+    // guarded by this; highest id dropped by retention, so replays do not bring it back
+    private long droppedThrough;
+    private volatile RetentionPolicy retention = RetentionPolicy.NONE;
 
-    private final List<ChatEventListener> listeners = new ArrayList<>();
+    private final List<ChatEventListener> listeners = new CopyOnWriteArrayList<>();
 
     public Chat(long id, String title) {
         this.id = id;
@@ -30,17 +37,124 @@ public class Chat {
         return Collections.unmodifiableList(messages);
     }
 
+    public synchronized List<Message> copyMessages() {
+        return List.copyOf(messages);
+    }
+
+    public synchronized int messageCount() {
+        return messages.size();
+    }
+
+    public synchronized long lastMessageId() {
+        return messages.isEmpty() ? droppedThrough : messages.get(messages.size() - 1).getId();
+    }
+
+    /** Up to {@code limit} messages with id > afterId, oldest first. */
+    public synchronized List<Message> messagesAfter(long afterId, int limit) {
+        int lo = countThrough(afterId);
+        int to = (int) Math.min(messages.size(), (long) lo + limit);
+        return List.copyOf(messages.subList(lo, to));
+    }
+
+    /** The newest {@code limit} messages, oldest first. */
+    public synchronized List<Message> latestMessages(int limit) {
+        int from = Math.max(0, messages.size() - limit);
+        return List.copyOf(messages.subList(from, messages.size()));
+    }
+
     public void setTitle(String title) { this.title = title; }
 
-    public void addParticipant(long userId) {
+    public RetentionPolicy getRetention() { return retention; }
+    public void setRetention(RetentionPolicy retention) { this.retention = retention; }
+
+    public synchronized long droppedThrough() {
+        return droppedThrough;
+    }
+
+    /** Id of the newest message the retention policy drops at {@code now}, or 0 if none. */
+    public synchronized long expiredThrough(Instant now) {
+        RetentionPolicy policy = retention;
+        int expired = (policy.maxCount() > 0) ? Math.max(0, messages.size() - policy.maxCount()) : 0;
+        if (!policy.maxAge().isZero()) {
+            // timestamps follow id order closely enough; stop at the first one still kept
+            Instant cutoff = now.minus(policy.maxAge());
+            while (expired < messages.size() && messages.get(expired).getTimestamp().isBefore(cutoff)) expired++;
+        }
+        return (expired == 0) ? 0 : messages.get(expired - 1).getId();
+    }
+
+    /** Removes every message with id <= messageId in one step and returns them, oldest first. */
+    public synchronized List<Message> dropThrough(long messageId) {
+        droppedThrough = Math.max(droppedThrough, messageId);
+        List<Message> head = messages.subList(0, countThrough(messageId));
+        List<Message> dropped = new ArrayList<>(head);
+        head.clear();
+        return dropped;
+    }
+
+    public synchronized void addParticipant(long userId) {
         if (!participantIds.contains(userId)) participantIds.add(userId);
     }
 
     public void addMessage(Message message) {
+        append(message);
+        publish(message);
+    }
+
+    /** Adds without notifying listeners; callers holding the chat lock publish afterwards. */
+    public synchronized void append(Message message) {
         messages.add(message);
+    }
+
+    /** Takes back message if it is still the newest one, e.g. because storing it failed. */
+    public synchronized boolean removeNewest(Message message) {
+        if (messages.isEmpty() || messages.get(messages.size() - 1) != message) return false;
+        messages.remove(messages.size() - 1);
+        return true;
+    }
+
+    /** Appends a batch under one lock acquisition, e.g. when importing a dump. */
+    public synchronized void appendAll(List<Message> batch) {
+        for (Message m : batch) append(m);
+    }
+
+    public void publish(Message message) {
         notifyNewMessage(message);
     }
 
+    public synchronized Message findMessage(long messageId) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            Message m = messages.get(i);
+            if (m.getId() == messageId) return m;
+        }
+        return null;
+    }
+
+    /** Marks the messages with id <= throughId that readerId did not send as read. */
+    public synchronized boolean markReadBy(long readerId, long throughId) {
+        boolean changed = false;
+        for (Message m : messages) {
+            if (m.getId() > throughId) break;
+            if (m.getSenderId() != readerId && m.getStatus() != Message.Status.READ) {
+                m.setStatus(Message.Status.READ);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // number of messages with id <= messageId; ids are assigned under this lock, so the list is sorted
+    private int countThrough(long messageId) {
+        int lo = 0;
+        int hi = messages.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (messages.get(mid).getId() <= messageId) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
     public void subscribe(ChatEventListener listener) {
         listeners.add(listener);
     }
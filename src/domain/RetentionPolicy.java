@@ -0,0 +1,35 @@
+package domain;
+
+import java.time.Duration;
+
+/**
+ * How much of a chat's history is kept: messages older than {@code maxAge} and messages
+ * beyond the newest {@code maxCount} are dropped by the retention compactor. Zero means
+ * no limit.
+ */
+public record RetentionPolicy(Duration maxAge, int maxCount) {
+    public static final RetentionPolicy NONE = new RetentionPolicy(Duration.ZERO, 0);
+
+    public RetentionPolicy {
+        if (maxAge == null || maxAge.isNegative() || maxCount < 0) {
+            throw new IllegalArgumentException("Bad retention policy: maxAge=" + maxAge + " maxCount=" + maxCount);
+        }
+    }
+
+    public static RetentionPolicy of(long maxAgeMillis, int maxCount) {
+        return (maxAgeMillis == 0 && maxCount == 0) ? NONE : new RetentionPolicy(Duration.ofMillis(maxAgeMillis), maxCount);
+    }
+
+    public boolean isNone() {
+        return maxAge.isZero() && maxCount == 0;
+    }
+
+    @Override
+    public String toString() {
+        if (isNone()) return "none";
+        String age = maxAge.isZero() ? ""
+                : "maxAge=" + (maxAge.toMillis() % 86_400_000 == 0 ? maxAge.toDays() + "d" : maxAge.toString());
+        String count = (maxCount == 0) ? "" : "max=" + maxCount;
+        return (age + " " + count).trim();
+    }
+}
@@ -15,6 +15,12 @@ public class FileLinkMessage extends Message {
     public String getFileName() { return fileName; }
     public String getUrl() { return url; }
 
+    @Override
+    public MessageKind getKind() { return MessageKind.FILE; }
+
+    @Override
+    public String getBody() { return fileName; }
+
     @Override
     public String preview() {
         return "[FILE] " + fileName + " | " + url;
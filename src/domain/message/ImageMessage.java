@@ -12,6 +12,12 @@ public class ImageMessage extends Message {
 
     public String getPathOrName() { return pathOrName; }
 
+    @Override
+    public MessageKind getKind() { return MessageKind.IMAGE; }
+
+    @Override
+    public String getBody() { return pathOrName; }
+
     @Override
     public String preview() {
         return "[image] " + pathOrName;
@@ -15,6 +15,12 @@ public class MediaLinkMessage extends Message {
     public String getTitle() { return title; }
     public String getUrl() { return url; }
 
+    @Override
+    public MessageKind getKind() { return MessageKind.MEDIA; }
+
+    @Override
+    public String getBody() { return title; }
+
     @Override
     public String preview() {
         return "[MEDIA] " + title + " | " + url;
@@ -2,7 +2,7 @@ package domain.message;
 
 import java.time.Instant;
 
-public abstract class Message {
+public abstract class Message implements MessageView {
     public enum Status { SENT, DELIVERED, READ }
 
     private final long id;
@@ -29,4 +29,11 @@ public abstract class Message {
     public void setStatus(Status status) { this.status = status; }
 
     public abstract String preview();
+
+    /** Rough heap footprint: object headers and fields plus two bytes per char. */
+    public long estimatedBytes() {
+        String body = getBody();
+        String url = getUrl();
+        return 80 + 2L * ((body == null ? 0 : body.length()) + (url == null ? 0 : url.length()));
+    }
 }
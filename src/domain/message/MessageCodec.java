@@ -0,0 +1,273 @@
+package domain.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Compact binary form of a message, shared by the storage logs, replication and the
+ * binary protocol. Encodes straight into and out of a {@link ByteBuffer}.
+ *
+ * Layout (version 1):
+ * <pre>
+ *   version   byte
+ *   tag       byte     kind code << 2 | status ordinal
+ *   id        varint
+ *   chatId    varint
+ *   senderId  varint
+ *   time      varint   zigzag((nanos - base) / 1000) << 1 when it is whole microseconds,
+ *                      otherwise zigzag(nanos - base) << 1 | 1
+ *   body      string   varint (length + 1, 0 for null) then UTF-8 bytes
+ *   url       string   VOICE, MEDIA and FILE only
+ * </pre>
+ * The timestamp is a delta against a base the caller picks: {@link #EPOCH_NANOS} for
+ * standalone records, or the previous message's time when a stream of one chat's
+ * messages is written in order. Kind codes are fixed here and never reused, so they do
+ * not depend on the order of {@link MessageKind}.
+ */
+public final class MessageCodec {
+    public static final byte VERSION = 1;
+
+    /** 2024-01-01T00:00:00Z, the default timestamp base. */
+    public static final long EPOCH_NANOS = 1_704_067_200L * 1_000_000_000L;
+
+    private static final int KIND_TEXT = 1;
+    private static final int KIND_IMAGE = 2;
+    private static final int KIND_VOICE = 3;
+    private static final int KIND_MEDIA = 4;
+    private static final int KIND_FILE = 5;
+
+    private static final Message.Status[] STATUSES = Message.Status.values();
+
+    private MessageCodec() {}
+
+    public static int encodedLength(MessageView m) {
+        return encodedLength(m, EPOCH_NANOS);
+    }
+
+    public static int encodedLength(MessageView m, long baseNanos) {
+        int len = 2
+                + varLongSize(m.getId())
+                + varLongSize(m.getChatId())
+                + varLongSize(m.getSenderId())
+                + varLongSize(timeField(m.getTimestamp(), baseNanos))
+                + stringSize(m.getBody());
+        if (hasUrl(m.getKind())) len += stringSize(m.getUrl());
+        return len;
+    }
+
+    public static void encode(ByteBuffer out, MessageView m) {
+        encode(out, m, EPOCH_NANOS);
+    }
+
+    public static void encode(ByteBuffer out, MessageView m, long baseNanos) {
+        out.put(VERSION);
+        out.put((byte) (kindCode(m.getKind()) << 2 | m.getStatus().ordinal()));
+        putVarLong(out, m.getId());
+        putVarLong(out, m.getChatId());
+        putVarLong(out, m.getSenderId());
+        putVarLong(out, timeField(m.getTimestamp(), baseNanos));
+        putString(out, m.getBody());
+        if (hasUrl(m.getKind())) putString(out, m.getUrl());
+    }
+
+    public static Message decode(ByteBuffer in) {
+        return decode(in, EPOCH_NANOS);
+    }
+
+    public static Message decode(ByteBuffer in, long baseNanos) {
+        checkVersion(in.get());
+        int tag = in.get() & 0xFF;
+        long id = getVarLong(in);
+        long chatId = getVarLong(in);
+        long senderId = getVarLong(in);
+        Instant ts = time(getVarLong(in), baseNanos);
+        String body = getString(in);
+
+        Message m = switch (tag >>> 2) {
+            case KIND_TEXT -> new TextMessage(id, chatId, senderId, ts, body);
+            case KIND_IMAGE -> new ImageMessage(id, chatId, senderId, ts, body);
+            case KIND_VOICE -> new VoiceLinkMessage(id, chatId, senderId, ts, body, getString(in));
+            case KIND_MEDIA -> new MediaLinkMessage(id, chatId, senderId, ts, body, getString(in));
+            case KIND_FILE -> new FileLinkMessage(id, chatId, senderId, ts, body, getString(in));
+            default -> throw new IllegalStateException("Unknown message kind code: " + (tag >>> 2));
+        };
+        m.setStatus(STATUSES[tag & 3]);
+        return m;
+    }
+
+    /** Chat id of the message encoded at {@code offset}, without moving the buffer. */
+    public static long chatIdAt(ByteBuffer in, int offset) {
+        checkVersion(in.get(offset));
+        int p = offset + 2;
+        while (in.get(p) < 0) p++; // skip the id
+        p++;
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get(p++);
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    public static long epochNanos(Instant t) {
+        return Math.addExact(Math.multiplyExact(t.getEpochSecond(), 1_000_000_000L), t.getNano());
+    }
+
+    // unsigned LEB128: 7 bits per byte, high bit set on all but the last
+
+    public static int varLongSize(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    public static void putVarLong(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    public static long getVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    public static int stringSize(String s) {
+        if (s == null) return 1;
+        int len = utf8Length(s);
+        return varLongSize(len + 1L) + len;
+    }
+
+    public static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.put((byte) 0);
+            return;
+        }
+        putVarLong(out, utf8Length(s) + 1L);
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out.put((byte) (0xF0 | cp >> 18));
+                    out.put((byte) (0x80 | cp >> 12 & 0x3F));
+                    out.put((byte) (0x80 | cp >> 6 & 0x3F));
+                    out.put((byte) (0x80 | cp & 0x3F));
+                } else {
+                    out.put((byte) '?'); // unpaired surrogate, as String.getBytes does
+                }
+            } else {
+                out.put((byte) (0xE0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3F));
+                out.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    public static String getString(ByteBuffer in) {
+        long n = getVarLong(in);
+        if (n == 0) return null;
+        int len = (int) (n - 1);
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+        } else {
+            byte[] b = new byte[len];
+            in.get(b);
+            s = new String(b, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static int utf8Length(String s) {
+        int n = s.length();
+        int len = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                len += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 2; // two chars, four bytes
+                    i++;
+                }
+            } else {
+                len += 2;
+            }
+        }
+        return len;
+    }
+
+    private static long timeField(Instant t, long baseNanos) {
+        long delta = epochNanos(t) - baseNanos;
+        // most clocks tick in microseconds, which saves a byte or two
+        if (delta % 1000 == 0) return zigzag(delta / 1000) << 1;
+        return zigzag(delta) << 1 | 1;
+    }
+
+    private static Instant time(long field, long baseNanos) {
+        long delta = unzigzag(field >>> 1);
+        long nanos = baseNanos + ((field & 1) == 0 ? delta * 1000 : delta);
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** The fixed code of a kind, for other encodings that store kinds, e.g. mapped history. */
+    public static int kindCode(MessageKind kind) {
+        return switch (kind) {
+            case TEXT -> KIND_TEXT;
+            case IMAGE -> KIND_IMAGE;
+            case VOICE -> KIND_VOICE;
+            case MEDIA -> KIND_MEDIA;
+            case FILE -> KIND_FILE;
+        };
+    }
+
+    public static MessageKind kindOf(int code) {
+        return switch (code) {
+            case KIND_TEXT -> MessageKind.TEXT;
+            case KIND_IMAGE -> MessageKind.IMAGE;
+            case KIND_VOICE -> MessageKind.VOICE;
+            case KIND_MEDIA -> MessageKind.MEDIA;
+            case KIND_FILE -> MessageKind.FILE;
+            default -> throw new IllegalStateException("Unknown message kind code: " + code);
+        };
+    }
+
+    private static boolean hasUrl(MessageKind kind) {
+        return kind == MessageKind.VOICE || kind == MessageKind.MEDIA || kind == MessageKind.FILE;
+    }
+
+    private static void checkVersion(byte version) {
+        if (version < 1 || version > VERSION) {
+            throw new IllegalStateException("Unsupported message codec version: " + version);
+        }
+    }
+}
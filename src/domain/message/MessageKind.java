@@ -0,0 +1,5 @@
+package domain.message;
+
+public enum MessageKind {
+    TEXT, IMAGE, VOICE, MEDIA, FILE
+}
@@ -0,0 +1,22 @@
+package domain.message;
+
+import java.time.Instant;
+
+/**
+ * Read-only access to a message, implemented both by heap {@link Message}s and by
+ * views over stored history so readers do not care where a message lives.
+ */
+public interface MessageView {
+    long getId();
+    long getChatId();
+    long getSenderId();
+    Instant getTimestamp();
+    Message.Status getStatus();
+    MessageKind getKind();
+
+    // text, image name, voice/media title or file name
+    String getBody();
+
+    // link for VOICE/MEDIA/FILE, otherwise null
+    default String getUrl() { return null; }
+}
@@ -12,6 +12,12 @@ public class TextMessage extends Message {
 
     public String getText() { return text; }
 
+    @Override
+    public MessageKind getKind() { return MessageKind.TEXT; }
+
+    @Override
+    public String getBody() { return text; }
+
     @Override
     public String preview() {
         return text;
@@ -26,6 +26,16 @@ public class VoiceLinkMessage extends Message {
         return url;
     }
 
+    @Override
+    public MessageKind getKind() {
+        return MessageKind.VOICE;
+    }
+
+    @Override
+    public String getBody() {
+        return title;
+    }
+
     @Override
     public String preview() {
         return "[VOICE] " + title + " | " + url;
@@ -0,0 +1,52 @@
+package loadgen;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Load generator settings, from {@code key=value} arguments. */
+record LoadConfig(String host, int port, boolean embedded,
+                  int users, int chats, String chatSize,
+                  int burst, Duration think, double historyRatio, int historyLimit,
+                  Duration duration, Duration warmup, String out) {
+
+    static final String USAGE = """
+            Usage: LoadGenerator [key=value ...]
+              host=127.0.0.1 port=5050   server to load
+              embedded=false             start an in-memory ChatServer in this JVM on port instead
+              users=100                  virtual users, one connection each
+              chats=50                   chats created before the run
+              chatSize=uniform:2-10      members per chat: fixed:<n>, uniform:<a>-<b> or zipf:<s>:<a>-<b>
+              burst=5                    messages sent back to back by a user
+              thinkMs=1000               mean pause between a user's bursts (exponential)
+              historyRatio=0.1           share of bursts followed by a HISTORY read
+              historyLimit=50            messages per HISTORY read
+              durationSec=30 warmupSec=5 measured run, after a warmup that is not counted
+              out=loadgen-results        directory for the result files""";
+
+    static LoadConfig parse(String[] args) {
+        Map<String, String> m = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected key=value: " + a);
+            m.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        LoadConfig c = new LoadConfig(
+                m.getOrDefault("host", "127.0.0.1"),
+                Integer.parseInt(m.getOrDefault("port", "5050")),
+                Boolean.parseBoolean(m.getOrDefault("embedded", "false")),
+                Integer.parseInt(m.getOrDefault("users", "100")),
+                Integer.parseInt(m.getOrDefault("chats", "50")),
+                m.getOrDefault("chatSize", "uniform:2-10"),
+                Integer.parseInt(m.getOrDefault("burst", "5")),
+                Duration.ofMillis(Long.parseLong(m.getOrDefault("thinkMs", "1000"))),
+                Double.parseDouble(m.getOrDefault("historyRatio", "0.1")),
+                Integer.parseInt(m.getOrDefault("historyLimit", "50")),
+                Duration.ofSeconds(Long.parseLong(m.getOrDefault("durationSec", "30"))),
+                Duration.ofSeconds(Long.parseLong(m.getOrDefault("warmupSec", "5"))),
+                m.getOrDefault("out", "loadgen-results"));
+        SizeDistribution.parse(c.chatSize());
+        if (c.users() < 2) throw new IllegalArgumentException("Need at least 2 users");
+        return c;
+    }
+}
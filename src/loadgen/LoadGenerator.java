@@ -0,0 +1,258 @@
+package loadgen;
+
+import client.ChatEvent;
+import client.ClientConnection;
+import server.ChatServer;
+import util.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates virtual users against a ChatServer over the normal protocol: each registers on
+ * its own connection, chats are created up front, then every user sends bursts of
+ * messages to its chats with random think times in between and sometimes reads history.
+ *
+ * A message's text carries the time it was sent, so every member that receives its event
+ * records the fan-out delay. All users run in this JVM, so the clocks agree.
+ */
+public class LoadGenerator {
+    private static final String MARK = "lg ";
+
+    private final LoadConfig config;
+    private final Random random = new Random();
+
+    private final List<ClientConnection> conns = new ArrayList<>();
+    private long[] userIds;
+    // chats of each user, and the size of each chat
+    private final List<List<Long>> chatsOf = new ArrayList<>();
+    private final Map<Long, Integer> chatSize = new HashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService callbacks;
+    private volatile boolean running;
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureTo = Long.MAX_VALUE;
+    private final AtomicLong inFlight = new AtomicLong();
+
+    // counted for messages sent between measureFrom and measureTo only
+    final LatencyHistogram ack = new LatencyHistogram();
+    final LatencyHistogram fanout = new LatencyHistogram();
+    final LatencyHistogram history = new LatencyHistogram();
+    final LongAdder sent = new LongAdder();
+    final LongAdder expectedDeliveries = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder historyReads = new LongAdder();
+    final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    LoadGenerator(LoadConfig config) {
+        this.config = config;
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        this.scheduler = Executors.newScheduledThreadPool(threads, daemon("loadgen-users"));
+        this.callbacks = Executors.newFixedThreadPool(threads, daemon("loadgen-events"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("help")) {
+            System.out.println(LoadConfig.USAGE);
+            return;
+        }
+        LoadConfig config = LoadConfig.parse(args);
+        if (config.embedded()) startEmbedded(config.port());
+
+        LoadGenerator gen = new LoadGenerator(config);
+        try {
+            gen.setUp();
+            LoadReport report = gen.run();
+            report.print();
+            gen.printServerStats();
+            report.write();
+        } finally {
+            gen.close();
+        }
+    }
+
+    void setUp() throws IOException {
+        long start = System.nanoTime();
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        userIds = new long[config.users()];
+        for (int i = 0; i < config.users(); i++) {
+            ClientConnection c = connect();
+            c.addEventListener(this::onEvent);
+            conns.add(c);
+            userIds[i] = c.register("lg" + run + "-" + i).join();
+            chatsOf.add(new ArrayList<>());
+        }
+
+        SizeDistribution sizes = SizeDistribution.parse(config.chatSize());
+        for (int n = 0; n < config.chats(); n++) {
+            int size = Math.min(sizes.sample(random), config.users());
+            List<Integer> members = pick(size);
+            List<Long> others = new ArrayList<>();
+            for (int m : members.subList(1, members.size())) others.add(userIds[m]);
+            long chatId = conns.get(members.get(0)).createChat("lg-chat-" + n, others).join();
+            for (int m : members) chatsOf.get(m).add(chatId);
+            chatSize.put(chatId, size);
+        }
+        System.out.printf("Set up %d users and %d chats in %d ms%n",
+                config.users(), config.chats(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    LoadReport run() throws InterruptedException {
+        running = true;
+        for (int u = 0; u < conns.size(); u++) {
+            if (!chatsOf.get(u).isEmpty()) scheduleBurst(u);
+        }
+        Thread.sleep(config.warmup().toMillis());
+        long from = System.nanoTime();
+        measureFrom = from;
+        Thread.sleep(config.duration().toMillis());
+        long to = System.nanoTime();
+        measureTo = to;
+        running = false;
+
+        // let replies and events of the last bursts come in
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) Thread.sleep(10);
+        Thread.sleep(1000);
+        return new LoadReport(config, this, (to - from) / 1e9, inFlight.get());
+    }
+
+    // the server's own view of the run, if it lets this user see STATS
+    void printServerStats() {
+        if (conns.isEmpty()) return;
+        try {
+            List<String> lines = conns.get(0).stats().get(5, TimeUnit.SECONDS);
+            System.out.println("Server:");
+            for (String line : lines) System.out.println("  " + line);
+        } catch (ExecutionException e) {
+            System.out.println("Server stats unavailable: " + e.getCause().getMessage());
+        } catch (InterruptedException | TimeoutException e) {
+            System.out.println("Server stats unavailable: " + e);
+        }
+    }
+
+    private void scheduleBurst(int user) {
+        if (!running) return;
+        // exponential think times: bursts of all users together form a Poisson stream
+        long delay = (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * config.think().toNanos());
+        scheduler.schedule(() -> burst(user), delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void burst(int user) {
+        if (!running) return;
+        ClientConnection c = conns.get(user);
+        List<Long> chats = chatsOf.get(user);
+        long chatId = chats.get(ThreadLocalRandom.current().nextInt(chats.size()));
+
+        for (int i = 0; i < config.burst(); i++) {
+            long t = System.nanoTime();
+            inFlight.incrementAndGet();
+            c.sendText(chatId, MARK + t).whenComplete((id, e) -> {
+                inFlight.decrementAndGet();
+                if (!measured(t)) return;
+                if (e != null) {
+                    error("send", e);
+                    return;
+                }
+                ack.record((System.nanoTime() - t) / 1000);
+                sent.increment();
+                expectedDeliveries.add(chatSize.get(chatId));
+            });
+        }
+        if (ThreadLocalRandom.current().nextDouble() < config.historyRatio()) {
+            long t = System.nanoTime();
+            inFlight.incrementAndGet();
+            c.historyPage(chatId, 0, config.historyLimit()).whenComplete((lines, e) -> {
+                inFlight.decrementAndGet();
+                if (!measured(t)) return;
+                if (e != null) {
+                    error("history", e);
+                    return;
+                }
+                history.record((System.nanoTime() - t) / 1000);
+                historyReads.increment();
+            });
+        }
+        scheduleBurst(user);
+    }
+
+    private void onEvent(ChatEvent event) {
+        if (!(event instanceof ChatEvent.NewText e) || !e.text().startsWith(MARK)) return;
+        long now = System.nanoTime();
+        long t = Long.parseLong(e.text().substring(MARK.length()));
+        if (!measured(t)) return;
+        fanout.record((now - t) / 1000);
+        delivered.increment();
+    }
+
+    private boolean measured(long sentAt) {
+        return sentAt >= measureFrom && sentAt < measureTo;
+    }
+
+    private void error(String what, Throwable e) {
+        Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+        String key = what + ": " + cause.getClass().getSimpleName() + " " + cause.getMessage();
+        errors.computeIfAbsent(key, k -> new LongAdder()).increment();
+    }
+
+    private List<Integer> pick(int size) {
+        List<Integer> all = new ArrayList<>(config.users());
+        for (int i = 0; i < config.users(); i++) all.add(i);
+        Collections.shuffle(all, random);
+        return all.subList(0, size);
+    }
+
+    private ClientConnection connect() throws IOException {
+        return new ClientConnection(config.host(), config.port(), callbacks);
+    }
+
+    void close() {
+        for (ClientConnection c : conns) {
+            try {
+                c.close();
+            } catch (IOException ignored) {
+            }
+        }
+        scheduler.shutdownNow();
+        callbacks.shutdownNow();
+    }
+
+    private static void startEmbedded(int port) throws InterruptedException {
+        ChatServer server = new ChatServer(port);
+        Thread t = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.out.println("Embedded server failed: " + e.getMessage());
+            }
+        }, "embedded-server");
+        t.setDaemon(true);
+        t.start();
+        // wait until it accepts connections
+        for (int i = 0; i < 100; i++) {
+            try {
+                new java.net.Socket("127.0.0.1", port).close();
+                return;
+            } catch (ConnectException e) {
+                Thread.sleep(50);
+            } catch (IOException e) {
+                break;
+            }
+        }
+        throw new IllegalStateException("Embedded server did not start on port " + port);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicLong n = new AtomicLong();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
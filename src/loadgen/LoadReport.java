@@ -0,0 +1,137 @@
+package loadgen;
+
+import util.LatencyHistogram;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of one run. {@link #write} stores them as {@code <out>/loadgen-<time>.json} and
+ * appends a line to {@code <out>/runs.csv}, so runs can be compared over time.
+ */
+final class LoadReport {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String CSV_HEADER = "time,users,chats,chatSize,burst,thinkMs,durationSec,"
+            + "sent,sendsPerSec,delivered,deliveriesPerSec,lost,ackP50Us,ackP99Us,"
+            + "fanoutP50Us,fanoutP99Us,fanoutP999Us,historyP99Us,errors";
+
+    private final Instant time = Instant.now();
+    private final LoadConfig config;
+    private final double seconds;
+    private final long unanswered;
+
+    private final LatencyHistogram ack;
+    private final LatencyHistogram fanout;
+    private final LatencyHistogram history;
+    private final long sent;
+    private final long delivered;
+    private final long expected;
+    private final long historyReads;
+    private final Map<String, Long> errors = new TreeMap<>();
+
+    LoadReport(LoadConfig config, LoadGenerator gen, double seconds, long unanswered) {
+        this.config = config;
+        this.seconds = seconds;
+        this.unanswered = unanswered;
+        this.ack = gen.ack;
+        this.fanout = gen.fanout;
+        this.history = gen.history;
+        this.sent = gen.sent.sum();
+        this.delivered = gen.delivered.sum();
+        this.expected = gen.expectedDeliveries.sum();
+        this.historyReads = gen.historyReads.sum();
+        for (Map.Entry<String, LongAdder> e : gen.errors.entrySet()) errors.put(e.getKey(), e.getValue().sum());
+    }
+
+    private long errorCount() {
+        return errors.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    void print() {
+        System.out.printf(Locale.ROOT, "Sent %d messages in %.1f s: %.0f/s, acked p50=%dus p99=%dus%n",
+                sent, seconds, sent / seconds, ack.percentile(0.5), ack.percentile(0.99));
+        System.out.printf(Locale.ROOT, "Delivered %d events (%d lost): %.0f/s, fan-out p50=%dus p99=%dus p99.9=%dus max=%dus%n",
+                delivered, expected - delivered, delivered / seconds,
+                fanout.percentile(0.5), fanout.percentile(0.99), fanout.percentile(0.999), fanout.max());
+        System.out.printf(Locale.ROOT, "History reads %d: p50=%dus p99=%dus%n",
+                historyReads, history.percentile(0.5), history.percentile(0.99));
+        System.out.println("Errors: " + errorCount() + (unanswered > 0 ? ", unanswered: " + unanswered : ""));
+        errors.forEach((k, v) -> System.out.println("  " + v + " x " + k));
+    }
+
+    void write() throws IOException {
+        Path dir = Files.createDirectories(Path.of(config.out()));
+        Path json = dir.resolve("loadgen-" + time.toString().replace(':', '-') + ".json");
+        Files.writeString(json, json());
+
+        Path csv = dir.resolve("runs.csv");
+        String row = String.join(",", time.toString(), str(config.users()), str(config.chats()), config.chatSize(),
+                str(config.burst()), str(config.think().toMillis()), str(config.duration().toSeconds()),
+                str(sent), rate(sent), str(delivered), rate(delivered), str(expected - delivered),
+                str(ack.percentile(0.5)), str(ack.percentile(0.99)),
+                str(fanout.percentile(0.5)), str(fanout.percentile(0.99)), str(fanout.percentile(0.999)),
+                str(history.percentile(0.99)), str(errorCount() + unanswered)) + "\n";
+        if (!Files.exists(csv)) Files.writeString(csv, CSV_HEADER + "\n");
+        Files.writeString(csv, row, StandardOpenOption.APPEND);
+        System.out.println("Results: " + json.toAbsolutePath() + ", " + csv.toAbsolutePath());
+    }
+
+    private String json() {
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"time\": \"").append(time).append("\",\n");
+        sb.append("  \"config\": {\"host\": \"").append(config.host()).append("\", \"port\": ").append(config.port())
+                .append(", \"embedded\": ").append(config.embedded())
+                .append(", \"users\": ").append(config.users()).append(", \"chats\": ").append(config.chats())
+                .append(", \"chatSize\": \"").append(config.chatSize()).append("\", \"burst\": ").append(config.burst())
+                .append(", \"thinkMs\": ").append(config.think().toMillis())
+                .append(", \"historyRatio\": ").append(config.historyRatio())
+                .append(", \"historyLimit\": ").append(config.historyLimit())
+                .append(", \"durationSec\": ").append(config.duration().toSeconds())
+                .append(", \"warmupSec\": ").append(config.warmup().toSeconds()).append("},\n");
+        sb.append("  \"seconds\": ").append(String.format(Locale.ROOT, "%.3f", seconds)).append(",\n");
+        sb.append("  \"sent\": ").append(sent).append(", \"sendsPerSec\": ").append(rate(sent)).append(",\n");
+        sb.append("  \"delivered\": ").append(delivered).append(", \"deliveriesPerSec\": ").append(rate(delivered))
+                .append(", \"expectedDeliveries\": ").append(expected).append(",\n");
+        sb.append("  \"historyReads\": ").append(historyReads).append(",\n");
+        sb.append("  \"ackUs\": ").append(json(ack)).append(",\n");
+        sb.append("  \"fanoutUs\": ").append(json(fanout)).append(",\n");
+        sb.append("  \"historyUs\": ").append(json(history)).append(",\n");
+        sb.append("  \"unanswered\": ").append(unanswered).append(",\n");
+        sb.append("  \"errors\": {");
+        String sep = "";
+        for (Map.Entry<String, Long> e : errors.entrySet()) {
+            sb.append(sep).append('"').append(escape(e.getKey())).append("\": ").append(e.getValue());
+            sep = ", ";
+        }
+        return sb.append("}\n}\n").toString();
+    }
+
+    private static String json(LatencyHistogram h) {
+        StringBuilder sb = new StringBuilder("{\"count\": ").append(h.count())
+                .append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", h.mean()));
+        for (double q : QUANTILES) {
+            sb.append(", \"p").append(String.valueOf(q * 100).replace(".0", "").replace('.', '_'))
+                    .append("\": ").append(h.percentile(q));
+        }
+        return sb.append(", \"max\": ").append(h.max()).append('}').toString();
+    }
+
+    private String rate(long n) {
+        return String.format(Locale.ROOT, "%.1f", n / seconds);
+    }
+
+    private static String str(long n) {
+        return Long.toString(n);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,52 @@
+package loadgen;
+
+import java.util.Random;
+
+/**
+ * How many members a generated chat gets:
+ * {@code fixed:<n>}, {@code uniform:<min>-<max>} or {@code zipf:<s>:<min>-<max>}, where
+ * zipf makes small chats common and large ones rare (size min+k has weight 1/(k+1)^s).
+ */
+interface SizeDistribution {
+    int sample(Random random);
+
+    static SizeDistribution parse(String spec) {
+        String[] p = spec.split(":");
+        switch (p[0]) {
+            case "fixed" -> {
+                int n = Integer.parseInt(p[1]);
+                return r -> n;
+            }
+            case "uniform" -> {
+                int[] range = range(p[1]);
+                return r -> range[0] + r.nextInt(range[1] - range[0] + 1);
+            }
+            case "zipf" -> {
+                double s = Double.parseDouble(p[1]);
+                int[] range = range(p[2]);
+                double[] cumulative = new double[range[1] - range[0] + 1];
+                double total = 0;
+                for (int k = 0; k < cumulative.length; k++) {
+                    total += 1 / Math.pow(k + 1, s);
+                    cumulative[k] = total;
+                }
+                double sum = total;
+                return r -> {
+                    double x = r.nextDouble() * sum;
+                    int k = 0;
+                    while (cumulative[k] < x) k++;
+                    return range[0] + k;
+                };
+            }
+            default -> throw new IllegalArgumentException("Unknown chat size distribution: " + spec);
+        }
+    }
+
+    private static int[] range(String s) {
+        String[] p = s.split("-");
+        int min = Integer.parseInt(p[0]);
+        int max = Integer.parseInt(p[1]);
+        if (min < 1 || max < min) throw new IllegalArgumentException("Bad size range: " + s);
+        return new int[] {min, max};
+    }
+}
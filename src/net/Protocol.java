@@ -6,6 +6,7 @@ public final class Protocol {
     public static final String REGISTER = "REGISTER";
     public static final String LOGIN = "LOGIN";
     public static final String USERS = "USERS";
+    public static final String FIND_USERS = "FIND_USERS";
     public static final String CREATE_CHAT = "CREATE_CHAT";
     public static final String CHATS = "CHATS";
     public static final String SEND_TEXT = "SEND_TEXT";
@@ -13,12 +14,35 @@ public final class Protocol {
     public static final String SEND_MEDIA_LINK = "SEND_MEDIA_LINK";
     public static final String SEND_FILE_LINK  = "SEND_FILE_LINK";
     public static final String HISTORY = "HISTORY";
+    public static final String RETENTION = "RETENTION";
+    // counters and latencies of the server; -Dmessenger.adminUsers=<ids> limits it to those users
+    public static final String STATS = "STATS";
     public static final String HELP = "HELP";
+    // makes a read-only follower take writes, once its primary is gone for good; admins only, as STATS
+    public static final String PROMOTE = "PROMOTE";
+    public static final String HISTORY_AFTER = "after=";
+    public static final String HISTORY_LIMIT = "limit=";
+    // prefixes every history line with "<messageId> ", so a client can resume after it
+    public static final String HISTORY_IDS = "ids";
+    // optional token of HISTORY and CHATS: on a follower, fail rather than answer from
+    // data more than <ms> behind the primary
+    public static final String MAX_LAG = "maxLag=";
+    public static final String RETENTION_DAYS = "days=";
+    public static final String RETENTION_MAX = "max=";
+    // optional "cid=<n>" token after chatId in SEND_* commands makes a retry idempotent
+    public static final String CLIENT_MSG_ID = "cid=";
+
     public static final String EXIT = "EXIT";
 
     public static final String OK = "OK";
     public static final String ERROR = "ERROR";
 
     public static final String EVENT = "EVENT";
+    // events carry "seq=<n>" right after their type; RESUME <n> replays the ones after n
+    public static final String RESUME = "RESUME";
+    public static final String RESUMED = "RESUMED";
+    public static final String RESYNC = "RESYNC";
+    // "EVENT INBOX chatId=.. chatTitle=.. count=.. lastMessageId=..": messages missed while offline
+    public static final String INBOX = "INBOX";
     public static final String NEW_MESSAGE = "NEW_MESSAGE";
 }
@@ -0,0 +1,218 @@
+package replication;
+
+import client.ClientConnection;
+import client.MessageId;
+import util.PeerAuth;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Rehearses a failover on localhost and checks each step:
+ *
+ *   java -cp <classes> replication.FailoverDrill [port=5250] [replicationPort=7250] [messages=1000] [burst=200] [-D... for both servers]
+ *
+ * A primary (clients on port) and a follower (port+1) run as ServerMain processes with
+ * data dirs under a temp dir. Messages are sent to the primary until the follower has
+ * them all, then a burst is sent and the primary is killed (SIGKILL) right after the last
+ * one is acknowledged. An admin user, registered on the primary before the follower starts,
+ * promotes the follower. The follower must refuse reads with a staleness bound, keep every
+ * message from before the burst, take writes once promoted and still have everything
+ * after a restart as a primary. Burst messages are shipped asynchronously, so the
+ * promoted follower may not have all of them; how many it lost is reported.
+ */
+public class FailoverDrill {
+    private final List<String> jvmArgs = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+    private int failures;
+
+    public static void main(String[] args) throws Exception {
+        int port = 5250;
+        int replicationPort = 7250;
+        int messages = 1000;
+        int burst = 200;
+        List<String> jvmArgs = new ArrayList<>();
+        for (String a : args) {
+            if (a.startsWith("port=")) port = Integer.parseInt(a.substring(5));
+            else if (a.startsWith("replicationPort=")) replicationPort = Integer.parseInt(a.substring(16));
+            else if (a.startsWith("messages=")) messages = Integer.parseInt(a.substring(9));
+            else if (a.startsWith("burst=")) burst = Integer.parseInt(a.substring(6));
+            else if (a.startsWith("-D")) jvmArgs.add(a);
+            else throw new IllegalArgumentException("Unknown argument: " + a);
+        }
+        int failures = run(port, replicationPort, messages, burst, jvmArgs);
+        System.out.println(failures == 0 ? "PASS" : "FAIL: " + failures + " check(s)");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Runs the drill with servers on port, port+1 and replicationPort, each given jvmArgs.
+     *
+     * @return the number of failed checks
+     */
+    public static int run(int port, int replicationPort, int messages, int burst, List<String> jvmArgs)
+            throws Exception {
+        FailoverDrill drill = new FailoverDrill();
+        drill.jvmArgs.addAll(jvmArgs);
+        drill.jvmArgs.add("-Dmessenger.replicationSecret=" + PeerAuth.nonce());
+        Thread stop = new Thread(() -> drill.processes.forEach(Process::destroy), "drill-stop");
+        Runtime.getRuntime().addShutdownHook(stop);
+        try {
+            drill.drill(port, replicationPort, messages, burst);
+        } finally {
+            for (Process p : drill.processes) p.destroyForcibly().waitFor();
+            Runtime.getRuntime().removeShutdownHook(stop);
+        }
+        return drill.failures;
+    }
+
+    private void drill(int port, int replicationPort, int messages, int burst) throws Exception {
+        Path root = Files.createTempDirectory("failover-drill");
+        Path primaryDir = root.resolve("primary");
+        Path followerDir = root.resolve("follower");
+        System.out.println("Data and server output under " + root);
+
+        Process primary = server(primaryDir, port, "-Dmessenger.replicationPort=" + replicationPort);
+        String admins;
+        try (ClientConnection c = new ClientConnection("localhost", port)) {
+            admins = "-Dmessenger.adminUsers=" + c.register("admin").join();
+        }
+        Process follower = server(followerDir, port + 1, "-Dmessenger.replicaOf=localhost:" + replicationPort, admins);
+        System.out.println("Primary pid " + primary.pid() + ", follower pid " + follower.pid());
+
+        long chatId;
+        long bob;
+        long lastId;
+        int expected;
+        try (ClientConnection writer = new ClientConnection("localhost", port);
+             ClientConnection reader = new ClientConnection("localhost", port + 1);
+             ClientConnection admin = new ClientConnection("localhost", port + 1)) {
+            writer.register("alice").join();
+            bob = writer.register("bob").join();
+            chatId = writer.createChat("drill", List.of(bob)).join();
+            lastId = send(writer, chatId, "before", messages);
+
+            // the follower serves the reads once it has caught up
+            reader.login(bob).join();
+            long start = System.nanoTime();
+            int seen = waitForHistory(reader, chatId, messages, 10_000);
+            check(seen == messages, "follower has all " + messages + " messages after "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms (has " + seen + ")");
+            admin.login(Long.parseLong(admins.substring(admins.indexOf('=') + 1))).join();
+            printReplicationStats("primary", writer);
+            printReplicationStats("follower", admin);
+            String refused = reader.requestOneLine("SEND_TEXT " + chatId + " on the follower");
+            check(refused.startsWith("ERROR Read-only"), "follower refuses writes: " + refused);
+
+            lastId = Math.max(lastId, send(writer, chatId, "burst", burst));
+            int acked = messages + burst;
+            primary.destroyForcibly().waitFor();
+            System.out.println("Killed the primary right after " + acked + " acknowledged messages");
+
+            Thread.sleep(1000);
+            String stale = reader.requestOneLine("HISTORY " + chatId + " maxLag=500");
+            check(stale.startsWith("ERROR Replica is"), "bounded-staleness read refused: " + stale);
+            printReplicationStats("follower", admin);
+
+            String denied = reader.requestOneLine("PROMOTE");
+            check(denied.startsWith("ERROR"), "only an admin may promote: " + denied);
+            String promoted = admin.requestOneLine("PROMOTE");
+            check(promoted.startsWith("OK PROMOTED"), "follower promoted: " + promoted);
+
+            int kept = reader.historyPage(chatId, 0, Integer.MAX_VALUE).join().size();
+            check(kept >= messages, "promoted follower kept " + kept + " of " + acked
+                    + " acknowledged messages (" + (acked - kept) + " of the burst lost to asynchronous shipping)");
+
+            MessageId after = reader.sendText(chatId, "after promotion").join();
+            check(after.id() > lastId, "promoted follower takes writes: messageId=" + after.id()
+                    + ", last before the failover " + lastId);
+            long carol = reader.register("carol").join();
+            check(carol > after.id(), "new ids continue after the replicated ones: userId=" + carol);
+            expected = kept + 1;
+        }
+
+        // the promoted server must come back as a primary with everything it had
+        follower.destroy();
+        follower.waitFor();
+        Process restarted = server(followerDir, port + 1, admins);
+        try (ClientConnection c = new ClientConnection("localhost", port + 1)) {
+            c.login(bob).join();
+            int seen = c.historyPage(chatId, 0, Integer.MAX_VALUE).join().size();
+            check(seen == expected, "restarted promoted server has " + seen + " of " + expected + " messages");
+            MessageId next = c.sendText(chatId, "after restart").join();
+            check(next.id() > lastId, "restarted server takes writes: messageId=" + next.id());
+        }
+        restarted.destroy();
+        restarted.waitFor();
+    }
+
+    private Process server(Path dataDir, int port, String... props) throws Exception {
+        Files.createDirectories(dataDir);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> cmd = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                "-Dmessenger.port=" + port, "-Dmessenger.dataDir=" + dataDir, "-Dmessenger.statsIntervalSec=0"));
+        cmd.addAll(List.of(props));
+        cmd.addAll(jvmArgs);
+        cmd.add("server.ServerMain");
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dataDir.resolve("server.out").toFile()))
+                .start();
+        processes.add(p);
+        waitForPort(port);
+        return p;
+    }
+
+    // sends n messages pipelined; returns the highest id acknowledged
+    private static long send(ClientConnection c, long chatId, String text, int n) {
+        List<CompletableFuture<MessageId>> sent = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) sent.add(c.sendText(chatId, text + " " + i));
+        long last = 0;
+        for (CompletableFuture<MessageId> f : sent) last = Math.max(last, f.join().id());
+        return last;
+    }
+
+    private static int waitForHistory(ClientConnection c, long chatId, int count, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int seen = -1;
+        while (System.currentTimeMillis() < deadline) {
+            seen = c.historyPage(chatId, 0, Integer.MAX_VALUE)
+                    .handle((lines, e) -> (e == null) ? lines.size() : -1).join();
+            if (seen >= count) return seen;
+            Thread.sleep(50);
+        }
+        return seen;
+    }
+
+    private static void printReplicationStats(String server, ClientConnection c) {
+        for (String line : c.stats().join()) {
+            if (line.startsWith("replication")) System.out.println("        " + server + ": " + line);
+        }
+    }
+
+    private void check(boolean ok, String what) {
+        System.out.println((ok ? "  ok    " : "  FAIL  ") + what);
+        if (!ok) failures++;
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (ConnectException e) {
+                Thread.sleep(50);
+            } catch (IOException e) {
+                break;
+            }
+        }
+        throw new IllegalStateException("No server on port " + port);
+    }
+}
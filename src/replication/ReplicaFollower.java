@@ -0,0 +1,226 @@
+package replication;
+
+import repository.log.Replicable;
+import util.IdGenerator;
+import util.PeerAuth;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tails a primary's logs through its {@link ReplicationSource} and applies the records, in
+ * order, to the local log repositories, which write them to their own logs as well. A
+ * lost connection is retried every second; each new connection starts with a bootstrap
+ * copy of the primary's state, once the follower has answered the primary's challenge
+ * with the shared replication secret. The copy replaces the local state and logs (see
+ * {@link Replicable#bootstrap}), so reconnecting neither keeps what the primary deleted
+ * meanwhile nor grows the local log.
+ *
+ * Staleness is measured with the primary's heartbeats: the last one applied here was sent
+ * after every record before it, so the local state is at least as new as the primary was
+ * at that heartbeat's time. Both ends are meant to share a host, and so a clock.
+ *
+ * {@link #close()} is the first step of promoting this server: nothing is applied after it.
+ */
+public final class ReplicaFollower implements Closeable {
+    private static final long RETRY_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final List<Replicable> logs;
+    private final PeerAuth auth;
+    private final Thread thread;
+    private final LongAdder applied = new LongAdder();
+
+    private volatile boolean closed;
+    private volatile Socket socket;
+    // whether the current connection finished its bootstrap copy
+    private volatile boolean synced;
+    private volatile long appliedLsn;
+    // the primary's clock at the last heartbeat applied; 0 before the first
+    private volatile long freshAtMillis;
+    private volatile long connects;
+
+    private ReplicaFollower(String host, int port, PeerAuth auth, List<Replicable> logs) {
+        this.host = host;
+        this.port = port;
+        this.auth = auth;
+        this.logs = logs;
+        this.thread = new Thread(this::run, "replica-follower");
+        this.thread.setDaemon(true);
+    }
+
+    /** @param logs the same logs, in the same order, as the primary's ReplicationSource ships */
+    public static ReplicaFollower start(String primary, PeerAuth auth, List<Replicable> logs) {
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Expected <host>:<port>: " + primary);
+        ReplicaFollower follower = new ReplicaFollower(primary.substring(0, colon),
+                Integer.parseInt(primary.substring(colon + 1)), auth, logs);
+        follower.thread.start();
+        return follower;
+    }
+
+    public String primary() {
+        return host + ":" + port;
+    }
+
+    /** How old the local state may be, in ms; Long.MAX_VALUE until it has caught up once. */
+    public long stalenessMs() {
+        long fresh = freshAtMillis;
+        return (fresh == 0) ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - fresh);
+    }
+
+    public long appliedLsn() {
+        return appliedLsn;
+    }
+
+    public String statsLine() {
+        long staleness = stalenessMs();
+        return "replication role=replica of=" + primary() + " connected=" + synced
+                + " appliedLsn=" + appliedLsn + " applied=" + applied.sum()
+                + " stalenessMs=" + (staleness == Long.MAX_VALUE ? -1 : staleness) + " connects=" + connects;
+    }
+
+    private void run() {
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(host, port), 1000);
+                s.setTcpNoDelay(true);
+                socket = s;
+                connects++;
+                follow(s);
+            } catch (EOFException e) {
+                if (!closed) System.out.println("[REPL] primary " + primary() + " closed the connection");
+            } catch (IOException e) {
+                if (!closed) System.out.println("[REPL] primary " + primary() + " unavailable: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // a record that cannot be applied; the next bootstrap copy starts over
+                if (!closed) System.out.println("[REPL] applying from " + primary() + " failed: " + e);
+            } finally {
+                synced = false;
+                socket = null;
+            }
+            if (closed) return;
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket s) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        if (in.readByte() != ReplicationProtocol.CHALLENGE) throw new IOException("No challenge from the primary");
+        out.writeByte(ReplicationProtocol.ANSWER);
+        out.writeUTF(auth.answer(in.readUTF(), ReplicationProtocol.CLAIM));
+        out.flush();
+        // the latest write of each log; the others were queued before it
+        CompletableFuture<?>[] written = new CompletableFuture<?>[logs.size()];
+        long start = System.nanoTime();
+        // the copy of a log being received, until the next one starts or SYNCED
+        Replicable.Bootstrap copy = null;
+        // the local state is about to be replaced, so how fresh it was no longer holds
+        freshAtMillis = 0;
+        try {
+            while (!closed) {
+                byte type = in.readByte();
+                long lsn = in.readLong();
+                switch (type) {
+                    case ReplicationProtocol.BOOTSTRAP -> {
+                        int log = in.readByte();
+                        Replicable.Bootstrap previous = copy;
+                        copy = null;
+                        install(previous);
+                        copy = logs.get(log).bootstrap();
+                    }
+                    case ReplicationProtocol.RECORD -> {
+                        int log = in.readByte();
+                        byte[] record = new byte[in.readInt()];
+                        in.readFully(record);
+                        if (closed) return;
+                        if (lsn == 0) {
+                            if (copy == null) throw new IOException("Bootstrap record outside a copy");
+                            copy.add(record);
+                        } else {
+                            written[log] = logs.get(log).applyReplicated(record);
+                            appliedLsn = lsn;
+                        }
+                        applied.increment();
+                    }
+                    case ReplicationProtocol.SYNCED -> {
+                        Replicable.Bootstrap last = copy;
+                        copy = null;
+                        install(last);
+                        appliedLsn = lsn;
+                        synced = true;
+                        System.out.println("[REPL] following " + primary() + ": caught up to lsn " + lsn + " in "
+                                + (System.nanoTime() - start) / 1_000_000 + " ms");
+                    }
+                    case ReplicationProtocol.HEARTBEAT -> {
+                        long millis = in.readLong();
+                        // acknowledged once durable here, which is what a promotion would keep
+                        for (CompletableFuture<?> w : written) {
+                            if (w != null) w.join();
+                        }
+                        if (synced) freshAtMillis = millis;
+                        out.writeByte(ReplicationProtocol.ACK);
+                        out.writeLong(lsn);
+                        out.writeLong(millis);
+                        out.flush();
+                    }
+                    default -> throw new IOException("Unexpected frame: " + type);
+                }
+            }
+        } finally {
+            if (copy != null) copy.close();
+        }
+    }
+
+    // nothing is installed once promotion has started
+    private void install(Replicable.Bootstrap copy) throws IOException {
+        if (copy == null) return;
+        try {
+            if (!closed) copy.install();
+        } finally {
+            copy.close();
+        }
+    }
+
+    /**
+     * Stops following (see {@link #close()}) and reserves the next idMargin ids in every
+     * log: the primary may have acknowledged ids whose records never got here, and this
+     * server must not hand them out again. The margin should exceed the ids the primary
+     * hands out within the replication lag.
+     *
+     * @return the lowest id this server hands out from now on
+     */
+    public long promote(long idMargin) {
+        close();
+        long nextId = IdGenerator.peek() + idMargin;
+        for (Replicable log : logs) log.reserveIds(nextId);
+        return nextId;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
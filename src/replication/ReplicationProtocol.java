@@ -0,0 +1,32 @@
+package replication;
+
+/**
+ * Frames of the replication link, written with DataOutputStream. The primary only writes
+ * to it, apart from the follower's answer to the challenge and its acknowledgements.
+ */
+final class ReplicationProtocol {
+    private ReplicationProtocol() {}
+
+    // 'C' <utf nonce>: the primary's first frame; nothing else is sent before a valid answer
+    static final byte CHALLENGE = 'C';
+    // 'U' <utf answer>, follower to primary: PeerAuth.answer(nonce, CLAIM) with the replication
+    // secret; the primary closes the connection if it does not match
+    static final byte ANSWER = 'U';
+    static final String CLAIM = "replica";
+    static final int ANSWER_TIMEOUT_MS = 5000;
+
+    // 'B' <lsn> <log>: the bootstrap copy of log (an index into the shipped logs) follows, as
+    // records with lsn 0; it replaces the follower's state of that log. Sent for every log
+    static final byte BOOTSTRAP = 'B';
+    // 'R' <lsn> <log> <length> <record>: a record of log; lsn counts the primary's records
+    // since it started and is 0 for bootstrap records
+    static final byte RECORD = 'R';
+    // 'S' <lsn>: the bootstrap copy is complete and covers every record up to lsn; the
+    // records after lsn follow
+    static final byte SYNCED = 'S';
+    // 'H' <lsn> <millis>: every record up to lsn was sent before this, at millis on the primary's clock
+    static final byte HEARTBEAT = 'H';
+    // 'A' <lsn> <millis>, follower to primary: the heartbeat (lsn, millis) arrived and
+    // everything before it is applied and written to the follower's own log
+    static final byte ACK = 'A';
+}
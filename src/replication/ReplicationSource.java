@@ -0,0 +1,270 @@
+package replication;
+
+import repository.log.Replicable;
+import util.PeerAuth;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Ships the records of the log repositories to followers connecting on a local port
+ * (asynchronous log shipping: a record is sent once it is written here, a send does not
+ * wait for followers).
+ *
+ * A follower that connects gets a bootstrap copy of the current state first, then every
+ * record written since it connected, in log order. A record's change is in memory before
+ * the record is tailed (see {@link Replicable#tail}), so the copy, started after the
+ * follower's starting lsn was taken, covers every record up to that lsn and nothing older
+ * needs sending again. Heartbeats go down the same stream, so one arriving at the follower
+ * means everything before it has arrived as well.
+ *
+ * A follower that falls more than maxQueue records behind is disconnected; it connects
+ * again and bootstraps from scratch.
+ *
+ * The port is bound to one address only, and a connection gets nothing until it has
+ * answered a challenge with the shared replication secret (see {@link PeerAuth}).
+ */
+public final class ReplicationSource implements Closeable {
+    private final List<Replicable> logs;
+    private final PeerAuth auth;
+    private final ServerSocket serverSocket;
+    private final int maxQueue;
+    private final ScheduledExecutorService heartbeats;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+
+    // guarded by this
+    private long lsn;
+
+    private record Frame(byte type, long lsn, int log, byte[] record, long millis) {}
+
+    private ReplicationSource(List<Replicable> logs, PeerAuth auth, ServerSocket serverSocket, int maxQueue,
+                              long heartbeatMs) {
+        this.logs = logs;
+        this.auth = auth;
+        this.serverSocket = serverSocket;
+        this.maxQueue = maxQueue;
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replication-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeats.scheduleAtFixedRate(this::heartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** @param logs shipped in this order in the bootstrap copy; a follower must list the same ones */
+    public static ReplicationSource start(String host, int port, PeerAuth auth, List<Replicable> logs,
+                                          int maxQueue, long heartbeatMs) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(host));
+        ReplicationSource source = new ReplicationSource(logs, auth, serverSocket, maxQueue, heartbeatMs);
+        for (int i = 0; i < logs.size(); i++) {
+            int log = i;
+            logs.get(i).tail(record -> source.written(log, record));
+        }
+        Thread t = new Thread(source::acceptLoop, "replication-accept");
+        t.setDaemon(true);
+        t.start();
+        System.out.println("[REPL] shipping logs to followers on " + host + ":" + port);
+        return source;
+    }
+
+    // on a log's writer thread: must not block or throw
+    private synchronized void written(int log, byte[] record) {
+        Frame f = new Frame(ReplicationProtocol.RECORD, ++lsn, log, record, 0);
+        for (Follower follower : followers) follower.offer(f);
+    }
+
+    private synchronized void heartbeat() {
+        Frame f = new Frame(ReplicationProtocol.HEARTBEAT, lsn, 0, null, System.currentTimeMillis());
+        for (Follower follower : followers) follower.offer(f);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread t = new Thread(() -> admit(socket), "replication-admit-" + socket.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) System.out.println("[REPL] accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // checks the follower's answer before it gets any record
+    private void admit(Socket socket) {
+        try {
+            String challenge = PeerAuth.nonce();
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(ReplicationProtocol.CHALLENGE);
+            out.writeUTF(challenge);
+            out.flush();
+            socket.setSoTimeout(ReplicationProtocol.ANSWER_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (in.readByte() != ReplicationProtocol.ANSWER
+                    || !auth.verify(challenge, ReplicationProtocol.CLAIM, in.readUTF())) {
+                throw new IOException("wrong replication secret");
+            }
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            System.out.println("[REPL] rejected " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        Follower f = new Follower(socket);
+        synchronized (this) {
+            f.startLsn = lsn;
+            followers.add(f);
+        }
+        f.start();
+    }
+
+    /** One line per follower: how far behind it is, in records and in time. */
+    public List<String> statsLines() {
+        long now = System.currentTimeMillis();
+        long current;
+        synchronized (this) {
+            current = lsn;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("replication role=primary lsn=" + current + " followers=" + followers.size());
+        for (Follower f : followers) {
+            long acked = f.ackedLsn;
+            lines.add("replication follower=" + f.remote + " ackedLsn=" + acked
+                    + " lagRecords=" + Math.max(0, current - acked)
+                    + " lagMs=" + (f.ackedMillis == 0 ? -1 : now - f.ackedMillis)
+                    + " queued=" + f.queue.size());
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Replicable log : logs) log.tail(null);
+        heartbeats.shutdownNow();
+        serverSocket.close();
+        for (Follower f : followers) f.close();
+    }
+
+    private final class Follower {
+        final Socket socket;
+        final String remote;
+        final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+        long startLsn;
+        volatile long ackedLsn;
+        volatile long ackedMillis;
+        private volatile boolean closed;
+
+        Follower(Socket socket) {
+            this.socket = socket;
+            this.remote = String.valueOf(socket.getRemoteSocketAddress());
+        }
+
+        void start() {
+            Thread sender = new Thread(this::sendLoop, "replication-send-" + remote);
+            sender.setDaemon(true);
+            sender.start();
+            Thread acks = new Thread(this::ackLoop, "replication-acks-" + remote);
+            acks.setDaemon(true);
+            acks.start();
+        }
+
+        void offer(Frame f) {
+            if (closed) return;
+            if (queue.size() >= maxQueue) {
+                System.out.println("[REPL] follower " + remote + " is more than " + maxQueue
+                        + " records behind, disconnecting it");
+                close();
+                return;
+            }
+            queue.add(f);
+        }
+
+        private void sendLoop() {
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                long start = System.nanoTime();
+                long[] copied = new long[1];
+                for (int i = 0; i < logs.size(); i++) {
+                    int log = i;
+                    out.writeByte(ReplicationProtocol.BOOTSTRAP);
+                    out.writeLong(0);
+                    out.writeByte(log);
+                    logs.get(i).forEachRecord(record -> {
+                        write(out, new Frame(ReplicationProtocol.RECORD, 0, log, record, 0));
+                        copied[0]++;
+                    });
+                }
+                out.writeByte(ReplicationProtocol.SYNCED);
+                out.writeLong(startLsn);
+                out.flush();
+                System.out.println("[REPL] follower " + remote + " bootstrapped: " + copied[0] + " records in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms, tailing from lsn " + startLsn);
+
+                while (!closed) {
+                    Frame f = queue.take();
+                    write(out, f);
+                    if (queue.isEmpty()) out.flush();
+                }
+            } catch (IOException | UncheckedIOException e) {
+                if (!closed) System.out.println("[REPL] follower " + remote + " lost: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private void write(DataOutputStream out, Frame f) {
+            try {
+                out.writeByte(f.type());
+                out.writeLong(f.lsn());
+                if (f.type() == ReplicationProtocol.RECORD) {
+                    out.writeByte(f.log());
+                    out.writeInt(f.record().length);
+                    out.write(f.record());
+                } else {
+                    out.writeLong(f.millis());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void ackLoop() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    byte type = in.readByte();
+                    if (type != ReplicationProtocol.ACK) throw new IOException("Unexpected frame: " + type);
+                    ackedLsn = in.readLong();
+                    ackedMillis = in.readLong();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            followers.remove(this);
+            queue.clear();
+            // wakes the sender if it waits for frames
+            queue.add(new Frame(ReplicationProtocol.HEARTBEAT, 0, 0, null, 0));
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
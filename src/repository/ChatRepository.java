@@ -1,9 +1,14 @@
 package repository;
 
 import domain.Chat;
+import domain.message.Message;
+import exception.ChatNotFoundException;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface ChatRepository {
     void add(Chat chat);
@@ -11,4 +16,85 @@ public interface ChatRepository {
     List<Chat> findAll();
     void update(Chat chat);
     void deleteById(long id);
+
+    default List<Chat> findByParticipant(long userId) {
+        return new ArrayList<>(findAll().stream().filter(c -> c.getParticipantIds().contains(userId)).toList());
+    }
+
+    /** Visits every chat; tiered storage reads cold chats without pulling them into the heap. */
+    default void forEachChat(Consumer<Chat> action) {
+        findAll().forEach(action);
+    }
+
+    /** Visits a chat's messages oldest first, one page at a time, without copying the whole list. */
+    default void forEachMessage(Chat chat, int pageSize, Consumer<? super Message> action) {
+        long afterId = 0;
+        while (true) {
+            List<Message> page = chat.messagesAfter(afterId, pageSize);
+            for (Message m : page) action.accept(m);
+            if (page.size() < pageSize) return;
+            afterId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    // Narrow change notifications so durable implementations can persist a delta
+    // instead of the whole chat. In-memory storage just treats them as update().
+
+    /**
+     * Called while holding the chat's lock, so it must not block on I/O: the returned
+     * future completes once the message is durable and the caller waits on it after
+     * releasing the lock. Messages of one chat therefore reach storage in id order.
+     */
+    default CompletableFuture<Void> appendMessage(Chat chat, Message message) {
+        update(chat);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Bulk form of {@link #appendMessage} for imports: the messages were just appended to
+     * the chat, in id order, under its lock. Durable implementations queue them all and
+     * hand back one future.
+     */
+    default CompletableFuture<Void> appendMessages(Chat chat, List<Message> messages) {
+        CompletableFuture<?>[] stored = new CompletableFuture<?>[messages.size()];
+        for (int i = 0; i < stored.length; i++) stored[i] = appendMessage(chat, messages.get(i));
+        return CompletableFuture.allOf(stored);
+    }
+
+    /**
+     * Records that the chat's messages with id <= throughId were dropped by retention
+     * ({@link Chat#dropThrough}). Same contract as {@link #appendMessage}: called under
+     * the chat's lock, completes once durable.
+     */
+    default CompletableFuture<Void> trimMessages(Chat chat, long throughId) {
+        update(chat);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /** Receipts follow the same contract as {@link #appendMessage}: complete once durable. */
+    default CompletableFuture<Void> updateStatus(Chat chat, Message message) {
+        update(chat);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Records that readerId read the chat's messages with id <= throughId
+     * ({@link Chat#markReadBy}); same contract as {@link #appendMessage}.
+     */
+    default CompletableFuture<Void> recordRead(Chat chat, long readerId, long throughId) {
+        update(chat);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Streams one page of a chat's history: with afterId > 0 the first {@code limit}
+     * messages newer than afterId, otherwise the latest {@code limit} messages.
+     */
+    default void readHistory(long chatId, long afterId, int limit, HistorySink sink) {
+        Chat chat = findById(chatId).orElseThrow(() -> new ChatNotFoundException(chatId));
+        List<Message> page = (afterId > 0) ? chat.messagesAfter(afterId, limit) : chat.latestMessages(limit);
+
+        sink.begin(page.size());
+        for (Message m : page) sink.message(m);
+    }
 }
@@ -0,0 +1,13 @@
+package repository;
+
+import domain.message.MessageView;
+
+/**
+ * Receives one page of history. {@link #begin} is called exactly once with the page size,
+ * then {@link #message} once per message, oldest first. A view may be reused between
+ * calls, so it must not be kept after {@link #message} returns.
+ */
+public interface HistorySink {
+    void begin(int count);
+    void message(MessageView message);
+}
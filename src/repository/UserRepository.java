@@ -9,6 +9,7 @@ public interface UserRepository {
     void add(User user);
     Optional<User> findById(long id);
     List<User> findAll();
+    List<User> findByUsernamePrefix(String prefix, int limit);
     void update(User user);
     void deleteById(long id);
 }
@@ -0,0 +1,155 @@
+package repository.dump;
+
+import domain.Chat;
+import domain.Contact;
+import domain.RetentionPolicy;
+import domain.User;
+import domain.message.Message;
+import domain.message.MessageCodec;
+import repository.ChatRepository;
+import repository.UserRepository;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes users, chats and messages to a dump (see {@link DumpFormat}). Chats are visited
+ * one at a time and their messages read page by page, so memory use does not grow with
+ * the amount of history.
+ */
+public final class ChatExporter {
+    private static final int PAGE = 4096;
+
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private ByteBuffer chunk = ByteBuffer.allocate(DumpFormat.CHUNK_BYTES);
+    private byte[] deflated = new byte[DumpFormat.CHUNK_BYTES];
+    private long baseNanos = MessageCodec.EPOCH_NANOS;
+
+    private long users;
+    private long chats;
+    private long messages;
+    private long bytes;
+
+    private ChatExporter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+    }
+
+    /** Writes everything in both repositories to out; out is flushed but not closed. */
+    public static DumpStats export(UserRepository userRepository, ChatRepository chatRepository,
+                                   OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        ChatExporter exporter = new ChatExporter(out);
+        try {
+            DumpFormat.writeHeader(exporter.out);
+            List<User> all = userRepository.findAll();
+            for (User u : all) exporter.user(u, false);
+            for (User u : all) {
+                if (!u.getContacts().isEmpty()) exporter.user(u, true);
+            }
+            chatRepository.forEachChat(chat -> {
+                exporter.chat(chat);
+                chatRepository.forEachMessage(chat, PAGE, exporter::message);
+            });
+            exporter.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            exporter.deflater.end();
+        }
+        return new DumpStats(exporter.users, exporter.chats, exporter.messages, exporter.bytes,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void user(User u, boolean withContacts) {
+        List<Contact> contacts = withContacts ? u.getContacts() : List.of();
+        int size = 1 + MessageCodec.varLongSize(u.getId()) + MessageCodec.stringSize(u.getUsername())
+                + MessageCodec.varLongSize(contacts.size());
+        for (Contact c : contacts) {
+            size += MessageCodec.varLongSize(c.getId()) + MessageCodec.varLongSize(c.getTargetUser().getId())
+                    + MessageCodec.stringSize(c.getAlias());
+        }
+        ByteBuffer buf = room(size);
+        buf.put(DumpFormat.USER);
+        MessageCodec.putVarLong(buf, u.getId());
+        MessageCodec.putString(buf, u.getUsername());
+        MessageCodec.putVarLong(buf, contacts.size());
+        for (Contact c : contacts) {
+            MessageCodec.putVarLong(buf, c.getId());
+            MessageCodec.putVarLong(buf, c.getTargetUser().getId());
+            MessageCodec.putString(buf, c.getAlias());
+        }
+        if (!withContacts) users++;
+    }
+
+    private void chat(Chat chat) {
+        List<Long> participants = chat.getParticipantIds();
+        RetentionPolicy retention = chat.getRetention();
+        int size = 1 + MessageCodec.varLongSize(chat.getId()) + MessageCodec.stringSize(chat.getTitle())
+                + MessageCodec.varLongSize(participants.size())
+                + MessageCodec.varLongSize(retention.maxAge().toMillis()) + MessageCodec.varLongSize(retention.maxCount());
+        for (long uid : participants) size += MessageCodec.varLongSize(uid);
+        ByteBuffer buf = room(size);
+        buf.put(DumpFormat.CHAT);
+        MessageCodec.putVarLong(buf, chat.getId());
+        MessageCodec.putString(buf, chat.getTitle());
+        MessageCodec.putVarLong(buf, participants.size());
+        for (long uid : participants) MessageCodec.putVarLong(buf, uid);
+        MessageCodec.putVarLong(buf, retention.maxAge().toMillis());
+        MessageCodec.putVarLong(buf, retention.maxCount());
+        chats++;
+    }
+
+    private void message(Message m) {
+        // a new chunk resets the time base, which can widen the time field by up to 10 bytes
+        ByteBuffer buf = room(1 + MessageCodec.encodedLength(m, baseNanos) + 10);
+        buf.put(DumpFormat.MESSAGE);
+        MessageCodec.encode(buf, m, baseNanos);
+        baseNanos = MessageCodec.epochNanos(m.getTimestamp());
+        messages++;
+    }
+
+    /** The chunk buffer with at least size bytes free, starting a new chunk if needed. */
+    private ByteBuffer room(int size) {
+        if (chunk.remaining() < size) {
+            if (chunk.position() > 0) flushChunk();
+            if (chunk.capacity() < size) chunk = ByteBuffer.allocate(size);
+        }
+        return chunk;
+    }
+
+    private void flushChunk() {
+        int rawLength = chunk.position();
+        deflater.reset();
+        deflater.setInput(chunk.array(), 0, rawLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflated.length) deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+        try {
+            out.writeInt(rawLength);
+            out.writeInt(length);
+            out.write(deflated, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bytes += 8 + length;
+        chunk.clear();
+        baseNanos = MessageCodec.EPOCH_NANOS;
+    }
+
+    private void finish() throws IOException {
+        if (chunk.position() > 0) flushChunk();
+        out.writeInt(0);
+        out.flush();
+    }
+}
@@ -0,0 +1,272 @@
+package repository.dump;
+
+import domain.Chat;
+import domain.Contact;
+import domain.RetentionPolicy;
+import domain.User;
+import domain.message.Message;
+import domain.message.MessageCodec;
+import exception.ChatNotFoundException;
+import repository.ChatRepository;
+import repository.UserRepository;
+import util.IdGenerator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Loads a dump written by {@link ChatExporter} into empty repositories.
+ *
+ * Chunks are inflated and decoded on a fork-join pool, then their records are routed by
+ * chatId to partitions the same way log recovery does: a partition applies its records
+ * in stream order, different partitions run concurrently. Messages are appended in
+ * batches through {@link ChatRepository#appendMessages}, and only the batches' futures
+ * are waited on, once, at the end. The reader stops once too many chunks are in flight,
+ * so memory use is bounded by the chunk size, not by the dump.
+ */
+public final class ChatImporter {
+    private static final int BATCH = 1024;
+
+    private record UserRecord(long id, String username, long[] contactIds, long[] targetIds, String[] aliases) {}
+
+    private record ChatRecord(long id, String title, long[] participantIds, RetentionPolicy retention) {}
+
+    private record Decoded(List<UserRecord> users, List<List<Object>> parts) {}
+
+    private final UserRepository users;
+    private final ChatRepository chats;
+    private final int threads;
+
+    public ChatImporter(UserRepository users, ChatRepository chats, int threads) {
+        this.users = users;
+        this.chats = chats;
+        this.threads = threads;
+    }
+
+    public DumpStats importFrom(InputStream input) throws IOException {
+        long start = System.nanoTime();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+        byte version = DumpFormat.readHeader(in);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Partition[] parts = new Partition[threads];
+        CompletableFuture<?>[] tails = new CompletableFuture<?>[threads];
+        for (int p = 0; p < threads; p++) {
+            parts[p] = new Partition();
+            tails[p] = CompletableFuture.completedFuture(null);
+        }
+        Semaphore inFlight = new Semaphore(threads * 2);
+        long[] userCount = new long[1];
+        long[] maxUserId = new long[1];
+        long bytes = 0;
+
+        try {
+            // routing runs one chunk after another, so it owns tails and the user counters
+            CompletableFuture<?> routed = CompletableFuture.completedFuture(null);
+            while (true) {
+                int rawLength = in.readInt();
+                if (rawLength == 0) break;
+                byte[] deflated = new byte[in.readInt()];
+                in.readFully(deflated);
+                bytes += 8 + deflated.length;
+
+                inFlight.acquireUninterruptibly();
+                CompletableFuture<Decoded> decoded =
+                        CompletableFuture.supplyAsync(() -> decode(deflated, rawLength, version, threads), pool);
+                CompletableFuture<Void> applied = routed.thenCombine(decoded, (v, chunk) -> {
+                    for (UserRecord u : chunk.users()) {
+                        if (apply(u)) userCount[0]++;
+                        maxUserId[0] = Math.max(maxUserId[0], u.id());
+                    }
+                    List<CompletableFuture<?>> started = new ArrayList<>();
+                    for (int p = 0; p < threads; p++) {
+                        List<Object> records = chunk.parts().get(p);
+                        if (records.isEmpty()) continue;
+                        Partition partition = parts[p];
+                        tails[p] = tails[p].thenRunAsync(() -> partition.apply(records), pool);
+                        started.add(tails[p]);
+                    }
+                    return started;
+                }).thenCompose(started -> CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0])));
+                // released on failure too, so the reader never waits on a chunk that will not run
+                applied.whenComplete((r, e) -> inFlight.release());
+                routed = applied;
+            }
+
+            routed.join();
+            CompletableFuture.allOf(tails).join();
+            long chatCount = 0;
+            long messageCount = 0;
+            long maxId = maxUserId[0];
+            for (Partition p : parts) {
+                p.awaitStored();
+                chatCount += p.chatsAdded;
+                messageCount += p.messagesAdded;
+                maxId = Math.max(maxId, p.maxId);
+            }
+            IdGenerator.advancePast(maxId);
+            return new DumpStats(userCount[0], chatCount, messageCount, bytes,
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** @return true for a user's first record, false for the one that adds its contacts */
+    private boolean apply(UserRecord r) {
+        User existing = users.findById(r.id()).orElse(null);
+        User user = (existing != null) ? existing : new User(r.id(), r.username());
+        user.setOnline(false);
+        for (int i = 0; i < r.contactIds().length; i++) {
+            long targetId = r.targetIds()[i];
+            User target = users.findById(targetId)
+                    .orElseThrow(() -> new IllegalStateException("Contact target missing from dump: " + targetId));
+            user.addOrUpdateContact(new Contact(r.contactIds()[i], target, r.aliases()[i]));
+        }
+        if (existing == null) {
+            users.add(user);
+            return true;
+        }
+        users.update(user);
+        return false;
+    }
+
+    private static Decoded decode(byte[] deflated, int rawLength, byte version, int partitions) {
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int got = inflater.inflate(raw, n, rawLength - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+            }
+            if (n != rawLength) throw new IllegalStateException("Corrupt dump chunk: " + n + " of " + rawLength + " bytes");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt dump chunk", e);
+        } finally {
+            inflater.end();
+        }
+
+        List<UserRecord> users = new ArrayList<>();
+        List<List<Object>> parts = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) parts.add(new ArrayList<>());
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        long baseNanos = MessageCodec.EPOCH_NANOS;
+        while (in.hasRemaining()) {
+            byte type = in.get();
+            switch (type) {
+                case DumpFormat.USER -> {
+                    long id = MessageCodec.getVarLong(in);
+                    String username = MessageCodec.getString(in);
+                    int n = (int) MessageCodec.getVarLong(in);
+                    long[] contactIds = new long[n];
+                    long[] targetIds = new long[n];
+                    String[] aliases = new String[n];
+                    for (int i = 0; i < n; i++) {
+                        contactIds[i] = MessageCodec.getVarLong(in);
+                        targetIds[i] = MessageCodec.getVarLong(in);
+                        aliases[i] = MessageCodec.getString(in);
+                    }
+                    users.add(new UserRecord(id, username, contactIds, targetIds, aliases));
+                }
+                case DumpFormat.CHAT -> {
+                    long id = MessageCodec.getVarLong(in);
+                    String title = MessageCodec.getString(in);
+                    long[] participantIds = new long[(int) MessageCodec.getVarLong(in)];
+                    for (int i = 0; i < participantIds.length; i++) participantIds[i] = MessageCodec.getVarLong(in);
+                    RetentionPolicy retention = (version >= 2)
+                            ? RetentionPolicy.of(MessageCodec.getVarLong(in), (int) MessageCodec.getVarLong(in))
+                            : RetentionPolicy.NONE;
+                    parts.get(DumpFormat.partition(id, partitions)).add(new ChatRecord(id, title, participantIds, retention));
+                }
+                case DumpFormat.MESSAGE -> {
+                    Message m = MessageCodec.decode(in, baseNanos);
+                    baseNanos = MessageCodec.epochNanos(m.getTimestamp());
+                    parts.get(DumpFormat.partition(m.getChatId(), partitions)).add(m);
+                }
+                default -> throw new IllegalStateException("Unknown dump record type: " + type);
+            }
+        }
+        return new Decoded(users, parts);
+    }
+
+    /** Chats of one partition; only ever applied by one thread at a time. */
+    private final class Partition {
+        private Chat current;
+        private List<Message> batch = new ArrayList<>(BATCH);
+        private final List<CompletableFuture<Void>> stored = new ArrayList<>();
+
+        long chatsAdded;
+        long messagesAdded;
+        long maxId;
+
+        void apply(List<Object> records) {
+            for (Object r : records) {
+                if (r instanceof ChatRecord c) {
+                    flush();
+                    if (chats.findById(c.id()).isPresent()) {
+                        throw new IllegalStateException("Chat already exists: " + c.id());
+                    }
+                    Chat chat = new Chat(c.id(), c.title());
+                    for (long uid : c.participantIds()) chat.addParticipant(uid);
+                    chat.setRetention(c.retention());
+                    chats.add(chat);
+                    current = chat;
+                    chatsAdded++;
+                    maxId = Math.max(maxId, c.id());
+                } else {
+                    Message m = (Message) r;
+                    if (current == null || current.getId() != m.getChatId()) {
+                        flush();
+                        current = chats.findById(m.getChatId())
+                                .orElseThrow(() -> new ChatNotFoundException(m.getChatId()));
+                    }
+                    batch.add(m);
+                    maxId = Math.max(maxId, m.getId());
+                    if (batch.size() == BATCH) flush();
+                }
+            }
+            flush();
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) return;
+            Chat chat = current;
+            synchronized (chat) {
+                chat.appendAll(batch);
+                stored.add(chats.appendMessages(chat, batch));
+            }
+            messagesAdded += batch.size();
+            batch = new ArrayList<>(BATCH);
+
+            // drop finished batches as we go; join() surfaces a failed one right away
+            if (stored.size() >= 64) {
+                stored.removeIf(f -> {
+                    if (!f.isDone()) return false;
+                    f.join();
+                    return true;
+                });
+            }
+        }
+
+        void awaitStored() {
+            CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0])).join();
+        }
+    }
+}
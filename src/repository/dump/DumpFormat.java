@@ -0,0 +1,61 @@
+package repository.dump;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Layout of a dump file:
+ * <pre>
+ *   magic     "MSGD"
+ *   version   byte
+ *   chunk*    int raw length, int deflated length, deflated records
+ *   end       int 0
+ * </pre>
+ * Records:
+ * <pre>
+ *   USER      type, varint id, string username, varint n, n x (varint contact id, varint target id, string alias)
+ *   CHAT      type, varint id, string title, varint n, n x varint participant id,
+ *             varint retention max age in ms, varint retention max count (version 2)
+ *   MESSAGE   type, {@link domain.message.MessageCodec} form
+ * </pre>
+ * Users come first: all of them bare, then again with contacts, so every contact target
+ * exists by the time it is referenced. Each chat is followed by its messages in id order.
+ *
+ * A chunk only holds whole records and message timestamps are deltas against the
+ * previous message of the same chunk, so every chunk can be inflated and decoded on its
+ * own.
+ */
+final class DumpFormat {
+    static final byte[] MAGIC = {'M', 'S', 'G', 'D'};
+    static final byte VERSION = 2;
+
+    static final byte USER = 1;
+    static final byte CHAT = 2;
+    static final byte MESSAGE = 3;
+
+    static final int CHUNK_BYTES = 1024 * 1024;
+
+    private DumpFormat() {}
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /** @return the dump's version */
+    static byte readHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IllegalStateException("Not a chat dump");
+        byte version = in.readByte();
+        if (version < 1 || version > VERSION) throw new IllegalStateException("Unsupported dump version: " + version);
+        return version;
+    }
+
+    /** Same spreading as log recovery, so one chat always lands in one partition. */
+    static int partition(long chatId, int partitions) {
+        return Math.floorMod(Long.hashCode(chatId * 0x9E3779B97F4A7C15L), partitions);
+    }
+}
@@ -0,0 +1,14 @@
+package repository.dump;
+
+/** What an export or import moved; bytes is the compressed size of the dump. */
+public record DumpStats(long users, long chats, long messages, long bytes, long millis) {
+    public double messagesPerSecond() {
+        return messages * 1000.0 / Math.max(1, millis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d users, %d chats, %d messages, %.1f MB in %d ms (%.0f messages/s)",
+                users, chats, messages, bytes / 1e6, millis, messagesPerSecond());
+    }
+}
@@ -0,0 +1,344 @@
+package repository.history;
+
+import domain.message.Message;
+import repository.HistorySink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Segment files of a single chat plus a sparse in-memory index: a (segment, offset, id,
+ * ordinal) sample at the start of every segment and every {@link #INDEX_EVERY} messages,
+ * enough to land within a few records of any position without keeping per-message state
+ * on the heap.
+ *
+ * Retention drops whole segments: their files are deleted and their samples cut off the
+ * front of the index. Messages at or below the trim point that share a segment with newer
+ * ones stay in the file but are skipped by reads; the trim point is kept in a small file
+ * next to the segments.
+ */
+final class ChatHistory {
+    static final int INDEX_EVERY = 32;
+    private static final String TRIMMED = "trimmed";
+
+    private final long chatId;
+    private final Path dir;
+    private final int segmentSize;
+    private final List<HistorySegment> segments = new ArrayList<>();
+    private long nextFile;
+
+    private int[] sampleSegment = new int[16];
+    private int[] sampleOffset = new int[16];
+    private long[] sampleId = new long[16];
+    private int[] sampleOrdinal = new int[16];
+    private int samples;
+    private int count;
+    private long lastId;
+
+    // messages with id <= droppedThrough are gone; they take up ordinals below firstVisible
+    private long droppedThrough;
+    private int firstVisible;
+    private boolean closed;
+    // per reader, the id its last receipt went through; not kept across a reopen
+    private final Map<Long, Long> readThrough = new HashMap<>();
+
+    private ChatHistory(long chatId, Path dir, int segmentSize) {
+        this.chatId = chatId;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    static ChatHistory open(long chatId, Path dir, int segmentSize) throws IOException {
+        ChatHistory h = new ChatHistory(chatId, dir, segmentSize);
+        if (!Files.isDirectory(dir)) return h;
+
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+        for (Path f : files) {
+            String name = f.getFileName().toString();
+            h.nextFile = Long.parseLong(name.substring(0, name.length() - 4)) + 1;
+            HistorySegment seg = HistorySegment.open(f, segmentSize);
+            int segIdx = h.segments.size();
+            h.segments.add(seg);
+            int off = 0;
+            int len;
+            while ((len = seg.recordLength(off)) > 0) {
+                h.indexed(segIdx, off, MappedMessageView.id(seg.buffer, off));
+                off += HistorySegment.LENGTH_BYTES + len;
+            }
+            seg.writePos = off;
+        }
+        Path trimmed = dir.resolve(TRIMMED);
+        if (Files.exists(trimmed)) h.dropThrough(Long.parseLong(Files.readString(trimmed).trim()));
+        return h;
+    }
+
+    synchronized int count() { return count - firstVisible; }
+
+    synchronized long lastId() { return lastId; }
+
+    synchronized void append(Message m) throws IOException {
+        if (m.getId() <= lastId) return; // already stored
+
+        byte[] body = bytes(m.getBody());
+        byte[] url = bytes(m.getUrl());
+        int len = MappedMessageView.encodedLength(body, url);
+        if (HistorySegment.LENGTH_BYTES + len > segmentSize) {
+            throw new IllegalArgumentException("Message too large for history segment: " + len + " bytes");
+        }
+
+        HistorySegment seg = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (seg == null || !seg.fits(len)) seg = newSegment();
+
+        int off = seg.writePos;
+        MappedMessageView.write(seg.buffer, off, m, body, url);
+        seg.writePos = off + HistorySegment.LENGTH_BYTES + len;
+        indexed(segments.size() - 1, off, m.getId());
+    }
+
+    synchronized boolean setStatus(long messageId, Message.Status status) {
+        long pos = locateId(messageId - 1);
+        if (pos < 0) return false;
+        int seg = (int) (pos >>> 32);
+        int off = (int) pos;
+        HistorySegment s = segments.get(seg);
+        if (MappedMessageView.id(s.buffer, off) != messageId) return false;
+        MappedMessageView.setStatus(s.buffer, off, status);
+        return true;
+    }
+
+    synchronized void markReadBy(long readerId, long throughId) {
+        // what the reader's earlier receipts covered is READ already, so only the rest is scanned
+        long from = Math.max(readThrough.getOrDefault(readerId, 0L), droppedThrough);
+        if (throughId <= from) return;
+        readThrough.put(readerId, throughId);
+        int ordinal = Math.max(ordinalAfter(from), firstVisible);
+        if (ordinal >= count) return;
+        long pos = locateOrdinal(ordinal);
+        int seg = (int) (pos >>> 32);
+        int off = (int) pos;
+        for (; ordinal < count; ordinal++) {
+            HistorySegment s = segments.get(seg);
+            if (MappedMessageView.id(s.buffer, off) > throughId) return;
+            if (MappedMessageView.senderId(s.buffer, off) != readerId
+                    && MappedMessageView.status(s.buffer, off) != Message.Status.READ) {
+                MappedMessageView.setStatus(s.buffer, off, Message.Status.READ);
+            }
+            off += HistorySegment.LENGTH_BYTES + s.recordLength(off);
+            if (off >= s.writePos) {
+                seg++;
+                off = 0;
+            }
+        }
+    }
+
+    /**
+     * Copies one page out of the mapping, with the same paging rules as
+     * {@link repository.ChatRepository#readHistory}. The copy is handed to the sink after
+     * the lock is released, so a slow reader does not hold up appends to the chat.
+     */
+    synchronized Page page(long afterId, int limit) {
+        int from = (afterId > 0) ? ordinalAfter(afterId) : count - limit;
+        from = Math.max(from, firstVisible);
+        int n = (int) Math.min(count - from, (long) limit);
+        if (n <= 0) return new Page(chatId, 0, ByteBuffer.allocate(0));
+
+        long start = locateOrdinal(from);
+        int bytes = 0;
+        int seg = (int) (start >>> 32);
+        int off = (int) start;
+        for (int i = 0; i < n; i++) {
+            HistorySegment s = segments.get(seg);
+            int len = HistorySegment.LENGTH_BYTES + s.recordLength(off);
+            bytes += len;
+            off += len;
+            if (off >= s.writePos) {
+                seg++;
+                off = 0;
+            }
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(bytes);
+        seg = (int) (start >>> 32);
+        off = (int) start;
+        for (int i = 0; i < n; i++) {
+            HistorySegment s = segments.get(seg);
+            int len = HistorySegment.LENGTH_BYTES + s.recordLength(off);
+            copy.put(copy.position(), s.buffer, off, len);
+            copy.position(copy.position() + len);
+            off += len;
+            if (off >= s.writePos) {
+                seg++;
+                off = 0;
+            }
+        }
+        return new Page(chatId, n, copy.flip());
+    }
+
+    /** Records of one page, laid out as in a segment. */
+    record Page(long chatId, int count, ByteBuffer records) {
+        void writeTo(HistorySink sink) {
+            sink.begin(count);
+            MappedMessageView view = new MappedMessageView(chatId);
+            int off = 0;
+            for (int i = 0; i < count; i++) {
+                sink.message(view.at(records, off));
+                off += HistorySegment.LENGTH_BYTES + records.getInt(off);
+            }
+        }
+    }
+
+    /**
+     * Hides every message with id <= throughId and deletes the segments that hold nothing
+     * newer. The index is shifted, not rebuilt, so this costs O(samples), not O(messages).
+     */
+    synchronized void dropThrough(long throughId) throws IOException {
+        if (throughId <= droppedThrough) return;
+        droppedThrough = throughId;
+        if (Files.isDirectory(dir)) {
+            Path tmp = dir.resolve(TRIMMED + ".tmp");
+            Files.writeString(tmp, Long.toString(throughId));
+            Files.move(tmp, dir.resolve(TRIMMED), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // a segment can go once the next one starts at or below the trim point; the
+        // segment being written to always stays
+        int drop = 0;
+        int keep = 0;
+        for (int k = 0; k < samples; k++) {
+            if (sampleOffset[k] != 0 || sampleSegment[k] == 0) continue;
+            if (sampleId[k] > throughId) break;
+            drop = sampleSegment[k];
+            keep = k;
+        }
+        if (drop > 0) {
+            for (HistorySegment s : segments.subList(0, drop)) Files.deleteIfExists(s.file);
+            segments.subList(0, drop).clear();
+
+            int removed = sampleOrdinal[keep];
+            int n = samples - keep;
+            System.arraycopy(sampleSegment, keep, sampleSegment, 0, n);
+            System.arraycopy(sampleOffset, keep, sampleOffset, 0, n);
+            System.arraycopy(sampleId, keep, sampleId, 0, n);
+            System.arraycopy(sampleOrdinal, keep, sampleOrdinal, 0, n);
+            for (int i = 0; i < n; i++) {
+                sampleSegment[i] -= drop;
+                sampleOrdinal[i] -= removed;
+            }
+            samples = n;
+            count -= removed;
+        }
+        firstVisible = ordinalAfter(throughId);
+    }
+
+    synchronized void flush() {
+        for (HistorySegment s : segments) s.flush();
+    }
+
+    /** Flushes and lets go of the mappings; the store opens a new instance for later use. */
+    synchronized void close() {
+        flush();
+        closed = true;
+        segments.clear();
+    }
+
+    synchronized boolean isClosed() { return closed; }
+
+    private HistorySegment newSegment() throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve(String.format("%08d.seg", nextFile++));
+        HistorySegment seg = HistorySegment.open(file, segmentSize);
+        segments.add(seg);
+        return seg;
+    }
+
+    private void indexed(int seg, int off, long id) {
+        if (off == 0 || samples == 0 || count - sampleOrdinal[samples - 1] >= INDEX_EVERY) {
+            int k = samples++;
+            if (k == sampleId.length) {
+                sampleSegment = Arrays.copyOf(sampleSegment, k * 2);
+                sampleOffset = Arrays.copyOf(sampleOffset, k * 2);
+                sampleId = Arrays.copyOf(sampleId, k * 2);
+                sampleOrdinal = Arrays.copyOf(sampleOrdinal, k * 2);
+            }
+            sampleSegment[k] = seg;
+            sampleOffset[k] = off;
+            sampleId[k] = id;
+            sampleOrdinal[k] = count;
+        }
+        count++;
+        lastId = id;
+    }
+
+    // position packed as (segment << 32 | offset)
+    private long locateOrdinal(int ordinal) {
+        int lo = 0;
+        int hi = samples;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sampleOrdinal[mid] <= ordinal) lo = mid + 1;
+            else hi = mid;
+        }
+        int k = lo - 1;
+        int seg = sampleSegment[k];
+        int off = sampleOffset[k];
+        for (int i = sampleOrdinal[k]; i < ordinal; i++) {
+            HistorySegment s = segments.get(seg);
+            off += HistorySegment.LENGTH_BYTES + s.recordLength(off);
+            if (off >= s.writePos) {
+                seg++;
+                off = 0;
+            }
+        }
+        return ((long) seg << 32) | off;
+    }
+
+    // ordinal of the first message with id > afterId
+    private int ordinalAfter(long afterId) {
+        int lo = 0;
+        int hi = samples;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sampleId[mid] <= afterId) lo = mid + 1;
+            else hi = mid;
+        }
+        if (lo == 0) return 0;
+
+        int ordinal = sampleOrdinal[lo - 1];
+        int seg = sampleSegment[lo - 1];
+        int off = sampleOffset[lo - 1];
+        while (ordinal < count) {
+            HistorySegment s = segments.get(seg);
+            if (MappedMessageView.id(s.buffer, off) > afterId) break;
+            ordinal++;
+            off += HistorySegment.LENGTH_BYTES + s.recordLength(off);
+            if (off >= s.writePos) {
+                seg++;
+                off = 0;
+            }
+        }
+        return ordinal;
+    }
+
+    // position of the first message with id > afterId, or -1
+    private long locateId(long afterId) {
+        int ordinal = ordinalAfter(afterId);
+        return (ordinal < count) ? locateOrdinal(ordinal) : -1;
+    }
+
+    private static byte[] bytes(String s) {
+        return (s == null) ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+}
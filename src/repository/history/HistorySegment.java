@@ -0,0 +1,51 @@
+package repository.history;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One fixed-size, memory-mapped history file. Records are [int length][body] laid out
+ * back to back; the unused tail of the file is zero, so a zero length marks the end.
+ *
+ * The file is closed as soon as it is mapped; the mapping stays valid on its own and is
+ * released when the segment is garbage collected.
+ */
+final class HistorySegment {
+    static final int LENGTH_BYTES = 4;
+
+    final Path file;
+    final MappedByteBuffer buffer;
+    int writePos;
+
+    private HistorySegment(Path file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    static HistorySegment open(Path file, int size) throws IOException {
+        try (FileChannel ch = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new HistorySegment(file, ch.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    int recordLength(int offset) {
+        if (offset + LENGTH_BYTES > buffer.capacity()) return 0;
+        return buffer.getInt(offset);
+    }
+
+    boolean fits(int bodyLength) {
+        return writePos + LENGTH_BYTES + bodyLength <= buffer.capacity();
+    }
+
+    void flush() {
+        buffer.force();
+    }
+}
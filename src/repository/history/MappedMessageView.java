@@ -0,0 +1,122 @@
+package repository.history;
+
+import domain.message.Message;
+import domain.message.MessageCodec;
+import domain.message.MessageKind;
+import domain.message.MessageView;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Flyweight {@link MessageView} over a record inside a mapped segment. Fields are
+ * decoded straight from the mapping on access; nothing is copied to the heap up front.
+ *
+ * Record body: [long id][long senderId][long epochSecond][int nano][byte status]
+ * [byte kind][int len][utf8 body][int len][utf8 url]
+ *
+ * kind is the fixed code from {@link MessageCodec#kindCode}, not the enum ordinal.
+ */
+final class MappedMessageView implements MessageView {
+    static final int ID = 0;
+    static final int SENDER = 8;
+    static final int SECONDS = 16;
+    static final int NANOS = 24;
+    static final int STATUS = 28;
+    static final int KIND = 29;
+    static final int BODY = 30;
+
+    private static final Message.Status[] STATUSES = Message.Status.values();
+
+    private final long chatId;
+    private ByteBuffer buf;
+    private int base;
+
+    MappedMessageView(long chatId) {
+        this.chatId = chatId;
+    }
+
+    MappedMessageView at(ByteBuffer buf, int recordOffset) {
+        this.buf = buf;
+        this.base = recordOffset + HistorySegment.LENGTH_BYTES;
+        return this;
+    }
+
+    static int encodedLength(byte[] body, byte[] url) {
+        return BODY + 4 + body.length + 4 + url.length;
+    }
+
+    static void write(ByteBuffer buf, int recordOffset, Message m, byte[] body, byte[] url) {
+        int p = recordOffset + HistorySegment.LENGTH_BYTES;
+        buf.putLong(p + ID, m.getId());
+        buf.putLong(p + SENDER, m.getSenderId());
+        buf.putLong(p + SECONDS, m.getTimestamp().getEpochSecond());
+        buf.putInt(p + NANOS, m.getTimestamp().getNano());
+        buf.put(p + STATUS, (byte) m.getStatus().ordinal());
+        buf.put(p + KIND, (byte) MessageCodec.kindCode(m.getKind()));
+        p += BODY;
+        buf.putInt(p, body.length);
+        buf.put(p + 4, body);
+        p += 4 + body.length;
+        buf.putInt(p, url.length);
+        buf.put(p + 4, url);
+        // length goes in last: a reader never sees a half-written record as complete
+        buf.putInt(recordOffset, encodedLength(body, url));
+    }
+
+    static long id(ByteBuffer buf, int recordOffset) {
+        return buf.getLong(recordOffset + HistorySegment.LENGTH_BYTES + ID);
+    }
+
+    static long senderId(ByteBuffer buf, int recordOffset) {
+        return buf.getLong(recordOffset + HistorySegment.LENGTH_BYTES + SENDER);
+    }
+
+    static void setStatus(ByteBuffer buf, int recordOffset, Message.Status status) {
+        buf.put(recordOffset + HistorySegment.LENGTH_BYTES + STATUS, (byte) status.ordinal());
+    }
+
+    static Message.Status status(ByteBuffer buf, int recordOffset) {
+        return STATUSES[buf.get(recordOffset + HistorySegment.LENGTH_BYTES + STATUS)];
+    }
+
+    @Override
+    public long getId() { return buf.getLong(base + ID); }
+
+    @Override
+    public long getChatId() { return chatId; }
+
+    @Override
+    public long getSenderId() { return buf.getLong(base + SENDER); }
+
+    @Override
+    public Instant getTimestamp() {
+        return Instant.ofEpochSecond(buf.getLong(base + SECONDS), buf.getInt(base + NANOS));
+    }
+
+    @Override
+    public Message.Status getStatus() { return STATUSES[buf.get(base + STATUS)]; }
+
+    @Override
+    public MessageKind getKind() { return MessageCodec.kindOf(buf.get(base + KIND)); }
+
+    @Override
+    public String getBody() {
+        return string(base + BODY);
+    }
+
+    @Override
+    public String getUrl() {
+        int p = base + BODY;
+        p += 4 + buf.getInt(p);
+        return (getKind() == MessageKind.TEXT || getKind() == MessageKind.IMAGE) ? null : string(p);
+    }
+
+    private String string(int p) {
+        int len = buf.getInt(p);
+        byte[] bytes = new byte[len];
+        buf.get(p + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
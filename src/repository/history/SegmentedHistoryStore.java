@@ -0,0 +1,164 @@
+package repository.history;
+
+import domain.message.Message;
+import repository.HistorySink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Per-chat message history kept in fixed-size memory-mapped segment files under
+ * {@code <root>/<chatId>/}. Pages are read straight out of the mapping, so serving
+ * HISTORY does not build Message objects or copy the chat's message list.
+ *
+ * A chat's files are opened (and its sparse index rebuilt) on first access. At most
+ * maxOpen chats stay open; the least recently used one is flushed and closed to make room
+ * and is opened again when it is next needed.
+ */
+public class SegmentedHistoryStore implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    public static final int DEFAULT_MAX_OPEN = 1024;
+
+    private final Path root;
+    private final int segmentSize;
+    private final int maxOpen;
+    // access-ordered, guarded by itself; a history is closed under this lock when it
+    // leaves the map, so no two instances of one chat are ever in use
+    private final LinkedHashMap<Long, ChatHistory> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    public SegmentedHistoryStore(Path root) throws IOException {
+        this(root, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_OPEN);
+    }
+
+    public SegmentedHistoryStore(Path root, int segmentSize, int maxOpen) throws IOException {
+        if (maxOpen < 1) throw new IllegalArgumentException("maxOpen must be positive: " + maxOpen);
+        this.root = Files.createDirectories(root);
+        this.segmentSize = segmentSize;
+        this.maxOpen = maxOpen;
+    }
+
+    public void append(Message m) {
+        withHistory(m.getChatId(), h -> {
+            try {
+                h.append(m);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+    }
+
+    public int count(long chatId) {
+        return withHistory(chatId, ChatHistory::count);
+    }
+
+    public long lastId(long chatId) {
+        return withHistory(chatId, ChatHistory::lastId);
+    }
+
+    public void updateStatus(long chatId, long messageId, Message.Status status) {
+        withHistory(chatId, h -> h.setStatus(messageId, status));
+    }
+
+    public void markReadBy(long chatId, long readerId, long throughId) {
+        withHistory(chatId, h -> {
+            h.markReadBy(readerId, throughId);
+            return null;
+        });
+    }
+
+    /** Drops the chat's messages with id <= throughId; whole segments are deleted. */
+    public void trim(long chatId, long throughId) {
+        withHistory(chatId, h -> {
+            try {
+                h.dropThrough(throughId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+    }
+
+    public void read(long chatId, long afterId, int limit, HistorySink sink) {
+        withHistory(chatId, h -> h.page(afterId, limit)).writeTo(sink);
+    }
+
+    public int openChats() {
+        synchronized (open) {
+            return open.size();
+        }
+    }
+
+    public void delete(long chatId) {
+        try {
+            synchronized (open) {
+                ChatHistory h = open.remove(chatId);
+                if (h != null) h.close();
+            }
+            Path dir = root.resolve(Long.toString(chatId));
+            if (!Files.exists(dir)) return;
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void flush() {
+        List<ChatHistory> histories;
+        synchronized (open) {
+            histories = new ArrayList<>(open.values());
+        }
+        for (ChatHistory h : histories) h.flush();
+    }
+
+    // runs op on the chat's open history, holding its lock; one closed by eviction in
+    // between is looked up again
+    private <T> T withHistory(long chatId, Function<ChatHistory, T> op) {
+        while (true) {
+            ChatHistory h = history(chatId);
+            synchronized (h) {
+                if (!h.isClosed()) return op.apply(h);
+            }
+        }
+    }
+
+    private ChatHistory history(long chatId) {
+        synchronized (open) {
+            ChatHistory h = open.get(chatId);
+            if (h != null) return h;
+            try {
+                h = ChatHistory.open(chatId, root.resolve(Long.toString(chatId)), segmentSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            open.put(chatId, h);
+            Iterator<ChatHistory> eldest = open.values().iterator();
+            while (open.size() > maxOpen) {
+                eldest.next().close();
+                eldest.remove();
+            }
+            return h;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (open) {
+            for (ChatHistory h : open.values()) h.close();
+            open.clear();
+        }
+    }
+}
@@ -1,16 +1,27 @@
 package repository.inmemory;
 
 import domain.Chat;
+import domain.message.Message;
 import repository.ChatRepository;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 public class InMemoryChatRepository implements ChatRepository {
-    private final Map<Long, Chat> store = new HashMap<>();
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final Map<Long, Chat> store = new ConcurrentHashMap<>();
+
+    // participant index: userId -> ids of the chats they are in, oldest chat first.
+    // Participants are only ever added, which happens through add() or update().
+    private final Map<Long, Set<Long>> chatsByUser = new ConcurrentHashMap<>();
 
     @Override
     public void add(Chat chat) {
         store.put(chat.getId(), chat);
+        indexParticipants(chat);
     }
 
     @Override
@@ -23,13 +34,71 @@ public class InMemoryChatRepository implements ChatRepository {
         return new ArrayList<>(store.values());
     }
 
+    @Override
+    public List<Chat> findByParticipant(long userId) {
+        Set<Long> ids = chatsByUser.get(userId);
+        if (ids == null) return new ArrayList<>();
+        List<Chat> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Chat chat = store.get(id);
+            if (chat != null) result.add(chat);
+        }
+        return result;
+    }
+
     @Override
     public void update(Chat chat) {
         store.put(chat.getId(), chat);
+        indexParticipants(chat);
+    }
+
+    // The chat object already holds the change, so the deltas need no work here.
+
+    @Override
+    public CompletableFuture<Void> appendMessage(Chat chat, Message message) {
+        return DONE;
+    }
+
+    @Override
+    public CompletableFuture<Void> appendMessages(Chat chat, List<Message> messages) {
+        return DONE;
+    }
+
+    @Override
+    public CompletableFuture<Void> trimMessages(Chat chat, long throughId) {
+        return DONE;
+    }
+
+    @Override
+    public CompletableFuture<Void> updateStatus(Chat chat, Message message) {
+        return DONE;
+    }
+
+    @Override
+    public CompletableFuture<Void> recordRead(Chat chat, long readerId, long throughId) {
+        return DONE;
     }
 
     @Override
     public void deleteById(long id) {
-        store.remove(id);
+        Chat chat = store.remove(id);
+        if (chat == null) return;
+        for (long uid : chat.getParticipantIds()) {
+            chatsByUser.computeIfPresent(uid, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    private void indexParticipants(Chat chat) {
+        for (long uid : chat.getParticipantIds()) {
+            // compute keeps this atomic with deleteById dropping an emptied set
+            chatsByUser.compute(uid, (k, ids) -> {
+                if (ids == null) ids = new ConcurrentSkipListSet<>();
+                ids.add(chat.getId());
+                return ids;
+            });
+        }
     }
 }
@@ -8,28 +8,77 @@ import java.util.*;
 public class InMemoryUserRepository implements UserRepository {
     private final Map<Long, User> store = new HashMap<>();
 
+    // username index: lower-cased name -> ids, sorted so a prefix is one range scan
+    private final NavigableMap<String, Set<Long>> byName = new TreeMap<>();
+    private final Map<Long, String> indexedName = new HashMap<>();
+
     @Override
-    public void add(User user) {
+    public synchronized void add(User user) {
         store.put(user.getId(), user);
+        reindex(user);
     }
 
     @Override
-    public Optional<User> findById(long id) {
+    public synchronized Optional<User> findById(long id) {
         return Optional.ofNullable(store.get(id));
     }
 
     @Override
-    public List<User> findAll() {
+    public synchronized List<User> findAll() {
         return new ArrayList<>(store.values());
     }
 
     @Override
-    public void update(User user) {
+    public synchronized List<User> findByUsernamePrefix(String prefix, int limit) {
+        List<User> result = new ArrayList<>();
+        if (limit <= 0) return result;
+
+        String from = key(prefix);
+        SortedMap<String, Set<Long>> range = from.isEmpty()
+                ? byName
+                : byName.subMap(from, from + Character.MAX_VALUE);
+
+        for (Set<Long> ids : range.values()) {
+            for (Long id : ids) {
+                result.add(store.get(id));
+                if (result.size() >= limit) return result;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void update(User user) {
         store.put(user.getId(), user);
+        reindex(user);
     }
 
     @Override
-    public void deleteById(long id) {
+    public synchronized void deleteById(long id) {
         store.remove(id);
+        unindex(id);
+    }
+
+    private void reindex(User user) {
+        String name = key(user.getUsername());
+        String old = indexedName.get(user.getId());
+        if (name.equals(old)) return;
+
+        unindex(user.getId());
+        byName.computeIfAbsent(name, k -> new TreeSet<>()).add(user.getId());
+        indexedName.put(user.getId(), name);
+    }
+
+    private void unindex(long id) {
+        String old = indexedName.remove(id);
+        if (old == null) return;
+        Set<Long> ids = byName.get(old);
+        if (ids == null) return;
+        ids.remove(id);
+        if (ids.isEmpty()) byName.remove(old);
+    }
+
+    private static String key(String username) {
+        return (username == null) ? "" : username.trim().toLowerCase(Locale.ROOT);
     }
 }
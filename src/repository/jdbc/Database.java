@@ -0,0 +1,251 @@
+package repository.jdbc;
+
+import exception.StorageException;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One JDBC connection shared by the JDBC repositories, meant for an embedded database
+ * file (H2 or SQLite). Every statement is prepared once and reused, and all access is
+ * serialized on this object.
+ *
+ * Message inserts and receipt updates go through {@link #submit}: a writer thread takes
+ * whatever has queued up, runs consecutive statements of the same kind as one JDBC
+ * batch and commits the lot once, so concurrent senders share a commit. If the batch
+ * fails, its writes are retried one transaction each, so only the bad ones fail.
+ */
+public class Database implements Closeable {
+    private static final int MAX_BATCH = 1000;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS users ("
+                    + "id BIGINT PRIMARY KEY, username VARCHAR(255) NOT NULL, username_key VARCHAR(255) NOT NULL)",
+            "CREATE INDEX IF NOT EXISTS users_by_name ON users (username_key)",
+            "CREATE TABLE IF NOT EXISTS contacts ("
+                    + "owner_id BIGINT NOT NULL, target_id BIGINT NOT NULL, id BIGINT NOT NULL, alias VARCHAR(255), "
+                    + "position INT NOT NULL, PRIMARY KEY (owner_id, target_id))",
+            "CREATE TABLE IF NOT EXISTS chats (id BIGINT PRIMARY KEY, title VARCHAR(255))",
+            "CREATE TABLE IF NOT EXISTS chat_participants ("
+                    + "chat_id BIGINT NOT NULL, user_id BIGINT NOT NULL, position INT NOT NULL, "
+                    + "PRIMARY KEY (chat_id, user_id))",
+            "CREATE INDEX IF NOT EXISTS participants_by_user ON chat_participants (user_id)",
+            // only chats with a retention policy have a row
+            "CREATE TABLE IF NOT EXISTS chat_retention ("
+                    + "chat_id BIGINT PRIMARY KEY, max_age_ms BIGINT NOT NULL, max_count INT NOT NULL)",
+            // (chat_id, id) is both the key and the order of history pages
+            "CREATE TABLE IF NOT EXISTS messages ("
+                    + "chat_id BIGINT NOT NULL, id BIGINT NOT NULL, sender_id BIGINT NOT NULL, "
+                    + "ts_seconds BIGINT NOT NULL, ts_nanos INT NOT NULL, status SMALLINT NOT NULL, "
+                    + "kind SMALLINT NOT NULL, body VARCHAR(65535), url VARCHAR(4096), "
+                    + "PRIMARY KEY (chat_id, id))",
+    };
+
+    interface Work<T> {
+        T run(Database db) throws SQLException;
+    }
+
+    interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    private record Op(String sql, Binder binder, CompletableFuture<Void> done) {}
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    private final BlockingQueue<Op> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public Database(String url) {
+        try {
+            this.connection = DriverManager.getConnection(url);
+            connection.setAutoCommit(false);
+            try (Statement st = connection.createStatement()) {
+                for (String ddl : SCHEMA) st.execute(ddl);
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new StorageException("Cannot open database " + url, e);
+        }
+
+        this.writer = new Thread(this::writerLoop, "jdbc-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Runs work in its own transaction, committed on success and rolled back on failure. */
+    synchronized <T> T transaction(Work<T> work) {
+        try {
+            T result = work.run(this);
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            rollback();
+            throw new StorageException("Database operation failed", e);
+        } catch (RuntimeException e) {
+            rollback();
+            throw e;
+        }
+    }
+
+    /** The cached prepared statement for sql; only valid while holding this object's lock. */
+    PreparedStatement statement(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    int update(String sql, Binder binder) throws SQLException {
+        PreparedStatement ps = statement(sql);
+        binder.bind(ps);
+        return ps.executeUpdate();
+    }
+
+    long queryLong(String sql, Binder binder) throws SQLException {
+        PreparedStatement ps = statement(sql);
+        binder.bind(ps);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    List<Long> queryIds(String sql, Binder binder) throws SQLException {
+        PreparedStatement ps = statement(sql);
+        binder.bind(ps);
+        List<Long> ids = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) ids.add(rs.getLong(1));
+        }
+        return ids;
+    }
+
+    /**
+     * Queues a write for the next batch. Does not block; the future completes once the
+     * batch holding it is committed. Writes are applied in submission order.
+     */
+    CompletableFuture<Void> submit(String sql, Binder binder) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (closed) {
+            done.completeExceptionally(new IllegalStateException("Database is closed"));
+            return done;
+        }
+        queue.add(new Op(sql, binder, done));
+        return done;
+    }
+
+    private void writerLoop() {
+        List<Op> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                // the close marker has no sql; writes that raced in next to it still go out
+                if (batch.removeIf(op -> op.sql == null)) stopping = true;
+                if (!batch.isEmpty()) write(batch);
+                batch.clear();
+                if (stopping && queue.isEmpty()) return;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void write(List<Op> batch) {
+        try {
+            // consecutive runs of one statement become one JDBC batch; runs keep their
+            // order, so a receipt never overtakes the insert of its message
+            int i = 0;
+            while (i < batch.size()) {
+                String sql = batch.get(i).sql;
+                PreparedStatement ps = statement(sql);
+                int j = i;
+                while (j < batch.size() && batch.get(j).sql.equals(sql)) {
+                    batch.get(j).binder.bind(ps);
+                    ps.addBatch();
+                    j++;
+                }
+                ps.executeBatch();
+                i = j;
+            }
+            connection.commit();
+            for (Op op : batch) op.done.complete(null);
+        } catch (SQLException | RuntimeException e) {
+            rollback();
+            clearBatches();
+            if (batch.size() == 1) {
+                batch.get(0).done.completeExceptionally(new StorageException("Database write failed", e));
+                return;
+            }
+            // one bad write (e.g. a replayed insert) must not fail the others it was batched with
+            for (Op op : batch) writeOne(op);
+        }
+    }
+
+    private void writeOne(Op op) {
+        try {
+            update(op.sql, op.binder);
+            connection.commit();
+            op.done.complete(null);
+        } catch (SQLException | RuntimeException e) {
+            rollback();
+            op.done.completeExceptionally(new StorageException("Database write failed", e));
+        }
+    }
+
+    private void clearBatches() {
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.clearBatch();
+            } catch (SQLException e) {
+                System.out.println("[JDBC] clearing a batch failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            System.out.println("[JDBC] rollback failed: " + e.getMessage());
+        }
+    }
+
+    /** Writes everything still queued, then closes the connection. */
+    @Override
+    public void close() {
+        closed = true;
+        queue.add(new Op(null, null, null));
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                for (PreparedStatement ps : statements.values()) ps.close();
+                connection.close();
+            } catch (SQLException e) {
+                throw new StorageException("Cannot close database", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package repository.jdbc;
+
+import domain.Chat;
+import domain.RetentionPolicy;
+import domain.message.*;
+import exception.ChatNotFoundException;
+import repository.ChatRepository;
+import repository.HistorySink;
+import util.IdGenerator;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Chats in the {@code chats}, {@code chat_participants} and {@code messages} tables.
+ *
+ * {@link #findById} reads the chat row and participants only; messages are fetched by
+ * HISTORY pages (keyset queries on (chat_id, id)) or when the whole list is needed, see
+ * {@link LazyChat}. A chat that is still referenced somewhere is returned as the same
+ * object, so senders keep synchronizing on one instance.
+ *
+ * Message inserts and receipts are queued on the {@link Database} writer and committed
+ * in JDBC batches; their futures complete on commit.
+ */
+public class JdbcChatRepository implements ChatRepository {
+    private static final String SELECT_CHAT = "SELECT title FROM chats WHERE id = ?";
+    private static final String SELECT_PARTICIPANTS =
+            "SELECT user_id FROM chat_participants WHERE chat_id = ? ORDER BY position";
+    private static final String SELECT_ALL_IDS = "SELECT id FROM chats ORDER BY id";
+    private static final String SELECT_BY_PARTICIPANT =
+            "SELECT chat_id FROM chat_participants WHERE user_id = ? ORDER BY chat_id";
+    private static final String INSERT_CHAT = "INSERT INTO chats (id, title) VALUES (?, ?)";
+    private static final String UPDATE_CHAT = "UPDATE chats SET title = ? WHERE id = ?";
+    private static final String DELETE_CHAT = "DELETE FROM chats WHERE id = ?";
+    private static final String INSERT_PARTICIPANT =
+            "INSERT INTO chat_participants (chat_id, user_id, position) VALUES (?, ?, ?)";
+    private static final String DELETE_PARTICIPANTS = "DELETE FROM chat_participants WHERE chat_id = ?";
+    private static final String SELECT_RETENTION = "SELECT max_age_ms, max_count FROM chat_retention WHERE chat_id = ?";
+    private static final String INSERT_RETENTION =
+            "INSERT INTO chat_retention (chat_id, max_age_ms, max_count) VALUES (?, ?, ?)";
+    private static final String DELETE_RETENTION = "DELETE FROM chat_retention WHERE chat_id = ?";
+
+    private static final String MESSAGE_COLUMNS = "id, sender_id, ts_seconds, ts_nanos, status, kind, body, url";
+    private static final String INSERT_MESSAGE = "INSERT INTO messages (chat_id, " + MESSAGE_COLUMNS
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_MESSAGES =
+            "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE chat_id = ? ORDER BY id";
+    private static final String SELECT_MESSAGE =
+            "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE chat_id = ? AND id = ?";
+    private static final String SELECT_PAGE_AFTER =
+            "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE chat_id = ? AND id > ? ORDER BY id LIMIT ?";
+    private static final String SELECT_PAGE_LATEST =
+            "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE chat_id = ? ORDER BY id DESC LIMIT ?";
+    // receipts only ever move forward
+    private static final String UPDATE_STATUS =
+            "UPDATE messages SET status = ? WHERE chat_id = ? AND id = ? AND status < ?";
+    private static final String MARK_READ =
+            "UPDATE messages SET status = ? WHERE chat_id = ? AND sender_id <> ? AND status < ? AND id <= ?";
+    private static final String DELETE_MESSAGES = "DELETE FROM messages WHERE chat_id = ?";
+    private static final String TRIM_MESSAGES = "DELETE FROM messages WHERE chat_id = ? AND id <= ?";
+    private static final String SELECT_COUNT_CUTOFF =
+            "SELECT id FROM messages WHERE chat_id = ? ORDER BY id DESC LIMIT 1 OFFSET ?";
+    private static final String SELECT_AGE_CUTOFF = "SELECT MAX(id) FROM messages WHERE chat_id = ? "
+            + "AND (ts_seconds < ? OR (ts_seconds = ? AND ts_nanos < ?))";
+
+    private static final int KIND_TEXT = 1;
+    private static final int KIND_IMAGE = 2;
+    private static final int KIND_VOICE = 3;
+    private static final int KIND_MEDIA = 4;
+    private static final int KIND_FILE = 5;
+
+    private final Database db;
+
+    // guarded by db
+    private final Map<Long, ChatRef> live = new HashMap<>();
+    private final ReferenceQueue<Chat> cleared = new ReferenceQueue<>();
+
+    private static final class ChatRef extends WeakReference<Chat> {
+        final long id;
+
+        ChatRef(Chat chat, ReferenceQueue<Chat> queue) {
+            super(chat, queue);
+            this.id = chat.getId();
+        }
+    }
+
+    public JdbcChatRepository(Database db) {
+        this.db = db;
+        long maxId = db.transaction(d -> Math.max(
+                d.queryLong("SELECT MAX(id) FROM chats", ps -> {}),
+                d.queryLong("SELECT MAX(id) FROM messages", ps -> {})));
+        IdGenerator.advancePast(maxId);
+    }
+
+    @Override
+    public void add(Chat chat) {
+        db.transaction(d -> {
+            d.update(INSERT_CHAT, ps -> {
+                ps.setLong(1, chat.getId());
+                ps.setString(2, chat.getTitle());
+            });
+            writeParticipants(d, chat);
+            writeRetention(d, chat);
+            remember(chat);
+            return null;
+        });
+    }
+
+    @Override
+    public Optional<Chat> findById(long id) {
+        return Optional.ofNullable(db.transaction(d -> load(d, id)));
+    }
+
+    @Override
+    public List<Chat> findAll() {
+        return db.transaction(d -> loadAll(d, d.queryIds(SELECT_ALL_IDS, ps -> {})));
+    }
+
+    @Override
+    public List<Chat> findByParticipant(long userId) {
+        return db.transaction(d -> loadAll(d, d.queryIds(SELECT_BY_PARTICIPANT, ps -> ps.setLong(1, userId))));
+    }
+
+    @Override
+    public void forEachChat(Consumer<Chat> action) {
+        // one chat at a time, so visited chats can be collected behind us
+        for (long id : db.transaction(d -> d.queryIds(SELECT_ALL_IDS, ps -> {}))) {
+            Chat chat = db.transaction(d -> load(d, id));
+            if (chat != null) action.accept(chat);
+        }
+    }
+
+    @Override
+    public void forEachMessage(Chat chat, int pageSize, Consumer<? super Message> action) {
+        long afterId = 0;
+        while (true) {
+            long from = afterId;
+            List<Message> page = db.transaction(d -> query(d, SELECT_PAGE_AFTER, chat.getId(), ps -> {
+                ps.setLong(1, chat.getId());
+                ps.setLong(2, from);
+                ps.setInt(3, pageSize);
+            }));
+            for (Message m : page) action.accept(m);
+            if (page.size() < pageSize) return;
+            afterId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    @Override
+    public void update(Chat chat) {
+        db.transaction(d -> {
+            d.update(UPDATE_CHAT, ps -> {
+                ps.setString(1, chat.getTitle());
+                ps.setLong(2, chat.getId());
+            });
+            d.update(DELETE_PARTICIPANTS, ps -> ps.setLong(1, chat.getId()));
+            writeParticipants(d, chat);
+            d.update(DELETE_RETENTION, ps -> ps.setLong(1, chat.getId()));
+            writeRetention(d, chat);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteById(long id) {
+        db.transaction(d -> {
+            d.update(DELETE_MESSAGES, ps -> ps.setLong(1, id));
+            d.update(DELETE_PARTICIPANTS, ps -> ps.setLong(1, id));
+            d.update(DELETE_RETENTION, ps -> ps.setLong(1, id));
+            d.update(DELETE_CHAT, ps -> ps.setLong(1, id));
+            live.remove(id);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> appendMessage(Chat chat, Message m) {
+        CompletableFuture<Void> stored = db.submit(INSERT_MESSAGE, ps -> {
+            ps.setLong(1, m.getChatId());
+            ps.setLong(2, m.getId());
+            ps.setLong(3, m.getSenderId());
+            ps.setLong(4, m.getTimestamp().getEpochSecond());
+            ps.setInt(5, m.getTimestamp().getNano());
+            ps.setInt(6, m.getStatus().ordinal());
+            ps.setInt(7, kindCode(m.getKind()));
+            ps.setString(8, m.getBody());
+            ps.setString(9, m.getUrl());
+        });
+        if (chat instanceof LazyChat lazy) lazy.stored(m, stored);
+        return stored;
+    }
+
+    @Override
+    public CompletableFuture<Void> trimMessages(Chat chat, long throughId) {
+        return db.submit(TRIM_MESSAGES, ps -> {
+            ps.setLong(1, chat.getId());
+            ps.setLong(2, throughId);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> updateStatus(Chat chat, Message m) {
+        int status = m.getStatus().ordinal();
+        return db.submit(UPDATE_STATUS, ps -> {
+            ps.setInt(1, status);
+            ps.setLong(2, chat.getId());
+            ps.setLong(3, m.getId());
+            ps.setInt(4, status);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> recordRead(Chat chat, long readerId, long throughId) {
+        int read = Message.Status.READ.ordinal();
+        return db.submit(MARK_READ, ps -> {
+            ps.setInt(1, read);
+            ps.setLong(2, chat.getId());
+            ps.setLong(3, readerId);
+            ps.setInt(4, read);
+            ps.setLong(5, throughId);
+        });
+    }
+
+    @Override
+    public void readHistory(long chatId, long afterId, int limit, HistorySink sink) {
+        List<Message> page = db.transaction(d -> {
+            if (load(d, chatId) == null) throw new ChatNotFoundException(chatId);
+            if (afterId > 0) {
+                return query(d, SELECT_PAGE_AFTER, chatId, ps -> {
+                    ps.setLong(1, chatId);
+                    ps.setLong(2, afterId);
+                    ps.setInt(3, limit);
+                });
+            }
+            List<Message> latest = query(d, SELECT_PAGE_LATEST, chatId, ps -> {
+                ps.setLong(1, chatId);
+                ps.setInt(2, limit);
+            });
+            Collections.reverse(latest);
+            return latest;
+        });
+
+        sink.begin(page.size());
+        for (Message m : page) sink.message(m);
+    }
+
+    List<Message> loadMessages(long chatId) {
+        return db.transaction(d -> query(d, SELECT_MESSAGES, chatId, ps -> ps.setLong(1, chatId)));
+    }
+
+    /** {@link Chat#expiredThrough} for a chat whose messages are only in the table. */
+    long expiredThrough(long chatId, RetentionPolicy policy, Instant now) {
+        return db.transaction(d -> {
+            long through = 0;
+            if (policy.maxCount() > 0) {
+                through = d.queryLong(SELECT_COUNT_CUTOFF, ps -> {
+                    ps.setLong(1, chatId);
+                    ps.setInt(2, policy.maxCount());
+                });
+            }
+            if (!policy.maxAge().isZero()) {
+                Instant cutoff = now.minus(policy.maxAge());
+                through = Math.max(through, d.queryLong(SELECT_AGE_CUTOFF, ps -> {
+                    ps.setLong(1, chatId);
+                    ps.setLong(2, cutoff.getEpochSecond());
+                    ps.setLong(3, cutoff.getEpochSecond());
+                    ps.setInt(4, cutoff.getNano());
+                }));
+            }
+            return through;
+        });
+    }
+
+    Message loadMessage(long chatId, long messageId) {
+        List<Message> found = db.transaction(d -> query(d, SELECT_MESSAGE, chatId, ps -> {
+            ps.setLong(1, chatId);
+            ps.setLong(2, messageId);
+        }));
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private Chat load(Database d, long id) throws SQLException {
+        expunge();
+        ChatRef ref = live.get(id);
+        Chat chat = (ref == null) ? null : ref.get();
+        if (chat != null) return chat;
+
+        PreparedStatement ps = d.statement(SELECT_CHAT);
+        ps.setLong(1, id);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) return null;
+            chat = new LazyChat(id, rs.getString(1), this);
+        }
+        for (long uid : d.queryIds(SELECT_PARTICIPANTS, p -> p.setLong(1, id))) chat.addParticipant(uid);
+        ps = d.statement(SELECT_RETENTION);
+        ps.setLong(1, id);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (rs.next()) chat.setRetention(RetentionPolicy.of(rs.getLong(1), rs.getInt(2)));
+        }
+        remember(chat);
+        return chat;
+    }
+
+    private List<Chat> loadAll(Database d, List<Long> ids) throws SQLException {
+        List<Chat> result = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            Chat chat = load(d, id);
+            if (chat != null) result.add(chat);
+        }
+        return result;
+    }
+
+    private void remember(Chat chat) {
+        live.put(chat.getId(), new ChatRef(chat, cleared));
+    }
+
+    private void expunge() {
+        for (Reference<? extends Chat> r; (r = cleared.poll()) != null; ) {
+            ChatRef ref = (ChatRef) r;
+            live.remove(ref.id, ref);
+        }
+    }
+
+    private static void writeParticipants(Database d, Chat chat) throws SQLException {
+        List<Long> ids = chat.getParticipantIds();
+        if (ids.isEmpty()) return;
+        PreparedStatement ps = d.statement(INSERT_PARTICIPANT);
+        for (int i = 0; i < ids.size(); i++) {
+            ps.setLong(1, chat.getId());
+            ps.setLong(2, ids.get(i));
+            ps.setInt(3, i);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    private static void writeRetention(Database d, Chat chat) throws SQLException {
+        RetentionPolicy policy = chat.getRetention();
+        if (policy.isNone()) return;
+        d.update(INSERT_RETENTION, ps -> {
+            ps.setLong(1, chat.getId());
+            ps.setLong(2, policy.maxAge().toMillis());
+            ps.setInt(3, policy.maxCount());
+        });
+    }
+
+    private static List<Message> query(Database d, String sql, long chatId, Database.Binder binder)
+            throws SQLException {
+        PreparedStatement ps = d.statement(sql);
+        binder.bind(ps);
+        List<Message> result = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) result.add(message(rs, chatId));
+        }
+        return result;
+    }
+
+    private static Message message(ResultSet rs, long chatId) throws SQLException {
+        long id = rs.getLong(1);
+        long senderId = rs.getLong(2);
+        Instant ts = Instant.ofEpochSecond(rs.getLong(3), rs.getInt(4));
+        Message.Status status = Message.Status.values()[rs.getInt(5)];
+        int kind = rs.getInt(6);
+        String body = rs.getString(7);
+        String url = rs.getString(8);
+
+        Message m = switch (kind) {
+            case KIND_TEXT -> new TextMessage(id, chatId, senderId, ts, body);
+            case KIND_IMAGE -> new ImageMessage(id, chatId, senderId, ts, body);
+            case KIND_VOICE -> new VoiceLinkMessage(id, chatId, senderId, ts, body, url);
+            case KIND_MEDIA -> new MediaLinkMessage(id, chatId, senderId, ts, body, url);
+            case KIND_FILE -> new FileLinkMessage(id, chatId, senderId, ts, body, url);
+            default -> throw new IllegalStateException("Unknown message kind: " + kind);
+        };
+        m.setStatus(status);
+        return m;
+    }
+
+    private static int kindCode(MessageKind kind) {
+        return switch (kind) {
+            case TEXT -> KIND_TEXT;
+            case IMAGE -> KIND_IMAGE;
+            case VOICE -> KIND_VOICE;
+            case MEDIA -> KIND_MEDIA;
+            case FILE -> KIND_FILE;
+        };
+    }
+}
@@ -0,0 +1,163 @@
+package repository.jdbc;
+
+import domain.Contact;
+import domain.User;
+import repository.UserRepository;
+import util.IdGenerator;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Users in the {@code users} and {@code contacts} tables. Loaded users are kept, so
+ * every lookup of an id returns the same object and contacts can point at it; users are
+ * small, it is chats that are worth loading lazily.
+ */
+public class JdbcUserRepository implements UserRepository {
+    private static final String SELECT_USER = "SELECT username FROM users WHERE id = ?";
+    private static final String SELECT_CONTACTS =
+            "SELECT id, target_id, alias FROM contacts WHERE owner_id = ? ORDER BY position";
+    private static final String SELECT_ALL_IDS = "SELECT id FROM users ORDER BY id";
+    private static final String SELECT_BY_PREFIX =
+            "SELECT id FROM users WHERE username_key >= ? AND username_key < ? ORDER BY username_key, id LIMIT ?";
+    private static final String INSERT_USER = "INSERT INTO users (id, username, username_key) VALUES (?, ?, ?)";
+    private static final String UPDATE_USER = "UPDATE users SET username = ?, username_key = ? WHERE id = ?";
+    private static final String DELETE_USER = "DELETE FROM users WHERE id = ?";
+    private static final String DELETE_CONTACTS = "DELETE FROM contacts WHERE owner_id = ?";
+    private static final String DELETE_CONTACTS_TO = "DELETE FROM contacts WHERE target_id = ?";
+    private static final String INSERT_CONTACT =
+            "INSERT INTO contacts (owner_id, target_id, id, alias, position) VALUES (?, ?, ?, ?, ?)";
+
+    private final Database db;
+
+    // guarded by db
+    private final Map<Long, User> loaded = new HashMap<>();
+
+    public JdbcUserRepository(Database db) {
+        this.db = db;
+        long maxId = db.transaction(d -> Math.max(
+                d.queryLong("SELECT MAX(id) FROM users", ps -> {}),
+                d.queryLong("SELECT MAX(id) FROM contacts", ps -> {})));
+        IdGenerator.advancePast(maxId);
+    }
+
+    @Override
+    public void add(User user) {
+        db.transaction(d -> {
+            d.update(INSERT_USER, ps -> {
+                ps.setLong(1, user.getId());
+                ps.setString(2, user.getUsername());
+                ps.setString(3, key(user.getUsername()));
+            });
+            writeContacts(d, user);
+            loaded.put(user.getId(), user);
+            return null;
+        });
+    }
+
+    @Override
+    public Optional<User> findById(long id) {
+        return Optional.ofNullable(db.transaction(d -> load(d, id)));
+    }
+
+    @Override
+    public List<User> findAll() {
+        return db.transaction(d -> loadAll(d, d.queryIds(SELECT_ALL_IDS, ps -> {})));
+    }
+
+    @Override
+    public List<User> findByUsernamePrefix(String prefix, int limit) {
+        if (limit <= 0) return new ArrayList<>();
+        String from = key(prefix);
+        return db.transaction(d -> loadAll(d, d.queryIds(SELECT_BY_PREFIX, ps -> {
+            ps.setString(1, from);
+            ps.setString(2, from + Character.MAX_VALUE);
+            ps.setInt(3, limit);
+        })));
+    }
+
+    @Override
+    public void update(User user) {
+        db.transaction(d -> {
+            d.update(UPDATE_USER, ps -> {
+                ps.setString(1, user.getUsername());
+                ps.setString(2, key(user.getUsername()));
+                ps.setLong(3, user.getId());
+            });
+            d.update(DELETE_CONTACTS, ps -> ps.setLong(1, user.getId()));
+            writeContacts(d, user);
+            loaded.put(user.getId(), user);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteById(long id) {
+        db.transaction(d -> {
+            d.update(DELETE_CONTACTS, ps -> ps.setLong(1, id));
+            d.update(DELETE_CONTACTS_TO, ps -> ps.setLong(1, id));
+            d.update(DELETE_USER, ps -> ps.setLong(1, id));
+            loaded.remove(id);
+            return null;
+        });
+    }
+
+    private void writeContacts(Database d, User user) throws SQLException {
+        List<Contact> contacts = user.getContacts();
+        if (contacts.isEmpty()) return;
+        PreparedStatement ps = d.statement(INSERT_CONTACT);
+        for (int i = 0; i < contacts.size(); i++) {
+            Contact c = contacts.get(i);
+            ps.setLong(1, user.getId());
+            ps.setLong(2, c.getTargetUser().getId());
+            ps.setLong(3, c.getId());
+            ps.setString(4, c.getAlias());
+            ps.setInt(5, i);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    private List<User> loadAll(Database d, List<Long> ids) throws SQLException {
+        List<User> result = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            User u = load(d, id);
+            if (u != null) result.add(u);
+        }
+        return result;
+    }
+
+    private User load(Database d, long id) throws SQLException {
+        User u = loaded.get(id);
+        if (u != null) return u;
+
+        PreparedStatement ps = d.statement(SELECT_USER);
+        ps.setLong(1, id);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) return null;
+            u = new User(id, rs.getString(1));
+        }
+        u.setOnline(false);
+        // registered before its contacts are resolved, so mutual contacts terminate
+        loaded.put(id, u);
+
+        record Row(long id, long targetId, String alias) {}
+        List<Row> rows = new ArrayList<>();
+        ps = d.statement(SELECT_CONTACTS);
+        ps.setLong(1, id);
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) rows.add(new Row(rs.getLong(1), rs.getLong(2), rs.getString(3)));
+        }
+        for (Row r : rows) {
+            User target = load(d, r.targetId());
+            if (target != null) u.addOrUpdateContact(new Contact(r.id(), target, r.alias()));
+        }
+        return u;
+    }
+
+    private static String key(String username) {
+        return (username == null) ? "" : username.toLowerCase(Locale.ROOT);
+    }
+}
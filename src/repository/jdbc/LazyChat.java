@@ -0,0 +1,154 @@
+package repository.jdbc;
+
+import domain.Chat;
+import domain.message.Message;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A chat read from the database without its messages. Sending, receipts and single
+ * message lookups work on the unloaded chat; the full list is only fetched when
+ * something asks for all of it.
+ */
+final class LazyChat extends Chat {
+    private final JdbcChatRepository repository;
+
+    // guarded by this
+    private boolean loaded;
+    // messages appended while unloaded whose insert may not be committed yet
+    private final List<Sent> tail = new ArrayList<>();
+
+    private static final class Sent {
+        final Message message;
+        CompletableFuture<Void> stored;
+
+        Sent(Message message) {
+            this.message = message;
+        }
+    }
+
+    LazyChat(long id, String title, JdbcChatRepository repository) {
+        super(id, title);
+        this.repository = repository;
+    }
+
+    @Override
+    public synchronized List<Message> getMessages() {
+        load();
+        return super.getMessages();
+    }
+
+    @Override
+    public synchronized List<Message> copyMessages() {
+        load();
+        return super.copyMessages();
+    }
+
+    @Override
+    public synchronized int messageCount() {
+        load();
+        return super.messageCount();
+    }
+
+    @Override
+    public synchronized long lastMessageId() {
+        load();
+        return super.lastMessageId();
+    }
+
+    @Override
+    public synchronized List<Message> messagesAfter(long afterId, int limit) {
+        load();
+        return super.messagesAfter(afterId, limit);
+    }
+
+    @Override
+    public synchronized List<Message> latestMessages(int limit) {
+        load();
+        return super.latestMessages(limit);
+    }
+
+    @Override
+    public synchronized void append(Message message) {
+        if (loaded) {
+            super.append(message);
+            return;
+        }
+        // committed messages are in the table now, so the tail only holds in-flight ones
+        tail.removeIf(s -> s.stored != null && s.stored.isDone());
+        tail.add(new Sent(message));
+    }
+
+    @Override
+    public synchronized boolean removeNewest(Message message) {
+        if (loaded) return super.removeNewest(message);
+        if (tail.isEmpty() || tail.get(tail.size() - 1).message != message) return false;
+        tail.remove(tail.size() - 1);
+        return true;
+    }
+
+    /** Called by the repository, under this chat's lock, right after {@link #append}. */
+    synchronized void stored(Message message, CompletableFuture<Void> stored) {
+        if (loaded || tail.isEmpty()) return;
+        Sent last = tail.get(tail.size() - 1);
+        if (last.message == message) last.stored = stored;
+    }
+
+    @Override
+    public synchronized Message findMessage(long messageId) {
+        if (loaded) return super.findMessage(messageId);
+        for (int i = tail.size() - 1; i >= 0; i--) {
+            if (tail.get(i).message.getId() == messageId) return tail.get(i).message;
+        }
+        return repository.loadMessage(getId(), messageId);
+    }
+
+    @Override
+    public synchronized boolean markReadBy(long readerId, long throughId) {
+        if (loaded) return super.markReadBy(readerId, throughId);
+        for (Sent s : tail) {
+            Message m = s.message;
+            if (m.getId() <= throughId && m.getSenderId() != readerId) m.setStatus(Message.Status.READ);
+        }
+        // stored rows are not known here; recordRead updates them in the table
+        return true;
+    }
+
+    @Override
+    public synchronized long expiredThrough(Instant now) {
+        if (loaded) return super.expiredThrough(now);
+        // the tail holds the newest messages, so the table alone decides what has expired
+        return repository.expiredThrough(getId(), getRetention(), now);
+    }
+
+    @Override
+    public synchronized List<Message> dropThrough(long messageId) {
+        List<Message> dropped = super.dropThrough(messageId);
+        if (!loaded) {
+            for (Sent s : tail) {
+                if (s.message.getId() <= messageId) dropped.add(s.message);
+            }
+            tail.removeIf(s -> s.message.getId() <= messageId);
+        }
+        return dropped;
+    }
+
+    private void load() {
+        if (loaded) return;
+        List<Message> stored = repository.loadMessages(getId());
+        long last = stored.isEmpty() ? 0 : stored.get(stored.size() - 1).getId();
+        // rows of a trim that is not committed yet may still be there
+        long dropped = droppedThrough();
+        for (Message m : stored) {
+            if (m.getId() > dropped) super.append(m);
+        }
+        for (Sent s : tail) {
+            if (s.message.getId() > last) super.append(s.message);
+        }
+        tail.clear();
+        loaded = true;
+    }
+}
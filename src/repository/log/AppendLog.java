@@ -0,0 +1,321 @@
+package repository.log;
+
+import exception.StorageException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only record log stored as numbered segment files {@code <name>-<n>.log} in one
+ * directory. Frames are described in {@link LogFrames}; a torn or corrupt tail (e.g. after
+ * a crash mid-write) of the newest segment is cut off when the log is opened. Older
+ * segments were synced before the next one started, so damage there fails the open.
+ *
+ * All writes go through one writer thread. Whatever callers have queued while the
+ * previous batch was being written becomes the next batch: one write() and, for
+ * {@link FsyncPolicy#EVERY_COMMIT}, one fsync shared by the whole batch (group commit).
+ *
+ * {@link #roll()} starts a new segment at a known point in the record stream, which is
+ * what snapshots use to decide which segments they make obsolete.
+ */
+public class AppendLog implements Closeable {
+    private static final int MAX_BATCH = 4096;
+
+    private final Path dir;
+    private final String name;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalNanos;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    // closed and failure only change under queueLock, and records are only queued under it
+    // while neither is set, so the writer's last drain sees every record that got in
+    private final Object queueLock = new Object();
+    private volatile boolean closed;
+    private volatile Throwable failure;
+    // sees every record once it is written; see setTail
+    private volatile Consumer<byte[]> tail;
+
+    // owned by the writer thread after construction
+    private FileChannel channel;
+    private volatile long segment;
+    private ByteBuffer batchBuffer = ByteBuffer.allocateDirect(1 << 20);
+    private long lastSync = System.nanoTime();
+
+    private AppendLog(Path dir, String name, FileChannel channel, long segment,
+                      FsyncPolicy policy, Duration fsyncInterval) {
+        this.dir = dir;
+        this.name = name;
+        this.channel = channel;
+        this.segment = segment;
+        this.policy = policy;
+        this.fsyncIntervalNanos = fsyncInterval.toNanos();
+
+        this.writer = new Thread(this::writerLoop, "append-log-" + name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Opens (or creates) the log, feeds every intact record of segments numbered
+     * {@code fromSegment} and up to {@code replay} in order, and positions the log for
+     * appending after the last intact record.
+     */
+    public static AppendLog open(Path dir, String name, FsyncPolicy policy, Duration fsyncInterval,
+                                 long fromSegment, Consumer<ByteBuffer> replay) throws IOException {
+        Files.createDirectories(dir);
+        List<Long> segments = segments(dir, name);
+
+        long last = Math.max(fromSegment, 1);
+        long newest = segments.isEmpty() ? last : Math.max(last, segments.get(segments.size() - 1));
+        for (long seg : segments) {
+            if (seg < fromSegment) continue;
+            last = seg;
+            Path file = segmentFile(dir, name, seg);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long end = LogFrames.read(ch, replay);
+                if (end < ch.size()) {
+                    // the records after it, in this and later segments, would be skipped
+                    if (seg != newest) throw new StorageException("Corrupt log segment " + file + " at offset " + end);
+                    System.out.println("[LOG] " + name + "-" + seg + ": dropping torn tail at offset " + end);
+                    ch.truncate(end);
+                    ch.force(true);
+                }
+            }
+        }
+
+        FileChannel ch = openForAppend(dir, name, last);
+        return new AppendLog(dir, name, ch, last, policy, fsyncInterval);
+    }
+
+    static List<Long> segments(Path dir, String name) throws IOException {
+        String prefix = name + "-";
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(f -> f.startsWith(prefix) && f.endsWith(".log"))
+                    .map(f -> Long.parseLong(f.substring(prefix.length(), f.length() - 4)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static Path segmentFile(Path dir, String name, long seg) {
+        return dir.resolve(String.format("%s-%012d.log", name, seg));
+    }
+
+    private static FileChannel openForAppend(Path dir, String name, long seg) throws IOException {
+        FileChannel ch = FileChannel.open(segmentFile(dir, name, seg),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ch.position(ch.size());
+        return ch;
+    }
+
+    /**
+     * Appends one record and blocks until it is written (and, with EVERY_COMMIT, synced).
+     */
+    public void append(byte[] payload) {
+        await(submit(payload));
+    }
+
+    /**
+     * Queues one record without waiting. Records are written in submission order; the
+     * future completes once this one is written (and, with EVERY_COMMIT, synced).
+     */
+    public CompletableFuture<Void> submit(byte[] payload) {
+        if (payload.length == 0 || payload.length > LogFrames.MAX_RECORD) {
+            throw new IllegalArgumentException("Bad record size: " + payload.length);
+        }
+        return enqueue(new Pending(payload));
+    }
+
+    /**
+     * Seals the current segment: everything submitted before this call ends up in older
+     * segments, everything after in the returned one.
+     */
+    public synchronized long roll() {
+        await(enqueue(new Pending(null)));
+        return segment;
+    }
+
+    public void deleteSegmentsBefore(long seg) throws IOException {
+        for (long s : segments(dir, name)) {
+            if (s < seg) Files.deleteIfExists(segmentFile(dir, name, s));
+        }
+    }
+
+    /**
+     * Hands each record to tail, on the writer thread and in log order, right after the
+     * batch holding it is written (and synced, with EVERY_COMMIT); null stops it.
+     */
+    public void setTail(Consumer<byte[]> tail) {
+        this.tail = tail;
+    }
+
+    public long currentSegment() { return segment; }
+
+    public FsyncPolicy getPolicy() { return policy; }
+
+    private CompletableFuture<Void> enqueue(Pending p) {
+        synchronized (queueLock) {
+            if (closed) throw new IllegalStateException("Log is closed: " + name);
+            if (failure != null) throw new StorageException("Log failed: " + name, failure);
+            queue.add(p);
+        }
+        return p.done;
+    }
+
+    public static void await(CompletableFuture<Void> written) {
+        try {
+            written.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    private void writerLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Pending first = queue.poll(50, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    synchronized (queueLock) {
+                        if (closed && queue.isEmpty()) break;
+                    }
+                    maybePeriodicSync();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                int from = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.get(i).payload != null) continue;
+                    writeBatch(batch.subList(from, i));
+                    rollSegment();
+                    from = i + 1;
+                }
+                writeBatch(batch.subList(from, batch.size()));
+                for (Pending p : batch) p.done.complete(null);
+            } catch (IOException e) {
+                fail(batch, e, new UncheckedIOException("Log write failed: " + name, e));
+                return;
+            } catch (RuntimeException | Error e) {
+                // e.g. from the tail: without this the writer dies and no future ever completes
+                fail(batch, e, new StorageException("Log writer failed: " + name, e));
+                if (e instanceof Error error) throw error;
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (queueLock) {
+                    closed = true;
+                    failRemaining(new IllegalStateException("Log writer interrupted: " + name));
+                }
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<Pending> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        int bytes = 0;
+        for (Pending p : batch) bytes += LogFrames.HEADER + p.payload.length;
+        if (batchBuffer.capacity() < bytes) {
+            batchBuffer = ByteBuffer.allocateDirect(Integer.highestOneBit(bytes) << 1);
+        }
+
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = batchBuffer.clear();
+        for (Pending p : batch) LogFrames.put(buf, p.payload, crc);
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+
+        if (policy == FsyncPolicy.EVERY_COMMIT) {
+            channel.force(false);
+            lastSync = System.nanoTime();
+        } else {
+            maybePeriodicSync();
+        }
+
+        Consumer<byte[]> t = tail;
+        if (t != null) {
+            for (Pending p : batch) t.accept(p.payload);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        channel.force(true);
+        channel.close();
+        channel = openForAppend(dir, name, segment + 1);
+        segment++;
+    }
+
+    private void maybePeriodicSync() throws IOException {
+        if (policy != FsyncPolicy.PERIODIC) return;
+        long now = System.nanoTime();
+        if (now - lastSync >= fsyncIntervalNanos) {
+            channel.force(false);
+            lastSync = now;
+        }
+    }
+
+    private void fail(List<Pending> batch, Throwable cause, RuntimeException error) {
+        for (Pending p : batch) p.done.completeExceptionally(error);
+        synchronized (queueLock) {
+            failure = cause;
+            failRemaining(error);
+        }
+    }
+
+    private void failRemaining(RuntimeException e) {
+        Pending p;
+        while ((p = queue.poll()) != null) p.done.completeExceptionally(e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (queueLock) {
+            if (closed) return;
+            closed = true;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failRemaining(new IllegalStateException("Log is closed: " + name));
+        try {
+            if (failure == null && channel.isOpen()) channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static final class Pending {
+        final byte[] payload; // null marks a segment roll
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package repository.log;
+
+import domain.Chat;
+import domain.message.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+/**
+ * One file per chat holding its header and messages in the log record format. Used as a
+ * spill area for chats evicted from the heap; it is a cache, not a source of truth, so
+ * files are not fsynced and the directory is cleared on start.
+ */
+public class ChatFileStore {
+    private final Path dir;
+
+    public ChatFileStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.toList()) Files.deleteIfExists(p);
+        }
+    }
+
+    /** @return bytes written */
+    public long write(Chat chat) {
+        Path tmp = dir.resolve(chat.getId() + ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                FrameWriter out = new FrameWriter(ch);
+                out.write(RecordCodec.chatPut(chat));
+                for (Message m : chat.copyMessages()) out.write(RecordCodec.message(m));
+                out.close();
+            }
+            Path file = file(chat.getId());
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the stored chat, or null if there is none */
+    public Chat read(long chatId) {
+        Path file = file(chatId);
+        if (!Files.exists(file)) return null;
+
+        Chat[] chat = new Chat[1];
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            LogFrames.read(ch, rec -> apply(chat, rec));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chat[0];
+    }
+
+    public void delete(long chatId) {
+        try {
+            Files.deleteIfExists(file(chatId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void apply(Chat[] chat, ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case RecordCodec.CHAT_PUT -> {
+                chat[0] = RecordCodec.readChat(in).toChat();
+            }
+            case RecordCodec.MESSAGE, RecordCodec.MESSAGE_PACKED -> chat[0].append(RecordCodec.readMessage(type, in));
+            default -> throw new IllegalStateException("Unexpected record in chat file: " + type);
+        }
+    }
+
+    private Path file(long chatId) {
+        return dir.resolve(chatId + ".chat");
+    }
+}
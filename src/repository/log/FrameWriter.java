@@ -0,0 +1,44 @@
+package repository.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Buffered writer of {@link LogFrames} to a file channel.
+ */
+final class FrameWriter implements Closeable {
+    private final FileChannel ch;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+    private final CRC32C crc = new CRC32C();
+
+    FrameWriter(FileChannel ch) {
+        this.ch = ch;
+    }
+
+    void write(byte[] payload) throws IOException {
+        int size = LogFrames.HEADER + payload.length;
+        if (buf.remaining() < size) drain(buf);
+        if (buf.remaining() < size) {
+            ByteBuffer big = ByteBuffer.allocate(size);
+            LogFrames.put(big, payload, crc);
+            drain(big);
+        } else {
+            LogFrames.put(buf, payload, crc);
+        }
+    }
+
+    /** Writes out buffered frames; the channel stays open and is not synced. */
+    @Override
+    public void close() throws IOException {
+        drain(buf);
+    }
+
+    private void drain(ByteBuffer b) throws IOException {
+        b.flip();
+        while (b.hasRemaining()) ch.write(b);
+        b.clear();
+    }
+}
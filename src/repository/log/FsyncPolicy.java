@@ -0,0 +1,10 @@
+package repository.log;
+
+public enum FsyncPolicy {
+    /** Every append is acknowledged only after an fsync; concurrent appends share one fsync. */
+    EVERY_COMMIT,
+    /** Appends are acknowledged once written; the file is fsynced at most once per interval. */
+    PERIODIC,
+    /** Appends are acknowledged once written; flushing to disk is left to the OS. */
+    NONE
+}
@@ -0,0 +1,409 @@
+package repository.log;
+
+import domain.Chat;
+import domain.message.Message;
+import exception.ChatNotFoundException;
+import repository.ChatRepository;
+import repository.HistorySink;
+import repository.history.SegmentedHistoryStore;
+import repository.inmemory.InMemoryChatRepository;
+import util.IdGenerator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Durable chat storage: reads are served from memory, every change is appended to a log
+ * that is replayed on startup. Message appends and receipts are logged as deltas, so a
+ * send costs one small record no matter how long the chat is.
+ *
+ * Recovery replays the snapshot and log on a fork-join pool, partitioned by chatId, and
+ * only publishes the rebuilt chats once every partition is done.
+ *
+ * Snapshots are fuzzy: chats are copied one at a time while writes continue, and replaying
+ * the log tail on top is idempotent (a chat's messages are logged in id order, so anything
+ * at or below the chat's last restored id is already there).
+ *
+ * With a {@link SegmentedHistoryStore} attached, HISTORY pages are served from its
+ * mapped segment files. The log stays the source of truth: a chat's segments are
+ * topped up from memory before a read if they are behind.
+ *
+ * As a {@link Replicable}, records shipped from a primary are applied to the live chats
+ * with the same rules as recovery, under each chat's lock like the service's own writes.
+ *
+ * The in-memory side is pluggable, e.g. a {@link repository.tiered.TieredChatRepository}
+ * that keeps only active chats in heap.
+ */
+public class LogChatRepository implements ChatRepository, Snapshottable, Replicable, Closeable {
+    private static final String NAME = "chats";
+
+    private final ChatRepository memory;
+    private final Path dir;
+    private final AppendLog log;
+    private final SegmentedHistoryStore history;
+
+    public LogChatRepository(Path dir, FsyncPolicy policy, Duration fsyncInterval) throws IOException {
+        this(dir, policy, fsyncInterval, null);
+    }
+
+    public LogChatRepository(Path dir, FsyncPolicy policy, Duration fsyncInterval,
+                             SegmentedHistoryStore history) throws IOException {
+        this(dir, policy, fsyncInterval, history, new InMemoryChatRepository());
+    }
+
+    public LogChatRepository(Path dir, FsyncPolicy policy, Duration fsyncInterval,
+                             SegmentedHistoryStore history, ChatRepository memory) throws IOException {
+        this.dir = dir;
+        this.memory = memory;
+        this.history = history;
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Partition[] parts = new Partition[pool.getParallelism()];
+            for (int i = 0; i < parts.length; i++) parts[i] = new Partition();
+            ParallelReplay replay = new ParallelReplay(NAME, pool,
+                    rec -> Math.floorMod(Long.hashCode(RecordCodec.chatIdOf(rec) * 0x9E3779B97F4A7C15L), parts.length),
+                    (p, rec) -> parts[p].apply(rec));
+
+            this.log = LogRecovery.open(dir, NAME, policy, fsyncInterval, replay, () -> {
+                replay.finish();
+                merge(parts);
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Changes go to memory before the log, as the service changes a chat before storing
+    // it: a record handed to a tail is then always visible to forEachRecord.
+
+    @Override
+    public void add(Chat chat) {
+        memory.add(chat);
+        log.append(RecordCodec.chatPut(chat));
+    }
+
+    @Override
+    public Optional<Chat> findById(long id) {
+        return memory.findById(id);
+    }
+
+    @Override
+    public List<Chat> findAll() {
+        return memory.findAll();
+    }
+
+    @Override
+    public List<Chat> findByParticipant(long userId) {
+        return memory.findByParticipant(userId);
+    }
+
+    @Override
+    public void forEachChat(Consumer<Chat> action) {
+        memory.forEachChat(action);
+    }
+
+    @Override
+    public void update(Chat chat) {
+        memory.update(chat);
+        log.append(RecordCodec.chatPut(chat));
+    }
+
+    @Override
+    public void deleteById(long id) {
+        memory.deleteById(id);
+        log.append(RecordCodec.delete(RecordCodec.CHAT_DELETE, id));
+        if (history != null) history.delete(id);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendMessage(Chat chat, Message message) {
+        CompletableFuture<Void> written = log.submit(RecordCodec.message(message));
+        memory.appendMessage(chat, message);
+        if (history != null) history.append(message);
+        return written;
+    }
+
+    @Override
+    public CompletableFuture<Void> appendMessages(Chat chat, List<Message> messages) {
+        // one writer applies the log in order, so the last record being written covers the rest
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        for (Message m : messages) written = log.submit(RecordCodec.message(m));
+        memory.appendMessages(chat, messages);
+        if (history != null) {
+            for (Message m : messages) history.append(m);
+        }
+        return written;
+    }
+
+    @Override
+    public CompletableFuture<Void> trimMessages(Chat chat, long throughId) {
+        CompletableFuture<Void> written = log.submit(RecordCodec.trim(chat.getId(), throughId));
+        memory.trimMessages(chat, throughId);
+        if (history != null) history.trim(chat.getId(), throughId);
+        return written;
+    }
+
+    @Override
+    public CompletableFuture<Void> updateStatus(Chat chat, Message message) {
+        CompletableFuture<Void> written = log.submit(RecordCodec.status(message));
+        memory.updateStatus(chat, message);
+        if (history != null) history.updateStatus(chat.getId(), message.getId(), message.getStatus());
+        return written;
+    }
+
+    @Override
+    public CompletableFuture<Void> recordRead(Chat chat, long readerId, long throughId) {
+        CompletableFuture<Void> written = log.submit(RecordCodec.read(chat.getId(), readerId, throughId));
+        memory.recordRead(chat, readerId, throughId);
+        if (history != null) history.markReadBy(chat.getId(), readerId, throughId);
+        return written;
+    }
+
+    @Override
+    public void readHistory(long chatId, long afterId, int limit, HistorySink sink) {
+        if (history == null) {
+            ChatRepository.super.readHistory(chatId, afterId, limit, sink);
+            return;
+        }
+        Chat chat = memory.findById(chatId).orElseThrow(() -> new ChatNotFoundException(chatId));
+        long stored = history.lastId(chatId);
+        if (stored < chat.lastMessageId()) {
+            for (Message m : chat.messagesAfter(stored, Integer.MAX_VALUE)) history.append(m);
+        }
+        history.read(chatId, afterId, limit, sink);
+    }
+
+    @Override
+    public void forEachRecord(Consumer<byte[]> out) {
+        // keeps a reserveIds() floor once the log holding it is gone
+        out.accept(RecordCodec.ids(IdGenerator.peek()));
+        memory.forEachChat(chat -> {
+            out.accept(RecordCodec.chatPut(chat));
+            for (Message m : chat.copyMessages()) out.accept(RecordCodec.message(m));
+        });
+    }
+
+    @Override
+    public void tail(Consumer<byte[]> sink) {
+        log.setTail(sink);
+    }
+
+    @Override
+    public void reserveIds(long nextId) {
+        IdGenerator.advancePast(nextId - 1);
+        log.append(RecordCodec.ids(nextId));
+    }
+
+    @Override
+    public CompletableFuture<Void> applyReplicated(byte[] record) {
+        CompletableFuture<Void> written = log.submit(record);
+        ByteBuffer in = ByteBuffer.wrap(record);
+        byte type = in.get();
+        switch (type) {
+            case RecordCodec.IDS -> IdGenerator.advancePast(in.getLong() - 1);
+            case RecordCodec.CHAT_PUT -> {
+                RecordCodec.ChatRecord r = RecordCodec.readChat(in);
+                IdGenerator.advancePast(r.id());
+                Chat chat = memory.findById(r.id()).orElse(null);
+                if (chat == null) {
+                    memory.add(r.toChat());
+                    break;
+                }
+                synchronized (chat) {
+                    chat.setTitle(r.title());
+                    for (long uid : r.participantIds()) chat.addParticipant(uid);
+                    chat.setRetention(r.retention());
+                    chat.dropThrough(r.droppedThrough());
+                }
+                memory.update(chat);
+                if (history != null && r.droppedThrough() > 0) history.trim(chat.getId(), r.droppedThrough());
+            }
+            case RecordCodec.CHAT_DELETE -> {
+                long chatId = in.getLong();
+                memory.deleteById(chatId);
+                if (history != null) history.delete(chatId);
+            }
+            case RecordCodec.MESSAGE, RecordCodec.MESSAGE_PACKED -> {
+                Message m = RecordCodec.readMessage(type, in);
+                IdGenerator.advancePast(m.getId());
+                Chat chat = memory.findById(m.getChatId()).orElse(null);
+                if (chat == null) break;
+                synchronized (chat) {
+                    if (m.getId() <= chat.lastMessageId()) break;
+                    chat.append(m);
+                    memory.appendMessage(chat, m);
+                }
+                if (history != null) history.append(m);
+            }
+            case RecordCodec.STATUS -> {
+                Chat chat = memory.findById(in.getLong()).orElse(null);
+                long messageId = in.getLong();
+                Message.Status status = Message.Status.values()[in.get()];
+                if (chat == null) break;
+                synchronized (chat) {
+                    Message m = chat.findMessage(messageId);
+                    if (m == null || m.getStatus().compareTo(status) >= 0) break;
+                    m.setStatus(status);
+                    memory.updateStatus(chat, m);
+                }
+                if (history != null) history.updateStatus(chat.getId(), messageId, status);
+            }
+            case RecordCodec.TRIM -> {
+                Chat chat = memory.findById(in.getLong()).orElse(null);
+                long throughId = in.getLong();
+                if (chat == null) break;
+                synchronized (chat) {
+                    chat.dropThrough(throughId);
+                    memory.trimMessages(chat, throughId);
+                }
+                if (history != null) history.trim(chat.getId(), throughId);
+            }
+            case RecordCodec.READ -> {
+                Chat chat = memory.findById(in.getLong()).orElse(null);
+                long readerId = in.getLong();
+                long throughId = RecordCodec.readThrough(in);
+                if (chat == null) break;
+                synchronized (chat) {
+                    if (!chat.markReadBy(readerId, throughId)) break;
+                    memory.recordRead(chat, readerId, throughId);
+                }
+                if (history != null) history.markReadBy(chat.getId(), readerId, throughId);
+            }
+            default -> throw new IllegalStateException("Unknown chat log record type: " + type);
+        }
+        return written;
+    }
+
+    @Override
+    public Bootstrap bootstrap() throws IOException {
+        return new SnapshotBootstrap(dir, NAME, this::install);
+    }
+
+    // the bootstrap copy becomes the snapshot every later record of this log builds on;
+    // chats are swapped one at a time, so readers never miss a chat that stays
+    private synchronized void install(SnapshotFiles.Writer snapshot) throws IOException {
+        long start = System.nanoTime();
+        long seg = log.roll();
+        long bytes = snapshot.commit(seg);
+        log.deleteSegmentsBefore(seg);
+        SnapshotFiles.deleteBefore(dir, NAME, seg);
+
+        Partition copy = new Partition();
+        SnapshotFiles.load(dir, NAME, seg, copy::apply);
+        List<Long> stale = new ArrayList<>();
+        memory.forEachChat(chat -> {
+            if (!copy.chats.containsKey(chat.getId())) stale.add(chat.getId());
+        });
+        for (long id : stale) {
+            memory.deleteById(id);
+            if (history != null) history.delete(id);
+        }
+        for (Chat chat : copy.chats.values()) {
+            memory.deleteById(chat.getId());
+            memory.add(chat);
+            if (history != null) {
+                // rebuilt now: records applied next would only add what comes after
+                history.delete(chat.getId());
+                memory.forEachMessage(chat, 1024, history::append);
+            }
+        }
+        IdGenerator.advancePast(copy.maxId);
+        System.out.println("[LOG] " + NAME + ": installed a bootstrap copy as snapshot #" + seg + ", "
+                + copy.chats.size() + " chats, " + bytes + " bytes in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // global state (chat map, participant index, id sequence) is only touched here, once
+    // every partition has finished replaying
+    private void merge(Partition[] parts) {
+        long maxId = 0;
+        for (Partition p : parts) {
+            for (Chat chat : p.chats.values()) memory.add(chat);
+            maxId = Math.max(maxId, p.maxId);
+        }
+        IdGenerator.advancePast(maxId);
+    }
+
+    /** Chats of one recovery partition, rebuilt by a single thread at a time. */
+    private static final class Partition {
+        final Map<Long, Chat> chats = new HashMap<>();
+        long maxId;
+
+        void apply(ByteBuffer in) {
+            byte type = in.get();
+            switch (type) {
+                case RecordCodec.CHAT_PUT -> {
+                    RecordCodec.ChatRecord r = RecordCodec.readChat(in);
+                    Chat chat = chats.get(r.id());
+                    if (chat == null) {
+                        chats.put(r.id(), r.toChat());
+                    } else {
+                        chat.setTitle(r.title());
+                        for (long uid : r.participantIds()) chat.addParticipant(uid);
+                        chat.setRetention(r.retention());
+                        chat.dropThrough(r.droppedThrough());
+                    }
+                    maxId = Math.max(maxId, r.id());
+                }
+                case RecordCodec.CHAT_DELETE -> chats.remove(in.getLong());
+                case RecordCodec.MESSAGE, RecordCodec.MESSAGE_PACKED -> {
+                    Message m = RecordCodec.readMessage(type, in);
+                    maxId = Math.max(maxId, m.getId());
+                    Chat chat = chats.get(m.getChatId());
+                    if (chat != null && m.getId() > chat.lastMessageId()) chat.append(m);
+                }
+                case RecordCodec.STATUS -> {
+                    long chatId = in.getLong();
+                    long messageId = in.getLong();
+                    Message.Status status = Message.Status.values()[in.get()];
+                    Chat chat = chats.get(chatId);
+                    Message m = (chat == null) ? null : chat.findMessage(messageId);
+                    // receipts only move forward, whatever order their records landed in
+                    if (m != null && m.getStatus().compareTo(status) < 0) m.setStatus(status);
+                }
+                case RecordCodec.TRIM -> {
+                    Chat chat = chats.get(in.getLong());
+                    long throughId = in.getLong();
+                    if (chat != null) chat.dropThrough(throughId);
+                }
+                case RecordCodec.READ -> {
+                    Chat chat = chats.get(in.getLong());
+                    long readerId = in.getLong();
+                    // only what was read then: a snapshot may already hold newer messages
+                    long throughId = RecordCodec.readThrough(in);
+                    if (chat != null) chat.markReadBy(readerId, throughId);
+                }
+                case RecordCodec.IDS -> maxId = Math.max(maxId, in.getLong() - 1);
+                default -> throw new IllegalStateException("Unknown chat log record type: " + type);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void snapshot() throws IOException {
+        long start = System.nanoTime();
+        long seg = log.roll();
+        long bytes = SnapshotFiles.write(dir, NAME, seg, this::forEachRecord);
+        log.deleteSegmentsBefore(seg);
+        SnapshotFiles.deleteBefore(dir, NAME, seg);
+        System.out.println("[SNAPSHOT] " + NAME + " #" + seg + ": " + bytes + " bytes in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+        if (history != null) history.close();
+    }
+}
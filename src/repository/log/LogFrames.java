@@ -0,0 +1,65 @@
+package repository.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Record framing shared by log segments and snapshots: [int length][int crc32c(payload)][payload].
+ */
+final class LogFrames {
+    static final int HEADER = 8;
+    static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private LogFrames() {}
+
+    static void put(ByteBuffer buf, byte[] payload, CRC32C crc) {
+        crc.reset();
+        crc.update(payload);
+        buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    }
+
+    /**
+     * Feeds every intact frame to the handler, in order.
+     *
+     * @return offset just past the last intact frame
+     */
+    static long read(FileChannel ch, Consumer<ByteBuffer> handler) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        ByteBuffer payload = ByteBuffer.allocate(4096);
+        CRC32C crc = new CRC32C();
+        long pos = 0;
+        long size = ch.size();
+
+        while (pos + HEADER <= size) {
+            header.clear();
+            readFully(ch, header, pos);
+            int len = header.getInt(0);
+            int sum = header.getInt(4);
+            if (len <= 0 || len > MAX_RECORD || pos + HEADER + len > size) break;
+
+            if (payload.capacity() < len) payload = ByteBuffer.allocate(Math.max(len, payload.capacity() * 2));
+            payload.clear().limit(len);
+            readFully(ch, payload, pos + HEADER);
+            payload.flip();
+
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != sum) break;
+
+            handler.accept(payload);
+            pos += HEADER + len;
+        }
+        return pos;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new IOException("Unexpected end of file");
+            pos += n;
+        }
+    }
+}
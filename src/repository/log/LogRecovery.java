@@ -0,0 +1,47 @@
+package repository.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * Startup path shared by the log repositories: latest snapshot first, then the log
+ * segments written after it.
+ */
+final class LogRecovery {
+    private LogRecovery() {}
+
+    static AppendLog open(Path dir, String name, FsyncPolicy policy, Duration fsyncInterval,
+                          Consumer<ByteBuffer> apply) throws IOException {
+        return open(dir, name, policy, fsyncInterval, apply, () -> {});
+    }
+
+    /** @param afterReplay runs once every record has been handed to {@code apply} */
+    static AppendLog open(Path dir, String name, FsyncPolicy policy, Duration fsyncInterval,
+                          Consumer<ByteBuffer> apply, Runnable afterReplay) throws IOException {
+        long start = System.nanoTime();
+        long[] records = new long[2];
+
+        long snapshot = SnapshotFiles.latest(dir, name);
+        if (snapshot > 0) {
+            SnapshotFiles.load(dir, name, snapshot, rec -> {
+                records[0]++;
+                apply.accept(rec);
+            });
+        }
+        AppendLog log = AppendLog.open(dir, name, policy, fsyncInterval, snapshot, rec -> {
+            records[1]++;
+            apply.accept(rec);
+        });
+
+        afterReplay.run();
+
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("[LOG] " + name + " ready in " + ms + " ms"
+                + (snapshot > 0 ? " (snapshot #" + snapshot + ": " + records[0] + " records" : " (no snapshot")
+                + ", log tail: " + records[1] + " records)");
+        return log;
+    }
+}
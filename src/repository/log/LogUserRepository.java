@@ -0,0 +1,181 @@
+package repository.log;
+
+import domain.Contact;
+import domain.User;
+import repository.UserRepository;
+import repository.inmemory.InMemoryUserRepository;
+import util.IdGenerator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Durable user storage: reads (including the username index) are served from memory,
+ * every change is appended to a log that is replayed on startup.
+ */
+public class LogUserRepository implements UserRepository, Snapshottable, Replicable, Closeable {
+    private static final String NAME = "users";
+
+    private final InMemoryUserRepository memory = new InMemoryUserRepository();
+    private final Path dir;
+    private final AppendLog log;
+
+    public LogUserRepository(Path dir, FsyncPolicy policy, Duration fsyncInterval) throws IOException {
+        this.dir = dir;
+        this.log = LogRecovery.open(dir, NAME, policy, fsyncInterval, this::apply);
+    }
+
+    // Changes go to memory before the log: a record handed to a tail is then always
+    // visible to forEachRecord.
+
+    @Override
+    public void add(User user) {
+        memory.add(user);
+        log.append(RecordCodec.userPut(user));
+    }
+
+    @Override
+    public Optional<User> findById(long id) {
+        return memory.findById(id);
+    }
+
+    @Override
+    public List<User> findAll() {
+        return memory.findAll();
+    }
+
+    @Override
+    public List<User> findByUsernamePrefix(String prefix, int limit) {
+        return memory.findByUsernamePrefix(prefix, limit);
+    }
+
+    @Override
+    public void update(User user) {
+        memory.update(user);
+        log.append(RecordCodec.userPut(user));
+    }
+
+    @Override
+    public void deleteById(long id) {
+        memory.deleteById(id);
+        log.append(RecordCodec.delete(RecordCodec.USER_DELETE, id));
+    }
+
+    @Override
+    public void forEachRecord(Consumer<byte[]> out) {
+        // keeps a reserveIds() floor once the log holding it is gone
+        out.accept(RecordCodec.ids(IdGenerator.peek()));
+        List<User> users = memory.findAll();
+        // every user first, so contacts can resolve their targets on load
+        for (User u : users) out.accept(RecordCodec.userPut(new User(u.getId(), u.getUsername())));
+        for (User u : users) out.accept(RecordCodec.userPut(u));
+    }
+
+    @Override
+    public void tail(Consumer<byte[]> sink) {
+        log.setTail(sink);
+    }
+
+    @Override
+    public void reserveIds(long nextId) {
+        IdGenerator.advancePast(nextId - 1);
+        log.append(RecordCodec.ids(nextId));
+    }
+
+    // only the replication thread applies records, as only the startup thread replays them
+    @Override
+    public CompletableFuture<Void> applyReplicated(byte[] record) {
+        CompletableFuture<Void> written = log.submit(record);
+        apply(ByteBuffer.wrap(record));
+        return written;
+    }
+
+    @Override
+    public Bootstrap bootstrap() throws IOException {
+        return new SnapshotBootstrap(dir, NAME, this::install);
+    }
+
+    // users are updated in place, keeping who is online here, and the ones missing from
+    // the copy are deleted
+    private synchronized void install(SnapshotFiles.Writer snapshot) throws IOException {
+        long seg = log.roll();
+        snapshot.commit(seg);
+        log.deleteSegmentsBefore(seg);
+        SnapshotFiles.deleteBefore(dir, NAME, seg);
+
+        Set<Long> copied = new HashSet<>();
+        SnapshotFiles.load(dir, NAME, seg, rec -> {
+            long id = apply(rec);
+            if (id != 0) copied.add(id);
+        });
+        for (User u : memory.findAll()) {
+            if (!copied.contains(u.getId())) memory.deleteById(u.getId());
+        }
+        System.out.println("[LOG] " + NAME + ": installed a bootstrap copy as snapshot #" + seg + ", "
+                + copied.size() + " users");
+    }
+
+    // returns the id of the user the record is about, 0 for none
+    private long apply(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case RecordCodec.USER_PUT -> {
+                RecordCodec.UserRecord r = RecordCodec.readUser(in);
+                User u = memory.findById(r.id()).orElse(null);
+                if (u == null) {
+                    u = new User(r.id(), r.username());
+                    u.setOnline(false);
+                    IdGenerator.advancePast(r.id());
+                }
+                u.setUsername(r.username());
+
+                Set<Long> targets = new HashSet<>();
+                for (RecordCodec.ContactRef c : r.contacts()) {
+                    targets.add(c.targetId());
+                    IdGenerator.advancePast(c.id());
+                    User target = memory.findById(c.targetId()).orElse(null);
+                    if (target != null) u.addOrUpdateContact(new Contact(c.id(), target, c.alias()));
+                }
+                for (Contact c : List.copyOf(u.getContacts())) {
+                    if (!targets.contains(c.getTargetUser().getId())) {
+                        u.removeContactByTargetId(c.getTargetUser().getId());
+                    }
+                }
+                memory.update(u);
+                return r.id();
+            }
+            case RecordCodec.USER_DELETE -> {
+                long id = in.getLong();
+                memory.deleteById(id);
+                return id;
+            }
+            case RecordCodec.IDS -> {
+                IdGenerator.advancePast(in.getLong() - 1);
+                return 0;
+            }
+            default -> throw new IllegalStateException("Unknown user log record type: " + type);
+        }
+    }
+
+    @Override
+    public synchronized void snapshot() throws IOException {
+        long seg = log.roll();
+        SnapshotFiles.write(dir, NAME, seg, this::forEachRecord);
+        log.deleteSegmentsBefore(seg);
+        SnapshotFiles.deleteBefore(dir, NAME, seg);
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,117 @@
+package repository.log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Replays a record stream on a fork-join pool. Records are routed to a partition by key
+ * (e.g. chatId) and copied into per-partition chunks; chunks of one partition are applied
+ * one after another in stream order, different partitions run concurrently. The reader is
+ * throttled once too many chunks are waiting, so memory use stays bounded.
+ */
+final class ParallelReplay implements Consumer<ByteBuffer> {
+    interface Applier {
+        void apply(int partition, ByteBuffer record);
+    }
+
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final long PROGRESS_EVERY_NANOS = 2_000_000_000L;
+
+    private final String name;
+    private final ForkJoinPool pool;
+    private final ToIntFunction<ByteBuffer> partitionOf;
+    private final Applier applier;
+    private final Semaphore inFlight;
+
+    private final byte[][] chunks;
+    private final int[] fill;
+    private final CompletableFuture<?>[] tails;
+
+    private final long start = System.nanoTime();
+    private long lastProgress = start;
+    private long records;
+    private long bytes;
+
+    ParallelReplay(String name, ForkJoinPool pool, ToIntFunction<ByteBuffer> partitionOf, Applier applier) {
+        this.name = name;
+        this.pool = pool;
+        this.partitionOf = partitionOf;
+        this.applier = applier;
+
+        int partitions = pool.getParallelism();
+        this.inFlight = new Semaphore(partitions * 4);
+        this.chunks = new byte[partitions][];
+        this.fill = new int[partitions];
+        this.tails = new CompletableFuture<?>[partitions];
+        for (int p = 0; p < partitions; p++) {
+            chunks[p] = new byte[CHUNK_BYTES];
+            tails[p] = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    int partitions() {
+        return chunks.length;
+    }
+
+    @Override
+    public void accept(ByteBuffer record) {
+        int p = partitionOf.applyAsInt(record);
+        int len = record.remaining();
+        if (fill[p] + 4 + len > chunks[p].length) {
+            dispatch(p);
+            if (4 + len > chunks[p].length) chunks[p] = new byte[4 + len];
+        }
+
+        ByteBuffer chunk = ByteBuffer.wrap(chunks[p], fill[p], 4 + len);
+        chunk.putInt(len).put(record);
+        fill[p] += 4 + len;
+
+        records++;
+        bytes += len;
+        long now = System.nanoTime();
+        if (now - lastProgress >= PROGRESS_EVERY_NANOS) {
+            lastProgress = now;
+            report("recovering");
+        }
+    }
+
+    /** Applies everything still buffered and waits for all partitions to catch up. */
+    void finish() {
+        for (int p = 0; p < chunks.length; p++) {
+            if (fill[p] > 0) dispatch(p);
+        }
+        CompletableFuture.allOf(tails).join();
+        report("replayed");
+    }
+
+    private void dispatch(int p) {
+        byte[] chunk = chunks[p];
+        int used = fill[p];
+        chunks[p] = new byte[CHUNK_BYTES];
+        fill[p] = 0;
+
+        inFlight.acquireUninterruptibly();
+        CompletableFuture<?> next = tails[p].thenRunAsync(() -> {
+            ByteBuffer in = ByteBuffer.wrap(chunk, 0, used);
+            while (in.hasRemaining()) {
+                int len = in.getInt();
+                ByteBuffer rec = ByteBuffer.wrap(chunk, in.position(), len).slice();
+                applier.apply(p, rec);
+                in.position(in.position() + len);
+            }
+        }, pool);
+        // released even when an earlier chunk failed and this one is skipped
+        next.whenComplete((r, e) -> inFlight.release());
+        tails[p] = next;
+    }
+
+    private void report(String what) {
+        double secs = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        System.out.printf("[RECOVERY] %s %s: %d records, %.1f MB, %.0f records/s on %d threads%n",
+                name, what, records, bytes / 1e6, records / secs, chunks.length);
+    }
+}
@@ -0,0 +1,228 @@
+package repository.log;
+
+import domain.Chat;
+import domain.Contact;
+import domain.RetentionPolicy;
+import domain.User;
+import domain.message.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payload encoding for the chat and user logs. The first byte of every record is its type.
+ * Messages are written with {@link MessageCodec}; the older fixed-width MESSAGE records
+ * are still read so existing logs and snapshots replay.
+ */
+final class RecordCodec {
+    static final byte USER_PUT = 1;
+    static final byte USER_DELETE = 2;
+    static final byte CHAT_PUT = 3;
+    static final byte CHAT_DELETE = 4;
+    static final byte MESSAGE = 5;
+    static final byte STATUS = 6;
+    static final byte READ = 7;
+    static final byte MESSAGE_PACKED = 8;
+    static final byte TRIM = 9;
+    // <next id>: ids below it are taken, whether or not a record here carries them
+    static final byte IDS = 10;
+
+    static final byte KIND_TEXT = 1;
+    static final byte KIND_IMAGE = 2;
+    static final byte KIND_VOICE = 3;
+    static final byte KIND_MEDIA = 4;
+    static final byte KIND_FILE = 5;
+
+    private RecordCodec() {}
+
+    record ContactRef(long id, long targetId, String alias) {}
+    record UserRecord(long id, String username, List<ContactRef> contacts) {}
+    record ChatRecord(long id, String title, List<Long> participantIds, RetentionPolicy retention,
+                      long droppedThrough) {
+        /** A chat with this record's state and no messages. */
+        Chat toChat() {
+            Chat chat = new Chat(id, title);
+            for (long uid : participantIds) chat.addParticipant(uid);
+            chat.setRetention(retention);
+            chat.dropThrough(droppedThrough);
+            return chat;
+        }
+    }
+
+    static byte[] userPut(User u) {
+        return encode(out -> {
+            out.writeByte(USER_PUT);
+            out.writeLong(u.getId());
+            writeString(out, u.getUsername());
+            List<Contact> contacts = u.getContacts();
+            out.writeInt(contacts.size());
+            for (Contact c : contacts) {
+                out.writeLong(c.getId());
+                out.writeLong(c.getTargetUser().getId());
+                writeString(out, c.getAlias());
+            }
+        });
+    }
+
+    static byte[] chatPut(Chat chat) {
+        return encode(out -> {
+            out.writeByte(CHAT_PUT);
+            out.writeLong(chat.getId());
+            writeString(out, chat.getTitle());
+            List<Long> ids = chat.getParticipantIds();
+            out.writeInt(ids.size());
+            for (long id : ids) out.writeLong(id);
+            // retention fields were added later; readChat treats their absence as none
+            out.writeLong(chat.getRetention().maxAge().toMillis());
+            out.writeInt(chat.getRetention().maxCount());
+            out.writeLong(chat.droppedThrough());
+        });
+    }
+
+    static byte[] trim(long chatId, long throughId) {
+        return encode(out -> {
+            out.writeByte(TRIM);
+            out.writeLong(chatId);
+            out.writeLong(throughId);
+        });
+    }
+
+    static byte[] delete(byte type, long id) {
+        return encode(out -> {
+            out.writeByte(type);
+            out.writeLong(id);
+        });
+    }
+
+    static byte[] message(Message m) {
+        byte[] rec = new byte[1 + MessageCodec.encodedLength(m)];
+        ByteBuffer out = ByteBuffer.wrap(rec);
+        out.put(MESSAGE_PACKED);
+        MessageCodec.encode(out, m);
+        return rec;
+    }
+
+    static byte[] status(Message m) {
+        return encode(out -> {
+            out.writeByte(STATUS);
+            out.writeLong(m.getChatId());
+            out.writeLong(m.getId());
+            out.writeByte(m.getStatus().ordinal());
+        });
+    }
+
+    static byte[] read(long chatId, long readerId, long throughId) {
+        return encode(out -> {
+            out.writeByte(READ);
+            out.writeLong(chatId);
+            out.writeLong(readerId);
+            out.writeLong(throughId);
+        });
+    }
+
+    static byte[] ids(long nextId) {
+        return encode(out -> {
+            out.writeByte(IDS);
+            out.writeLong(nextId);
+        });
+    }
+
+    /** Read-through id of a READ record, after its chat and reader ids; older records have none. */
+    static long readThrough(ByteBuffer in) {
+        return in.hasRemaining() ? in.getLong() : Long.MAX_VALUE;
+    }
+
+    /** Chat a chat-log record belongs to, read without consuming the buffer. */
+    static long chatIdOf(ByteBuffer rec) {
+        int p = rec.position();
+        return switch (rec.get(p)) {
+            case CHAT_PUT, CHAT_DELETE, STATUS, READ, TRIM -> rec.getLong(p + 1);
+            case MESSAGE -> rec.getLong(p + 1 + 8); // after the message id
+            case MESSAGE_PACKED -> MessageCodec.chatIdAt(rec, p + 1);
+            case IDS -> 0;
+            default -> throw new IllegalStateException("Not a chat record: " + rec.get(p));
+        };
+    }
+
+    static UserRecord readUser(ByteBuffer in) {
+        long id = in.getLong();
+        String username = readString(in);
+        int n = in.getInt();
+        List<ContactRef> contacts = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            contacts.add(new ContactRef(in.getLong(), in.getLong(), readString(in)));
+        }
+        return new UserRecord(id, username, contacts);
+    }
+
+    static ChatRecord readChat(ByteBuffer in) {
+        long id = in.getLong();
+        String title = readString(in);
+        int n = in.getInt();
+        List<Long> ids = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) ids.add(in.getLong());
+        if (!in.hasRemaining()) return new ChatRecord(id, title, ids, RetentionPolicy.NONE, 0);
+        RetentionPolicy retention = RetentionPolicy.of(in.getLong(), in.getInt());
+        return new ChatRecord(id, title, ids, retention, in.getLong());
+    }
+
+    /** Reads the message of a MESSAGE or MESSAGE_PACKED record, after its type byte. */
+    static Message readMessage(byte type, ByteBuffer in) {
+        return (type == MESSAGE_PACKED) ? MessageCodec.decode(in) : readLegacyMessage(in);
+    }
+
+    // fixed-width layout written before MessageCodec
+    private static Message readLegacyMessage(ByteBuffer in) {
+        long id = in.getLong();
+        long chatId = in.getLong();
+        long senderId = in.getLong();
+        Instant ts = Instant.ofEpochSecond(in.getLong(), in.getInt());
+        Message.Status status = Message.Status.values()[in.get()];
+        byte kind = in.get();
+
+        Message m = switch (kind) {
+            case KIND_TEXT -> new TextMessage(id, chatId, senderId, ts, readString(in));
+            case KIND_IMAGE -> new ImageMessage(id, chatId, senderId, ts, readString(in));
+            case KIND_VOICE -> new VoiceLinkMessage(id, chatId, senderId, ts, readString(in), readString(in));
+            case KIND_MEDIA -> new MediaLinkMessage(id, chatId, senderId, ts, readString(in), readString(in));
+            case KIND_FILE -> new FileLinkMessage(id, chatId, senderId, ts, readString(in), readString(in));
+            default -> throw new IllegalStateException("Unknown message kind: " + kind);
+        };
+        m.setStatus(status);
+        return m;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(Writer w) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            w.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,56 @@
+package repository.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A log repository whose records can be shipped to another server: a copy of the current
+ * state as records, the records as they are written, and applying records shipped here.
+ */
+public interface Replicable {
+    /**
+     * The current state as records, like a snapshot: fuzzy while writes continue, made
+     * exact by applying the records written meanwhile on top.
+     */
+    void forEachRecord(Consumer<byte[]> out);
+
+    /**
+     * Hands every record written from now on to sink, in log order, once it is written
+     * (and synced, with EVERY_COMMIT). Runs on the log's writer thread; null stops it.
+     *
+     * A record's change is in memory before the record gets here, so a copy from
+     * {@link #forEachRecord} started after a record was handed over already covers it.
+     */
+    void tail(Consumer<byte[]> sink);
+
+    /**
+     * Applies a record another server's repository wrote, and appends it to this log.
+     * Records are applied the way recovery replays them, so one already covered by a
+     * bootstrap copy is harmless as long as the records after it follow in order.
+     */
+    CompletableFuture<Void> applyReplicated(byte[] record);
+
+    /**
+     * Records that ids below nextId are taken, so neither recovery nor a follower of this
+     * log hands them out again, even with no record carrying them (e.g. ids a lost primary
+     * acknowledged before its records got here).
+     */
+    void reserveIds(long nextId);
+
+    /**
+     * Starts replacing the whole state with another server's {@link #forEachRecord} copy.
+     * Its records go to a new snapshot file rather than the log; {@link Bootstrap#install}
+     * makes that the latest snapshot, drops the log before it and swaps the in-memory state
+     * for the copy's, so whatever is not in the copy (e.g. deleted meanwhile) goes away.
+     */
+    Bootstrap bootstrap() throws IOException;
+
+    /** A bootstrap copy being received; closing it without install() throws it away. */
+    interface Bootstrap extends Closeable {
+        void add(byte[] record) throws IOException;
+
+        void install() throws IOException;
+    }
+}
@@ -0,0 +1,34 @@
+package repository.log;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/** A {@link Replicable.Bootstrap} written to a snapshot file and then handed to its repository to install. */
+final class SnapshotBootstrap implements Replicable.Bootstrap {
+    interface Installer {
+        void install(SnapshotFiles.Writer snapshot) throws IOException;
+    }
+
+    private final SnapshotFiles.Writer snapshot;
+    private final Installer installer;
+
+    SnapshotBootstrap(Path dir, String name, Installer installer) throws IOException {
+        this.snapshot = new SnapshotFiles.Writer(dir, name, "bootstrap");
+        this.installer = installer;
+    }
+
+    @Override
+    public void add(byte[] record) throws IOException {
+        snapshot.write(record);
+    }
+
+    @Override
+    public void install() throws IOException {
+        installer.install(snapshot);
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshot.close();
+    }
+}
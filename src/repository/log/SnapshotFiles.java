@@ -0,0 +1,129 @@
+package repository.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Snapshot files {@code <name>-<n>.snapshot}: the full state of a repository, framed like
+ * the log, covering every record written before log segment n. A snapshot is written to a
+ * temp file and renamed into place, so one that is visible is always complete.
+ */
+final class SnapshotFiles {
+    interface Source {
+        void writeTo(Consumer<byte[]> out) throws IOException;
+    }
+
+    private SnapshotFiles() {}
+
+    /** Number of the newest snapshot, or 0 if there is none. */
+    static long latest(Path dir, String name) throws IOException {
+        if (!Files.isDirectory(dir)) return 0;
+        String prefix = name + "-";
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(f -> f.startsWith(prefix) && f.endsWith(".snapshot"))
+                    .mapToLong(f -> Long.parseLong(f.substring(prefix.length(), f.length() - 9)))
+                    .max()
+                    .orElse(0);
+        }
+    }
+
+    static long load(Path dir, String name, long seg, Consumer<ByteBuffer> handler) throws IOException {
+        Path file = file(dir, name, seg);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = LogFrames.read(ch, handler);
+            if (end != ch.size()) throw new IllegalStateException("Corrupt snapshot: " + file + " at offset " + end);
+            return end;
+        }
+    }
+
+    /** @return size of the written snapshot in bytes */
+    static long write(Path dir, String name, long seg, Source source) throws IOException {
+        try (Writer out = new Writer(dir, name)) {
+            IOException[] error = new IOException[1];
+            source.writeTo(payload -> {
+                if (error[0] != null) return;
+                try {
+                    out.write(payload);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) throw error[0];
+            return out.commit(seg);
+        }
+    }
+
+    /**
+     * A snapshot written one record at a time into a temp file; {@link #commit} makes it
+     * snapshot seg, closing without a commit throws it away.
+     */
+    static final class Writer implements Closeable {
+        private final Path dir;
+        private final String name;
+        private final Path tmp;
+        private final FileChannel ch;
+        private final FrameWriter out;
+        private boolean committed;
+
+        Writer(Path dir, String name) throws IOException {
+            this(dir, name, "snapshot");
+        }
+
+        /** @param kind names the temp file, so writers of different kinds can run at once */
+        Writer(Path dir, String name, String kind) throws IOException {
+            this.dir = dir;
+            this.name = name;
+            this.tmp = dir.resolve(name + "." + kind + ".tmp");
+            this.ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.out = new FrameWriter(ch);
+        }
+
+        void write(byte[] payload) throws IOException {
+            out.write(payload);
+        }
+
+        /** @return size of the snapshot in bytes */
+        long commit(long seg) throws IOException {
+            out.close();
+            ch.force(true);
+            ch.close();
+            Path file = file(dir, name, seg);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+            return Files.size(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed) return;
+            ch.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    static void deleteBefore(Path dir, String name, long seg) throws IOException {
+        String prefix = name + "-";
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.toList()) {
+                String f = p.getFileName().toString();
+                if (!f.startsWith(prefix) || !f.endsWith(".snapshot")) continue;
+                long n = Long.parseLong(f.substring(prefix.length(), f.length() - 9));
+                if (n < seg) Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private static Path file(Path dir, String name, long seg) {
+        return dir.resolve(String.format("%s-%012d.snapshot", name, seg));
+    }
+}
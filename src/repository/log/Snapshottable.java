@@ -0,0 +1,11 @@
+package repository.log;
+
+import java.io.IOException;
+
+public interface Snapshottable {
+    /**
+     * Writes a snapshot of the current state while writes continue, then drops the log
+     * segments and older snapshots it makes obsolete.
+     */
+    void snapshot() throws IOException;
+}
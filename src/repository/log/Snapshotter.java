@@ -0,0 +1,47 @@
+package repository.log;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes periodic snapshots on a background thread so restart only has to replay the log
+ * written since the last one.
+ */
+public class Snapshotter implements Closeable {
+    private final List<Snapshottable> targets;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "snapshotter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public Snapshotter(List<Snapshottable> targets, Duration interval) {
+        this.targets = List.copyOf(targets);
+        long ms = interval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::snapshotAll, ms, ms, TimeUnit.MILLISECONDS);
+    }
+
+    public void snapshotAll() {
+        for (Snapshottable t : targets) {
+            try {
+                t.snapshot();
+            } catch (Exception e) {
+                System.out.println("[SNAPSHOT] failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package repository.tiered;
+
+import domain.Chat;
+import domain.message.Message;
+import repository.ChatRepository;
+import repository.log.ChatFileStore;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Keeps recently used chats in heap under a byte budget and spills the rest to a
+ * {@link ChatFileStore}; {@link #findById} loads a cold chat back transparently.
+ *
+ * Eviction is a segmented LRU: new and reloaded chats enter a probation segment and
+ * move to the protected segment on their next hit, so a one-off scan over old chats
+ * cannot push out the ones that are actually being talked in. Victims come from the
+ * tail of probation first.
+ *
+ * Evicted chats are written by a background thread that only takes the victim's own
+ * lock. Writers call {@link #appendMessage} while holding their chat's lock, so this
+ * class never waits for a chat lock while holding its own.
+ */
+public class TieredChatRepository implements ChatRepository, Closeable {
+    private static final int PROTECTED_PERCENT = 80;
+    private static final long MAX_THROTTLE_MS = 100;
+
+    private final ChatFileStore cold;
+    private final long budgetBytes;
+    private final long protectedBudget;
+
+    // all guarded by this
+    private final LinkedHashMap<Long, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, Entry> protectedSeg = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, Entry> evicting = new HashMap<>();
+    // an evicted chat that someone still holds must come back as the same object
+    private final Map<Long, ColdRef> detached = new HashMap<>();
+    private final Set<Long> coldIds = new HashSet<>();
+    private final Set<Long> allIds = new LinkedHashSet<>();
+    private final Map<Long, Set<Long>> chatsByUser = new HashMap<>();
+    private long hotBytes;
+    private long evictingBytes;
+    private long protectedBytes;
+    private boolean closed;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long evictedBytes;
+    private long loads;
+    private long loadNanos;
+    private long maxLoadNanos;
+
+    private final Thread evictor;
+
+    public TieredChatRepository(ChatFileStore cold, long budgetBytes) {
+        this.cold = cold;
+        this.budgetBytes = budgetBytes;
+        this.protectedBudget = budgetBytes * PROTECTED_PERCENT / 100;
+
+        this.evictor = new Thread(this::evictLoop, "chat-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /** Heap residency and cold-load counters since start. */
+    public record Stats(long hits, long misses, long evictions, long evictedBytes, long loads,
+                        long totalLoadNanos, long maxLoadNanos, long hotBytes, int hotChats, int coldChats) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 1.0 : (double) hits / total;
+        }
+
+        public double avgLoadMillis() {
+            return loads == 0 ? 0 : totalLoadNanos / 1e6 / loads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hot=%d chats/%d bytes cold=%d hitRate=%.3f loads=%d avgLoad=%.2f ms maxLoad=%.2f ms evicted=%d (%d bytes)",
+                    hotChats, hotBytes, coldChats, hitRate(), loads, avgLoadMillis(), maxLoadNanos / 1e6,
+                    evictions, evictedBytes);
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, evictedBytes, loads, loadNanos, maxLoadNanos, hotBytes,
+                probation.size() + protectedSeg.size() + evicting.size(), coldIds.size());
+    }
+
+    @Override
+    public void add(Chat chat) {
+        update(chat);
+    }
+
+    @Override
+    public Optional<Chat> findById(long id) {
+        synchronized (this) {
+            throttle();
+            Chat chat = resident(id);
+            if (chat != null) {
+                hits++;
+                return Optional.of(chat);
+            }
+            if (!coldIds.contains(id)) return Optional.empty();
+            misses++;
+        }
+
+        // read outside the lock; if another thread loaded it meanwhile, its copy wins
+        long start = System.nanoTime();
+        Chat loaded = cold.read(id);
+        long bytes = (loaded == null) ? 0 : estimate(loaded);
+        long took = System.nanoTime() - start;
+
+        synchronized (this) {
+            loads++;
+            loadNanos += took;
+            maxLoadNanos = Math.max(maxLoadNanos, took);
+
+            Chat chat = resident(id);
+            if (chat != null) return Optional.of(chat);
+            if (loaded == null || !coldIds.remove(id)) return Optional.empty();
+            admit(loaded, bytes, false);
+            return Optional.of(loaded);
+        }
+    }
+
+    @Override
+    public List<Chat> findAll() {
+        List<Chat> result = new ArrayList<>();
+        for (long id : ids()) findById(id).ifPresent(result::add);
+        return result;
+    }
+
+    @Override
+    public void forEachChat(Consumer<Chat> action) {
+        for (long id : ids()) {
+            Chat chat;
+            synchronized (this) {
+                chat = peek(id);
+                if (chat == null && !coldIds.contains(id)) continue;
+            }
+            // cold chats are read straight from disk and not admitted, so a full pass
+            // (snapshot, export) does not flush the working set
+            if (chat == null) chat = cold.read(id);
+            if (chat != null) action.accept(chat);
+        }
+    }
+
+    @Override
+    public List<Chat> findByParticipant(long userId) {
+        List<Long> ids;
+        synchronized (this) {
+            Set<Long> set = chatsByUser.get(userId);
+            if (set == null) return new ArrayList<>();
+            ids = new ArrayList<>(set);
+        }
+        List<Chat> result = new ArrayList<>(ids.size());
+        for (long id : ids) findById(id).ifPresent(result::add);
+        return result;
+    }
+
+    @Override
+    public void update(Chat chat) {
+        long bytes = estimate(chat);
+        synchronized (this) {
+            allIds.add(chat.getId());
+            indexParticipants(chat);
+            Entry e = touch(chat);
+            if (e == null) admit(chat, bytes, true);
+            else resize(e, bytes - e.bytes);
+        }
+    }
+
+    @Override
+    public synchronized void deleteById(long id) {
+        if (!allIds.remove(id)) return;
+        Entry e = probation.remove(id);
+        if (e == null) e = protectedSeg.remove(id);
+        if (e == null) {
+            e = evicting.remove(id);
+            if (e != null) evictingBytes -= e.bytes;
+        }
+        if (e != null) {
+            hotBytes -= e.bytes;
+            if (e.protectedSeg) protectedBytes -= e.bytes;
+        }
+        coldIds.remove(id);
+        detached.remove(id);
+        for (Set<Long> ids : chatsByUser.values()) ids.remove(id);
+        chatsByUser.values().removeIf(Set::isEmpty);
+        cold.delete(id);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendMessage(Chat chat, Message message) {
+        changed(chat, message.estimatedBytes());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> trimMessages(Chat chat, long throughId) {
+        long bytes = estimate(chat);
+        synchronized (this) {
+            if (!allIds.contains(chat.getId())) return CompletableFuture.completedFuture(null);
+            Entry e = touch(chat);
+            if (e != null) {
+                resize(e, bytes - e.bytes);
+            } else if (peek(chat.getId()) == null && coldIds.remove(chat.getId())) {
+                // a cold copy handed out by forEachChat: take it in dirty so its file is rewritten
+                admit(chat, bytes, true);
+            }
+            // otherwise a different copy is in heap now; it is trimmed on a later pass
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateStatus(Chat chat, Message message) {
+        changed(chat, 0);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> recordRead(Chat chat, long readerId, long throughId) {
+        changed(chat, 0);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            evictor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Entry {
+        final Chat chat;
+        long bytes;
+        boolean protectedSeg;
+        // set by writers, cleared by the evictor under the chat's lock before it writes
+        volatile boolean dirty;
+
+        Entry(Chat chat, long bytes, boolean dirty) {
+            this.chat = chat;
+            this.bytes = bytes;
+            this.dirty = dirty;
+        }
+    }
+
+    private static final class ColdRef extends WeakReference<Chat> {
+        final long bytes;
+
+        ColdRef(Chat chat, long bytes) {
+            super(chat);
+            this.bytes = bytes;
+        }
+    }
+
+    private synchronized List<Long> ids() {
+        return new ArrayList<>(allIds);
+    }
+
+    private void changed(Chat chat, long delta) {
+        synchronized (this) {
+            if (!allIds.contains(chat.getId())) return;
+            Entry e = touch(chat);
+            if (e != null) {
+                resize(e, delta);
+                return;
+            }
+        }
+        // only reached for a chat object this tier has never seen
+        long bytes = estimate(chat);
+        synchronized (this) {
+            if (allIds.contains(chat.getId()) && touch(chat) == null) admit(chat, bytes, true);
+        }
+    }
+
+    /** Marks a resident chat changed, pulling it back from eviction; null if it is not resident. */
+    private Entry touch(Chat chat) {
+        long id = chat.getId();
+        if (resident(id) != chat) return null;
+        Entry e = probation.get(id);
+        if (e == null) e = protectedSeg.get(id);
+        e.dirty = true;
+        return e;
+    }
+
+    /** The chat if it is in heap, counting as a use; does not load from disk. */
+    private Chat resident(long id) {
+        Entry e = probation.get(id);
+        if (e != null) {
+            promote(id, e);
+            return e.chat;
+        }
+        e = protectedSeg.get(id);
+        if (e != null) return e.chat;
+        e = evicting.remove(id);
+        if (e != null) {
+            evictingBytes -= e.bytes;
+            probation.put(id, e);
+            return e.chat;
+        }
+        ColdRef ref = detached.get(id);
+        Chat chat = (ref == null) ? null : ref.get();
+        if (chat != null) {
+            // its cold file is current, so it comes back clean
+            detached.remove(id);
+            coldIds.remove(id);
+            admit(chat, ref.bytes, false);
+        }
+        return chat;
+    }
+
+    private Chat peek(long id) {
+        Entry e = probation.get(id);
+        if (e == null) e = protectedSeg.get(id);
+        if (e == null) e = evicting.get(id);
+        if (e != null) return e.chat;
+        ColdRef ref = detached.get(id);
+        return (ref == null) ? null : ref.get();
+    }
+
+    private Entry admit(Chat chat, long bytes, boolean dirty) {
+        Entry e = new Entry(chat, bytes, dirty);
+        Entry old = probation.put(chat.getId(), e);
+        if (old == null) old = protectedSeg.remove(chat.getId());
+        if (old != null) {
+            hotBytes -= old.bytes;
+            if (old.protectedSeg) protectedBytes -= old.bytes;
+        }
+        hotBytes += bytes;
+        wakeEvictor();
+        return e;
+    }
+
+    private void promote(long id, Entry e) {
+        probation.remove(id);
+        e.protectedSeg = true;
+        protectedSeg.put(id, e);
+        protectedBytes += e.bytes;
+        // an over-full protected segment hands its least recent chats back to probation
+        Iterator<Entry> it = protectedSeg.values().iterator();
+        while (protectedBytes > protectedBudget) {
+            Entry demoted = it.next();
+            if (demoted == e) break;
+            it.remove();
+            demoted.protectedSeg = false;
+            protectedBytes -= demoted.bytes;
+            probation.put(demoted.chat.getId(), demoted);
+        }
+    }
+
+    private void resize(Entry e, long delta) {
+        e.bytes += delta;
+        hotBytes += delta;
+        if (e.protectedSeg) protectedBytes += delta;
+        wakeEvictor();
+    }
+
+    // lookups are the one entry point never called under a chat lock, so that is where
+    // callers are slowed down when writes outrun the evictor; the wait is bounded in
+    // case the evictor is stuck on a chat some caller does hold
+    private void throttle() {
+        long deadline = System.currentTimeMillis() + MAX_THROTTLE_MS;
+        while (!closed && hotBytes - evictingBytes > 2 * budgetBytes) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return;
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void wakeEvictor() {
+        if (hotBytes - evictingBytes > budgetBytes) notifyAll();
+    }
+
+    private void evictLoop() {
+        while (true) {
+            List<Entry> victims = new ArrayList<>();
+            synchronized (this) {
+                while (!closed && hotBytes - evictingBytes <= budgetBytes) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+
+                while (hotBytes - evictingBytes > budgetBytes) {
+                    Entry victim = pollEldest(probation);
+                    if (victim == null) victim = pollEldest(protectedSeg);
+                    if (victim == null) break;
+                    if (victim.protectedSeg) {
+                        protectedBytes -= victim.bytes;
+                        victim.protectedSeg = false;
+                    }
+                    evicting.put(victim.chat.getId(), victim);
+                    evictingBytes += victim.bytes;
+                    victims.add(victim);
+                }
+            }
+
+            for (Entry victim : victims) evict(victim);
+
+            synchronized (this) {
+                detached.values().removeIf(ref -> ref.get() == null);
+                notifyAll();
+            }
+        }
+    }
+
+    private void evict(Entry victim) {
+        long id = victim.chat.getId();
+        long written = 0;
+        boolean failed = false;
+        synchronized (victim.chat) {
+            try {
+                if (victim.dirty) {
+                    victim.dirty = false;
+                    written = cold.write(victim.chat);
+                }
+            } catch (RuntimeException e) {
+                victim.dirty = true;
+                failed = true;
+                System.out.println("[TIER] failed to evict chat #" + id + ": " + e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            // taken back while it was being written: it stays hot
+            if (evicting.get(id) != victim) return;
+            evicting.remove(id);
+            evictingBytes -= victim.bytes;
+            if (failed || victim.dirty) {
+                probation.put(id, victim);
+                return;
+            }
+            hotBytes -= victim.bytes;
+            coldIds.add(id);
+            detached.put(id, new ColdRef(victim.chat, victim.bytes));
+            evictions++;
+            evictedBytes += written;
+        }
+    }
+
+    private static Entry pollEldest(LinkedHashMap<Long, Entry> seg) {
+        Iterator<Entry> it = seg.values().iterator();
+        if (!it.hasNext()) return null;
+        Entry e = it.next();
+        it.remove();
+        return e;
+    }
+
+    private void indexParticipants(Chat chat) {
+        for (long uid : chat.getParticipantIds()) {
+            chatsByUser.computeIfAbsent(uid, k -> new LinkedHashSet<>()).add(chat.getId());
+        }
+    }
+
+    // rough heap footprint of the chat and its messages
+    private static long estimate(Chat chat) {
+        long bytes = 200 + 24L * chat.getParticipantIds().size();
+        for (Message m : chat.copyMessages()) bytes += m.estimatedBytes();
+        return bytes;
+    }
+}
@@ -0,0 +1,151 @@
+package repository.timed;
+
+import domain.Chat;
+import domain.message.Message;
+import repository.ChatRepository;
+import repository.HistorySink;
+import util.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Passes every call on to another repository and records how long it took, in
+ * nanoseconds. For the calls that return a future the time runs until the future
+ * completes, i.e. until the change is durable. Whole-repository walks (forEachChat,
+ * forEachMessage) are exports and are not timed.
+ */
+public class TimedChatRepository implements ChatRepository {
+    private final ChatRepository backing;
+
+    private final LatencyHistogram findById = new LatencyHistogram();
+    private final LatencyHistogram findAll = new LatencyHistogram();
+    private final LatencyHistogram findByParticipant = new LatencyHistogram();
+    private final LatencyHistogram update = new LatencyHistogram();
+    private final LatencyHistogram appendMessage = new LatencyHistogram();
+    private final LatencyHistogram appendMessages = new LatencyHistogram();
+    private final LatencyHistogram trimMessages = new LatencyHistogram();
+    private final LatencyHistogram updateStatus = new LatencyHistogram();
+    private final LatencyHistogram recordRead = new LatencyHistogram();
+    private final LatencyHistogram readHistory = new LatencyHistogram();
+
+    public TimedChatRepository(ChatRepository backing) {
+        this.backing = backing;
+    }
+
+    /** Histograms by method name, in a fixed order. */
+    public Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> m = new LinkedHashMap<>();
+        m.put("findById", findById);
+        m.put("findAll", findAll);
+        m.put("findByParticipant", findByParticipant);
+        m.put("update", update);
+        m.put("appendMessage", appendMessage);
+        m.put("appendMessages", appendMessages);
+        m.put("trimMessages", trimMessages);
+        m.put("updateStatus", updateStatus);
+        m.put("recordRead", recordRead);
+        m.put("readHistory", readHistory);
+        return m;
+    }
+
+    @Override
+    public void add(Chat chat) {
+        long start = System.nanoTime();
+        backing.add(chat);
+        update.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public Optional<Chat> findById(long id) {
+        long start = System.nanoTime();
+        Optional<Chat> chat = backing.findById(id);
+        findById.record(System.nanoTime() - start);
+        return chat;
+    }
+
+    @Override
+    public List<Chat> findAll() {
+        long start = System.nanoTime();
+        List<Chat> chats = backing.findAll();
+        findAll.record(System.nanoTime() - start);
+        return chats;
+    }
+
+    @Override
+    public List<Chat> findByParticipant(long userId) {
+        long start = System.nanoTime();
+        List<Chat> chats = backing.findByParticipant(userId);
+        findByParticipant.record(System.nanoTime() - start);
+        return chats;
+    }
+
+    @Override
+    public void forEachChat(Consumer<Chat> action) {
+        backing.forEachChat(action);
+    }
+
+    @Override
+    public void forEachMessage(Chat chat, int pageSize, Consumer<? super Message> action) {
+        backing.forEachMessage(chat, pageSize, action);
+    }
+
+    @Override
+    public void update(Chat chat) {
+        long start = System.nanoTime();
+        backing.update(chat);
+        update.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void deleteById(long id) {
+        long start = System.nanoTime();
+        backing.deleteById(id);
+        update.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendMessage(Chat chat, Message message) {
+        return timed(appendMessage, System.nanoTime(), backing.appendMessage(chat, message));
+    }
+
+    @Override
+    public CompletableFuture<Void> appendMessages(Chat chat, List<Message> messages) {
+        return timed(appendMessages, System.nanoTime(), backing.appendMessages(chat, messages));
+    }
+
+    @Override
+    public CompletableFuture<Void> trimMessages(Chat chat, long throughId) {
+        return timed(trimMessages, System.nanoTime(), backing.trimMessages(chat, throughId));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateStatus(Chat chat, Message message) {
+        return timed(updateStatus, System.nanoTime(), backing.updateStatus(chat, message));
+    }
+
+    @Override
+    public CompletableFuture<Void> recordRead(Chat chat, long readerId, long throughId) {
+        return timed(recordRead, System.nanoTime(), backing.recordRead(chat, readerId, throughId));
+    }
+
+    @Override
+    public void readHistory(long chatId, long afterId, int limit, HistorySink sink) {
+        long start = System.nanoTime();
+        backing.readHistory(chatId, afterId, limit, sink);
+        readHistory.record(System.nanoTime() - start);
+    }
+
+    // arguments are evaluated left to right, so start is taken before the backing call
+    private static CompletableFuture<Void> timed(LatencyHistogram h, long start, CompletableFuture<Void> f) {
+        if (f.isDone()) {
+            h.record(System.nanoTime() - start);
+            return f;
+        }
+        return f.whenComplete((v, e) -> h.record(System.nanoTime() - start));
+    }
+}
@@ -0,0 +1,78 @@
+package repository.timed;
+
+import domain.User;
+import repository.UserRepository;
+import util.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/** Like {@link TimedChatRepository}, for users. */
+public class TimedUserRepository implements UserRepository {
+    private final UserRepository backing;
+
+    private final LatencyHistogram findById = new LatencyHistogram();
+    private final LatencyHistogram findAll = new LatencyHistogram();
+    private final LatencyHistogram findByUsernamePrefix = new LatencyHistogram();
+    private final LatencyHistogram update = new LatencyHistogram();
+
+    public TimedUserRepository(UserRepository backing) {
+        this.backing = backing;
+    }
+
+    public Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> m = new LinkedHashMap<>();
+        m.put("findById", findById);
+        m.put("findAll", findAll);
+        m.put("findByUsernamePrefix", findByUsernamePrefix);
+        m.put("update", update);
+        return m;
+    }
+
+    @Override
+    public void add(User user) {
+        long start = System.nanoTime();
+        backing.add(user);
+        update.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public Optional<User> findById(long id) {
+        long start = System.nanoTime();
+        Optional<User> user = backing.findById(id);
+        findById.record(System.nanoTime() - start);
+        return user;
+    }
+
+    @Override
+    public List<User> findAll() {
+        long start = System.nanoTime();
+        List<User> users = backing.findAll();
+        findAll.record(System.nanoTime() - start);
+        return users;
+    }
+
+    @Override
+    public List<User> findByUsernamePrefix(String prefix, int limit) {
+        long start = System.nanoTime();
+        List<User> users = backing.findByUsernamePrefix(prefix, limit);
+        findByUsernamePrefix.record(System.nanoTime() - start);
+        return users;
+    }
+
+    @Override
+    public void update(User user) {
+        long start = System.nanoTime();
+        backing.update(user);
+        update.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void deleteById(long id) {
+        long start = System.nanoTime();
+        backing.deleteById(id);
+        update.record(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,339 @@
+package repository.writebehind;
+
+import domain.Chat;
+import domain.message.Message;
+import exception.ChatNotFoundException;
+import repository.ChatRepository;
+import repository.HistorySink;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects chat changes in memory and hands them to the backing repository in batches
+ * from one background thread. Per chat, pending changes are coalesced: a message's
+ * status is written once however often it moved, and a title change or read receipt
+ * once per batch. Messages of a chat are passed on in the order they were appended.
+ *
+ * Receipts and chat updates return right away and are written within {@code maxLag}.
+ * Appended messages keep the {@link #appendMessage} contract: their future completes
+ * when the backing repository has them durable, and the batch is flushed as soon as
+ * anybody waits on one, so senders get group commit rather than added latency.
+ *
+ * When {@code maxPending} changes are queued, receipt and update callers block until
+ * the flusher catches up. Appends never block (they run under the chat lock); they are
+ * bounded by the number of sender threads, each of which waits for its message.
+ * Deleting a chat drops its queued changes; its queued messages' futures fail with
+ * {@link ChatNotFoundException}, as they were never stored.
+ */
+public class WriteBehindChatRepository implements ChatRepository, Closeable {
+    private final ChatRepository backing;
+    private final long maxLagNanos;
+    private final int maxPending;
+
+    // all guarded by this
+    private LinkedHashMap<Long, Pending> pending = new LinkedHashMap<>();
+    private int pendingCount;
+    private int waitingAppends;
+    private long oldestNanos;
+    private long enqueued;
+    private long flushed;
+    private long flushRequested;
+    private boolean closed;
+
+    private long batches;
+    private long batchedChanges;
+    private int maxBatch;
+    private int maxDepth;
+    private long coalesced;
+    private long maxLagObserved;
+
+    private final Thread flusher;
+
+    public WriteBehindChatRepository(ChatRepository backing, Duration maxLag, int maxPending) {
+        this.backing = backing;
+        this.maxLagNanos = maxLag.toNanos();
+        this.maxPending = maxPending;
+
+        this.flusher = new Thread(this::flushLoop, "chat-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Queue depth and batching counters since start. */
+    public record Stats(int queueDepth, int maxQueueDepth, long batches, long changes, int maxBatch,
+                        long coalesced, long maxLagNanos) {
+        public double avgBatch() {
+            return batches == 0 ? 0 : (double) changes / batches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("depth=%d (max %d) batches=%d avgBatch=%.1f maxBatch=%d coalesced=%d maxLag=%.2f ms",
+                    queueDepth, maxQueueDepth, batches, avgBatch(), maxBatch, coalesced, maxLagNanos / 1e6);
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(pendingCount, maxDepth, batches, batchedChanges, maxBatch, coalesced, maxLagObserved);
+    }
+
+    @Override
+    public void add(Chat chat) {
+        // a new chat has to be visible to lookups at once
+        backing.add(chat);
+    }
+
+    @Override
+    public Optional<Chat> findById(long id) {
+        return backing.findById(id);
+    }
+
+    @Override
+    public List<Chat> findAll() {
+        return backing.findAll();
+    }
+
+    @Override
+    public List<Chat> findByParticipant(long userId) {
+        return backing.findByParticipant(userId);
+    }
+
+    @Override
+    public void forEachChat(Consumer<Chat> action) {
+        backing.forEachChat(action);
+    }
+
+    @Override
+    public void readHistory(long chatId, long afterId, int limit, HistorySink sink) {
+        backing.readHistory(chatId, afterId, limit, sink);
+    }
+
+    @Override
+    public synchronized void update(Chat chat) {
+        awaitRoom();
+        Pending p = pending(chat);
+        if (p.put) coalesced++;
+        else count();
+        p.put = true;
+    }
+
+    @Override
+    public void deleteById(long id) {
+        Pending dropped;
+        synchronized (this) {
+            dropped = pending.remove(id);
+            if (dropped != null) {
+                pendingCount -= dropped.size();
+                waitingAppends -= dropped.waiters.size();
+                notifyAll();
+            }
+        }
+        backing.deleteById(id);
+        // the chat is gone before its queued messages were stored, so their sends fail
+        if (dropped != null) dropped.complete(new ChatNotFoundException(id));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> appendMessage(Chat chat, Message message) {
+        Pending p = pending(chat);
+        p.messages.add(message);
+        count();
+        CompletableFuture<Void> stored = new CompletableFuture<>();
+        p.waiters.add(stored);
+        waitingAppends++;
+        notifyAll();
+        return stored;
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> updateStatus(Chat chat, Message message) {
+        awaitRoom();
+        Pending p = pending(chat);
+        if (p.statuses.put(message.getId(), message) != null) coalesced++;
+        else count();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> recordRead(Chat chat, long readerId, long throughId) {
+        awaitRoom();
+        Pending p = pending(chat);
+        if (p.readers.containsKey(readerId)) coalesced++;
+        else count();
+        p.readers.merge(readerId, throughId, Math::max);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> trimMessages(Chat chat, long throughId) {
+        awaitRoom();
+        Pending p = pending(chat);
+        if (p.trimThrough > 0) coalesced++;
+        else count();
+        p.trimThrough = Math.max(p.trimThrough, throughId);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /** Blocks until every change queued before the call has been written to the backing repository. */
+    public synchronized void flush() {
+        long target = enqueued;
+        flushRequested = Math.max(flushRequested, target);
+        notifyAll();
+        while (flushed < target) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Flushes everything still queued, then stops the background thread. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Changes of one chat waiting for the next batch. */
+    private static final class Pending {
+        final Chat chat;
+        boolean put;
+        // readerId -> highest message id read
+        final Map<Long, Long> readers = new LinkedHashMap<>();
+        final Map<Long, Message> statuses = new LinkedHashMap<>();
+        final List<Message> messages = new ArrayList<>();
+        long trimThrough;
+        final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+
+        Pending(Chat chat) {
+            this.chat = chat;
+        }
+
+        int size() {
+            return (put ? 1 : 0) + readers.size() + statuses.size() + messages.size() + (trimThrough > 0 ? 1 : 0);
+        }
+
+        void complete(Throwable error) {
+            for (CompletableFuture<Void> f : waiters) {
+                if (error == null) f.complete(null);
+                else f.completeExceptionally(error);
+            }
+        }
+    }
+
+    private Pending pending(Chat chat) {
+        if (pending.isEmpty()) oldestNanos = System.nanoTime();
+        return pending.computeIfAbsent(chat.getId(), id -> new Pending(chat));
+    }
+
+    private void count() {
+        pendingCount++;
+        enqueued++;
+        maxDepth = Math.max(maxDepth, pendingCount);
+        if (pendingCount >= maxPending) notifyAll();
+    }
+
+    private void awaitRoom() {
+        while (!closed && pendingCount >= maxPending) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Map<Long, Pending> batch;
+            long upTo;
+            synchronized (this) {
+                try {
+                    while (enqueued == flushed && !closed) wait();
+                    // linger for more changes unless somebody waits on this batch
+                    while (!closed && waitingAppends == 0 && flushRequested <= flushed && pendingCount < maxPending) {
+                        long left = oldestNanos + maxLagNanos - System.nanoTime();
+                        if (left <= 0) break;
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (enqueued == flushed && closed) return;
+
+                batch = pending;
+                upTo = enqueued;
+                pending = new LinkedHashMap<>();
+                batches++;
+                batchedChanges += pendingCount;
+                maxBatch = Math.max(maxBatch, pendingCount);
+                maxLagObserved = Math.max(maxLagObserved, System.nanoTime() - oldestNanos);
+                pendingCount = 0;
+                waitingAppends = 0;
+                notifyAll();
+            }
+
+            write(batch);
+
+            synchronized (this) {
+                flushed = upTo;
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(Map<Long, Pending> batch) {
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (Pending p : batch.values()) {
+            int from = written.size();
+            try {
+                if (p.put) backing.update(p.chat);
+                // reads go before this batch's messages: a message is encoded with its
+                // current status, so a later read is already reflected in it
+                for (Map.Entry<Long, Long> r : p.readers.entrySet()) {
+                    written.add(backing.recordRead(p.chat, r.getKey(), r.getValue()));
+                }
+                Set<Long> appended = new HashSet<>();
+                for (Message m : p.messages) appended.add(m.getId());
+                for (Message m : p.statuses.values()) {
+                    if (!appended.contains(m.getId())) written.add(backing.updateStatus(p.chat, m));
+                }
+                for (Message m : p.messages) written.add(backing.appendMessage(p.chat, m));
+                // after the messages, which may include ones the trim covers
+                if (p.trimThrough > 0) written.add(backing.trimMessages(p.chat, p.trimThrough));
+            } catch (RuntimeException e) {
+                System.out.println("[WRITE-BEHIND] chat #" + p.chat.getId() + " not stored: " + e.getMessage());
+                p.complete(e);
+                continue;
+            }
+            CompletableFuture.allOf(written.subList(from, written.size()).toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((v, e) -> p.complete(e == null ? null : unwrap(e)));
+        }
+        // the next batch starts once this one is durable, which is also what flush() promises
+        try {
+            CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0])).join();
+        } catch (RuntimeException e) {
+            System.out.println("[WRITE-BEHIND] batch not stored: " + unwrap(e).getMessage());
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+    }
+}
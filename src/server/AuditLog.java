@@ -0,0 +1,249 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access and audit log of client commands: one line per command with who sent it from
+ * where, what it touched, whether it failed and how long it took.
+ *
+ * Producers never block and allocate nothing. They claim the next slot of a preallocated
+ * ring with one CAS, fill in its fields and publish the slot's sequence number; when the
+ * writer has fallen a whole ring behind, the entry is dropped and counted instead. One
+ * background thread takes the published slots in order, formats them in batches into one
+ * reusable buffer and appends them to audit.log, which is rotated to audit.log.1 .. audit.log.<keep> once it
+ * reaches maxFileBytes.
+ */
+public class AuditLog implements Closeable {
+    private static final String FILE = "audit.log";
+    private static final int BATCH = 1024;
+    private static final long IDLE_NANOS = 1_000_000;
+    // remote and command are cut to MAX_FIELD characters, so a line never exceeds MAX_LINE bytes
+    private static final int MAX_FIELD = 64;
+    private static final int MAX_LINE = 512;
+
+    /** A preallocated entry; only the producer that claimed it writes it, until it is published. */
+    private static final class Slot {
+        long timeMillis;
+        String remote;
+        long userId;
+        String command;
+        long chatId;
+        long messageId;
+        boolean ok;
+        long nanos;
+        int bytes;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    // the next sequence number to hand out
+    private final AtomicLong claimed = new AtomicLong();
+    // per slot, the sequence number last published into it
+    private final AtomicLongArray published;
+    // everything below this has been copied out by the writer, so its slots are free
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+
+    private final Path dir;
+    private final long maxFileBytes;
+    private final int keepFiles;
+    private FileChannel file;
+    private long fileBytes;
+
+    private final Thread writer;
+    private volatile boolean closing;
+
+    // formatting state, writer thread only
+    private final ByteBuffer out = ByteBuffer.allocateDirect(256 * BATCH);
+    private long lastSecond = -1;
+    private String secondPrefix;
+    private long reportedDrops;
+
+    private AuditLog(Path dir, int ringSize, long maxFileBytes, int keepFiles) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) slots[i] = new Slot();
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) published.set(i, -1);
+
+        this.dir = Files.createDirectories(dir);
+        this.maxFileBytes = maxFileBytes;
+        this.keepFiles = keepFiles;
+        openFile();
+
+        this.writer = new Thread(this::writeLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** @param ringSize entries that can wait for the writer, rounded up to a power of two */
+    public static AuditLog open(Path dir, int ringSize, long maxFileBytes, int keepFiles) throws IOException {
+        return new AuditLog(dir, ringSize, maxFileBytes, keepFiles);
+    }
+
+    /** userId, chatId and messageId are 0 when there is none. */
+    public void record(String remote, long userId, String command, long chatId, long messageId,
+                       boolean ok, long nanos, int bytes) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= slots.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Slot s = slots[(int) seq & mask];
+        s.timeMillis = System.currentTimeMillis();
+        s.remote = remote;
+        s.userId = userId;
+        s.command = command;
+        s.chatId = chatId;
+        s.messageId = messageId;
+        s.ok = ok;
+        s.nanos = nanos;
+        s.bytes = bytes;
+        // release: the writer sees the fields once it sees the sequence
+        published.lazySet((int) seq & mask, seq);
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    private void writeLoop() {
+        long next = 0;
+        while (true) {
+            int n = 0;
+            while (n < BATCH && published.get((int) next & mask) == next) {
+                format(slots[(int) next & mask]);
+                next++;
+                n++;
+            }
+            if (n > 0) consumed = next;
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                putTime(System.currentTimeMillis());
+                put(" dropped=").put(drops - reportedDrops).put(" (writer fell behind)\n");
+                reportedDrops = drops;
+            }
+            if (out.position() > 0) {
+                flush();
+                continue;
+            }
+            // claimed entries are published right after, so wait for those before stopping
+            if (closing && claimed.get() == next) return;
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    private void format(Slot s) {
+        if (out.remaining() < MAX_LINE) flush();
+        putTime(s.timeMillis);
+        put(" remote=").put(s.remote).put(" user=").put(s.userId).put(" cmd=").put(s.command);
+        if (s.chatId != 0) put(" chat=").put(s.chatId);
+        if (s.messageId != 0) put(" msg=").put(s.messageId);
+        put(s.ok ? " status=OK" : " status=ERROR").put(" us=").put(s.nanos / 1000).put(" bytes=").put(s.bytes);
+        out.put((byte) '\n');
+        // the slot may be reused now; do not keep the strings alive meanwhile
+        s.remote = null;
+        s.command = null;
+    }
+
+    // ISO-8601 UTC with milliseconds; the part up to the second is formatted once per second
+    private void putTime(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != lastSecond) {
+            String iso = Instant.ofEpochSecond(second).toString();
+            secondPrefix = iso.substring(0, iso.length() - 1) + ".";
+            lastSecond = second;
+        }
+        int ms = Math.floorMod(millis, 1000);
+        put(secondPrefix);
+        out.put((byte) ('0' + ms / 100)).put((byte) ('0' + ms / 10 % 10)).put((byte) ('0' + ms % 10)).put((byte) 'Z');
+    }
+
+    // ASCII only: anything else (a client can send any command name) becomes '?'
+    private AuditLog put(String str) {
+        int len = Math.min(str.length(), MAX_FIELD);
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            out.put((c >= ' ' && c < 0x7F) ? (byte) c : (byte) '?');
+        }
+        return this;
+    }
+
+    private AuditLog put(long v) {
+        if (v < 0) {
+            out.put((byte) '-');
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) digits++;
+        int end = out.position() + digits;
+        for (int i = end - 1; i >= out.position(); i--) {
+            out.put(i, (byte) ('0' + v % 10));
+            v /= 10;
+        }
+        out.position(end);
+        return this;
+    }
+
+    private void flush() {
+        out.flip();
+        try {
+            int bytes = out.remaining();
+            while (out.hasRemaining()) file.write(out);
+            fileBytes += bytes;
+            if (fileBytes >= maxFileBytes) rotate();
+        } catch (IOException e) {
+            System.out.println("[AUDIT] write failed: " + e.getMessage());
+        }
+        out.clear();
+    }
+
+    private void rotate() throws IOException {
+        file.close();
+        Files.deleteIfExists(dir.resolve(FILE + "." + keepFiles));
+        for (int i = keepFiles - 1; i >= 1; i--) {
+            Path from = dir.resolve(FILE + "." + i);
+            if (Files.exists(from)) Files.move(from, dir.resolve(FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Path current = dir.resolve(FILE);
+        if (keepFiles > 0) Files.move(current, dir.resolve(FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        else Files.delete(current);
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        file = FileChannel.open(dir.resolve(FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileBytes = file.size();
+    }
+
+    /** Writes out what is queued and closes the file; entries recorded afterwards are lost. */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        file.close();
+    }
+}
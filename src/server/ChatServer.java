@@ -1,22 +1,43 @@
 package server;
 
+import cluster.ClusterConfig;
+import cluster.ClusterNode;
+import cluster.PresenceDirectory;
 import domain.Chat;
 import domain.User;
 import domain.message.Message;
 import net.Protocol;
+import replication.ReplicaFollower;
+import replication.ReplicationSource;
 import observer.ChatEventListener;
+import repository.ChatRepository;
+import repository.UserRepository;
+import repository.log.FsyncPolicy;
 import repository.inmemory.InMemoryChatRepository;
 import repository.inmemory.InMemoryUserRepository;
+import repository.timed.TimedChatRepository;
+import repository.timed.TimedUserRepository;
 import service.ChatService;
+import service.RetentionCompactor;
 import service.UserService;
+import trace.DeliverEvent;
+import trace.Tracing;
+import util.IdGenerator;
+import util.PeerAuth;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import domain.Chat;
 
 public class ChatServer implements ChatEventListener {
@@ -24,20 +45,166 @@ public class ChatServer implements ChatEventListener {
 
     private final UserService userService;
     private final ChatService chatService;
+    private final ChatRepository chats;
+    private final OfflineInbox inbox;
+    private final ServerStats stats;
+    private volatile AuditLog auditLog;
+    private volatile ClusterNode cluster;
+    // set by replicate(); follower is null on a primary and once promoted
+    private ReplicationSource replicationSource;
+    private volatile ReplicaFollower follower;
+    // -Dmessenger.compactIntervalSec=<n> sets how often chat retention policies are enforced
+    private final Duration compactInterval = Duration.ofSeconds(Long.getLong("messenger.compactIntervalSec", 60));
+    private final Set<Long> admins = parseIds(System.getProperty("messenger.adminUsers", ""));
+
+    // -Dmessenger.promoteIdMargin=<n> ids are skipped on promotion, for the ones the lost primary
+    // may have handed out without them reaching this server
+    private static final long PROMOTE_ID_MARGIN = Long.getLong("messenger.promoteIdMargin", 1_000_000);
+    // -Dmessenger.inboxEvents=<n>: a login gets up to n missed messages as events, more as per-chat counts
+    private static final int INBOX_EVENTS = Integer.getInteger("messenger.inboxEvents", 100);
+    // -Dmessenger.replayEvents=<n> sets how many events per user RESUME can replay
+    private static final int REPLAY_EVENTS = Integer.getInteger("messenger.replayEvents", 1024);
 
+    // handlers of the users connected here; where everyone is, also on other nodes, is in presence
     private final Map<Long, ClientHandler> online = new ConcurrentHashMap<>();
+    private final PresenceDirectory presence = new PresenceDirectory();
+    private final Map<Long, EventRing> rings = new ConcurrentHashMap<>();
+    // sequence numbers of a later run start above any of this one, so a stale RESUME resyncs
+    private final long seqBase = System.currentTimeMillis() * 1000;
 
     public ChatServer(int port) {
+        this(port, new InMemoryUserRepository(), new InMemoryChatRepository());
+    }
+
+    public ChatServer(int port, UserRepository users, ChatRepository chats) {
+        this(port, users, chats, defaultInbox());
+    }
+
+    public ChatServer(int port, UserRepository users, ChatRepository chats, OfflineInbox inbox) {
         this.port = port;
+        this.inbox = inbox;
+
+        // every repository call is timed for STATS
+        TimedUserRepository timedUsers = new TimedUserRepository(users);
+        TimedChatRepository timedChats = new TimedChatRepository(chats);
+        this.stats = new ServerStats(timedUsers, timedChats, online::size);
+
+        this.chats = timedChats;
+        this.userService = new UserService(timedUsers);
+        this.chatService = new ChatService(timedChats, userService);
+        chatService.addListener(this);
+    }
+
+    public ServerStats stats() {
+        return stats;
+    }
+
+    /** The command audit log, or null when it is off. */
+    public AuditLog auditLog() {
+        return auditLog;
+    }
+
+    /** This node's cluster, or null when the server runs alone. */
+    public ClusterNode cluster() {
+        return cluster;
+    }
+
+    /**
+     * Ships this server's logs to followers and/or makes it a read-only follower of a
+     * primary; either may be null. Called before {@link #start()}.
+     */
+    public void replicate(ReplicationSource source, ReplicaFollower follower) {
+        this.replicationSource = source;
+        this.follower = follower;
+    }
+
+    /** The primary this server follows, or null when it takes writes itself. */
+    public ReplicaFollower follower() {
+        return follower;
+    }
+
+    /**
+     * Makes a follower take writes: it stops applying the primary's records and runs as a
+     * primary on what it has. The old primary must be gone for good first, or both take writes.
+     * New ids skip -Dmessenger.promoteIdMargin past the replicated ones (see {@link ReplicaFollower#promote}).
+     *
+     * @return false if this server is not a follower
+     */
+    public synchronized boolean promote() {
+        ReplicaFollower f = follower;
+        if (f == null) return false;
+        long nextId = f.promote(PROMOTE_ID_MARGIN);
+        follower = null;
+        new RetentionCompactor(chats, compactInterval);
+        System.out.println("[REPL] promoted to primary at lsn " + f.appliedLsn() + " of " + f.primary()
+                + ", new ids from " + nextId);
+        return true;
+    }
 
-        this.userService = new UserService(new InMemoryUserRepository());
-        this.chatService = new ChatService(new InMemoryChatRepository(), userService);
+    /** Replication lines for STATS; empty when this server does not replicate. */
+    List<String> replicationStats() {
+        List<String> lines = new ArrayList<>();
+        ReplicaFollower f = follower;
+        if (f != null) lines.add(f.statsLine());
+        if (replicationSource != null) lines.addAll(replicationSource.statsLines());
+        return lines;
+    }
+
+    /** Whether userId (null when not logged in) may see STATS: anyone, unless admins are configured. */
+    boolean mayReadStats(Long userId) {
+        return admins.isEmpty() || (userId != null && admins.contains(userId));
+    }
+
+    /** Whether userId may PROMOTE this server: only a configured admin, so never without -Dmessenger.adminUsers. */
+    boolean mayPromote(Long userId) {
+        return userId != null && admins.contains(userId);
+    }
+
+    private static Set<Long> parseIds(String csv) {
+        Set<Long> ids = new HashSet<>();
+        for (String s : csv.split(",")) {
+            if (!s.isBlank()) ids.add(Long.parseLong(s.trim()));
+        }
+        return ids;
     }
 
     public void start() throws IOException {
         System.out.println("=== ChatServer started on port " + port + " ===");
         System.out.println("Clients can connect to localhost:" + port);
 
+        // a follower gets its trims from the primary until it is promoted
+        synchronized (this) {
+            if (follower == null) new RetentionCompactor(chats, compactInterval);
+        }
+        // -Dmessenger.statsIntervalSec=<n> prints the STATS report every n seconds, 0 never
+        stats.startDump(Duration.ofSeconds(Long.getLong("messenger.statsIntervalSec", 60)));
+        // -Dmessenger.jfr=<file> records the trace events (see Tracing)
+        Tracing.startFromProperties();
+        auditLog = openAuditLog();
+        // -Dmessenger.cluster=<id>@<host>:<port>,... and -Dmessenger.nodeId=<id> run this server as one node of a cluster
+        ClusterConfig clusterConfig = ClusterConfig.fromProperties();
+        if (clusterConfig != null) {
+            IdGenerator.stripe(clusterConfig.index(), clusterConfig.nodes().size());
+            // -Dmessenger.clusterSecret=<secret>, the same on every node, authenticates the node links
+            ClusterNode node = new ClusterNode(clusterConfig, PeerAuth.fromProperty("messenger.clusterSecret"),
+                    new ClusterHost(), presence);
+            chatService.setChatPlacement(node::owns);
+            node.start();
+            cluster = node;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (auditLog != null) auditLog.close();
+            } catch (IOException e) {
+                System.out.println("[AUDIT] close failed: " + e.getMessage());
+            }
+            try {
+                inbox.close();
+            } catch (IOException e) {
+                System.out.println("[INBOX] close failed: " + e.getMessage());
+            }
+        }, "server-shutdown"));
+
         try (ServerSocket ss = new ServerSocket(port)) {
             while (true) {
                 Socket socket = ss.accept();
@@ -49,97 +216,284 @@ public class ChatServer implements ChatEventListener {
     }
 
     public void registerOnline(long userId, ClientHandler handler) {
-        online.put(userId, handler);
+        EventRing ring = rings.computeIfAbsent(userId, id -> new EventRing(REPLAY_EVENTS, seqBase));
+        synchronized (ring) {
+            handler.loginSeq = ring.last();
+            online.put(userId, handler);
+        }
+        handler.session = presence.login(userId);
     }
 
-    public void unregisterOnline(long userId) {
-        online.remove(userId);
+    public void unregisterOnline(long userId, ClientHandler handler) {
+        // a later login of the same user here has replaced it already
+        if (online.remove(userId, handler)) presence.logout(userId, handler.session);
     }
 
-    public boolean isOnline(long userId) {
-        return online.containsKey(userId);
+    /** Tells the other nodes of a cluster about a user registered here. */
+    public void announceUser(User u) {
+        if (cluster != null) cluster.userRegistered(u.getId(), u.getUsername());
     }
 
-    private final Set<Long> subscribedChats = new HashSet<>();
+    public boolean isOnline(long userId) {
+        return presence.isOnline(userId);
+    }
 
-    public void ensureChatSubscribed(long chatId) {
-        if (subscribedChats.contains(chatId)) return;
+    @Override
+    public void onNewMessage(Chat chat, Message message) {
+        long start = System.nanoTime();
+        String[] event = event(chat, message);
+        List<Long> participants = chat.getParticipantIds();
+        int recipients = participants.size() - 1;
+        // users on other nodes, by node: each of those gets the event once for all of them
+        Map<Integer, List<Long>> remote = null;
+        for (Long uid : participants) {
+            PresenceDirectory.Presence p = presence.get(uid);
+            if (p != null && p.node() != presence.localNode()) {
+                if (remote == null) remote = new HashMap<>();
+                remote.computeIfAbsent(p.node(), n -> new ArrayList<>()).add(uid);
+                continue;
+            }
+            if (deliver(uid, chat.getId(), message.getId(), recipients, event)
+                    || uid == message.getSenderId()) continue;
+            keepForLater(uid, chat.getId(), message.getId());
+        }
+        if (remote != null) {
+            for (Map.Entry<Integer, List<Long>> e : remote.entrySet()) {
+                if (cluster.deliver(e.getKey(), e.getValue(), chat.getId(), message.getId(), recipients,
+                        event[0], event[1])) continue;
+                for (long uid : e.getValue()) {
+                    if (uid != message.getSenderId()) keepForLater(uid, chat.getId(), message.getId());
+                }
+            }
+        }
+        stats.fanout(recipients, System.nanoTime() - start);
+    }
 
-        Chat chat = chatService.getChat(chatId);
-        chat.subscribe(this);
-        subscribedChats.add(chatId);
+    // the message is stored already, so whatever goes wrong here must not fail its send
+    private void keepForLater(long userId, long chatId, long messageId) {
+        try {
+            inbox.add(userId, chatId, messageId);
+            // a login between push and add may have emptied the inbox before this got in
+            if (isOnline(userId)) deliverInbox(userId);
+        } catch (RuntimeException e) {
+            System.out.println("[INBOX] could not keep message " + messageId + " for user " + userId + ": " + e);
+        }
     }
-    public void ensureSubscribedForUser(long userId) {
-        for (Chat c : chatService.listChats()) {
-            if (c.getParticipantIds().contains(userId)) {
-                ensureChatSubscribed(c.getId());
+
+    /** Sends what userId missed while offline: the messages themselves, or counts per chat if there are many. */
+    public void deliverInbox(long userId) {
+        OfflineInbox.Backlog backlog = inbox.take(userId, INBOX_EVENTS);
+        if (backlog.isEmpty()) return;
+        if (backlog.refs() != null) {
+            for (OfflineInbox.Ref r : backlog.refs()) {
+                // the chat may be gone, or retention may have dropped the message since
+                Chat chat = chats.findById(r.chatId()).orElse(null);
+                Message m = (chat == null) ? null : chat.findMessage(r.messageId());
+                if (m == null) continue;
+                // gone again, or on a node that cannot be reached: it waits for the next login
+                if (!deliver(userId, chat.getId(), m.getId(), chat.getParticipantIds().size() - 1, event(chat, m))) {
+                    inbox.add(userId, chat.getId(), m.getId());
+                }
             }
+            return;
+        }
+        for (OfflineInbox.ChatCount c : backlog.chats()) {
+            String title = chats.findById(c.chatId()).map(Chat::getTitle).orElse("");
+            push(userId, Protocol.EVENT + " " + Protocol.INBOX, " chatId=" + c.chatId()
+                    + " chatTitle=" + safe(title)
+                    + " count=" + c.count()
+                    + " lastMessageId=" + c.lastMessageId());
         }
     }
 
-    @Override
-    public void onNewMessage(Chat chat, Message message) {
+    /** @return false if the user is offline */
+    private boolean push(long userId, String head, String fields) {
+        return push(userId, head, fields, 0, 0, 0) != null;
+    }
 
+    /**
+     * @return the line sent, null if the user is offline; the ids are only for tracing. A user
+     * on another node of the cluster gets the event from there, numbered by that node.
+     */
+    private String push(long userId, String head, String fields, long chatId, long messageId, int recipients) {
+        PresenceDirectory.Presence p = presence.get(userId);
+        if (p == null) return null;
+        if (p.node() == presence.localNode()) return pushLocal(userId, head, fields, chatId, messageId, recipients);
+        return cluster.deliver(p.node(), List.of(userId), chatId, messageId, recipients, head, fields)
+                ? head + fields : null;
+    }
+
+    private String pushLocal(long userId, String head, String fields, long chatId, long messageId, int recipients) {
+        // a user gets a ring when logging in, so without one it cannot be online
+        EventRing ring = rings.get(userId);
+        if (ring == null) return null;
+        // numbering and sending under one lock, so a user gets events in seq order
+        synchronized (ring) {
+            ClientHandler h = online.get(userId);
+            if (h == null) return null;
+            String line = ring.append(head, fields);
+            h.sendEvent(line, chatId, messageId, recipients);
+            return line;
+        }
+    }
+
+    /** Pushes a message's event, traced as a {@link DeliverEvent}; false if the user is offline. */
+    private boolean deliver(long userId, long chatId, long messageId, int recipients, String[] event) {
+        DeliverEvent traced = new DeliverEvent();
+        traced.begin();
+        String line = push(userId, event[0], event[1], chatId, messageId, recipients);
+        if (line != null && traced.shouldCommit()) {
+            traced.userId = userId;
+            traced.chatId = chatId;
+            traced.messageId = messageId;
+            traced.recipients = recipients;
+            traced.bytes = Tracing.lineBytes(line);
+            traced.commit();
+        }
+        return line != null;
+    }
+
+    /** The head and fields of a message's event; the seq goes between them. */
+    private String[] event(Chat chat, Message message) {
         long chatId = chat.getId();
         String chatTitle = safe(chat.getTitle());
         long senderId = message.getSenderId();
         String senderName = safe(userService.getUser(senderId).getUsername());
 
-        String eventLine;
+        String type;
+        String fields;
 
         if (message instanceof domain.message.TextMessage tm) {
-            eventLine = Protocol.EVENT + " NEW_TEXT"
-                    + " chatId=" + chatId
+            type = "NEW_TEXT";
+            fields = " chatId=" + chatId
                     + " chatTitle=" + chatTitle
                     + " senderId=" + senderId
                     + " sender=" + senderName
                     + " text=" + safe(tm.getText());
         } else if (message instanceof domain.message.VoiceLinkMessage vm) {
-            eventLine = Protocol.EVENT + " NEW_VOICE"
-                    + " chatId=" + chatId
+            type = "NEW_VOICE";
+            fields = " chatId=" + chatId
                     + " chatTitle=" + chatTitle
                     + " senderId=" + senderId
                     + " sender=" + senderName
                     + " title=" + safe(vm.getTitle())
                     + " url=" + safe(vm.getUrl());
         } else if (message instanceof domain.message.MediaLinkMessage mm) {
-            eventLine = Protocol.EVENT + " NEW_MEDIA"
-                    + " chatId=" + chatId
+            type = "NEW_MEDIA";
+            fields = " chatId=" + chatId
                     + " chatTitle=" + chatTitle
                     + " senderId=" + senderId
                     + " sender=" + senderName
                     + " title=" + safe(mm.getTitle())
                     + " url=" + safe(mm.getUrl());
         } else if (message instanceof domain.message.FileLinkMessage fm) {
-            eventLine = Protocol.EVENT + " NEW_FILE"
-                    + " chatId=" + chatId
+            type = "NEW_FILE";
+            fields = " chatId=" + chatId
                     + " chatTitle=" + chatTitle
                     + " senderId=" + senderId
                     + " sender=" + senderName
                     + " name=" + safe(fm.getFileName())
                     + " url=" + safe(fm.getUrl());
         } else if (message instanceof domain.message.ImageMessage im) {
-            eventLine = Protocol.EVENT + " NEW_IMAGE"
-                    + " chatId=" + chatId
+            type = "NEW_IMAGE";
+            fields = " chatId=" + chatId
                     + " chatTitle=" + chatTitle
                     + " senderId=" + senderId
                     + " sender=" + senderName
                     + " file=" + safe(im.getPathOrName());
         } else {
-            eventLine = Protocol.EVENT + " NEW_MESSAGE"
-                    + " chatId=" + chatId
+            type = "NEW_MESSAGE";
+            fields = " chatId=" + chatId
                     + " chatTitle=" + chatTitle
                     + " senderId=" + senderId
                     + " sender=" + senderName
                     + " text=" + safe(message.preview());
         }
 
-        for (Long uid : chat.getParticipantIds()) {
-            ClientHandler h = online.get(uid);
-            if (h != null) h.sendLine(eventLine);
+        return new String[] {Protocol.EVENT + " " + type, fields};
+    }
+
+    /**
+     * Sends userId the events after lastSeq that went to an earlier connection, e.g. one that
+     * died before the server noticed, and then the reply: RESUMED, or RESYNC if some of them
+     * are no longer kept and the client has to reload its chats. Events sent since this
+     * handler logged in were delivered live and are not sent again; messages that came while
+     * the user was offline are in the inbox, which the login has already delivered.
+     */
+    public void resume(long userId, long lastSeq, ClientHandler handler) {
+        EventRing ring = rings.get(userId);
+        synchronized (ring) {
+            List<String> missed = ring.between(lastSeq, Math.min(handler.loginSeq, ring.last()));
+            if (missed == null) {
+                handler.sendLine(Protocol.OK + " " + Protocol.RESYNC + " seq=" + ring.last());
+                return;
+            }
+            for (String line : missed) handler.sendLine(line);
+            handler.sendLine(Protocol.OK + " " + Protocol.RESUMED + " seq=" + ring.last() + " replayed=" + missed.size());
+        }
+    }
+
+    /** The local server as seen by the other nodes of the cluster. */
+    private final class ClusterHost implements ClusterNode.Host {
+        @Override
+        public List<String> execute(int fromNode, long userId, String command) {
+            return new ClientHandler(null, ChatServer.this, userService, chatService)
+                    .execute(userId, command, "node-" + fromNode);
+        }
+
+        @Override
+        public boolean pushLocal(long userId, long chatId, long messageId, int recipients, String head, String fields) {
+            return ChatServer.this.pushLocal(userId, head, fields, chatId, messageId, recipients) != null;
+        }
+
+        @Override
+        public void undelivered(long userId, long chatId, long messageId) {
+            keepForLater(userId, chatId, messageId);
+        }
+
+        @Override
+        public void deliverInbox(long userId) {
+            ChatServer.this.deliverInbox(userId);
+        }
+
+        @Override
+        public void addUser(long id, String username) {
+            userService.addReplica(id, username);
+        }
+
+        @Override
+        public List<User> users() {
+            return userService.listUsers();
+        }
+    }
+
+    private static OfflineInbox defaultInbox() {
+        // -Dmessenger.inboxDir=<dir> keeps the inbox across restarts; by default it only lives in heap
+        String dir = System.getProperty("messenger.inboxDir");
+        if (dir == null || dir.isBlank()) return OfflineInbox.inMemory();
+        try {
+            return openInbox(Path.of(dir), FsyncPolicy.PERIODIC, Duration.ofMillis(10));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
+    // -Dmessenger.inboxPerUser=<n> and -Dmessenger.inboxHeapRefs=<n> cap the references kept in heap
+    public static OfflineInbox openInbox(Path dir, FsyncPolicy fsync, Duration fsyncInterval) throws IOException {
+        return OfflineInbox.open(dir, fsync, fsyncInterval,
+                Integer.getInteger("messenger.inboxPerUser", 1000), Long.getLong("messenger.inboxHeapRefs", 1_000_000));
+    }
+
+    // -Dmessenger.auditDir=<dir> turns the audit log on; -Dmessenger.auditRing=<n> entries may wait
+    // for the writer, files rotate at -Dmessenger.auditFileMb=<n> and -Dmessenger.auditFiles=<n> old ones are kept
+    private static AuditLog openAuditLog() throws IOException {
+        String dir = System.getProperty("messenger.auditDir");
+        if (dir == null || dir.isBlank()) return null;
+        AuditLog log = AuditLog.open(Path.of(dir), Integer.getInteger("messenger.auditRing", 65536),
+                Long.getLong("messenger.auditFileMb", 64) << 20, Integer.getInteger("messenger.auditFiles", 10));
+        System.out.println("[AUDIT] writing to " + Path.of(dir).toAbsolutePath());
+        return log;
+    }
 
     private String safe(String s) {
         if (s == null) return "";
@@ -1,23 +1,35 @@
 package server;
 
+import cluster.ClusterNode;
 import domain.Chat;
+import domain.RetentionPolicy;
 import domain.User;
 import domain.message.Message;
-import domain.message.VoiceLinkMessage;
-import domain.message.ImageMessage;
-import domain.message.TextMessage;
-import domain.message.MediaLinkMessage;
-import domain.message.FileLinkMessage;
+import domain.message.MessageView;
 import net.Protocol;
+import replication.ReplicaFollower;
+import repository.HistorySink;
 import service.ChatService;
 import service.UserService;
+import trace.CommandEvent;
+import trace.FlushEvent;
+import trace.Tracing;
 
 
 import java.io.*;
 import java.net.Socket;
+import java.time.Duration;
 import java.util.*;
 
 public class ClientHandler implements Runnable {
+    private static final int DEFAULT_FIND_LIMIT = 20;
+    private static final int MAX_FIND_LIMIT = 100;
+    // refused by a follower, which only has the primary's data
+    private static final Set<String> WRITES = Set.of(Protocol.REGISTER, Protocol.CREATE_CHAT, Protocol.SEND_TEXT,
+            Protocol.SEND_VOICE_LINK, Protocol.SEND_MEDIA_LINK, Protocol.SEND_FILE_LINK, Protocol.RETENTION);
+    // -Dmessenger.replicaMaxLagMs=<n> bounds the staleness of reads on a follower unless maxLag= is given
+    private static final long DEFAULT_MAX_LAG_MS = Long.getLong("messenger.replicaMaxLagMs", Long.MAX_VALUE);
+
     private final Socket socket;
     private final ChatServer server;
     private final UserService userService;
@@ -27,6 +39,17 @@ public class ClientHandler implements Runnable {
     private PrintWriter out;
 
     private Long currentUserId = null;
+    private String remote;
+    // the message the current command sent, for its CommandEvent and audit entry
+    private Message sent;
+    private int sentRecipients;
+    // whether the current command replied with an ERROR
+    private boolean failed;
+    // replies of a forwarded command, which go back to the node that forwarded it
+    private List<String> captured;
+    // last event seq of this user when it logged in here, and the login's presence session; set by ChatServer
+    volatile long loginSeq;
+    volatile long session;
 
     public ClientHandler(Socket socket, ChatServer server, UserService userService, ChatService chatService) {
         this.socket = socket;
@@ -37,7 +60,14 @@ public class ClientHandler implements Runnable {
 
     @Override
     public void run() {
+        server.stats().connected();
+        remote = String.valueOf(socket.getRemoteSocketAddress());
+        long connectedAt = System.nanoTime();
+        audit("CONNECT", "", "", 0);
         try (socket) {
+            // replies often follow an event line to the same client; without this the second
+            // small write waits for the client's delayed ACK (~40 ms)
+            socket.setTcpNoDelay(true);
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
 
@@ -47,55 +77,178 @@ public class ClientHandler implements Runnable {
             while ((line = in.readLine()) != null) {
                 line = line.trim();
                 if (line.isEmpty()) continue;
-
-                String cmd = firstToken(line).toUpperCase();
-                String args = rest(line);
-
-                try {
-                    switch (cmd) {
-                        case Protocol.HELP -> handleHelp();
-                        case Protocol.EXIT -> { handleExit(); return; }
-
-                        case Protocol.REGISTER -> handleRegister(args);
-                        case Protocol.LOGIN -> handleLogin(args);
-
-                        case Protocol.USERS -> handleUsers();
-                        case Protocol.CREATE_CHAT -> handleCreateChat(args);
-                        case Protocol.CHATS -> handleChats();
-
-                        case Protocol.SEND_TEXT -> handleSendText(args);
-                        case Protocol.SEND_VOICE_LINK -> handleSendVoiceLink(args);
-                        case Protocol.SEND_MEDIA_LINK -> handleSendMediaLink(args);
-                        case Protocol.SEND_FILE_LINK -> handleSendFileLink(args);
-                        case Protocol.HISTORY -> handleHistory(args);
-
-                        default -> sendLine(Protocol.ERROR + " Unknown command. Type HELP");
-                    }
-                } catch (Exception ex) {
-                    sendLine(Protocol.ERROR + " " + ex.getMessage());
-                }
+                if (!handle(line)) return;
             }
         } catch (IOException ignored) {
         } finally {
+            audit("DISCONNECT", "", "", System.nanoTime() - connectedAt);
+            server.stats().disconnected();
             if (currentUserId != null) {
-                server.unregisterOnline(currentUserId);
+                server.unregisterOnline(currentUserId, this);
             }
         }
     }
 
+    /**
+     * Runs a command another node of the cluster forwarded, as userId (0: not logged in), and
+     * returns the reply lines instead of sending them.
+     */
+    List<String> execute(long userId, String line, String remote) {
+        this.currentUserId = (userId == 0) ? null : userId;
+        this.remote = remote;
+        this.captured = new ArrayList<>();
+        handle(line.trim());
+        return captured;
+    }
+
+    /** @return false after EXIT */
+    private boolean handle(String line) {
+        String cmd = firstToken(line).toUpperCase();
+        String args = rest(line);
+
+        CommandEvent traced = new CommandEvent();
+        traced.begin();
+        long start = System.nanoTime();
+        sent = null;
+        failed = false;
+        try {
+            ReplicaFollower follower = server.follower();
+            if (follower != null && WRITES.contains(cmd)) {
+                sendLine(Protocol.ERROR + " Read-only replica of " + follower.primary() + ": send " + cmd + " to the primary");
+                return true;
+            }
+            switch (cmd) {
+                case Protocol.HELP -> handleHelp();
+                case Protocol.EXIT -> { handleExit(); return false; }
+
+                case Protocol.REGISTER -> handleRegister(args);
+                case Protocol.LOGIN -> handleLogin(args);
+                case Protocol.RESUME -> handleResume(args);
+
+                case Protocol.USERS -> handleUsers();
+                case Protocol.FIND_USERS -> handleFindUsers(args);
+                case Protocol.CREATE_CHAT -> handleCreateChat(args);
+                case Protocol.CHATS -> handleChats(args);
+
+                case Protocol.SEND_TEXT -> handleSendText(args);
+                case Protocol.SEND_VOICE_LINK -> handleSendVoiceLink(args);
+                case Protocol.SEND_MEDIA_LINK -> handleSendMediaLink(args);
+                case Protocol.SEND_FILE_LINK -> handleSendFileLink(args);
+                case Protocol.HISTORY -> handleHistory(args);
+                case Protocol.RETENTION -> handleRetention(args);
+                case Protocol.STATS -> handleStats();
+                case Protocol.PROMOTE -> handlePromote();
+
+                default -> sendLine(Protocol.ERROR + " Unknown command. Type HELP");
+            }
+        } catch (Exception ex) {
+            sendLine(Protocol.ERROR + " " + ex.getMessage());
+        } finally {
+            long nanos = System.nanoTime() - start;
+            server.stats().command(cmd, nanos);
+            audit(cmd, args, line, nanos);
+            if (traced.shouldCommit()) commit(traced, cmd, line);
+        }
+        return true;
+    }
+
     public void sendLine(String line) {
-        if (out != null) out.println(line);
+        if (line.startsWith(Protocol.ERROR)) failed = true;
+        write(line, 0, 0, 0);
+    }
+
+    /** Sends an event line about a message; the ids only go into its trace event. */
+    void sendEvent(String line, long chatId, long messageId, int recipients) {
+        write(line, chatId, messageId, recipients);
+    }
+
+    private void write(String line, long chatId, long messageId, int recipients) {
+        if (captured != null) {
+            captured.add(line);
+            return;
+        }
+        PrintWriter w = out;
+        if (w == null) return;
+        FlushEvent traced = new FlushEvent();
+        traced.begin();
+        // println flushes to the socket
+        w.println(line);
+        if (traced.shouldCommit()) {
+            Long user = currentUserId;
+            traced.userId = (user == null) ? 0 : user;
+            traced.chatId = chatId;
+            traced.messageId = messageId;
+            traced.recipients = recipients;
+            traced.bytes = Tracing.lineBytes(line);
+            traced.commit();
+        }
+    }
+
+    private void commit(CommandEvent traced, String cmd, String line) {
+        traced.command = cmd;
+        traced.userId = (currentUserId == null) ? 0 : currentUserId;
+        traced.bytes = Tracing.lineBytes(line);
+        if (sent != null) {
+            traced.chatId = sent.getChatId();
+            traced.messageId = sent.getId();
+            traced.recipients = sentRecipients;
+        }
+        traced.commit();
+    }
+
+    private void audit(String cmd, String args, String line, long nanos) {
+        AuditLog audit = server.auditLog();
+        if (audit == null) return;
+        long userId = (currentUserId == null) ? 0 : currentUserId;
+        long chatId = (sent != null) ? sent.getChatId() : leadingId(args);
+        long messageId = (sent != null) ? sent.getId() : 0;
+        audit.record(remote, userId, cmd, chatId, messageId, !failed, nanos, line.isEmpty() ? 0 : Tracing.lineBytes(line));
+    }
+
+    // the chat id most chat commands start with, or 0; parsed in place so it allocates nothing
+    private static long leadingId(String args) {
+        long id = 0;
+        int i = 0;
+        for (; i < args.length() && i < 18; i++) {
+            char c = args.charAt(i);
+            if (c < '0' || c > '9') break;
+            id = id * 10 + (c - '0');
+        }
+        return (i < args.length() && args.charAt(i) != ' ') ? 0 : id;
+    }
+
+    // in a cluster, a command on a chat runs on the node that owns the chat; its reply is relayed
+    private boolean forwarded(String cmd, String args) {
+        ClusterNode cluster = server.cluster();
+        if (cluster == null || captured != null) return false;
+        long chatId = leadingId(args.trim());
+        if (chatId == 0 || cluster.owns(chatId)) return false;
+        for (String reply : cluster.forward(chatId, currentUserId, cmd + " " + args)) sendLine(reply);
+        return true;
+    }
+
+    private void traceSent(Chat chat, Message msg) {
+        sent = msg;
+        sentRecipients = chat.getParticipantIds().size() - 1;
     }
 
     private void handleHelp() {
         sendLine(Protocol.OK + " Commands:");
         sendLine("  REGISTER <username>");
         sendLine("  LOGIN <userId>");
+        sendLine("  RESUME <lastSeq>");
         sendLine("  USERS");
+        sendLine("  FIND_USERS <prefix> [limit]");
         sendLine("  CREATE_CHAT <title> | <id1,id2,...>");
-        sendLine("  CHATS");
-        sendLine("  SEND_TEXT <chatId> <text...>");
-        sendLine("  HISTORY <chatId>");
+        sendLine("  CHATS [maxLag=<ms>]");
+        sendLine("  SEND_TEXT <chatId> [cid=<n>] <text...>");
+        sendLine("  SEND_VOICE_LINK <chatId> [cid=<n>] <title> | <url>");
+        sendLine("  SEND_MEDIA_LINK <chatId> [cid=<n>] <title> | <url>");
+        sendLine("  SEND_FILE_LINK <chatId> [cid=<n>] <fileName> | <url>");
+        sendLine("  HISTORY <chatId> [after=<messageId>] [limit=<n>] [ids] [maxLag=<ms>]");
+        sendLine("  RETENTION <chatId> [days=<n>] [max=<n>]");
+        sendLine("  STATS");
+        sendLine("  PROMOTE");
         sendLine("  EXIT");
     }
 
@@ -109,9 +262,9 @@ public class ClientHandler implements Runnable {
             return;
         }
         User u = userService.createUser(args.trim());
+        server.announceUser(u);
         currentUserId = u.getId();
         server.registerOnline(currentUserId, this);
-        server.ensureSubscribedForUser(currentUserId);
 
         sendLine(Protocol.OK + " REGISTERED userId=" + u.getId() + " username=" + u.getUsername());
 
@@ -127,9 +280,18 @@ public class ClientHandler implements Runnable {
 
         currentUserId = u.getId();
         server.registerOnline(currentUserId, this);
-        server.ensureSubscribedForUser(currentUserId);
 
         sendLine(Protocol.OK + " LOGGED_IN userId=" + u.getId() + " username=" + u.getUsername());
+        server.deliverInbox(currentUserId);
+    }
+
+    private void handleResume(String args) {
+        requireLogin();
+        if (args.isBlank()) {
+            sendLine(Protocol.ERROR + " Usage: RESUME <lastSeq>");
+            return;
+        }
+        server.resume(currentUserId, Long.parseLong(args.trim()), this);
     }
 
     private void requireLogin() {
@@ -148,6 +310,21 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    private void handleFindUsers(String args) {
+        String[] p = args.trim().split("\\s+");
+        long limit = (p.length == 2) ? positiveLong(p[1]) : DEFAULT_FIND_LIMIT;
+        if (args.isBlank() || p.length > 2 || limit <= 0) {
+            sendLine(Protocol.ERROR + " Usage: FIND_USERS <prefix> [limit]");
+            return;
+        }
+
+        List<User> users = userService.findUsers(p[0], (int) Math.min(limit, MAX_FIND_LIMIT));
+        sendLine(Protocol.OK + " USERS count=" + users.size());
+        for (User u : users) {
+            sendLine("  " + server.formatUser(u));
+        }
+    }
+
     private void handleCreateChat(String args) {
         requireLogin();
         if (!args.contains("|")) {
@@ -180,46 +357,58 @@ public class ClientHandler implements Runnable {
 
         Chat chat = chatService.createChat(title, participantList);
 
-        server.ensureChatSubscribed(chat.getId());
-
         sendLine(Protocol.OK + " CHAT_CREATED chatId=" + chat.getId()
                 + " title=" + chat.getTitle()
                 + " participants=" + participantList);
     }
 
-    private void handleChats() {
+    private void handleChats(String args) {
         requireLogin();
-        List<Chat> chats = chatService.listChats();
-
-        List<Chat> mine = new ArrayList<>();
-        for (Chat c : chats) {
-            if (c.getParticipantIds().contains(currentUserId)) {
-                mine.add(c);
-            }
+        String option = args.trim();
+        long maxLag = DEFAULT_MAX_LAG_MS;
+        if (option.startsWith(Protocol.MAX_LAG)) {
+            maxLag = Long.parseLong(option.substring(Protocol.MAX_LAG.length()));
+        } else if (!option.isEmpty()) {
+            sendLine(Protocol.ERROR + " Usage: CHATS [maxLag=<ms>]");
+            return;
         }
+        if (tooStale(maxLag)) return;
+        List<Chat> mine = chatService.listChatsOf(currentUserId);
 
-        sendLine(Protocol.OK + " CHATS count=" + mine.size());
+        List<String> rows = new ArrayList<>(mine.size());
         for (Chat c : mine) {
             String participantsNames = c.getParticipantIds().stream()
                     .map(id -> userService.getUser(id).getUsername())
                     .reduce((a, b) -> a + "," + b)
                     .orElse("");
 
-            sendLine("  chatId=" + c.getId()
+            rows.add("  chatId=" + c.getId()
                     + "|title=" + c.getTitle()
                     + "|participants=" + participantsNames);
         }
+        // in a cluster the other nodes own the rest of the user's chats
+        ClusterNode cluster = server.cluster();
+        if (cluster != null && captured == null) rows.addAll(cluster.gather(currentUserId, Protocol.CHATS));
+
+        sendLine(Protocol.OK + " CHATS count=" + rows.size());
+        for (String row : rows) sendLine(row);
     }
 
     private void handleSendText(String args) {
         requireLogin();
+        if (forwarded(Protocol.SEND_TEXT, args)) return;
         String[] p = args.split("\\s+", 2);
         if (p.length < 2) {
             sendLine(Protocol.ERROR + " Usage: SEND_TEXT <chatId> <text...>");
             return;
         }
         long chatId = Long.parseLong(p[0]);
-        String text = p[1];
+        ClientTagged tagged = clientTagged(p[1]);
+        String text = tagged.rest();
+        if (text.isEmpty()) {
+            sendLine(Protocol.ERROR + " Usage: SEND_TEXT <chatId> [cid=<n>] <text...>");
+            return;
+        }
 
         Chat chat = chatService.getChat(chatId);
         if (!chat.getParticipantIds().contains(currentUserId)) {
@@ -227,13 +416,14 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        server.ensureChatSubscribed(chatId);
-        Message msg = chatService.sendText(chatId, currentUserId, text);
+        Message msg = chatService.sendText(chatId, currentUserId, text, tagged.clientMsgId());
+        traceSent(chat, msg);
         sendLine(Protocol.OK + " SENT messageId=" + msg.getId() + " status=" + msg.getStatus());
     }
 
     private void handleSendVoiceLink(String args) {
         requireLogin();
+        if (forwarded(Protocol.SEND_VOICE_LINK, args)) return;
         if (!args.contains("|")) {
             sendLine(Protocol.ERROR + " Usage: SEND_VOICE_LINK <chatId> <title> | <url>");
             return;
@@ -250,20 +440,22 @@ public class ClientHandler implements Runnable {
         }
 
         long chatId = Long.parseLong(leftParts[0]);
-        String title = leftParts[1].trim();
+        ClientTagged tagged = clientTagged(leftParts[1]);
+        String title = tagged.rest();
 
         Chat chat = chatService.getChat(chatId);
         if (!chat.getParticipantIds().contains(currentUserId)) {
             sendLine(Protocol.ERROR + " You are not a participant of chatId=" + chatId);
             return;
         }
-        server.ensureChatSubscribed(chatId);
-        var msg = chatService.sendVoiceLink(chatId, currentUserId, title, url);
+        var msg = chatService.sendVoiceLink(chatId, currentUserId, title, url, tagged.clientMsgId());
+        traceSent(chat, msg);
         sendLine(Protocol.OK + " SENT messageId=" + msg.getId() + " kind=VOICE");
     }
 
     private void handleSendMediaLink(String args) {
         requireLogin();
+        if (forwarded(Protocol.SEND_MEDIA_LINK, args)) return;
         if (!args.contains("|")) {
             sendLine(Protocol.ERROR + " Usage: SEND_MEDIA_LINK <chatId> <title> | <url>");
             return;
@@ -276,20 +468,22 @@ public class ClientHandler implements Runnable {
         if (lp.length < 2) { sendLine(Protocol.ERROR + " Usage: SEND_MEDIA_LINK <chatId> <title> | <url>"); return; }
 
         long chatId = Long.parseLong(lp[0]);
-        String title = lp[1].trim();
+        ClientTagged tagged = clientTagged(lp[1]);
+        String title = tagged.rest();
 
         Chat chat = chatService.getChat(chatId);
         if (!chat.getParticipantIds().contains(currentUserId)) {
             sendLine(Protocol.ERROR + " You are not a participant of chatId=" + chatId);
             return;
         }
-        server.ensureChatSubscribed(chatId);
-        chatService.sendMediaLink(chatId, currentUserId, title, url);
-        sendLine(Protocol.OK + " SENT kind=MEDIA");
+        var msg = chatService.sendMediaLink(chatId, currentUserId, title, url, tagged.clientMsgId());
+        traceSent(chat, msg);
+        sendLine(Protocol.OK + " SENT messageId=" + msg.getId() + " kind=MEDIA");
     }
 
     private void handleSendFileLink(String args) {
         requireLogin();
+        if (forwarded(Protocol.SEND_FILE_LINK, args)) return;
         if (!args.contains("|")) {
             sendLine(Protocol.ERROR + " Usage: SEND_FILE_LINK <chatId> <fileName> | <url>");
             return;
@@ -302,7 +496,8 @@ public class ClientHandler implements Runnable {
         if (lp.length < 2) { sendLine(Protocol.ERROR + " Usage: SEND_FILE_LINK <chatId> <fileName> | <url>"); return; }
 
         long chatId = Long.parseLong(lp[0]);
-        String fileName = lp[1].trim();
+        ClientTagged tagged = clientTagged(lp[1]);
+        String fileName = tagged.rest();
 
         Chat chat = chatService.getChat(chatId);
         if (!chat.getParticipantIds().contains(currentUserId)) {
@@ -310,18 +505,39 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        server.ensureChatSubscribed(chatId);
-        chatService.sendFileLink(chatId, currentUserId, fileName, url);
-        sendLine(Protocol.OK + " SENT kind=FILE");
+        var msg = chatService.sendFileLink(chatId, currentUserId, fileName, url, tagged.clientMsgId());
+        traceSent(chat, msg);
+        sendLine(Protocol.OK + " SENT messageId=" + msg.getId() + " kind=FILE");
     }
 
     private void handleHistory(String args) {
         requireLogin();
+        if (forwarded(Protocol.HISTORY, args)) return;
+        String[] p = args.trim().split("\\s+");
         if (args.isBlank()) {
-            sendLine(Protocol.ERROR + " Usage: HISTORY <chatId>");
+            sendLine(Protocol.ERROR + " Usage: HISTORY <chatId> [after=<messageId>] [limit=<n>] [ids] [maxLag=<ms>]");
             return;
         }
-        long chatId = Long.parseLong(args.trim());
+        long chatId = Long.parseLong(p[0]);
+        long afterId = 0;
+        int limit = Integer.MAX_VALUE;
+        boolean ids = false;
+        long maxLag = DEFAULT_MAX_LAG_MS;
+        for (int i = 1; i < p.length; i++) {
+            if (p[i].equals(Protocol.HISTORY_IDS)) {
+                ids = true;
+            } else if (p[i].startsWith(Protocol.HISTORY_AFTER)) {
+                afterId = Long.parseLong(p[i].substring(Protocol.HISTORY_AFTER.length()));
+            } else if (p[i].startsWith(Protocol.HISTORY_LIMIT)) {
+                limit = Math.max(0, Integer.parseInt(p[i].substring(Protocol.HISTORY_LIMIT.length())));
+            } else if (p[i].startsWith(Protocol.MAX_LAG)) {
+                maxLag = Long.parseLong(p[i].substring(Protocol.MAX_LAG.length()));
+            } else {
+                sendLine(Protocol.ERROR + " Usage: HISTORY <chatId> [after=<messageId>] [limit=<n>] [ids] [maxLag=<ms>]");
+                return;
+            }
+        }
+        if (tooStale(maxLag)) return;
 
         Chat chat = chatService.getChat(chatId);
         if (!chat.getParticipantIds().contains(currentUserId)) {
@@ -329,34 +545,125 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        List<Message> history = chatService.getHistory(chatId);
-        sendLine(Protocol.OK + " HISTORY chat=" + chat.getTitle() + " count=" + history.size());
-
-        for (Message m : history) {
-            String senderName = userService.getUser(m.getSenderId()).getUsername();
-            String ts = String.valueOf(m.getTimestamp());
-
-            if (m instanceof VoiceLinkMessage vm) {
-                sendLine("[" + ts + "] " + escape(senderName)
-                        + " 🎙 Voice: " + escape(vm.getTitle())
-                        + " (" + escape(vm.getUrl()) + ")");
-            } else if (m instanceof domain.message.MediaLinkMessage mm) {
-                sendLine("[" + ts + "] " + escape(senderName)
-                        + " 🎞 Media: " + escape(mm.getTitle())
-                        + " (" + escape(mm.getUrl()) + ")");
-            } else if (m instanceof domain.message.FileLinkMessage fm) {
-                sendLine("[" + ts + "] " + escape(senderName)
-                        + " 📎 File: " + escape(fm.getFileName())
-                        + " (" + escape(fm.getUrl()) + ")");
-            } else if (m instanceof domain.message.ImageMessage im) {
-                sendLine("[" + ts + "] " + escape(senderName)
-                        + " 🖼 Image: " + escape(im.getPathOrName()));
-            } else if (m instanceof domain.message.TextMessage tm) {
-                sendLine("[" + ts + "] " + escape(senderName) + ": " + escape(tm.getText()));
+        boolean withIds = ids;
+        chatService.readHistory(chatId, afterId, limit, new HistorySink() {
+            @Override
+            public void begin(int count) {
+                sendLine(Protocol.OK + " HISTORY chat=" + chat.getTitle() + " count=" + count);
+            }
+
+            @Override
+            public void message(MessageView m) {
+                sendLine(withIds ? m.getId() + " " + historyLine(m) : historyLine(m));
+            }
+        });
+    }
+
+    private void handleStats() {
+        if (!server.mayReadStats(currentUserId)) {
+            sendLine(Protocol.ERROR + " STATS is for admins only");
+            return;
+        }
+        List<String> lines = new ArrayList<>(server.stats().lines());
+        ClusterNode cluster = server.cluster();
+        if (cluster != null) lines.add(cluster.statsLine());
+        lines.addAll(server.replicationStats());
+        sendLine(Protocol.OK + " STATS count=" + lines.size());
+        for (String line : lines) sendLine("  " + line);
+    }
+
+    private void handlePromote() {
+        if (!server.mayPromote(currentUserId)) {
+            sendLine(Protocol.ERROR + " PROMOTE is for admins only");
+            return;
+        }
+        ReplicaFollower follower = server.follower();
+        if (follower == null || !server.promote()) {
+            sendLine(Protocol.ERROR + " Not a replica");
+            return;
+        }
+        sendLine(Protocol.OK + " PROMOTED lsn=" + follower.appliedLsn() + " was=" + follower.primary());
+    }
+
+    // a read on a follower whose data may be older than maxLagMs is refused, so the client can go to the primary
+    private boolean tooStale(long maxLagMs) {
+        ReplicaFollower follower = server.follower();
+        if (follower == null) return false;
+        long staleness = follower.stalenessMs();
+        if (staleness <= maxLagMs) return false;
+        sendLine(Protocol.ERROR + " Replica is " + (staleness == Long.MAX_VALUE ? "not caught up" : staleness + " ms behind")
+                + " (maxLag=" + maxLagMs + "); read from the primary of " + follower.primary());
+        return true;
+    }
+
+    private void handleRetention(String args) {
+        requireLogin();
+        if (forwarded(Protocol.RETENTION, args)) return;
+        String usage = Protocol.ERROR + " Usage: RETENTION <chatId> [days=<n>] [max=<n>]";
+        String[] p = args.trim().split("\\s+");
+        if (args.isBlank()) {
+            sendLine(usage);
+            return;
+        }
+        long chatId = Long.parseLong(p[0]);
+        long days = 0;
+        int max = 0;
+        for (int i = 1; i < p.length; i++) {
+            if (p[i].startsWith(Protocol.RETENTION_DAYS)) {
+                days = Long.parseLong(p[i].substring(Protocol.RETENTION_DAYS.length()));
+            } else if (p[i].startsWith(Protocol.RETENTION_MAX)) {
+                max = Integer.parseInt(p[i].substring(Protocol.RETENTION_MAX.length()));
             } else {
-                sendLine("[" + ts + "] " + escape(senderName) + ": " + escape(m.preview()));
+                sendLine(usage);
+                return;
             }
         }
+
+        Chat chat = chatService.getChat(chatId);
+        if (!chat.getParticipantIds().contains(currentUserId)) {
+            sendLine(Protocol.ERROR + " You are not a participant of chatId=" + chatId);
+            return;
+        }
+        // no limits given: keep everything
+        RetentionPolicy policy = RetentionPolicy.of(Duration.ofDays(days).toMillis(), max);
+        chatService.setRetention(chatId, policy);
+        sendLine(Protocol.OK + " RETENTION chatId=" + chatId + " " + policy);
+    }
+
+    private String historyLine(MessageView m) {
+        String senderName = userService.getUser(m.getSenderId()).getUsername();
+        String head = "[" + m.getTimestamp() + "] " + escape(senderName);
+
+        return switch (m.getKind()) {
+            case VOICE -> head + " 🎙 Voice: " + escape(m.getBody()) + " (" + escape(m.getUrl()) + ")";
+            case MEDIA -> head + " 🎞 Media: " + escape(m.getBody()) + " (" + escape(m.getUrl()) + ")";
+            case FILE -> head + " 📎 File: " + escape(m.getBody()) + " (" + escape(m.getUrl()) + ")";
+            case IMAGE -> head + " 🖼 Image: " + escape(m.getBody());
+            case TEXT -> head + ": " + escape(m.getBody());
+        };
+    }
+
+    private record ClientTagged(long clientMsgId, String rest) {}
+
+    private ClientTagged clientTagged(String s) {
+        s = s.trim();
+        if (!s.startsWith(Protocol.CLIENT_MSG_ID)) return new ClientTagged(ChatService.NO_CLIENT_MSG_ID, s);
+
+        int end = s.indexOf(' ');
+        if (end < 0) end = s.length();
+        long clientMsgId = positiveLong(s.substring(Protocol.CLIENT_MSG_ID.length(), end));
+        // not a well-formed tag: the text just happens to start with "cid="
+        if (clientMsgId <= 0) return new ClientTagged(ChatService.NO_CLIENT_MSG_ID, s);
+        return new ClientTagged(clientMsgId, s.substring(end).trim());
+    }
+
+    private static long positiveLong(String s) {
+        if (s.isEmpty() || s.length() > 18) return -1;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+        }
+        return Long.parseLong(s);
     }
 
     private String escape(String s) {
@@ -0,0 +1,85 @@
+package server;
+
+import repository.ChatRepository;
+import repository.UserRepository;
+import repository.dump.ChatExporter;
+import repository.dump.ChatImporter;
+import repository.dump.DumpStats;
+import repository.jdbc.Database;
+import repository.jdbc.JdbcChatRepository;
+import repository.jdbc.JdbcUserRepository;
+import repository.log.FsyncPolicy;
+import repository.log.LogChatRepository;
+import repository.log.LogUserRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Backs up and restores server storage while the server is stopped:
+ * <pre>
+ *   DumpTool export &lt;dataDir | jdbc url&gt; &lt;file&gt;
+ *   DumpTool import &lt;file&gt; &lt;dataDir | jdbc url&gt; [threads]
+ * </pre>
+ * Import expects empty storage.
+ */
+public class DumpTool {
+    private interface Storage extends AutoCloseable {
+        UserRepository users();
+        ChatRepository chats();
+        @Override
+        void close() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("export")) {
+            try (Storage storage = open(args[1]);
+                 OutputStream out = Files.newOutputStream(Path.of(args[2]))) {
+                DumpStats stats = ChatExporter.export(storage.users(), storage.chats(), out);
+                System.out.println("[DUMP] exported " + stats);
+            }
+        } else if (args.length >= 3 && args[0].equals("import")) {
+            int threads = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            try (InputStream in = Files.newInputStream(Path.of(args[1]));
+                 Storage storage = open(args[2])) {
+                DumpStats stats = new ChatImporter(storage.users(), storage.chats(), threads).importFrom(in);
+                System.out.println("[DUMP] imported " + stats);
+            }
+        } else {
+            System.out.println("Usage: DumpTool export <dataDir | jdbc url> <file>");
+            System.out.println("       DumpTool import <file> <dataDir | jdbc url> [threads]");
+        }
+    }
+
+    private static Storage open(String target) throws IOException {
+        if (target.startsWith("jdbc:")) {
+            Database db = new Database(target);
+            JdbcUserRepository users = new JdbcUserRepository(db);
+            JdbcChatRepository chats = new JdbcChatRepository(db);
+            return new Storage() {
+                public UserRepository users() { return users; }
+                public ChatRepository chats() { return chats; }
+                public void close() { db.close(); }
+            };
+        }
+
+        // imports only need the data on disk by the end, the closing sync takes care of that;
+        // the server rebuilds its history segments from memory on demand
+        Path dir = Files.createDirectories(Path.of(target));
+        Duration interval = Duration.ofMillis(100);
+        LogUserRepository users = new LogUserRepository(dir, FsyncPolicy.PERIODIC, interval);
+        LogChatRepository chats = new LogChatRepository(dir, FsyncPolicy.PERIODIC, interval);
+        return new Storage() {
+            public UserRepository users() { return users; }
+            public ChatRepository chats() { return chats; }
+            public void close() throws IOException {
+                chats.close();
+                users.close();
+            }
+        };
+    }
+}
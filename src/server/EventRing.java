@@ -0,0 +1,41 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last events sent to one user. Each gets the next sequence number, so a client that
+ * reconnects can ask for the ones it missed, as long as they are still kept.
+ */
+final class EventRing {
+    private final String[] lines;
+    // guarded by this
+    private long last;
+    private int size;
+
+    EventRing(int capacity, long firstSeq) {
+        this.lines = new String[capacity];
+        this.last = firstSeq - 1;
+    }
+
+    /** Numbers an event and keeps it; seq goes right after the event type. */
+    synchronized String append(String head, String fields) {
+        long seq = ++last;
+        String line = head + " seq=" + seq + fields;
+        lines[(int) (seq % lines.length)] = line;
+        if (size < lines.length) size++;
+        return line;
+    }
+
+    synchronized long last() {
+        return last;
+    }
+
+    /** Events with afterSeq < seq <= throughSeq, oldest first; null if some are no longer kept. */
+    synchronized List<String> between(long afterSeq, long throughSeq) {
+        if (afterSeq > last || afterSeq < last - size) return null;
+        List<String> result = new ArrayList<>();
+        for (long seq = afterSeq + 1; seq <= throughSeq; seq++) result.add(lines[(int) (seq % lines.length)]);
+        return result;
+    }
+}
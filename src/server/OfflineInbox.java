@@ -0,0 +1,277 @@
+package server;
+
+import repository.log.AppendLog;
+import repository.log.FsyncPolicy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Messages that arrived for users while they were offline, kept as (chatId, messageId)
+ * references until they log in again.
+ *
+ * A user's references stay in heap up to perUser of them and while all users together hold
+ * fewer than global; after that the user's further references are appended to a spill file
+ * (spill/<userId>.q) until the inbox is taken. Every add and take is also written to an
+ * {@link AppendLog}, which is what survives a restart: spill files are rebuilt from it. The
+ * log is compacted into a checkpoint file when opened and once it has grown well past what
+ * is still queued.
+ *
+ * {@link #inMemory()} keeps everything in heap instead, with no files and no writer thread,
+ * for servers without storage.
+ */
+public class OfflineInbox implements Closeable {
+    private static final byte ADD = 1;
+    private static final byte TAKE = 2;
+    private static final String CHECKPOINT = "inbox.checkpoint";
+    private static final long MIN_RECORDS_BEFORE_CHECKPOINT = 1_000_000;
+
+    public record Ref(long chatId, long messageId) {}
+
+    public record ChatCount(long chatId, long count, long lastMessageId) {}
+
+    /**
+     * What a user missed, per chat in order of first arrival, plus the references themselves
+     * when there are few enough of them to send one by one (otherwise null).
+     */
+    public record Backlog(List<ChatCount> chats, List<Ref> refs) {
+        public boolean isEmpty() {
+            return chats.isEmpty();
+        }
+    }
+
+    /** One user's references: the first size pairs in heap, then spilled ones in its file. */
+    private static final class Queue {
+        long[] refs = new long[8];
+        int size;
+        long spilled;
+    }
+
+    private final Path dir;
+    private final Path spillDir;
+    private final int perUser;
+    private final long global;
+
+    // guarded by this
+    private final Map<Long, Queue> queues = new HashMap<>();
+    private long heapRefs;
+    private long queuedRefs;
+    private long recordsSinceCheckpoint;
+    private AppendLog log;
+    // records the log failed to take; updated on its writer thread too
+    private final AtomicLong unjournaled = new AtomicLong();
+
+    private OfflineInbox(Path dir, int perUser, long global) {
+        this.dir = dir;
+        this.spillDir = (dir == null) ? null : dir.resolve("spill");
+        this.perUser = perUser;
+        this.global = global;
+    }
+
+    public static OfflineInbox open(Path dir, FsyncPolicy fsync, Duration fsyncInterval,
+                                    int perUser, long global) throws IOException {
+        OfflineInbox inbox = new OfflineInbox(dir, perUser, global);
+        Files.createDirectories(inbox.spillDir);
+        try (Stream<Path> s = Files.list(inbox.spillDir)) {
+            for (Path f : s.toList()) Files.delete(f);
+        }
+
+        long fromSegment = 1;
+        Path checkpoint = dir.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint)))) {
+                fromSegment = in.readLong();
+                while (true) {
+                    long userId;
+                    try {
+                        userId = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    inbox.put(userId, in.readLong(), in.readLong());
+                }
+            }
+        }
+        synchronized (inbox) {
+            inbox.log = AppendLog.open(dir, "inbox", fsync, fsyncInterval, fromSegment, inbox::replay);
+            inbox.checkpoint();
+        }
+        return inbox;
+    }
+
+    /** An inbox that lives in heap only and is lost on restart. */
+    public static OfflineInbox inMemory() {
+        return new OfflineInbox(null, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public synchronized void add(long userId, long chatId, long messageId) {
+        put(userId, chatId, messageId);
+        if (log == null) return;
+        ByteBuffer r = ByteBuffer.allocate(25).put(ADD).putLong(userId).putLong(chatId).putLong(messageId);
+        journal(r.array());
+        maybeCheckpoint();
+    }
+
+    /** Removes and returns everything queued for userId; refs are listed if at most maxRefs. */
+    public synchronized Backlog take(long userId, int maxRefs) {
+        Queue q = queues.remove(userId);
+        if (q == null) return new Backlog(List.of(), List.of());
+
+        long total = q.size + q.spilled;
+        List<Ref> refs = (total <= maxRefs) ? new ArrayList<>((int) total) : null;
+        Map<Long, long[]> counts = new LinkedHashMap<>();
+        try {
+            forEach(userId, q, (chatId, messageId) -> {
+                long[] c = counts.computeIfAbsent(chatId, id -> new long[2]);
+                c[0]++;
+                c[1] = Math.max(c[1], messageId);
+                if (refs != null) refs.add(new Ref(chatId, messageId));
+            });
+            if (q.spilled > 0) Files.deleteIfExists(spillFile(userId));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read inbox of user " + userId, e);
+        }
+        heapRefs -= q.size;
+        queuedRefs -= total;
+
+        if (log != null) journal(ByteBuffer.allocate(9).put(TAKE).putLong(userId).array());
+
+        List<ChatCount> chats = new ArrayList<>(counts.size());
+        counts.forEach((chatId, c) -> chats.add(new ChatCount(chatId, c[0], c[1])));
+        return new Backlog(chats, refs);
+    }
+
+    // The queues in heap and spill files are what gets delivered; a record the log cannot
+    // take only costs what it would restore after a restart, so it is reported, not thrown.
+    private void journal(byte[] record) {
+        try {
+            log.submit(record).whenComplete((v, e) -> {
+                if (e != null) journalFailed(e);
+            });
+            recordsSinceCheckpoint++;
+        } catch (RuntimeException e) {
+            journalFailed(e);
+        }
+    }
+
+    private void journalFailed(Throwable e) {
+        // once per run: after the first failure the log refuses every record
+        if (unjournaled.getAndIncrement() == 0) {
+            System.out.println("[INBOX] journal write failed, queued messages are kept until restart only: " + e);
+        }
+    }
+
+    public synchronized long queued() {
+        return queuedRefs;
+    }
+
+    private void replay(ByteBuffer r) {
+        byte type = r.get();
+        long userId = r.getLong();
+        if (type == ADD) {
+            put(userId, r.getLong(), r.getLong());
+        } else if (type == TAKE) {
+            Queue q = queues.remove(userId);
+            if (q == null) return;
+            heapRefs -= q.size;
+            queuedRefs -= q.size + q.spilled;
+            try {
+                Files.deleteIfExists(spillFile(userId));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            throw new IllegalStateException("Unknown inbox record type: " + type);
+        }
+    }
+
+    private synchronized void put(long userId, long chatId, long messageId) {
+        Queue q = queues.computeIfAbsent(userId, id -> new Queue());
+        queuedRefs++;
+        // once spilled, later references follow in the file so the order is kept
+        if (spillDir != null && (q.spilled > 0 || q.size >= perUser || heapRefs >= global)) {
+            try {
+                Files.write(spillFile(userId), ByteBuffer.allocate(16).putLong(chatId).putLong(messageId).array(),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                q.spilled++;
+                return;
+            } catch (IOException e) {
+                // kept in heap then, delivered ahead of the spilled ones
+                System.out.println("[INBOX] cannot spill inbox of user " + userId + ": " + e.getMessage());
+            }
+        }
+        if (2 * q.size == q.refs.length) q.refs = Arrays.copyOf(q.refs, q.refs.length * 2);
+        q.refs[2 * q.size] = chatId;
+        q.refs[2 * q.size + 1] = messageId;
+        q.size++;
+        heapRefs++;
+    }
+
+    private interface RefConsumer {
+        void accept(long chatId, long messageId);
+    }
+
+    private void forEach(long userId, Queue q, RefConsumer action) throws IOException {
+        for (int i = 0; i < q.size; i++) action.accept(q.refs[2 * i], q.refs[2 * i + 1]);
+        if (q.spilled == 0) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile(userId))))) {
+            for (long i = 0; i < q.spilled; i++) action.accept(in.readLong(), in.readLong());
+        }
+    }
+
+    private void maybeCheckpoint() {
+        if (recordsSinceCheckpoint < Math.max(MIN_RECORDS_BEFORE_CHECKPOINT, 2 * queuedRefs)) return;
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            // the log still has everything; try again after the next batch of records
+            recordsSinceCheckpoint = 0;
+            System.out.println("[INBOX] checkpoint failed: " + e.getMessage());
+        }
+    }
+
+    // everything queued goes to a new checkpoint file, which replaces the log segments
+    // written so far; the log only has to be replayed from the segment started here
+    private void checkpoint() throws IOException {
+        long segment = log.roll();
+        Path tmp = dir.resolve(CHECKPOINT + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(segment);
+            for (Map.Entry<Long, Queue> e : queues.entrySet()) {
+                long userId = e.getKey();
+                forEach(userId, e.getValue(), (chatId, messageId) -> {
+                    try {
+                        out.writeLong(userId);
+                        out.writeLong(chatId);
+                        out.writeLong(messageId);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.deleteSegmentsBefore(segment);
+        recordsSinceCheckpoint = 0;
+    }
+
+    private Path spillFile(long userId) {
+        return spillDir.resolve(userId + ".q");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (log != null) log.close();
+    }
+}
@@ -1,9 +1,144 @@
 package server;
 
+import repository.history.SegmentedHistoryStore;
+import repository.log.FsyncPolicy;
+import repository.log.LogChatRepository;
+import repository.log.LogUserRepository;
+import repository.log.Replicable;
+import repository.log.Snapshotter;
+import repository.log.ChatFileStore;
+import repository.ChatRepository;
+import repository.inmemory.InMemoryChatRepository;
+import repository.jdbc.Database;
+import repository.jdbc.JdbcChatRepository;
+import repository.jdbc.JdbcUserRepository;
+import repository.tiered.TieredChatRepository;
+import repository.writebehind.WriteBehindChatRepository;
+import replication.ReplicaFollower;
+import replication.ReplicationSource;
+import util.PeerAuth;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public class ServerMain {
     public static void main(String[] args) throws Exception {
-        int port = 5050;
-        ChatServer server = new ChatServer(port);
+        // -Dmessenger.port=<n> is the port clients connect to
+        int port = Integer.getInteger("messenger.port", 5050);
+
+        // -Dmessenger.jdbcUrl=<url> keeps everything in an SQL database instead, e.g.
+        // jdbc:h2:file:./data/messenger or jdbc:sqlite:messenger.db (driver on the classpath)
+        String jdbcUrl = System.getProperty("messenger.jdbcUrl");
+        if (jdbcUrl != null && !jdbcUrl.isBlank()) {
+            Database db = new Database(jdbcUrl);
+            Runtime.getRuntime().addShutdownHook(new Thread(db::close, "storage-shutdown"));
+            System.out.println("Database: " + jdbcUrl);
+            new ChatServer(port, new JdbcUserRepository(db), new JdbcChatRepository(db)).start();
+            return;
+        }
+
+        // -Dmessenger.replicationPort=<n> ships the logs to followers connecting there, on
+        // -Dmessenger.replicationHost=<address> (127.0.0.1 by default);
+        // -Dmessenger.replicaOf=<host>:<port> makes this server a read-only follower of that primary.
+        // Both ends need the same -Dmessenger.replicationSecret=<secret>
+        int replicationPort = Integer.getInteger("messenger.replicationPort", 0);
+        String replicaOf = System.getProperty("messenger.replicaOf", "");
+        PeerAuth replicationAuth = (replicationPort > 0 || !replicaOf.isBlank())
+                ? PeerAuth.fromProperty("messenger.replicationSecret")
+                : null;
+
+        // -Dmessenger.dataDir=<dir> turns on durable storage; without it everything stays in memory
+        String dataDir = System.getProperty("messenger.dataDir");
+        if (dataDir == null || dataDir.isBlank()) {
+            if (replicationPort > 0 || !replicaOf.isBlank()) {
+                throw new IllegalStateException("Replication ships the logs of -Dmessenger.dataDir, which is not set");
+            }
+            new ChatServer(port).start();
+            return;
+        }
+
+        FsyncPolicy fsync = FsyncPolicy.valueOf(System.getProperty("messenger.fsync", FsyncPolicy.EVERY_COMMIT.name()));
+        Duration fsyncInterval = Duration.ofMillis(Long.getLong("messenger.fsyncIntervalMs", 10));
+
+        Duration snapshotInterval = Duration.ofSeconds(Long.getLong("messenger.snapshotIntervalSec", 300));
+
+        Path dir = Files.createDirectories(Path.of(dataDir));
+        // both logs are recovered side by side; the socket is only opened once both are done
+        long start = System.nanoTime();
+        CompletableFuture<LogUserRepository> usersReady = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new LogUserRepository(dir, fsync, fsyncInterval);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        // -Dmessenger.historyOpenChats=<n> keeps the mapped history files of at most n chats open
+        SegmentedHistoryStore history = new SegmentedHistoryStore(dir.resolve("history"),
+                SegmentedHistoryStore.DEFAULT_SEGMENT_SIZE,
+                Integer.getInteger("messenger.historyOpenChats", SegmentedHistoryStore.DEFAULT_MAX_OPEN));
+
+        // -Dmessenger.hotChatBytes=<n> keeps only about n bytes of active chats in heap,
+        // the rest is spilled to <dataDir>/cold and loaded back on access
+        long hotChatBytes = Long.getLong("messenger.hotChatBytes", 0);
+        TieredChatRepository tiered = (hotChatBytes > 0)
+                ? new TieredChatRepository(new ChatFileStore(dir.resolve("cold")), hotChatBytes)
+                : null;
+        ChatRepository memory = (tiered != null) ? tiered : new InMemoryChatRepository();
+        LogChatRepository chats = new LogChatRepository(dir, fsync, fsyncInterval, history, memory);
+        LogUserRepository users = usersReady.join();
+
+        // -Dmessenger.writeBehindMs=<n> batches receipts and chat updates for up to n ms
+        // (messages are still durable before a send is answered)
+        long writeBehindMs = Long.getLong("messenger.writeBehindMs", 0);
+        WriteBehindChatRepository writeBehind = (writeBehindMs > 0)
+                ? new WriteBehindChatRepository(chats, Duration.ofMillis(writeBehindMs),
+                        Integer.getInteger("messenger.writeBehindMaxPending", 10_000))
+                : null;
+        System.out.println("Recovered in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        Snapshotter snapshotter = new Snapshotter(List.of(users, chats), snapshotInterval);
+
+        // users first, so a follower knows the senders of the messages that follow
+        List<Replicable> replicated = List.of(users, chats);
+        // -Dmessenger.replicationQueue=<n> records may wait for a follower before it is dropped;
+        // heartbeats every -Dmessenger.replicationHeartbeatMs=<n> bound how stale a follower knows it is
+        ReplicationSource source = (replicationPort > 0)
+                ? ReplicationSource.start(System.getProperty("messenger.replicationHost", "127.0.0.1"),
+                        replicationPort, replicationAuth, replicated,
+                        Integer.getInteger("messenger.replicationQueue", 1_000_000),
+                        Long.getLong("messenger.replicationHeartbeatMs", 100))
+                : null;
+        ReplicaFollower follower = replicaOf.isBlank() ? null : ReplicaFollower.start(replicaOf, replicationAuth, replicated);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (follower != null) follower.close();
+                if (source != null) source.close();
+                snapshotter.close();
+                if (writeBehind != null) {
+                    writeBehind.close();
+                    System.out.println("[WRITE-BEHIND] " + writeBehind.stats());
+                }
+                chats.close();
+                users.close();
+                if (tiered != null) {
+                    tiered.close();
+                    System.out.println("[TIER] " + tiered.stats());
+                }
+            } catch (Exception e) {
+                System.out.println("[LOG] close failed: " + e.getMessage());
+            }
+        }, "storage-shutdown"));
+
+        System.out.println("Data dir: " + dir.toAbsolutePath() + " (fsync=" + fsync + ")");
+        if (tiered != null) System.out.println("[TIER] hot chat budget " + hotChatBytes + " bytes: " + tiered.stats());
+        OfflineInbox inbox = ChatServer.openInbox(dir.resolve("inbox"), fsync, fsyncInterval);
+        ChatServer server = new ChatServer(port, users, (writeBehind != null) ? writeBehind : chats, inbox);
+        server.replicate(source, follower);
         server.start();
     }
 }
@@ -0,0 +1,142 @@
+package server;
+
+import net.Protocol;
+import repository.timed.TimedChatRepository;
+import repository.timed.TimedUserRepository;
+import util.LatencyHistogram;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters and latency histograms of a running server, reported by the STATS command and
+ * printed as [STATS] lines every interval. Times are recorded in nanoseconds and shown in
+ * microseconds; histograms cover everything since start, messages/sec the last interval.
+ * Recording takes no locks.
+ */
+public class ServerStats implements Closeable {
+    // unknown commands share one histogram, so clients cannot grow the map
+    static final String OTHER = "OTHER";
+    private static final List<String> COMMANDS = List.of(Protocol.HELP, Protocol.EXIT, Protocol.REGISTER,
+            Protocol.LOGIN, Protocol.RESUME, Protocol.USERS, Protocol.FIND_USERS, Protocol.CREATE_CHAT,
+            Protocol.CHATS, Protocol.SEND_TEXT, Protocol.SEND_VOICE_LINK, Protocol.SEND_MEDIA_LINK,
+            Protocol.SEND_FILE_LINK, Protocol.HISTORY, Protocol.RETENTION, Protocol.STATS, OTHER);
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LatencyHistogram> commands;
+    private final LatencyHistogram fanoutNanos = new LatencyHistogram();
+    private final LatencyHistogram fanoutSize = new LatencyHistogram();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+
+    private final TimedUserRepository users;
+    private final TimedChatRepository chats;
+    private final IntSupplier online;
+
+    // messages/sec over the last interval; before the first one, since start
+    private volatile long windowStart = startNanos;
+    private volatile long windowMessages;
+    private volatile double lastRate = -1;
+
+    private ScheduledExecutorService scheduler;
+
+    public ServerStats(TimedUserRepository users, TimedChatRepository chats, IntSupplier online) {
+        Map<String, LatencyHistogram> m = new HashMap<>();
+        for (String c : COMMANDS) m.put(c, new LatencyHistogram());
+        this.commands = Collections.unmodifiableMap(m);
+        this.users = users;
+        this.chats = chats;
+        this.online = online;
+    }
+
+    /** Prints the stats every interval from now on; zero turns that off. */
+    public synchronized void startDump(Duration interval) {
+        long ms = interval.toMillis();
+        if (ms <= 0 || scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+                for (String line : lines()) System.out.println("[STATS] " + line);
+            } catch (Exception e) {
+                System.out.println("[STATS] failed: " + e.getMessage());
+            }
+        }, ms, ms, TimeUnit.MILLISECONDS);
+    }
+
+    void command(String cmd, long nanos) {
+        LatencyHistogram h = commands.get(cmd);
+        (h != null ? h : commands.get(OTHER)).record(nanos);
+    }
+
+    void fanout(int recipients, long nanos) {
+        messages.increment();
+        fanoutSize.record(recipients);
+        fanoutNanos.record(nanos);
+    }
+
+    void connected() {
+        connections.increment();
+    }
+
+    void disconnected() {
+        connections.decrement();
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long count = messages.sum();
+        lastRate = (count - windowMessages) * 1e9 / Math.max(1, now - windowStart);
+        windowStart = now;
+        windowMessages = count;
+    }
+
+    /** The report, one line per item: totals, then commands, fan-out and repository calls that were used. */
+    public List<String> lines() {
+        long now = System.nanoTime();
+        double rate = (lastRate >= 0) ? lastRate : messages.sum() * 1e9 / Math.max(1, now - startNanos);
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "uptimeSec=%d connections=%d online=%d messages=%d messagesPerSec=%.1f",
+                (now - startNanos) / 1_000_000_000, connections.sum(), online.getAsInt(), messages.sum(), rate));
+        for (String c : COMMANDS) {
+            LatencyHistogram h = commands.get(c);
+            if (h.count() > 0) lines.add("command=" + c + " " + times(h));
+        }
+        if (fanoutSize.count() > 0) {
+            lines.add(String.format(Locale.ROOT, "fanout recipients mean=%.1f p50=%d p99=%d p999=%d max=%d",
+                    fanoutSize.mean(), fanoutSize.percentile(0.5), fanoutSize.percentile(0.99),
+                    fanoutSize.percentile(0.999), fanoutSize.max()));
+            lines.add("fanout " + times(fanoutNanos));
+        }
+        repository(lines, "users", users.histograms());
+        repository(lines, "chats", chats.histograms());
+        return lines;
+    }
+
+    private static void repository(List<String> lines, String name, Map<String, LatencyHistogram> histograms) {
+        histograms.forEach((method, h) -> {
+            if (h.count() > 0) lines.add("repo=" + name + "." + method + " " + times(h));
+        });
+    }
+
+    private static String times(LatencyHistogram h) {
+        return String.format(Locale.ROOT, "count=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                h.count(), h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3,
+                h.max() / 1e3);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+}
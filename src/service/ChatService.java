@@ -1,13 +1,18 @@
 package service;
 
 import domain.Chat;
+import domain.RetentionPolicy;
 import domain.User;
 import domain.message.ImageMessage;
 import domain.message.Message;
+import domain.message.MessageCodec;
 import domain.message.TextMessage;
 import exception.ChatNotFoundException;
 import observer.ChatEventListener;
 import repository.ChatRepository;
+import repository.HistorySink;
+import trace.NotifyEvent;
+import trace.SendEvent;
 import util.IdGenerator;
 import util.TimeProvider;
 import domain.message.VoiceLinkMessage;
@@ -15,19 +20,45 @@ import domain.message.MediaLinkMessage;
 import domain.message.FileLinkMessage;
 import exception.InvalidLinkException;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongFunction;
+import java.util.function.LongPredicate;
 
 public class ChatService {
+    public static final long NO_CLIENT_MSG_ID = 0;
+
     private final ChatRepository chats;
     private final UserLookup userLookup;
+    private final SendDedupCache sentByClientId;
+
+    // notified about every chat; unlike Chat.subscribe this survives a chat being
+    // evicted and reloaded by tiered storage
+    private final List<ChatEventListener> listeners = new CopyOnWriteArrayList<>();
+    // which new chat ids this server may take; in a cluster, only those that hash to it
+    private volatile LongPredicate chatPlacement = id -> true;
 
     public ChatService(ChatRepository chatRepository, UserLookup userLookup) {
+        this(chatRepository, userLookup, new SendDedupCache());
+    }
+
+    public ChatService(ChatRepository chatRepository, UserLookup userLookup, SendDedupCache dedupCache) {
         this.chats = chatRepository;
         this.userLookup = userLookup;
+        this.sentByClientId = dedupCache;
+    }
+
+    public void setChatPlacement(LongPredicate placement) {
+        this.chatPlacement = placement;
     }
 
     public Chat createChat(String title, List<Long> participantIds) {
-        Chat chat = new Chat(IdGenerator.nextId(), title);
+        long id = IdGenerator.nextId();
+        while (!chatPlacement.test(id)) id = IdGenerator.nextId();
+        Chat chat = new Chat(id, title);
         for (long uid : participantIds) {
             User u = userLookup.getUser(uid);
             chat.addParticipant(u.getId());
@@ -44,12 +75,22 @@ public class ChatService {
         return chats.findAll();
     }
 
+    public List<Chat> listChatsOf(long userId) {
+        return chats.findByParticipant(userId);
+    }
+
     public void renameChat(long chatId, String newTitle) {
         Chat chat = getChat(chatId);
         chat.setTitle(newTitle);
         chats.update(chat);
     }
 
+    public void setRetention(long chatId, RetentionPolicy policy) {
+        Chat chat = getChat(chatId);
+        chat.setRetention(policy);
+        chats.update(chat);
+    }
+
     public void deleteChat(long chatId) {
         chats.deleteById(chatId);
     }
@@ -60,26 +101,39 @@ public class ChatService {
         chats.update(chat);
     }
 
+    public void addListener(ChatEventListener listener) {
+        listeners.add(listener);
+    }
+
     public Message sendText(long chatId, long senderId, String text) {
+        return sendText(chatId, senderId, text, NO_CLIENT_MSG_ID);
+    }
+
+    public Message sendText(long chatId, long senderId, String text, long clientMsgId) {
         Chat chat = getChat(chatId);
         userLookup.getUser(senderId);
 
-        Message msg = new TextMessage(IdGenerator.nextId(), chatId, senderId, TimeProvider.now(), text);
-        chat.addMessage(msg);
-        chats.update(chat);
-        return msg;
+        return append(chat, senderId, clientMsgId, Message.class,
+                id -> new TextMessage(id, chatId, senderId, TimeProvider.now(), text));
     }
 
     public Message sendImage(long chatId, long senderId, String pathOrName) {
+        return sendImage(chatId, senderId, pathOrName, NO_CLIENT_MSG_ID);
+    }
+
+    public Message sendImage(long chatId, long senderId, String pathOrName, long clientMsgId) {
         Chat chat = getChat(chatId);
         userLookup.getUser(senderId);
 
-        Message msg = new ImageMessage(IdGenerator.nextId(), chatId, senderId, TimeProvider.now(), pathOrName);
-        chat.addMessage(msg);
-        chats.update(chat);
-        return msg;
+        return append(chat, senderId, clientMsgId, Message.class,
+                id -> new ImageMessage(id, chatId, senderId, TimeProvider.now(), pathOrName));
     }
+
     public VoiceLinkMessage sendVoiceLink(long chatId, long senderId, String title, String url) {
+        return sendVoiceLink(chatId, senderId, title, url, NO_CLIENT_MSG_ID);
+    }
+
+    public VoiceLinkMessage sendVoiceLink(long chatId, long senderId, String title, String url, long clientMsgId) {
         Chat chat = getChat(chatId);
         userLookup.getUser(senderId);
 
@@ -90,15 +144,18 @@ public class ChatService {
             throw new InvalidLinkException("Title must not be empty");
         }
 
-        VoiceLinkMessage msg = new VoiceLinkMessage(
-                IdGenerator.nextId(), chatId, senderId, TimeProvider.now(),
+        return append(chat, senderId, clientMsgId, VoiceLinkMessage.class, id -> new VoiceLinkMessage(
+                id, chatId, senderId, TimeProvider.now(),
                 title.trim(), url.trim()
-        );
-        chat.addMessage(msg);
-        chats.update(chat);
-        return msg;
+        ));
     }
+
     public domain.message.MediaLinkMessage sendMediaLink(long chatId, long senderId, String title, String url) {
+        return sendMediaLink(chatId, senderId, title, url, NO_CLIENT_MSG_ID);
+    }
+
+    public domain.message.MediaLinkMessage sendMediaLink(long chatId, long senderId, String title, String url,
+                                                         long clientMsgId) {
         Chat chat = getChat(chatId);
         userLookup.getUser(senderId);
 
@@ -109,17 +166,18 @@ public class ChatService {
             throw new InvalidLinkException("Title must not be empty");
         }
 
-        domain.message.MediaLinkMessage msg = new domain.message.MediaLinkMessage(
-                IdGenerator.nextId(), chatId, senderId, TimeProvider.now(),
+        return append(chat, senderId, clientMsgId, MediaLinkMessage.class, id -> new MediaLinkMessage(
+                id, chatId, senderId, TimeProvider.now(),
                 title.trim(), url.trim()
-        );
-
-        chat.addMessage(msg);
-        chats.update(chat);
-        return msg;
+        ));
     }
 
     public domain.message.FileLinkMessage sendFileLink(long chatId, long senderId, String fileName, String url) {
+        return sendFileLink(chatId, senderId, fileName, url, NO_CLIENT_MSG_ID);
+    }
+
+    public domain.message.FileLinkMessage sendFileLink(long chatId, long senderId, String fileName, String url,
+                                                       long clientMsgId) {
         Chat chat = getChat(chatId);
         userLookup.getUser(senderId);
 
@@ -130,16 +188,101 @@ public class ChatService {
             throw new InvalidLinkException("File name must not be empty");
         }
 
-        domain.message.FileLinkMessage msg = new domain.message.FileLinkMessage(
-                IdGenerator.nextId(), chatId, senderId, TimeProvider.now(),
+        return append(chat, senderId, clientMsgId, FileLinkMessage.class, id -> new FileLinkMessage(
+                id, chatId, senderId, TimeProvider.now(),
                 fileName.trim(), url.trim()
-        );
+        ));
+    }
 
-        chat.addMessage(msg);
-        chats.update(chat);
+    /**
+     * Appends a freshly built message, unless clientMsgId was already used by this sender
+     * recently: then the original message is returned and nothing is appended.
+     */
+    private <T extends Message> T append(Chat chat, long senderId, long clientMsgId, Class<T> type,
+                                         LongFunction<T> factory) {
+        SendEvent traced = new SendEvent();
+        traced.begin();
+        T msg = null;
+        CompletableFuture<Void> stored;
+        // ids are taken under the chat lock so every chat's message list, and what the
+        // repository receives, stays sorted by id
+        long id;
+        synchronized (chat) {
+            id = IdGenerator.nextId();
+            if (clientMsgId != NO_CLIENT_MSG_ID) {
+                long original = sentByClientId.putIfAbsent(senderId, clientMsgId, id);
+                if (original != 0) return findSent(chat, senderId, original, clientMsgId, type);
+            }
+            try {
+                msg = factory.apply(id);
+                chat.append(msg);
+                stored = chats.appendMessage(chat, msg);
+            } catch (RuntimeException e) {
+                // nothing else saw it under this lock, so the send is undone and a retry sends again
+                chat.removeNewest(msg);
+                forgetClientId(senderId, clientMsgId, id);
+                throw e;
+            }
+        }
+        // if this fails the message is already in the chat and may have been read; the
+        // clientMsgId stays mapped, so a retry gets this message instead of a second copy
+        awaitStored(stored);
+        notify(null, chat, msg);
+        for (ChatEventListener l : listeners) notify(l, chat, msg);
+
+        if (traced.shouldCommit()) {
+            traced.kind = msg.getKind().name();
+            traced.senderId = senderId;
+            traced.chatId = chat.getId();
+            traced.messageId = msg.getId();
+            traced.recipients = chat.getParticipantIds().size() - 1;
+            traced.bytes = MessageCodec.encodedLength(msg);
+            traced.commit();
+        }
         return msg;
     }
 
+    private void forgetClientId(long senderId, long clientMsgId, long messageId) {
+        if (clientMsgId != NO_CLIENT_MSG_ID) sentByClientId.remove(senderId, clientMsgId, messageId);
+    }
+
+    // listener null means the chat's own subscribers
+    private void notify(ChatEventListener listener, Chat chat, Message msg) {
+        NotifyEvent traced = new NotifyEvent();
+        traced.begin();
+        if (listener == null) chat.publish(msg);
+        else listener.onNewMessage(chat, msg);
+
+        if (traced.shouldCommit()) {
+            traced.listener = (listener == null) ? "chat subscribers" : listener.getClass().getName();
+            traced.chatId = chat.getId();
+            traced.messageId = msg.getId();
+            traced.recipients = chat.getParticipantIds().size() - 1;
+            traced.bytes = MessageCodec.encodedLength(msg);
+            traced.commit();
+        }
+    }
+
+    private static void awaitStored(CompletableFuture<Void> stored) {
+        try {
+            stored.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    private <T extends Message> T findSent(Chat chat, long senderId, long messageId, long clientMsgId, Class<T> type) {
+        Message m = chat.findMessage(messageId);
+        if (m != null) {
+            if (m.getSenderId() != senderId || !type.isInstance(m)) {
+                throw new IllegalArgumentException("clientMsgId=" + clientMsgId + " was already used for another message");
+            }
+            return type.cast(m);
+        }
+        throw new IllegalArgumentException("clientMsgId=" + clientMsgId + " was already used for a message in another chat");
+    }
+
     private boolean isAnyHttps(String url) {
         if (url == null) return false;
         return url.trim().startsWith("https://");
@@ -153,15 +296,23 @@ public class ChatService {
     }
 
     public List<Message> getHistory(long chatId) {
-        return List.copyOf(getChat(chatId).getMessages());
+        return getChat(chatId).copyMessages();
+    }
+
+    public void readHistory(long chatId, long afterId, int limit, HistorySink sink) {
+        chats.readHistory(chatId, afterId, limit, sink);
     }
 
     public void markAllDelivered(long chatId) {
         Chat chat = getChat(chatId);
-        for (Message m : chat.getMessages()) {
+        List<CompletableFuture<Void>> stored = new ArrayList<>();
+        for (Message m : chat.copyMessages()) {
+            if (m.getStatus() != Message.Status.SENT) continue;
             m.setStatus(Message.Status.DELIVERED);
+            stored.add(chats.updateStatus(chat, m));
         }
-        chats.update(chat);
+        // submitted together so they share commits, then waited for as a group
+        awaitStored(CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0])));
     }
 
     public void markDelivered(long chatId, long receiverId, long messageId) {
@@ -170,17 +321,13 @@ public class ChatService {
             throw new IllegalArgumentException("Receiver is not a chat participant");
         }
 
-        for (Message m : chat.getMessages()) {
-            if (m.getId() == messageId) {
-                if (m.getSenderId() == receiverId) return;
-                if (m.getStatus() == Message.Status.SENT) {
-                    m.setStatus(Message.Status.DELIVERED);
-                    chats.update(chat);
-                }
-                return;
-            }
+        Message m = chat.findMessage(messageId);
+        if (m == null) throw new IllegalArgumentException("Message not found: " + messageId);
+        if (m.getSenderId() == receiverId) return;
+        if (m.getStatus() == Message.Status.SENT) {
+            m.setStatus(Message.Status.DELIVERED);
+            awaitStored(chats.updateStatus(chat, m));
         }
-        throw new IllegalArgumentException("Message not found: " + messageId);
     }
 
     public void markChatRead(long chatId, long readerId) {
@@ -189,13 +336,14 @@ public class ChatService {
             throw new IllegalArgumentException("Reader is not a chat participant");
         }
 
-        boolean changed = false;
-        for (Message m : chat.getMessages()) {
-            if (m.getSenderId() != readerId && m.getStatus() != Message.Status.READ) {
-                m.setStatus(Message.Status.READ);
-                changed = true;
-            }
+        long throughId;
+        CompletableFuture<Void> stored;
+        synchronized (chat) {
+            // stored under the lock, like appends, so the record lands after every message it covers
+            throughId = chat.lastMessageId();
+            if (!chat.markReadBy(readerId, throughId)) return;
+            stored = chats.recordRead(chat, readerId, throughId);
         }
-        if (changed) chats.update(chat);
+        awaitStored(stored);
     }
 }
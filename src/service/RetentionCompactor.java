@@ -0,0 +1,89 @@
+package service;
+
+import domain.message.Message;
+import repository.ChatRepository;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces chat retention policies on a background thread. Each run finds the expired
+ * prefix of a chat's history without its lock held for long, then cuts the whole prefix
+ * at once and hands one trim to storage, so senders on that chat wait for an array copy
+ * at most. Storage writes are awaited after every lock is released.
+ */
+public class RetentionCompactor implements Closeable {
+    private final ChatRepository chats;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "retention-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * What one run did. Messages and bytes count what left the heap (bytes roughly); rows
+     * of chats that were never loaded are deleted in storage without being counted.
+     */
+    public record Run(int chats, long messages, long bytes, long millis) {
+        @Override
+        public String toString() {
+            return String.format("%d chats trimmed, %d messages dropped from heap, ~%.1f MB freed in %d ms",
+                    chats, messages, bytes / 1e6, millis);
+        }
+    }
+
+    public RetentionCompactor(ChatRepository chats, Duration interval) {
+        this.chats = chats;
+        long ms = interval.toMillis();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                Run run = compact(Instant.now());
+                if (run.messages() > 0) System.out.println("[RETENTION] " + run);
+            } catch (Exception e) {
+                System.out.println("[RETENTION] failed: " + e.getMessage());
+            }
+        }, ms, ms, TimeUnit.MILLISECONDS);
+    }
+
+    public Run compact(Instant now) {
+        long start = System.nanoTime();
+        int[] trimmed = new int[1];
+        long[] messages = new long[1];
+        long[] bytes = new long[1];
+        List<CompletableFuture<Void>> stored = new ArrayList<>();
+
+        chats.forEachChat(chat -> {
+            if (chat.getRetention().isNone()) return;
+            long through = chat.expiredThrough(now);
+            if (through == 0) return;
+
+            List<Message> dropped;
+            synchronized (chat) {
+                dropped = chat.dropThrough(through);
+                stored.add(chats.trimMessages(chat, through));
+            }
+            trimmed[0]++;
+            messages[0] += dropped.size();
+            for (Message m : dropped) bytes[0] += m.estimatedBytes();
+        });
+        CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0])).join();
+        return new Run(trimmed[0], messages[0], bytes[0], (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package service;
+
+import java.time.Duration;
+
+/**
+ * Remembers (senderId, clientMsgId) -> messageId for recently accepted sends so a
+ * client retry after a dropped connection gets the original message back.
+ *
+ * Storage is a fixed set of primitive arrays split into lock stripes. Each key may
+ * live in a short probe window; when the window is full the entry closest to expiry
+ * is overwritten, so memory never grows past {@code capacity} entries (32 bytes each).
+ * The effective dedup window is min(ttl, capacity / send rate).
+ */
+public class SendDedupCache {
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    public static final Duration DEFAULT_TTL = Duration.ofMinutes(2);
+
+    private static final int STRIPES = 16;
+    private static final int PROBES = 8;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlNanos;
+
+    public SendDedupCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL);
+    }
+
+    public SendDedupCache(int capacity, Duration ttl) {
+        if (capacity < STRIPES * PROBES) {
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        }
+        int perStripe = Integer.highestOneBit(capacity / STRIPES - 1) << 1;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe(perStripe);
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * Records messageId for the key unless a live entry exists.
+     *
+     * @return the previously recorded messageId, or 0 if messageId was stored
+     */
+    public long putIfAbsent(long senderId, long clientMsgId, long messageId) {
+        long h = mix(senderId * 0x9E3779B97F4A7C15L + clientMsgId);
+        Stripe s = stripes[(int) (h >>> 60) & (STRIPES - 1)];
+        return s.putIfAbsent(senderId, clientMsgId, messageId, (int) h, System.nanoTime(), ttlNanos);
+    }
+
+    /** Forgets the key if it still maps to messageId, e.g. because storing that message failed. */
+    public void remove(long senderId, long clientMsgId, long messageId) {
+        long h = mix(senderId * 0x9E3779B97F4A7C15L + clientMsgId);
+        Stripe s = stripes[(int) (h >>> 60) & (STRIPES - 1)];
+        s.remove(senderId, clientMsgId, messageId, (int) h);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static final class Stripe {
+        private final long[] senders;
+        private final long[] clientIds;
+        private final long[] messageIds;
+        private final long[] expiresAt;
+        private final int mask;
+
+        Stripe(int size) {
+            senders = new long[size];
+            clientIds = new long[size];
+            messageIds = new long[size];
+            expiresAt = new long[size];
+            mask = size - 1;
+        }
+
+        synchronized long putIfAbsent(long senderId, long clientMsgId, long messageId, int hash, long now, long ttl) {
+            int victim = -1;
+            long victimRank = Long.MAX_VALUE;
+            for (int p = 0; p < PROBES; p++) {
+                int i = (hash + p) & mask;
+                boolean live = messageIds[i] != 0 && expiresAt[i] - now > 0;
+                if (live && senders[i] == senderId && clientIds[i] == clientMsgId) {
+                    return messageIds[i];
+                }
+                // prefer a free or expired slot, otherwise the entry that expires soonest
+                long rank = live ? expiresAt[i] - now : Long.MIN_VALUE;
+                if (victim < 0 || rank < victimRank) {
+                    victim = i;
+                    victimRank = rank;
+                }
+            }
+            senders[victim] = senderId;
+            clientIds[victim] = clientMsgId;
+            messageIds[victim] = messageId;
+            expiresAt[victim] = now + ttl;
+            return 0;
+        }
+
+        synchronized void remove(long senderId, long clientMsgId, long messageId, int hash) {
+            for (int p = 0; p < PROBES; p++) {
+                int i = (hash + p) & mask;
+                if (senders[i] == senderId && clientIds[i] == clientMsgId && messageIds[i] == messageId) {
+                    messageIds[i] = 0;
+                    return;
+                }
+            }
+        }
+    }
+}
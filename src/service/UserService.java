@@ -21,6 +21,11 @@ public class UserService implements UserLookup {
         return u;
     }
 
+    /** Adds a user created elsewhere, keeping its id; nothing happens if it is already known. */
+    public void addReplica(long id, String username) {
+        if (users.findById(id).isEmpty()) users.add(new User(id, username));
+    }
+
     public User getUser(long id) {
         return users.findById(id).orElseThrow(() -> new UserNotFoundException(id));
     }
@@ -29,6 +34,10 @@ public class UserService implements UserLookup {
         return users.findAll();
     }
 
+    public List<User> findUsers(String prefix, int limit) {
+        return users.findByUsernamePrefix(prefix, limit);
+    }
+
     public void renameUser(long id, String newName) {
         User u = getUser(id);
         u.setUsername(newName);
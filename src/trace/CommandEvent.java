@@ -0,0 +1,30 @@
+package trace;
+
+import jdk.jfr.*;
+
+@Name("messenger.Command")
+@Label("Command")
+@Category("Messenger")
+@Description("A protocol command, from reading its line until its last reply line is written")
+@Enabled(false)
+@StackTrace(false)
+public class CommandEvent extends Event {
+    @Label("Command")
+    public String command;
+
+    @Label("User Id")
+    public long userId;
+
+    @Label("Chat Id")
+    public long chatId;
+
+    @Label("Message Id")
+    public long messageId;
+
+    @Label("Recipients")
+    public int recipients;
+
+    @Label("Request Size")
+    @DataAmount
+    public int bytes;
+}
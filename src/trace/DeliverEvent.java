@@ -0,0 +1,28 @@
+package trace;
+
+import jdk.jfr.*;
+
+@Name("messenger.Deliver")
+@Label("Deliver")
+@Category("Messenger")
+@Description("A message event numbered and written to one online recipient, including the wait for its lock")
+@Enabled(false)
+@StackTrace(false)
+public class DeliverEvent extends Event {
+    @Label("Recipient Id")
+    public long userId;
+
+    @Label("Chat Id")
+    public long chatId;
+
+    @Label("Message Id")
+    public long messageId;
+
+    @Label("Recipients")
+    @Description("Recipients of the message in all")
+    public int recipients;
+
+    @Label("Line Size")
+    @DataAmount
+    public int bytes;
+}
@@ -0,0 +1,30 @@
+package trace;
+
+import jdk.jfr.*;
+
+@Name("messenger.Flush")
+@Label("Flush")
+@Category("Messenger")
+@Description("A line written out to a client's socket")
+@Enabled(false)
+@StackTrace(false)
+public class FlushEvent extends Event {
+    @Label("User Id")
+    public long userId;
+
+    @Label("Chat Id")
+    @Description("Set for event lines only")
+    public long chatId;
+
+    @Label("Message Id")
+    @Description("Set for event lines only")
+    public long messageId;
+
+    @Label("Recipients")
+    @Description("Set for event lines only")
+    public int recipients;
+
+    @Label("Line Size")
+    @DataAmount
+    public int bytes;
+}
@@ -0,0 +1,28 @@
+package trace;
+
+import jdk.jfr.*;
+
+@Name("messenger.Notify")
+@Label("Notify")
+@Category("Messenger")
+@Description("One listener told about a new message")
+@Enabled(false)
+@StackTrace(false)
+public class NotifyEvent extends Event {
+    @Label("Listener")
+    public String listener;
+
+    @Label("Chat Id")
+    public long chatId;
+
+    @Label("Message Id")
+    public long messageId;
+
+    @Label("Recipients")
+    public int recipients;
+
+    @Label("Message Size")
+    @Description("Encoded size of the message")
+    @DataAmount
+    public int bytes;
+}
@@ -0,0 +1,31 @@
+package trace;
+
+import jdk.jfr.*;
+
+@Name("messenger.Send")
+@Label("Send")
+@Category("Messenger")
+@Description("ChatService.send*: id, append, durable store and notification of every listener")
+@Enabled(false)
+@StackTrace(false)
+public class SendEvent extends Event {
+    @Label("Kind")
+    public String kind;
+
+    @Label("Sender Id")
+    public long senderId;
+
+    @Label("Chat Id")
+    public long chatId;
+
+    @Label("Message Id")
+    public long messageId;
+
+    @Label("Recipients")
+    public int recipients;
+
+    @Label("Message Size")
+    @Description("Encoded size of the message")
+    @DataAmount
+    public int bytes;
+}
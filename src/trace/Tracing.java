@@ -0,0 +1,63 @@
+package trace;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * JDK Flight Recorder events of a message's way through the server: {@link CommandEvent}
+ * contains {@link SendEvent}, which contains a {@link NotifyEvent} per listener; the
+ * server's contains a {@link DeliverEvent} per online recipient, each with its
+ * {@link FlushEvent}. All carry chatId and messageId, so JMC can line them up.
+ *
+ * The events are disabled by default and cost a branch while they are. They are turned
+ * on by -Dmessenger.jfr=<file>, which records them (with the JDK's default settings)
+ * into file until the server exits, or in any recording whose settings enable them,
+ * e.g. jcmd <pid> JFR.start settings=default +messenger.Deliver#enabled=true ...
+ * -Dmessenger.jfrThresholdUs=<n> keeps only events that took at least n microseconds.
+ */
+public final class Tracing {
+    static final List<Class<? extends Event>> EVENTS = List.of(CommandEvent.class, SendEvent.class,
+            NotifyEvent.class, DeliverEvent.class, FlushEvent.class);
+
+    private Tracing() {}
+
+    /** Starts the recording asked for by -Dmessenger.jfr, if any. */
+    public static void startFromProperties() {
+        String file = System.getProperty("messenger.jfr");
+        if (file == null || file.isBlank()) return;
+        try {
+            Recording r = new Recording(Configuration.getConfiguration("default"));
+            Duration threshold = Duration.ofNanos(Long.getLong("messenger.jfrThresholdUs", 0) * 1000);
+            for (Class<? extends Event> e : EVENTS) r.enable(e).withThreshold(threshold).withoutStackTrace();
+            r.setName("messenger");
+            r.setToDisk(true);
+            r.setDestination(Path.of(file));
+            r.setDumpOnExit(true);
+            r.start();
+            System.out.println("[JFR] recording messenger events to " + Path.of(file).toAbsolutePath());
+        } catch (Exception e) {
+            System.out.println("[JFR] cannot start recording: " + e.getMessage());
+        }
+    }
+
+    /** Size of s in UTF-8, plus one for the line break when it is sent as a line. */
+    public static int lineBytes(String s) {
+        int n = 1;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c)) {
+                n += 4;
+                i++;
+            } else n += 3;
+        }
+        return n;
+    }
+}
@@ -4,10 +4,31 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public final class IdGenerator {
     private static final AtomicLong SEQ = new AtomicLong(1);
+    // in a cluster each node hands out only ids with id % stride == offset
+    private static volatile int stride = 1;
+    private static volatile int offset = 0;
 
     private IdGenerator() {}
 
     public static long nextId() {
-        return SEQ.getAndIncrement();
+        return SEQ.getAndIncrement() * stride + offset;
+    }
+
+    /** The id nextId() would hand out now; every id handed out so far is below it. */
+    public static long peek() {
+        return SEQ.get() * stride + offset;
+    }
+
+    // called while loading persisted data so new ids never collide with recovered ones
+    public static void advancePast(long usedId) {
+        SEQ.accumulateAndGet(usedId / stride + 1, Math::max);
+    }
+
+    /** Makes ids unique across count nodes; call once, before any id is handed out. */
+    public static void stripe(int index, int count) {
+        long next = peek();
+        stride = count;
+        offset = index;
+        advancePast(next);
     }
 }
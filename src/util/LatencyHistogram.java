@@ -0,0 +1,85 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of non-negative values (e.g. microseconds) in log-linear buckets: exact below 64,
+ * then 64 buckets per power of two, so any value is reported within about 1.6%. Safe to
+ * record into from many threads without locks; reads are not a consistent snapshot while
+ * others record.
+ *
+ * Recording is cheap enough for every server command: one bucket increment, striped
+ * adders for the count and sum (no shared hot cache line), and max is only written when
+ * it grows.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXP = 62;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB + (MAX_EXP - SUB_BITS + 1) * SUB);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    /** The value at quantile q (0..1): the top of the bucket it falls into, at most {@link #max()}. */
+    public long percentile(double q) {
+        long n = count.sum();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upper(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** Adds everything recorded in other to this one. */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    private static int index(long v) {
+        if (v < SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exp - SUB_BITS;
+        return SUB + shift * SUB + (int) ((v >> shift) - SUB);
+    }
+
+    private static long upper(int index) {
+        if (index < SUB) return index;
+        int shift = (index - SUB) / SUB;
+        long sub = (index - SUB) % SUB + SUB;
+        return ((sub + 1) << shift) - 1;
+    }
+}
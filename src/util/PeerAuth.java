@@ -0,0 +1,59 @@
+package util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+/**
+ * Shared-secret check for links between servers (cluster nodes, replication). The
+ * accepting side sends a random challenge; the connecting side answers with
+ * HMAC-SHA256(secret, challenge + " " + claim), where claim is what it says about itself.
+ * The secret never crosses the wire and an answer is no good on another connection.
+ */
+public final class PeerAuth {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+
+    public PeerAuth(String secret) {
+        if (secret == null || secret.isBlank()) throw new IllegalArgumentException("Empty shared secret");
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    /** The secret in system property name; there is no default, so it must be set. */
+    public static PeerAuth fromProperty(String name) {
+        String secret = System.getProperty(name);
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalStateException("-D" + name + "=<secret> must be set, the same on every server");
+        }
+        return new PeerAuth(secret);
+    }
+
+    /** Random hex, for challenges. */
+    public static String nonce() {
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        return HexFormat.of().formatHex(nonce);
+    }
+
+    public String answer(String challenge, String claim) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            byte[] sig = mac.doFinal((challenge + " " + claim).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(sig);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean verify(String challenge, String claim, String answer) {
+        byte[] expected = answer(challenge, claim).getBytes(StandardCharsets.UTF_8);
+        return answer != null && MessageDigest.isEqual(expected, answer.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,185 @@
+package client;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import server.ChatServer;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Runs the client against a server in this JVM. */
+class ClientConnectionTest {
+    private static final int MESSAGES = 200;
+
+    @TempDir
+    static Path cacheDir;
+
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        System.setProperty("messenger.cacheDir", cacheDir.toString());
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        ChatServer server = new ChatServer(port);
+        Thread t = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.out.println("test server failed: " + e.getMessage());
+            }
+        }, "test-server");
+        t.setDaemon(true);
+        t.start();
+        for (int i = 0; ; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (ConnectException e) {
+                if (i == 200) throw e;
+                Thread.sleep(25);
+            }
+        }
+    }
+
+    @Test
+    void pipelinedRequestsGetTheirOwnReplies() throws Exception {
+        try (ClientConnection alice = new ClientConnection("127.0.0.1", port);
+             ClientConnection bob = new ClientConnection("127.0.0.1", port)) {
+            long aliceId = alice.register("alice-pipe").get(5, TimeUnit.SECONDS);
+            long bobId = bob.register("bob-pipe").get(5, TimeUnit.SECONDS);
+            List<ChatEvent> received = new CopyOnWriteArrayList<>();
+            bob.addEventListener(received::add);
+            long chatId = alice.createChat("pipe", List.of(bobId)).get(5, TimeUnit.SECONDS);
+
+            // several threads, none waiting for its reply before sending the next
+            List<CompletableFuture<MessageId>> sends = new CopyOnWriteArrayList<>();
+            List<Thread> senders = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int first = t * MESSAGES / 4;
+                senders.add(new Thread(() -> {
+                    for (int i = first; i < first + MESSAGES / 4; i++) sends.add(alice.sendText(chatId, "m" + i));
+                }));
+            }
+            senders.forEach(Thread::start);
+            for (Thread t : senders) t.join();
+
+            Set<Long> ids = new HashSet<>();
+            for (CompletableFuture<MessageId> f : sends) {
+                MessageId id = f.get(5, TimeUnit.SECONDS);
+                assertEquals(chatId, id.chatId());
+                ids.add(id.id());
+            }
+            assertEquals(MESSAGES, ids.size());
+
+            List<ChatSummary> chats = alice.chats().get(5, TimeUnit.SECONDS);
+            assertTrue(chats.stream().anyMatch(c -> c.id() == chatId));
+            assertEquals(MESSAGES, alice.history(chatId).get(5, TimeUnit.SECONDS).size());
+
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (received.size() < MESSAGES && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(MESSAGES, received.size());
+            for (ChatEvent e : received) {
+                ChatEvent.NewText text = assertInstanceOf(ChatEvent.NewText.class, e);
+                assertEquals(aliceId, text.senderId());
+            }
+        }
+    }
+
+    @Test
+    void historyIsFetchedOnceAndThenOnlyWhatIsNewer() throws Exception {
+        try (ClientConnection alice = new ClientConnection("127.0.0.1", port)) {
+            alice.register("alice-hist").get(5, TimeUnit.SECONDS);
+            long chatId = alice.createChat("hist", List.of()).get(5, TimeUnit.SECONDS);
+            for (int i = 0; i < 5; i++) alice.sendText(chatId, "first " + i);
+            assertEquals(5, alice.history(chatId).get(5, TimeUnit.SECONDS).size());
+
+            for (int i = 0; i < 3; i++) alice.sendText(chatId, "second " + i);
+            List<String> lines = alice.history(chatId).get(5, TimeUnit.SECONDS);
+            assertEquals(8, lines.size());
+            assertTrue(lines.get(0).contains("first 0"));
+            assertTrue(lines.get(7).contains("second 2"));
+        }
+    }
+
+    @Test
+    void aRefusedRequestFailsOnlyItsOwnFuture() throws Exception {
+        try (ClientConnection alice = new ClientConnection("127.0.0.1", port)) {
+            alice.register("alice-err").get(5, TimeUnit.SECONDS);
+            CompletableFuture<MessageId> refused = alice.sendText(Long.MAX_VALUE, "nowhere");
+            CompletableFuture<Long> created = alice.createChat("after", List.of());
+            ExecutionException e = assertThrows(ExecutionException.class, () -> refused.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(RequestFailedException.class, e.getCause());
+            assertTrue(created.get(5, TimeUnit.SECONDS) > 0);
+        }
+    }
+
+    @Test
+    void resumeReplaysTheEventsAfterTheGivenSeq() throws Exception {
+        try (ClientConnection alice = new ClientConnection("127.0.0.1", port)) {
+            alice.register("alice-resume").get(5, TimeUnit.SECONDS);
+            long bobId;
+            long chatId;
+            long seen;
+            try (ClientConnection bob = new ClientConnection("127.0.0.1", port)) {
+                bobId = bob.register("bob-resume").get(5, TimeUnit.SECONDS);
+                chatId = alice.createChat("resume", List.of(bobId)).get(5, TimeUnit.SECONDS);
+                List<ChatEvent> received = new CopyOnWriteArrayList<>();
+                bob.addEventListener(received::add);
+                for (int i = 0; i < 5; i++) alice.sendText(chatId, "m" + i).get(5, TimeUnit.SECONDS);
+                long deadline = System.currentTimeMillis() + 5_000;
+                while (received.size() < 5 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+                assertEquals(5, received.size());
+                // as if the last three had been lost with the connection
+                seen = received.get(1).seq();
+                assertEquals(bob.lastSeq(), received.get(4).seq());
+            }
+
+            try (ClientConnection bob = new ClientConnection("127.0.0.1", port)) {
+                List<ChatEvent> replayed = new CopyOnWriteArrayList<>();
+                bob.addEventListener(replayed::add);
+                bob.login(bobId).get(5, TimeUnit.SECONDS);
+                assertTrue(bob.resume(seen).get(5, TimeUnit.SECONDS));
+                long deadline = System.currentTimeMillis() + 5_000;
+                while (replayed.size() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+                assertEquals(List.of("m2", "m3", "m4"),
+                        replayed.stream().map(e -> ((ChatEvent.NewText) e).text()).toList());
+                assertEquals(seen + 3, bob.lastSeq());
+
+                // older than anything kept: the client has to reload instead
+                assertFalse(bob.resume(1).get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    void statsReportsTheCommandsThatRan() throws Exception {
+        try (ClientConnection alice = new ClientConnection("127.0.0.1", port)) {
+            alice.register("alice-stats").get(5, TimeUnit.SECONDS);
+            long chatId = alice.createChat("stats", List.of()).get(5, TimeUnit.SECONDS);
+            alice.sendText(chatId, "counted").get(5, TimeUnit.SECONDS);
+
+            List<String> stats = alice.stats().get(5, TimeUnit.SECONDS);
+            assertTrue(stats.get(0).startsWith("uptimeSec="), stats.get(0));
+            for (String cmd : List.of("REGISTER", "CREATE_CHAT", "SEND_TEXT")) {
+                assertTrue(stats.stream().anyMatch(l -> l.startsWith("command=" + cmd + " count=")), cmd + " in " + stats);
+            }
+            assertTrue(stats.stream().anyMatch(l -> l.startsWith("fanout recipients ")), stats.toString());
+        }
+    }
+}
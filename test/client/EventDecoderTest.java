@@ -0,0 +1,45 @@
+package client;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventDecoderTest {
+
+    @Test
+    void decodesEachEventType() {
+        assertEquals(new ChatEvent.NewText(0, 7, "team", 1, "alice", "hi"),
+                EventDecoder.decode("EVENT NEW_TEXT chatId=7 chatTitle=team senderId=1 sender=alice text=hi"));
+        assertEquals(new ChatEvent.NewVoice(12, 7, "team", 1, "alice", "memo", "https://v/1"),
+                EventDecoder.decode("EVENT NEW_VOICE seq=12 chatId=7 chatTitle=team senderId=1 sender=alice title=memo url=https://v/1"));
+        assertEquals(new ChatEvent.NewMedia(0, 7, "team", 1, "alice", "clip", "https://m/1"),
+                EventDecoder.decode("EVENT NEW_MEDIA chatId=7 chatTitle=team senderId=1 sender=alice title=clip url=https://m/1"));
+        assertEquals(new ChatEvent.NewFile(0, 7, "team", 1, "alice", "a.pdf", "https://f/1"),
+                EventDecoder.decode("EVENT NEW_FILE chatId=7 chatTitle=team senderId=1 sender=alice name=a.pdf url=https://f/1"));
+        assertEquals(new ChatEvent.NewImage(0, 7, "team", 1, "alice", "cat.png"),
+                EventDecoder.decode("EVENT NEW_IMAGE chatId=7 chatTitle=team senderId=1 sender=alice file=cat.png"));
+        assertEquals(new ChatEvent.Inbox(3, 7, "team", 250, 9001),
+                EventDecoder.decode("EVENT INBOX seq=3 chatId=7 chatTitle=team count=250 lastMessageId=9001"));
+    }
+
+    @Test
+    void valuesKeepSpacesKeysAndEscapedLineBreaks() {
+        ChatEvent e = EventDecoder.decode(
+                "EVENT NEW_TEXT seq=5 chatId=7 chatTitle=our team senderId=1 sender=alice text=a\\nb url=x \\\\ c");
+        assertEquals(new ChatEvent.NewText(5, 7, "our team", 1, "alice", "a\nb url=x \\\\ c"), e);
+        assertEquals(5, e.seq());
+    }
+
+    @Test
+    void anythingElseIsKeptRaw() {
+        for (String line : new String[] {
+                "OK Connected",
+                "EVENT",
+                "EVENT TYPING chatId=7",
+                "EVENT NEW_TEXT chatId=x chatTitle=t senderId=1 sender=a text=hi",
+                "EVENT NEW_TEXT chatId=7 senderId=1 sender=a text=hi",
+                "EVENT NEW_TEXT seq=1"}) {
+            assertEquals(new ChatEvent.Other(line), EventDecoder.decode(line), line);
+        }
+    }
+}
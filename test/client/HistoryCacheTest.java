@@ -0,0 +1,72 @@
+package client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void appendsFetchedLinesAfterTheCachedOnes() {
+        HistoryCache cache = new HistoryCache(dir, 10, 100);
+        assertEquals(List.of(), cache.read(7));
+
+        cache.append(7, List.of(), entries(1, 3));
+        List<HistoryCache.Entry> cached = cache.read(7);
+        assertEquals(entries(1, 3), cached);
+
+        cache.append(7, cached, entries(4, 5));
+        assertEquals(entries(1, 5), cache.read(7));
+    }
+
+    @Test
+    void keepsOnlyTheNewestMessagesOfAChat() {
+        HistoryCache cache = new HistoryCache(dir, 10, 4);
+        cache.append(7, List.of(), entries(1, 3));
+        cache.append(7, cache.read(7), entries(4, 6));
+        assertEquals(entries(3, 6), cache.read(7));
+    }
+
+    @Test
+    void evictsTheChatOpenedLeastRecently() throws IOException {
+        HistoryCache cache = new HistoryCache(dir, 2, 100);
+        cache.append(1, List.of(), entries(1, 1));
+        cache.append(2, List.of(), entries(1, 1));
+        Files.setLastModifiedTime(dir.resolve("1.hist"), FileTime.fromMillis(1_000));
+        Files.setLastModifiedTime(dir.resolve("2.hist"), FileTime.fromMillis(2_000));
+        // opening chat 1 makes chat 2 the least recent
+        cache.read(1);
+
+        cache.append(3, List.of(), entries(1, 1));
+        assertFalse(cache.read(1).isEmpty());
+        assertTrue(cache.read(2).isEmpty());
+        assertFalse(cache.read(3).isEmpty());
+    }
+
+    @Test
+    void aDamagedFileIsDroppedAndRefetched() throws IOException {
+        HistoryCache cache = new HistoryCache(dir, 10, 100);
+        cache.append(7, List.of(), entries(1, 2));
+        Files.writeString(dir.resolve("7.hist"), "x1 garbage\n");
+
+        assertEquals(List.of(), cache.read(7));
+        assertFalse(Files.exists(dir.resolve("7.hist")));
+    }
+
+    private static List<HistoryCache.Entry> entries(long from, long to) {
+        List<HistoryCache.Entry> entries = new ArrayList<>();
+        for (long id = from; id <= to; id++) entries.add(new HistoryCache.Entry(id, "[12:00] alice: message " + id));
+        return entries;
+    }
+}
@@ -0,0 +1,69 @@
+package cluster;
+
+import domain.Chat;
+import domain.User;
+import org.junit.jupiter.api.Test;
+import repository.inmemory.InMemoryChatRepository;
+import service.ChatService;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+    private static final int KEYS = 30_000;
+
+    @Test
+    void chatsSpreadEvenlyOverTheNodes() {
+        HashRing ring = new HashRing(List.of(1, 2, 3), 100);
+        int[] owned = new int[4];
+        for (long chatId = 1; chatId <= KEYS; chatId++) owned[ring.ownerOf(chatId)]++;
+        for (int node = 1; node <= 3; node++) {
+            assertTrue(owned[node] > KEYS / 5 && owned[node] < KEYS / 2, "node " + node + " owns " + owned[node]);
+        }
+    }
+
+    @Test
+    void everyNodeAgreesOnTheOwner() {
+        HashRing a = new HashRing(List.of(1, 2, 3), 100);
+        HashRing b = new HashRing(List.of(3, 1, 2), 100);
+        for (long chatId = 1; chatId <= 1000; chatId++) assertEquals(a.ownerOf(chatId), b.ownerOf(chatId));
+    }
+
+    @Test
+    void aNewNodeOnlyTakesChatsOver() {
+        HashRing before = new HashRing(List.of(1, 2, 3), 100);
+        HashRing after = new HashRing(List.of(1, 2, 3, 4), 100);
+        int moved = 0;
+        for (long chatId = 1; chatId <= KEYS; chatId++) {
+            int owner = after.ownerOf(chatId);
+            if (owner == before.ownerOf(chatId)) continue;
+            assertEquals(4, owner);
+            moved++;
+        }
+        assertTrue(moved > KEYS / 8 && moved < KEYS / 3, moved + " moved");
+    }
+
+    @Test
+    void aNodeOnlyCreatesChatsItOwns() {
+        HashRing ring = new HashRing(List.of(1, 2, 3), 100);
+        ChatService service = new ChatService(new InMemoryChatRepository(), id -> new User(id, "user" + id));
+        service.setChatPlacement(id -> ring.ownerOf(id) == 2);
+        for (int i = 0; i < 50; i++) {
+            Chat chat = service.createChat("chat " + i, List.of(1L));
+            assertEquals(2, ring.ownerOf(chat.getId()));
+        }
+    }
+
+    @Test
+    void clusterSpecIsParsedAndChecked() {
+        ClusterConfig config = ClusterConfig.parse(2, "1@10.0.0.1:7001, 2@10.0.0.2:7002,3@[::1]:7003");
+        assertEquals(new ClusterConfig.Node(2, "10.0.0.2", 7002), config.self());
+        assertEquals(1, config.index());
+        assertEquals(List.of(1, 3), config.peers().stream().map(ClusterConfig.Node::id).toList());
+        assertEquals("[::1]", config.node(3).host());
+
+        assertThrows(IllegalArgumentException.class, () -> ClusterConfig.parse(4, "1@a:1,2@b:2"));
+        assertThrows(IllegalArgumentException.class, () -> ClusterConfig.parse(1, "1@a:1,b:2"));
+    }
+}
@@ -0,0 +1,85 @@
+package cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceDirectoryTest {
+    private static final long ALICE = 1;
+    private static final long BOB = 2;
+
+    @Test
+    void aStaleLogoutDoesNotHideANewerLogin() {
+        PresenceDirectory presence = new PresenceDirectory();
+        presence.setLocalNode(1);
+        long first = presence.login(ALICE);
+        long second = presence.login(ALICE);
+        assertTrue(second > first);
+
+        presence.logout(ALICE, first);
+        assertEquals(new PresenceDirectory.Presence(1, second), presence.get(ALICE));
+        presence.logout(ALICE, second);
+        assertFalse(presence.isOnline(ALICE));
+    }
+
+    @Test
+    void changesFromOneNodeRecreateItsUsersOnAnother() {
+        PresenceDirectory one = new PresenceDirectory();
+        one.setLocalNode(1);
+        PresenceDirectory two = new PresenceDirectory();
+        two.setLocalNode(2);
+
+        long alice = one.login(ALICE);
+        long bob = one.login(BOB);
+        one.logout(BOB, bob);
+        List<Long> cameOnline = new ArrayList<>();
+        two.apply(1, one.drainChanges().toArray(new String[0]), cameOnline::add);
+        assertEquals(List.of(ALICE, BOB), cameOnline);
+        assertEquals(new PresenceDirectory.Presence(1, alice), two.get(ALICE));
+        assertFalse(two.isOnline(BOB));
+        assertEquals(List.of(), one.drainChanges());
+
+        // a node that connects later gets the same from a snapshot
+        PresenceDirectory three = new PresenceDirectory();
+        three.setLocalNode(3);
+        three.apply(1, one.localSnapshot().toArray(new String[0]), id -> {});
+        assertEquals(two.get(ALICE), three.get(ALICE));
+    }
+
+    @Test
+    void theLaterSessionWinsAcrossNodes() {
+        PresenceDirectory one = new PresenceDirectory();
+        one.setLocalNode(1);
+        long local = one.login(ALICE);
+
+        // moved to node 2 afterwards, and node 2's older news arrives late
+        one.apply(2, new String[] {"+" + ALICE + "." + (local + 10)}, id -> {});
+        assertEquals(2, one.get(ALICE).node());
+        one.apply(2, new String[] {"+" + ALICE + "." + (local - 10)}, id -> fail("older session"));
+        assertEquals(local + 10, one.get(ALICE).session());
+
+        // the local logout of the replaced session leaves node 2's entry alone
+        one.logout(ALICE, local);
+        assertEquals(2, one.get(ALICE).node());
+    }
+
+    @Test
+    void usersGoAwayWithTheirNode() {
+        PresenceDirectory presence = new PresenceDirectory();
+        presence.setLocalNode(1);
+        presence.login(ALICE);
+        presence.apply(2, new String[] {"+2.100", "+3.101", ""}, id -> {});
+
+        presence.forget(3, 1);
+        assertTrue(presence.isOnline(3));
+        presence.forget(3, 2);
+        assertFalse(presence.isOnline(3));
+
+        assertEquals(1, presence.dropNode(2));
+        assertEquals(1, presence.size());
+        assertTrue(presence.isOnline(ALICE));
+    }
+}
@@ -0,0 +1,72 @@
+package domain.message;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fixed messages of every kind and their MessageCodec bytes as committed in
+ * golden/messages-v1.bin. If the codec no longer writes exactly those bytes or cannot read
+ * them back, every stored log and dump breaks.
+ *
+ * Only rewrite the file (with encode(messages())) together with a new codec VERSION.
+ */
+class MessageCodecGoldenTest {
+    private static final String RESOURCE = "/golden/messages-v1.bin";
+
+    static List<Message> messages() {
+        Instant t = Instant.parse("2024-03-15T10:20:30.123456Z");
+        Message text = new TextMessage(1, 100, 7, t, "Привет! 👋 line\nbreak");
+        Message empty = new TextMessage(300, 100, 8, t.plusNanos(1), "");
+        Message image = new ImageMessage(1L << 40, 100, 7, t.minusSeconds(86_400), "photos/cat.png");
+        Message voice = new VoiceLinkMessage(5, 200, 9, t, "voice note", "https://drive.google.com/file/d/abc");
+        Message media = new MediaLinkMessage(6, 200, 9, t.plusSeconds(1), "clip", "https://youtu.be/xyz");
+        Message file = new FileLinkMessage(7, 200, 9, Instant.EPOCH, "report.pdf", "https://docs.google.com/d/1");
+        empty.setStatus(Message.Status.DELIVERED);
+        image.setStatus(Message.Status.READ);
+        return List.of(text, empty, image, voice, media, file);
+    }
+
+    static byte[] encode(List<Message> messages) {
+        int size = 0;
+        for (Message m : messages) size += MessageCodec.encodedLength(m);
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (Message m : messages) MessageCodec.encode(buf, m);
+        return buf.array();
+    }
+
+    private static byte[] golden() throws IOException {
+        try (InputStream in = MessageCodecGoldenTest.class.getResourceAsStream(RESOURCE)) {
+            assertNotNull(in, "missing " + RESOURCE);
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void encodesTheGoldenBytes() throws IOException {
+        assertArrayEquals(golden(), encode(messages()));
+    }
+
+    @Test
+    void decodesTheGoldenMessages() throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(golden());
+        for (Message e : messages()) {
+            Message m = MessageCodec.decode(in);
+            assertEquals(e.getClass(), m.getClass());
+            assertEquals(e.getId(), m.getId());
+            assertEquals(e.getChatId(), m.getChatId());
+            assertEquals(e.getSenderId(), m.getSenderId());
+            assertEquals(e.getTimestamp(), m.getTimestamp());
+            assertEquals(e.getStatus(), m.getStatus());
+            assertEquals(e.getBody(), m.getBody());
+            assertEquals(e.getUrl(), m.getUrl());
+        }
+        assertFalse(in.hasRemaining(), "trailing bytes in " + RESOURCE);
+    }
+}
@@ -0,0 +1,75 @@
+package loadgen;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadGeneratorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void argumentsOverrideTheDefaults() {
+        LoadConfig c = LoadConfig.parse(new String[] {"users=10", "chatSize=zipf:1.2:2-8", "thinkMs=5", "warmupSec=0"});
+        assertEquals(10, c.users());
+        assertEquals(50, c.chats());
+        assertEquals("zipf:1.2:2-8", c.chatSize());
+        assertEquals(Duration.ofMillis(5), c.think());
+        assertEquals(Duration.ZERO, c.warmup());
+        assertEquals(5050, c.port());
+
+        assertThrows(IllegalArgumentException.class, () -> LoadConfig.parse(new String[] {"users"}));
+        assertThrows(IllegalArgumentException.class, () -> LoadConfig.parse(new String[] {"users=1"}));
+        assertThrows(IllegalArgumentException.class, () -> LoadConfig.parse(new String[] {"chatSize=normal:5"}));
+        assertThrows(IllegalArgumentException.class, () -> LoadConfig.parse(new String[] {"chatSize=uniform:5-2"}));
+    }
+
+    @Test
+    void chatSizesStayInTheirRange() {
+        Random random = new Random(1);
+        assertEquals(4, SizeDistribution.parse("fixed:4").sample(random));
+        SizeDistribution uniform = SizeDistribution.parse("uniform:2-5");
+        SizeDistribution zipf = SizeDistribution.parse("zipf:1.5:2-50");
+        int small = 0;
+        for (int i = 0; i < 10_000; i++) {
+            int u = uniform.sample(random);
+            assertTrue(u >= 2 && u <= 5, "uniform " + u);
+            int z = zipf.sample(random);
+            assertTrue(z >= 2 && z <= 50, "zipf " + z);
+            if (z <= 4) small++;
+        }
+        // weights 1, 0.35, 0.19 of a total of about 2.4
+        assertTrue(small > 6_000, small + " small chats");
+    }
+
+    @Test
+    void aShortRunAgainstAnEmbeddedServerLosesNothing() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        System.setProperty("messenger.cacheDir", dir.resolve("cache").toString());
+        LoadGenerator.main(new String[] {"embedded=true", "port=" + port, "users=6", "chats=3", "chatSize=fixed:3",
+                "burst=3", "thinkMs=50", "durationSec=1", "warmupSec=0", "out=" + dir});
+
+        List<String> csv = Files.readAllLines(dir.resolve("runs.csv"));
+        assertEquals(2, csv.size());
+        String[] header = csv.get(0).split(",");
+        String[] row = csv.get(1).split(",");
+        assertTrue(Long.parseLong(row[List.of(header).indexOf("sent")]) > 0, csv.get(1));
+        assertEquals("0", row[List.of(header).indexOf("lost")], csv.get(1));
+        assertEquals("0", row[List.of(header).indexOf("errors")], csv.get(1));
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.filter(f -> f.getFileName().toString().endsWith(".json")).count());
+        }
+    }
+}
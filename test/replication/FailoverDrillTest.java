@@ -0,0 +1,37 @@
+package replication;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Runs {@link FailoverDrill} against real server processes on free local ports. */
+class FailoverDrillTest {
+    @Test
+    void failoverKeepsAcknowledgedStateAndIds() throws Exception {
+        int port = freePorts();
+        int replicationPort = freePort();
+        assertEquals(0, FailoverDrill.run(port, replicationPort, 500, 200, List.of()), "failed drill checks");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    // clients use port and port+1
+    private static int freePorts() throws IOException {
+        while (true) {
+            int port = freePort();
+            try (ServerSocket ignored = new ServerSocket(port + 1)) {
+                return port;
+            } catch (IOException e) {
+                // taken; try another pair
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package repository.dump;
+
+import domain.Chat;
+import domain.Contact;
+import domain.RetentionPolicy;
+import domain.User;
+import domain.message.FileLinkMessage;
+import domain.message.Message;
+import domain.message.TextMessage;
+import domain.message.VoiceLinkMessage;
+import org.junit.jupiter.api.Test;
+import repository.inmemory.InMemoryChatRepository;
+import repository.inmemory.InMemoryUserRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatDumpTest {
+    private static final int CHATS = 20;
+    // enough for the dump to take several chunks
+    private static final int MESSAGES = 3000;
+    private static final Instant START = Instant.parse("2026-01-01T00:00:00.123456789Z");
+
+    @Test
+    void exportThenImportRestoresEverything() throws IOException {
+        InMemoryUserRepository users = new InMemoryUserRepository();
+        InMemoryChatRepository chats = new InMemoryChatRepository();
+        fill(users, chats);
+
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        DumpStats exported = ChatExporter.export(users, chats, dump);
+        assertEquals(3, exported.users());
+        assertEquals(CHATS, exported.chats());
+        assertEquals((long) CHATS * MESSAGES, exported.messages());
+
+        InMemoryUserRepository users2 = new InMemoryUserRepository();
+        InMemoryChatRepository chats2 = new InMemoryChatRepository();
+        DumpStats imported = new ChatImporter(users2, chats2, 4).importFrom(new ByteArrayInputStream(dump.toByteArray()));
+        assertEquals(exported.users(), imported.users());
+        assertEquals(exported.chats(), imported.chats());
+        assertEquals(exported.messages(), imported.messages());
+
+        User alice = users2.findById(1).orElseThrow();
+        assertEquals("alice", alice.getUsername());
+        assertEquals(1, alice.getContacts().size());
+        Contact c = alice.getContacts().get(0);
+        assertEquals(2, c.getTargetUser().getId());
+        assertEquals("bobby", c.getAlias());
+
+        for (long id = 1; id <= CHATS; id++) {
+            Chat before = chats.findById(id).orElseThrow();
+            Chat after = chats2.findById(id).orElseThrow();
+            assertEquals(before.getTitle(), after.getTitle());
+            assertEquals(before.getParticipantIds(), after.getParticipantIds());
+            assertEquals(before.getRetention(), after.getRetention());
+            assertEquals(describe(before.copyMessages()), describe(after.copyMessages()));
+        }
+    }
+
+    @Test
+    void importRefusesWhatIsNotADump() {
+        ChatImporter importer = new ChatImporter(new InMemoryUserRepository(), new InMemoryChatRepository(), 2);
+        assertThrows(IllegalStateException.class,
+                () -> importer.importFrom(new ByteArrayInputStream("JUNK-not-a-dump".getBytes())));
+    }
+
+    private static void fill(InMemoryUserRepository users, InMemoryChatRepository chats) {
+        User alice = new User(1, "alice");
+        User bob = new User(2, "bob");
+        users.add(alice);
+        users.add(bob);
+        users.add(new User(3, "carol"));
+        alice.addOrUpdateContact(new Contact(50, bob, "bobby"));
+        users.update(alice);
+
+        for (long id = 1; id <= CHATS; id++) {
+            Chat chat = new Chat(id, "chat " + id);
+            chat.addParticipant(1);
+            chat.addParticipant(2 + id % 2);
+            if (id % 3 == 0) chat.setRetention(RetentionPolicy.of(86_400_000, 500));
+            chats.add(chat);
+            for (int i = 0; i < MESSAGES; i++) {
+                long msgId = id * 100_000 + i;
+                Instant at = START.plusMillis(i * 1500L + id);
+                long sender = (i % 2 == 0) ? 1 : 2;
+                chat.append(switch (i % 3) {
+                    case 0 -> new TextMessage(msgId, id, sender, at, "текст " + i);
+                    case 1 -> new VoiceLinkMessage(msgId, id, sender, at, "voice " + i, "https://v.example/" + i);
+                    default -> new FileLinkMessage(msgId, id, sender, at, "f" + i + ".pdf", "https://f.example/" + i);
+                });
+            }
+        }
+    }
+
+    private static List<String> describe(List<Message> messages) {
+        return messages.stream()
+                .map(m -> m.getId() + " " + m.getClass().getSimpleName() + " " + m.getSenderId() + " "
+                        + m.getTimestamp() + " " + m.getBody() + " " + m.getUrl() + " " + m.getStatus())
+                .toList();
+    }
+}
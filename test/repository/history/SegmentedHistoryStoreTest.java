@@ -0,0 +1,79 @@
+package repository.history;
+
+import domain.message.Message;
+import domain.message.MessageView;
+import domain.message.TextMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import repository.HistorySink;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedHistoryStoreTest {
+    private static final long CHAT = 100;
+    private static final long ALICE = 1;
+    private static final long BOB = 2;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void receiptsMarkOnlyTheOtherSideUpToTheirWatermark() throws IOException {
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(dir, 512, 4)) {
+            for (long id = 1; id <= 100; id++) store.append(message(id, (id % 3 == 0) ? BOB : ALICE));
+            store.markReadBy(CHAT, BOB, 40);
+            store.markReadBy(CHAT, BOB, 90);
+            // an older receipt arriving late changes nothing
+            store.markReadBy(CHAT, BOB, 20);
+
+            for (Row r : read(store, 0)) {
+                boolean read = r.id <= 90 && r.senderId != BOB;
+                assertEquals(read ? Message.Status.READ : Message.Status.SENT, r.status, "message " + r.id);
+            }
+        }
+    }
+
+    @Test
+    void evictedChatsReopenWithTheirMessages() throws IOException {
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(dir, 512, 1)) {
+            for (long id = 1; id <= 30; id++) store.append(message(id, ALICE));
+            Message other = new TextMessage(31, CHAT + 1, ALICE, Instant.EPOCH, "elsewhere");
+            store.append(other);
+            assertEquals(1, store.openChats());
+
+            store.trim(CHAT, 10);
+            store.markReadBy(CHAT, BOB, 30);
+            List<Row> rows = read(store, 0);
+            assertEquals(20, rows.size());
+            assertEquals(11, rows.get(0).id);
+            assertTrue(rows.stream().allMatch(r -> r.status == Message.Status.READ));
+            assertEquals(List.of(21L, 22L), read(store, 20).stream().limit(2).map(Row::id).toList());
+        }
+    }
+
+    private record Row(long id, long senderId, Message.Status status) {}
+
+    private static List<Row> read(SegmentedHistoryStore store, long afterId) {
+        List<Row> rows = new ArrayList<>();
+        store.read(CHAT, afterId, Integer.MAX_VALUE, new HistorySink() {
+            @Override
+            public void begin(int count) {}
+
+            @Override
+            public void message(MessageView m) {
+                rows.add(new Row(m.getId(), m.getSenderId(), m.getStatus()));
+            }
+        });
+        return rows;
+    }
+
+    private static Message message(long id, long senderId) {
+        return new TextMessage(id, CHAT, senderId, Instant.EPOCH.plusSeconds(id), "message " + id);
+    }
+}
@@ -0,0 +1,50 @@
+package repository.inmemory;
+
+import domain.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryUserRepositoryTest {
+
+    @Test
+    void prefixIgnoresCaseAndStopsAtTheLimit() {
+        InMemoryUserRepository users = new InMemoryUserRepository();
+        users.add(new User(1, "alice"));
+        users.add(new User(2, "Alina"));
+        users.add(new User(3, "bob"));
+        users.add(new User(4, "ALBERT"));
+
+        assertEquals(List.of("ALBERT", "alice", "Alina"), names(users.findByUsernamePrefix("al", 10)));
+        assertEquals(List.of("ALBERT", "alice"), names(users.findByUsernamePrefix("AL", 2)));
+        assertEquals(List.of(), users.findByUsernamePrefix("al", 0));
+        assertEquals(List.of(), users.findByUsernamePrefix("carol", 10));
+        assertEquals(4, users.findByUsernamePrefix("", 10).size());
+    }
+
+    @Test
+    void renameAndDeleteMoveTheIndex() {
+        InMemoryUserRepository users = new InMemoryUserRepository();
+        User u = new User(1, "alice");
+        users.add(u);
+        users.add(new User(2, "alice"));
+
+        u.setUsername("zoe");
+        users.update(u);
+        assertEquals(List.of(2L), ids(users.findByUsernamePrefix("ali", 10)));
+        assertEquals(List.of(1L), ids(users.findByUsernamePrefix("z", 10)));
+
+        users.deleteById(2);
+        assertEquals(List.of(), users.findByUsernamePrefix("ali", 10));
+    }
+
+    private static List<String> names(List<User> users) {
+        return users.stream().map(User::getUsername).toList();
+    }
+
+    private static List<Long> ids(List<User> users) {
+        return users.stream().map(User::getId).toList();
+    }
+}
@@ -0,0 +1,49 @@
+package repository.jdbc;
+
+import exception.StorageException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseTest {
+    private static final String INSERT_CHAT = "INSERT INTO chats (id, title) VALUES (?, ?)";
+
+    private final Database db = new Database("jdbc:h2:mem:" + getClass().getSimpleName() + System.nanoTime());
+
+    @AfterEach
+    void close() {
+        db.close();
+    }
+
+    @Test
+    void aBadWriteOnlyFailsItselfNotItsBatch() throws InterruptedException {
+        insert(1, "first").join();
+
+        CompletableFuture<Void> duplicate;
+        CompletableFuture<Void> next;
+        // holding the lock keeps the writer out until both are queued, so they share a batch
+        synchronized (db) {
+            CompletableFuture<Void> filler = insert(2, "filler");
+            Thread.sleep(200);
+            duplicate = insert(1, "replayed");
+            next = insert(3, "next");
+            assertFalse(filler.isDone());
+        }
+
+        CompletionException e = assertThrows(CompletionException.class, duplicate::join);
+        assertInstanceOf(StorageException.class, e.getCause());
+        next.join();
+        assertEquals(3L, (long) db.transaction(d -> d.queryLong("SELECT COUNT(*) FROM chats", ps -> {})));
+    }
+
+    private CompletableFuture<Void> insert(long id, String title) {
+        return db.submit(INSERT_CHAT, ps -> {
+            ps.setLong(1, id);
+            ps.setString(2, title);
+        });
+    }
+}
@@ -0,0 +1,76 @@
+package repository.jdbc;
+
+import domain.Chat;
+import domain.message.Message;
+import domain.message.MessageView;
+import domain.message.TextMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import repository.HistorySink;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JdbcChatRepositoryTest {
+    private static final long ALICE = 1;
+    private static final long BOB = 2;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void chatsMessagesAndReceiptsSurviveReopening() {
+        String url = "jdbc:h2:file:" + dir.resolve("messenger");
+        Database db = new Database(url);
+        JdbcChatRepository repo = new JdbcChatRepository(db);
+        Chat chat = new Chat(100, "chat");
+        chat.addParticipant(ALICE);
+        chat.addParticipant(BOB);
+        repo.add(chat);
+        Chat stored = repo.findById(100).orElseThrow();
+        for (long id = 101; id <= 105; id++) {
+            Message m = new TextMessage(id, 100, ALICE, Instant.EPOCH.plusSeconds(id), "message " + id);
+            synchronized (stored) {
+                stored.append(m);
+                repo.appendMessage(stored, m).join();
+            }
+        }
+        synchronized (stored) {
+            stored.markReadBy(BOB, 103);
+        }
+        repo.recordRead(stored, BOB, 103).join();
+        db.close();
+
+        db = new Database(url);
+        try {
+            repo = new JdbcChatRepository(db);
+            Chat chat2 = repo.findById(100).orElseThrow();
+            assertEquals("chat", chat2.getTitle());
+            assertEquals(List.of(ALICE, BOB), chat2.getParticipantIds());
+            assertEquals(List.of(100L), repo.findByParticipant(BOB).stream().map(Chat::getId).toList());
+
+            List<MessageView> page = new ArrayList<>();
+            List<Message.Status> statuses = new ArrayList<>();
+            repo.readHistory(100, 102, 2, new HistorySink() {
+                @Override
+                public void begin(int count) {}
+
+                @Override
+                public void message(MessageView m) {
+                    page.add(m);
+                    statuses.add(m.getStatus());
+                }
+            });
+            assertEquals(List.of(103L, 104L), page.stream().map(MessageView::getId).toList());
+            // the receipt covered the messages up to 103 only
+            assertEquals(List.of(Message.Status.READ, Message.Status.SENT), statuses);
+            assertEquals(5, chat2.messageCount());
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package repository.log;
+
+import exception.StorageException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AppendLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void tornTailIsCutOffAndAppendingContinuesAfterIt() throws IOException {
+        try (AppendLog log = open(new ArrayList<>())) {
+            for (String r : List.of("one", "two", "three")) log.append(bytes(r));
+        }
+        Path segment = onlySegment();
+        long intact = Files.size(segment);
+        // a frame cut short by a crash: its header promises more than was written
+        Files.write(segment, ByteBuffer.allocate(LogFrames.HEADER + 3).putInt(100).putInt(0).array(),
+                StandardOpenOption.APPEND);
+
+        List<String> replayed = new ArrayList<>();
+        try (AppendLog log = open(replayed)) {
+            assertEquals(List.of("one", "two", "three"), replayed);
+            assertEquals(intact, Files.size(segment));
+            log.append(bytes("four"));
+        }
+
+        replayed.clear();
+        open(replayed).close();
+        assertEquals(List.of("one", "two", "three", "four"), replayed);
+    }
+
+    @Test
+    void replayStopsAtACorruptRecord() throws IOException {
+        try (AppendLog log = open(new ArrayList<>())) {
+            for (String r : List.of("one", "two", "three")) log.append(bytes(r));
+        }
+        Path segment = onlySegment();
+        byte[] data = Files.readAllBytes(segment);
+        data[data.length - 1] ^= 1; // last byte of "three"
+        Files.write(segment, data);
+
+        List<String> replayed = new ArrayList<>();
+        open(replayed).close();
+        assertEquals(List.of("one", "two"), replayed);
+    }
+
+    @Test
+    void damageBeforeTheNewestSegmentFailsTheOpen() throws IOException {
+        try (AppendLog log = open(new ArrayList<>())) {
+            log.append(bytes("one"));
+            log.append(bytes("two"));
+            log.roll();
+            log.append(bytes("three"));
+        }
+        List<Long> segments = AppendLog.segments(dir, "test");
+        assertEquals(2, segments.size());
+        Path first = dir.resolve(String.format("test-%012d.log", segments.get(0)));
+        byte[] data = Files.readAllBytes(first);
+        data[data.length - 1] ^= 1;
+        Files.write(first, data);
+
+        StorageException e = assertThrows(StorageException.class, () -> open(new ArrayList<>()));
+        assertTrue(e.getMessage().contains(first.getFileName().toString()), e.getMessage());
+    }
+
+    @Test
+    void failingTailFailsTheLogInsteadOfHangingIt() throws IOException {
+        try (AppendLog log = open(new ArrayList<>())) {
+            log.setTail(rec -> {
+                throw new IllegalStateException("tail broke");
+            });
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                assertThrows(StorageException.class, () -> log.append(bytes("one")));
+                assertThrows(StorageException.class, () -> log.append(bytes("two")));
+            });
+        }
+    }
+
+    private AppendLog open(List<String> replayed) throws IOException {
+        return AppendLog.open(dir, "test", FsyncPolicy.EVERY_COMMIT, Duration.ZERO, 0,
+                rec -> replayed.add(StandardCharsets.UTF_8.decode(rec).toString()));
+    }
+
+    private Path onlySegment() throws IOException {
+        List<Long> segments = AppendLog.segments(dir, "test");
+        assertEquals(1, segments.size());
+        return dir.resolve(String.format("test-%012d.log", segments.get(0)));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,85 @@
+package repository.log;
+
+import domain.Chat;
+import domain.message.Message;
+import domain.message.TextMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import util.IdGenerator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogChatRepositoryTest {
+    private static final long ALICE = 1;
+    private static final long BOB = 2;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoversFromSnapshotPlusLogTail() throws IOException {
+        try (LogChatRepository repo = open()) {
+            Chat chat = new Chat(100, "chat");
+            chat.addParticipant(ALICE);
+            chat.addParticipant(BOB);
+            repo.add(chat);
+            send(repo, chat, 10);
+            send(repo, chat, 11);
+            read(repo, chat, BOB, 10);
+            repo.snapshot();
+
+            send(repo, chat, 12);
+            send(repo, chat, 13);
+            read(repo, chat, BOB, 12);
+        }
+
+        try (LogChatRepository repo = open()) {
+            Chat chat = repo.findById(100).orElseThrow();
+            assertEquals(List.of(ALICE, BOB), chat.getParticipantIds());
+            List<Message> messages = chat.copyMessages();
+            assertEquals(List.of(10L, 11L, 12L, 13L), messages.stream().map(Message::getId).toList());
+            // the READ records only cover what had arrived when they were written
+            assertEquals(List.of(Message.Status.READ, Message.Status.READ, Message.Status.READ, Message.Status.SENT),
+                    messages.stream().map(Message::getStatus).toList());
+            assertTrue(IdGenerator.peek() > 13);
+        }
+    }
+
+    @Test
+    void reservedIdsAreKeptInTheSnapshot() throws IOException {
+        long reserved = IdGenerator.peek() + 1_000_000;
+        try (LogChatRepository repo = open()) {
+            repo.reserveIds(reserved);
+            assertTrue(IdGenerator.nextId() >= reserved);
+            repo.snapshot();
+        }
+        // IdGenerator is global, so check the record recovery would advance it with
+        long[] floor = new long[1];
+        SnapshotFiles.load(dir, "chats", SnapshotFiles.latest(dir, "chats"), rec -> {
+            if (rec.get() == RecordCodec.IDS) floor[0] = Math.max(floor[0], rec.getLong());
+        });
+        assertTrue(floor[0] > reserved);
+    }
+
+    private LogChatRepository open() throws IOException {
+        return new LogChatRepository(dir, FsyncPolicy.EVERY_COMMIT, Duration.ZERO);
+    }
+
+    // the way ChatService stores a send and a read receipt: the chat changes first
+    private static void send(LogChatRepository repo, Chat chat, long id) {
+        Message m = new TextMessage(id, chat.getId(), ALICE, Instant.now(), "message " + id);
+        chat.append(m);
+        AppendLog.await(repo.appendMessage(chat, m));
+    }
+
+    private static void read(LogChatRepository repo, Chat chat, long readerId, long throughId) {
+        assertTrue(chat.markReadBy(readerId, throughId));
+        AppendLog.await(repo.recordRead(chat, readerId, throughId));
+    }
+}
@@ -0,0 +1,96 @@
+package repository.tiered;
+
+import domain.Chat;
+import domain.message.Message;
+import domain.message.TextMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import repository.log.ChatFileStore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredChatRepositoryTest {
+    private static final long ALICE = 1;
+    private static final int CHATS = 40;
+    private static final int MESSAGES = 10;
+    // a few chats' worth of messages
+    private static final long BUDGET = 4 * MESSAGES * 200;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void spillsPastTheBudgetAndLoadsColdChatsBack() throws Exception {
+        try (TieredChatRepository repo = new TieredChatRepository(new ChatFileStore(dir), BUDGET)) {
+            for (long id = 1; id <= CHATS; id++) fill(repo, id);
+            awaitWithinBudget(repo);
+            assertTrue(repo.stats().coldChats() > 0);
+
+            for (long id = 1; id <= CHATS; id++) {
+                Chat chat = repo.findById(id).orElseThrow();
+                assertEquals(List.of(ALICE), chat.getParticipantIds());
+                List<Message> messages = chat.copyMessages();
+                assertEquals(MESSAGES, messages.size());
+                assertEquals(body(id, MESSAGES - 1), messages.get(MESSAGES - 1).getBody());
+            }
+            assertEquals(CHATS, repo.findByParticipant(ALICE).size());
+            assertEquals(CHATS, repo.findAll().size());
+        }
+    }
+
+    @Test
+    void aChatHeldByACallerComesBackAsTheSameObject() throws Exception {
+        try (TieredChatRepository repo = new TieredChatRepository(new ChatFileStore(dir), BUDGET)) {
+            Chat held = fill(repo, 1);
+            for (long id = 2; id <= CHATS; id++) fill(repo, id);
+            awaitWithinBudget(repo);
+
+            assertSame(held, repo.findById(1).orElseThrow());
+        }
+    }
+
+    @Test
+    void deletedChatsAreGoneFromBothTiers() throws Exception {
+        try (TieredChatRepository repo = new TieredChatRepository(new ChatFileStore(dir), BUDGET)) {
+            for (long id = 1; id <= CHATS; id++) fill(repo, id);
+            awaitWithinBudget(repo);
+
+            for (long id = 1; id <= CHATS; id++) repo.deleteById(id);
+            for (long id = 1; id <= CHATS; id++) assertTrue(repo.findById(id).isEmpty());
+            assertEquals(List.of(), repo.findByParticipant(ALICE));
+            assertEquals(0, repo.stats().coldChats());
+        }
+    }
+
+    // the way ChatService stores a send: the chat changes first
+    private static Chat fill(TieredChatRepository repo, long id) {
+        Chat chat = new Chat(id, "chat" + id);
+        chat.addParticipant(ALICE);
+        repo.add(chat);
+        for (int i = 0; i < MESSAGES; i++) {
+            Message m = new TextMessage(id * 1000 + i, id, ALICE, Instant.now(), body(id, i));
+            synchronized (chat) {
+                chat.append(m);
+                repo.appendMessage(chat, m).join();
+            }
+        }
+        return chat;
+    }
+
+    private static String body(long chatId, int i) {
+        return "message " + i + " of chat " + chatId;
+    }
+
+    private static void awaitWithinBudget(TieredChatRepository repo) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (repo.stats().hotBytes() > BUDGET) {
+            assertTrue(System.currentTimeMillis() < deadline, () -> "still over budget: " + repo.stats());
+            Thread.sleep(10);
+        }
+    }
+}
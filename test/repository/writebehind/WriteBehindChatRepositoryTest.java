@@ -0,0 +1,96 @@
+package repository.writebehind;
+
+import domain.Chat;
+import domain.message.Message;
+import domain.message.TextMessage;
+import exception.ChatNotFoundException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import repository.inmemory.InMemoryChatRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBehindChatRepositoryTest {
+    private static final long BOB = 2;
+
+    /** Records the receipts that reach it; the first one can be held up to stall the flusher. */
+    private static final class Backing extends InMemoryChatRepository {
+        final List<String> reads = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch writing = new CountDownLatch(1);
+        volatile boolean hold;
+
+        @Override
+        public CompletableFuture<Void> recordRead(Chat chat, long readerId, long throughId) {
+            writing.countDown();
+            if (hold) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            reads.add(chat.getId() + ":" + readerId + ":" + throughId);
+            return super.recordRead(chat, readerId, throughId);
+        }
+    }
+
+    private final Backing backing = new Backing();
+    private WriteBehindChatRepository repo;
+
+    @AfterEach
+    void close() {
+        backing.release.countDown();
+        repo.close();
+    }
+
+    @Test
+    void receiptsOfOneReaderCoalesceToTheHighest() {
+        repo = new WriteBehindChatRepository(backing, Duration.ofMinutes(1), 1000);
+        Chat chat = chat(100);
+        repo.recordRead(chat, BOB, 10);
+        repo.recordRead(chat, BOB, 12);
+        repo.recordRead(chat, BOB, 11);
+        WriteBehindChatRepository.Stats stats = repo.stats();
+        assertEquals(1, stats.queueDepth());
+        assertEquals(2, stats.coalesced());
+
+        repo.flush();
+        assertEquals(List.of("100:2:12"), backing.reads);
+        assertEquals(0, repo.stats().queueDepth());
+        assertEquals(1, repo.stats().changes());
+    }
+
+    @Test
+    void deletingAChatFailsItsQueuedMessages() throws InterruptedException {
+        repo = new WriteBehindChatRepository(backing, Duration.ZERO, 1000);
+        backing.hold = true;
+        repo.recordRead(chat(100), BOB, 1);
+        assertTrue(backing.writing.await(10, TimeUnit.SECONDS));
+
+        // queued behind the stalled batch
+        Chat doomed = chat(200);
+        Message m = new TextMessage(201, 200, BOB, Instant.EPOCH, "hi");
+        CompletableFuture<Void> stored = repo.appendMessage(doomed, m);
+        repo.deleteById(200);
+
+        CompletionException e = assertThrows(CompletionException.class, stored::join);
+        assertInstanceOf(ChatNotFoundException.class, e.getCause());
+        assertEquals(0, repo.stats().queueDepth());
+    }
+
+    private Chat chat(long id) {
+        Chat chat = new Chat(id, "chat " + id);
+        repo.add(chat);
+        return chat;
+    }
+}
@@ -0,0 +1,82 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditLogTest {
+    private static final int THREADS = 4;
+    private static final int PER_THREAD = 5_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void everyEntryFromManyThreadsIsWrittenOnce() throws Exception {
+        AuditLog log = AuditLog.open(dir, 1 << 16, Long.MAX_VALUE, 2);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 1; t <= THREADS; t++) {
+            long user = t;
+            threads.add(new Thread(() -> {
+                for (int i = 1; i <= PER_THREAD; i++) log.record("/127.0.0.1:5000", user, "SEND_TEXT", 7, i, true, 12_000, 40);
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) t.join();
+        log.close();
+        assertEquals(0, log.dropped());
+
+        List<String> lines = Files.readAllLines(dir.resolve("audit.log"), StandardCharsets.US_ASCII);
+        assertEquals(THREADS * PER_THREAD, lines.size());
+        long[] lastMsg = new long[THREADS + 1];
+        for (String line : lines) {
+            assertTrue(line.matches("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z remote=/127\\.0\\.0\\.1:5000 "
+                    + "user=\\d cmd=SEND_TEXT chat=7 msg=\\d+ status=OK us=12 bytes=40"), line);
+            int user = Integer.parseInt(field(line, "user"));
+            long msg = Long.parseLong(field(line, "msg"));
+            // one thread's entries keep their order
+            assertEquals(lastMsg[user] + 1, msg);
+            lastMsg[user] = msg;
+        }
+    }
+
+    @Test
+    void fieldsAreCutAndKeptAscii() throws IOException {
+        AuditLog log = AuditLog.open(dir, 16, Long.MAX_VALUE, 2);
+        log.record("", 0, "ПРИВЕТ " + "X".repeat(100), 0, 0, false, 999, 0);
+        log.close();
+
+        String line = Files.readString(dir.resolve("audit.log"), StandardCharsets.US_ASCII).trim();
+        assertTrue(line.endsWith(" remote= user=0 cmd=?????? " + "X".repeat(57) + " status=ERROR us=0 bytes=0"), line);
+    }
+
+    @Test
+    void fullFilesAreRotatedAndOnlyKeepFilesKept() throws Exception {
+        AuditLog log = AuditLog.open(dir, 1024, 500, 2);
+        for (int i = 0; i < 60; i++) {
+            log.record("/10.0.0.1:1", 1, "HISTORY", 7, 0, true, 1000, 10);
+            // one small batch at a time, so every file fills up on its own
+            Thread.sleep(2);
+        }
+        log.close();
+
+        assertTrue(Files.exists(dir.resolve("audit.log")));
+        assertTrue(Files.exists(dir.resolve("audit.log.1")));
+        assertTrue(Files.exists(dir.resolve("audit.log.2")));
+        assertFalse(Files.exists(dir.resolve("audit.log.3")));
+        assertTrue(Files.size(dir.resolve("audit.log.1")) >= 500);
+    }
+
+    private static String field(String line, String key) {
+        int start = line.indexOf(" " + key + "=") + key.length() + 2;
+        return line.substring(start, line.indexOf(' ', start));
+    }
+}
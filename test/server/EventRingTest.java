@@ -0,0 +1,32 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventRingTest {
+
+    @Test
+    void numbersEventsFromTheFirstSeq() {
+        EventRing ring = new EventRing(4, 100);
+        assertEquals(99, ring.last());
+        assertEquals("EVENT NEW_TEXT seq=100 chatId=1", ring.append("EVENT NEW_TEXT", " chatId=1"));
+        assertEquals("EVENT NEW_TEXT seq=101 chatId=2", ring.append("EVENT NEW_TEXT", " chatId=2"));
+        assertEquals(101, ring.last());
+    }
+
+    @Test
+    void replaysOnlyWhatIsStillKept() {
+        EventRing ring = new EventRing(4, 1);
+        for (int i = 1; i <= 6; i++) ring.append("EVENT NEW_TEXT", " n=" + i);
+
+        assertEquals(List.of("EVENT NEW_TEXT seq=5 n=5", "EVENT NEW_TEXT seq=6 n=6"), ring.between(4, 6));
+        assertEquals(4, ring.between(2, 6).size());
+        assertEquals(List.of(), ring.between(6, 6));
+        // seq 2 was overwritten, and nothing after 6 was ever sent
+        assertNull(ring.between(1, 6));
+        assertNull(ring.between(7, 6));
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import repository.log.FsyncPolicy;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OfflineInboxTest {
+    private static final long BOB = 2;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void queuedMessagesSurviveARestartInOrder() throws IOException {
+        try (OfflineInbox inbox = open(100)) {
+            inbox.add(BOB, 10, 1);
+            inbox.add(BOB, 20, 2);
+            inbox.add(BOB, 10, 3);
+        }
+        try (OfflineInbox inbox = open(100)) {
+            assertEquals(3, inbox.queued());
+            OfflineInbox.Backlog backlog = inbox.take(BOB, 100);
+            assertEquals(List.of(new OfflineInbox.Ref(10, 1), new OfflineInbox.Ref(20, 2), new OfflineInbox.Ref(10, 3)),
+                    backlog.refs());
+            assertEquals(List.of(new OfflineInbox.ChatCount(10, 2, 3), new OfflineInbox.ChatCount(20, 1, 2)),
+                    backlog.chats());
+        }
+        try (OfflineInbox inbox = open(100)) {
+            assertTrue(inbox.take(BOB, 100).isEmpty());
+        }
+    }
+
+    @Test
+    void spilledMessagesKeepTheirOrderAndCountsReplaceLongLists() throws IOException {
+        try (OfflineInbox inbox = open(2)) {
+            for (long id = 1; id <= 5; id++) inbox.add(BOB, 10, id);
+        }
+        try (OfflineInbox inbox = open(2)) {
+            OfflineInbox.Backlog backlog = inbox.take(BOB, 4);
+            assertNull(backlog.refs());
+            assertEquals(List.of(new OfflineInbox.ChatCount(10, 5, 5)), backlog.chats());
+        }
+        try (OfflineInbox inbox = open(2)) {
+            for (long id = 1; id <= 5; id++) inbox.add(BOB, 10, id);
+            assertEquals(List.of(1L, 2L, 3L, 4L, 5L),
+                    inbox.take(BOB, 5).refs().stream().map(OfflineInbox.Ref::messageId).toList());
+        }
+    }
+
+    @Test
+    void aFailingJournalKeepsTheMessageQueued() throws IOException {
+        OfflineInbox inbox = open(100);
+        inbox.close();
+        inbox.add(BOB, 10, 1);
+        assertEquals(List.of(new OfflineInbox.Ref(10, 1)), inbox.take(BOB, 100).refs());
+    }
+
+    private OfflineInbox open(int perUser) throws IOException {
+        return OfflineInbox.open(dir, FsyncPolicy.EVERY_COMMIT, Duration.ZERO, perUser, 1_000);
+    }
+}
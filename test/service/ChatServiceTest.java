@@ -0,0 +1,64 @@
+package service;
+
+import domain.Chat;
+import domain.User;
+import domain.message.Message;
+import org.junit.jupiter.api.Test;
+import repository.inmemory.InMemoryChatRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatServiceTest {
+    private static final long ALICE = 1;
+    private static final long BOB = 2;
+
+    private enum Storage { OK, THROWS, FAILS_LATER }
+
+    /** Chats in memory whose message writes fail on demand. */
+    private static final class FlakyRepository extends InMemoryChatRepository {
+        volatile Storage storage = Storage.OK;
+
+        @Override
+        public CompletableFuture<Void> appendMessage(Chat chat, Message message) {
+            return switch (storage) {
+                case OK -> super.appendMessage(chat, message);
+                case THROWS -> throw new IllegalStateException("Log is closed: chats");
+                case FAILS_LATER -> CompletableFuture.failedFuture(
+                        new UncheckedIOException("Log write failed: chats", new IOException("disk full")));
+            };
+        }
+    }
+
+    private final FlakyRepository chats = new FlakyRepository();
+    private final ChatService service = new ChatService(chats, id -> new User(id, "user" + id));
+
+    @Test
+    void retryAfterARejectedSendStoresOneCopy() {
+        Chat chat = service.createChat("chat", List.of(ALICE, BOB));
+        chats.storage = Storage.THROWS;
+        assertThrows(IllegalStateException.class, () -> service.sendText(chat.getId(), ALICE, "hi", 7));
+        assertEquals(0, chat.messageCount());
+
+        chats.storage = Storage.OK;
+        Message sent = service.sendText(chat.getId(), ALICE, "hi", 7);
+        assertEquals(List.of(sent), chat.copyMessages());
+        assertSame(sent, service.sendText(chat.getId(), ALICE, "hi", 7));
+    }
+
+    @Test
+    void retryAfterAFailedWriteGetsTheSameMessage() {
+        Chat chat = service.createChat("chat", List.of(ALICE, BOB));
+        chats.storage = Storage.FAILS_LATER;
+        assertThrows(UncheckedIOException.class, () -> service.sendText(chat.getId(), ALICE, "hi", 7));
+        assertEquals(1, chat.messageCount());
+
+        chats.storage = Storage.OK;
+        Message retried = service.sendText(chat.getId(), ALICE, "hi", 7);
+        assertEquals(List.of(retried), chat.copyMessages());
+    }
+}
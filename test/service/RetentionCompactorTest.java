@@ -0,0 +1,85 @@
+package service;
+
+import domain.Chat;
+import domain.RetentionPolicy;
+import domain.message.Message;
+import domain.message.TextMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import repository.log.FsyncPolicy;
+import repository.log.LogChatRepository;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetentionCompactorTest {
+    private static final long ALICE = 1;
+    private static final Instant NOW = Instant.parse("2026-01-10T00:00:00Z");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void dropsTheExpiredPrefixAndStoresTheTrim() throws IOException {
+        try (LogChatRepository repo = open();
+             RetentionCompactor compactor = new RetentionCompactor(repo, Duration.ofHours(1))) {
+            Chat counted = chat(repo, 100, RetentionPolicy.of(0, 2));
+            for (long id = 1; id <= 5; id++) send(repo, counted, id, NOW);
+
+            Chat aged = chat(repo, 200, RetentionPolicy.of(Duration.ofDays(1).toMillis(), 0));
+            send(repo, aged, 11, NOW.minus(Duration.ofDays(3)));
+            send(repo, aged, 12, NOW.minus(Duration.ofDays(2)));
+            send(repo, aged, 13, NOW.minus(Duration.ofHours(1)));
+
+            Chat kept = chat(repo, 300, RetentionPolicy.NONE);
+            send(repo, kept, 21, NOW.minus(Duration.ofDays(30)));
+
+            long bytes = counted.copyMessages().subList(0, 3).stream().mapToLong(Message::estimatedBytes).sum()
+                    + aged.copyMessages().subList(0, 2).stream().mapToLong(Message::estimatedBytes).sum();
+
+            RetentionCompactor.Run run = compactor.compact(NOW);
+            assertEquals(2, run.chats());
+            assertEquals(5, run.messages());
+            assertEquals(bytes, run.bytes());
+            assertEquals(List.of(4L, 5L), ids(counted));
+            assertEquals(List.of(13L), ids(aged));
+            assertEquals(List.of(21L), ids(kept));
+
+            assertEquals(0, compactor.compact(NOW).messages());
+        }
+
+        try (LogChatRepository repo = open()) {
+            assertEquals(List.of(4L, 5L), ids(repo.findById(100).orElseThrow()));
+            assertEquals(List.of(13L), ids(repo.findById(200).orElseThrow()));
+            assertEquals(List.of(21L), ids(repo.findById(300).orElseThrow()));
+        }
+    }
+
+    private LogChatRepository open() throws IOException {
+        return new LogChatRepository(dir, FsyncPolicy.EVERY_COMMIT, Duration.ZERO);
+    }
+
+    private static Chat chat(LogChatRepository repo, long id, RetentionPolicy policy) {
+        Chat chat = new Chat(id, "chat" + id);
+        chat.addParticipant(ALICE);
+        repo.add(chat);
+        chat.setRetention(policy);
+        repo.update(chat);
+        return chat;
+    }
+
+    private static void send(LogChatRepository repo, Chat chat, long id, Instant at) {
+        Message m = new TextMessage(id, chat.getId(), ALICE, at, "message " + id);
+        chat.append(m);
+        repo.appendMessage(chat, m).join();
+    }
+
+    private static List<Long> ids(Chat chat) {
+        return chat.copyMessages().stream().map(Message::getId).toList();
+    }
+}
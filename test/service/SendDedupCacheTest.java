@@ -0,0 +1,46 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SendDedupCacheTest {
+    @Test
+    void retryGetsTheOriginalMessageId() {
+        SendDedupCache cache = new SendDedupCache(1024, Duration.ofMinutes(1));
+        assertEquals(0, cache.putIfAbsent(1, 42, 1000));
+        assertEquals(1000, cache.putIfAbsent(1, 42, 1001));
+        // another client id, or the same one from another sender, is a new send
+        assertEquals(0, cache.putIfAbsent(1, 43, 1002));
+        assertEquals(0, cache.putIfAbsent(2, 42, 1003));
+    }
+
+    @Test
+    void entriesExpire() throws InterruptedException {
+        SendDedupCache cache = new SendDedupCache(1024, Duration.ofMillis(20));
+        assertEquals(0, cache.putIfAbsent(1, 42, 1000));
+        Thread.sleep(50);
+        assertEquals(0, cache.putIfAbsent(1, 42, 1001));
+        assertEquals(1001, cache.putIfAbsent(1, 42, 1002));
+    }
+
+    @Test
+    void removeOnlyForgetsTheSameMessage() {
+        SendDedupCache cache = new SendDedupCache(1024, Duration.ofMinutes(1));
+        cache.putIfAbsent(1, 42, 1000);
+        cache.remove(1, 42, 999);
+        assertEquals(1000, cache.putIfAbsent(1, 42, 1001));
+        cache.remove(1, 42, 1000);
+        assertEquals(0, cache.putIfAbsent(1, 42, 1001));
+    }
+
+    @Test
+    void fullWindowOverwritesAndStaysBounded() {
+        SendDedupCache cache = new SendDedupCache(128, Duration.ofMinutes(1));
+        for (long i = 1; i <= 10_000; i++) assertEquals(0, cache.putIfAbsent(1, i, i));
+        // the latest sends are still remembered
+        assertEquals(10_000, cache.putIfAbsent(1, 10_000, 1));
+    }
+}
@@ -0,0 +1,71 @@
+package trace;
+
+import domain.Chat;
+import domain.User;
+import domain.message.Message;
+import domain.message.MessageCodec;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import repository.inmemory.InMemoryChatRepository;
+import service.ChatService;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracingTest {
+    private static final long ALICE = 1;
+    private static final long BOB = 2;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void aSendRecordsItsEventsWithTheMessageIds() throws Exception {
+        ChatService service = new ChatService(new InMemoryChatRepository(), id -> new User(id, "user" + id));
+        service.addListener((chat, message) -> {});
+        Chat chat = service.createChat("traced", List.of(ALICE, BOB));
+
+        Path file = dir.resolve("send.jfr");
+        Message sent;
+        try (Recording r = new Recording()) {
+            for (var e : Tracing.EVENTS) r.enable(e).withoutStackTrace();
+            r.start();
+            sent = service.sendText(chat.getId(), ALICE, "traced message");
+            r.stop();
+            r.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().startsWith("messenger."))
+                .toList();
+        RecordedEvent send = events.stream()
+                .filter(e -> e.getEventType().getName().equals("messenger.Send"))
+                .findFirst().orElseThrow();
+        assertEquals("TEXT", send.getString("kind"));
+        assertEquals(ALICE, send.getLong("senderId"));
+        assertEquals(chat.getId(), send.getLong("chatId"));
+        assertEquals(sent.getId(), send.getLong("messageId"));
+        assertEquals(1, send.getInt("recipients"));
+        assertEquals(MessageCodec.encodedLength(sent), send.getInt("bytes"));
+
+        // the chat's own subscribers and the one listener
+        List<RecordedEvent> notified = events.stream()
+                .filter(e -> e.getEventType().getName().equals("messenger.Notify"))
+                .toList();
+        assertEquals(2, notified.size());
+        for (RecordedEvent n : notified) assertEquals(sent.getId(), n.getLong("messageId"));
+    }
+
+    @Test
+    void lineBytesCountsUtf8AndTheLineBreak() {
+        assertEquals(1, Tracing.lineBytes(""));
+        assertEquals(4, Tracing.lineBytes("abc"));
+        assertEquals(5, Tracing.lineBytes("пр"));
+        assertEquals(5, Tracing.lineBytes("😀"));
+    }
+}
@@ -0,0 +1,74 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int v = 1; v <= 10; v++) h.record(v);
+        assertEquals(10, h.count());
+        assertEquals(5.5, h.mean(), 1e-9);
+        assertEquals(5, h.percentile(0.5));
+        assertEquals(10, h.percentile(1.0));
+        assertEquals(10, h.max());
+        assertEquals(1, h.percentile(0));
+    }
+
+    @Test
+    void percentilesAreWithinTheBucketError() {
+        LatencyHistogram h = new LatencyHistogram();
+        List<Long> values = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long v = (long) Math.exp(random.nextDouble() * 20);
+            values.add(v);
+            h.record(v);
+        }
+        values.sort(null);
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            long exact = values.get((int) Math.ceil(q * values.size()) - 1);
+            long reported = h.percentile(q);
+            assertTrue(reported >= exact && reported <= exact * 1.016 + 1, q + ": " + reported + " vs " + exact);
+        }
+        assertEquals(values.get(values.size() - 1), h.max());
+    }
+
+    @Test
+    void addMergesCountsFromManyRecorders() throws InterruptedException {
+        LatencyHistogram total = new LatencyHistogram();
+        LatencyHistogram shared = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            long base = t * 1_000_000L;
+            threads.add(new Thread(() -> {
+                LatencyHistogram own = new LatencyHistogram();
+                for (int i = 0; i < 10_000; i++) {
+                    own.record(base + i);
+                    shared.record(base + i);
+                }
+                synchronized (total) {
+                    total.add(own);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) t.join();
+
+        assertEquals(40_000, total.count());
+        assertEquals(shared.count(), total.count());
+        assertEquals(shared.mean(), total.mean(), 1e-6);
+        assertEquals(shared.max(), total.max());
+        assertEquals(shared.percentile(0.99), total.percentile(0.99));
+        // negative values count as zero
+        total.record(-5);
+        assertEquals(0, total.percentile(1.0 / total.count()));
+    }
+}